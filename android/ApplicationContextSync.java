@@ -0,0 +1,481 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the application context of the connected nodes up to date by sending only what changed.
+ * For every node the last snapshot sent to it is kept, an update is sent as a delta against it
+ * with the keys that were added or changed and the keys that were removed, nested maps are diffed recursively.
+ * Rapid updates are coalesced, only the newest state is sent once the coalesce delay has passed.
+ * <p>
+ * The version of a snapshot is sent as the message id and acknowledged by the receiver.
+ * Nodes only receive deltas after they acknowledged a snapshot, so older peers keep receiving full snapshots.
+ * A receiver that gets a delta against another version than the one it has acknowledges version 0,
+ * after which it receives the full snapshot again.
+ * <p>
+ * Delta format, UTF-8 JSON where every field is optional:
+ * <pre>
+ *     {"set": {key: value, ...}, "remove": [key, ...], "merge": {key: delta, ...}}
+ * </pre>
+ * A delta message carries the version it is based on as replyTo.
+ */
+final class ApplicationContextSync {
+
+    static final long DEFAULT_COALESCE_MILLIS = 50;
+
+    private static final String TAG = "ApplicationContextSync";
+    private static final String SET = "set";
+    private static final String REMOVE = "remove";
+    private static final String MERGE = "merge";
+
+    /**
+     * Creates and sends the messages of the sync
+     */
+    interface Outlet {
+        @NonNull
+        Collection<String> getNodeIds();
+
+        @NonNull
+        MessageObject createMessage(@NonNull MessageObject.MessageType type, @Nullable byte[] data);
+
+        void send(@NonNull String nodeId, @NonNull MessageObject message, @NonNull MessageService.SendCallback callback);
+    }
+
+    /**
+     * What was sent to a node
+     */
+    private static final class SentState {
+        /**
+         * The version of the last snapshot sent, 0 when the next update must be a full snapshot
+         */
+        long version;
+        Map<String, Object> state;
+        /**
+         * Whether the node acknowledged a snapshot, so it understands deltas
+         */
+        boolean acknowledged;
+    }
+
+    /**
+     * What was received from a node
+     */
+    private static final class ReceivedState {
+        long version;
+        HashMap<String, Object> state;
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Outlet outlet;
+    private volatile long coalesceMillis = DEFAULT_COALESCE_MILLIS;
+
+    @Nullable
+    private Map<String, Object> state;
+    @Nullable
+    private byte[] snapshot;
+    private long version = System.currentTimeMillis();
+    private final Map<String, SentState> sent = new HashMap<>();
+    private final Map<String, ReceivedState> received = new HashMap<>();
+    private final List<MessageService.SendCallback> pending = new ArrayList<>();
+    private boolean flushScheduled = false;
+
+    private long deltas = 0;
+    private long snapshots = 0;
+    private long resyncs = 0;
+
+    /**
+     * @param scheduler runs the coalesced flushes
+     * @param outlet    sends the messages
+     */
+    ApplicationContextSync(@NonNull ScheduledExecutorService scheduler, @NonNull Outlet outlet) {
+        this.scheduler = scheduler;
+        this.outlet = outlet;
+    }
+
+    /**
+     * @param coalesceMillis the time an update waits for newer updates before it is sent
+     */
+    void setCoalesceMillis(long coalesceMillis) {
+        this.coalesceMillis = Math.max(0, coalesceMillis);
+    }
+
+    /**
+     * Replace the application context, it is sent to all nodes once the coalesce delay has passed
+     *
+     * @param context  the new state, it must not be changed afterwards
+     * @param data     the state encoded as JSON
+     * @param callback called once a node received the state or a newer one
+     */
+    synchronized void update(@NonNull Map<String, Object> context, @NonNull byte[] data,
+                             @Nullable MessageService.SendCallback callback) {
+        state = context;
+        snapshot = data;
+        version++;
+        scheduleFlush(callback);
+    }
+
+    /**
+     * Send the current state to the nodes that do not have it, such as nodes that just connected
+     *
+     * @param callback called once a node received the state
+     * @return false if there is no state to send
+     */
+    synchronized boolean resend(@Nullable MessageService.SendCallback callback) {
+        if (state == null) {
+            return false;
+        }
+        scheduleFlush(callback);
+        return true;
+    }
+
+    private void scheduleFlush(@Nullable MessageService.SendCallback callback) {
+        if (callback != null) {
+            pending.add(callback);
+        }
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        try {
+            scheduler.schedule(this::flush, coalesceMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            flushScheduled = false;
+            Log.w(TAG, "Dropped an application context update after the service was destroyed");
+        }
+    }
+
+    /**
+     * Send the newest state to every node, as a delta when the node knows the previous state
+     */
+    synchronized void flush() {
+        flushScheduled = false;
+        List<MessageService.SendCallback> callbacks = new ArrayList<>(pending);
+        pending.clear();
+        Collection<String> nodeIds = outlet.getNodeIds();
+        if (state == null || nodeIds.isEmpty()) {
+            Exception exception = new MessageService.NotReachableException();
+            for (MessageService.SendCallback callback : callbacks) {
+                callback.onFailure(exception);
+            }
+            return;
+        }
+        MessageService.SendTracker tracker = new MessageService.SendTracker(new MessageService.SendCallback() {
+            @Override
+            public void onSuccess() {
+                for (MessageService.SendCallback callback : callbacks) {
+                    callback.onSuccess();
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                for (MessageService.SendCallback callback : callbacks) {
+                    callback.onFailure(exception);
+                }
+            }
+        }, nodeIds.size());
+        for (String nodeId : nodeIds) {
+            SentState node = sent.get(nodeId);
+            if (node == null) {
+                node = new SentState();
+                sent.put(nodeId, node);
+            }
+            if (node.version != 0 && node.state == state) {
+                // The node has the newest state already
+                tracker.onSuccess();
+                continue;
+            }
+            MessageObject message = null;
+            if (node.acknowledged && node.version != 0) {
+                message = createDelta(node.state, node.version);
+            }
+            if (message == null) {
+                message = outlet.createMessage(MessageObject.MessageType.applicationContext, snapshot);
+                snapshots++;
+            } else {
+                deltas++;
+            }
+            message.id = version;
+            node.version = version;
+            node.state = state;
+            outlet.send(nodeId, message, new NodeCallback(nodeId, version, tracker));
+        }
+    }
+
+    /**
+     * @return the delta message, null when the full snapshot is smaller
+     */
+    @Nullable
+    private MessageObject createDelta(Map<String, Object> base, long baseVersion) {
+        byte[] data;
+        try {
+            data = PayloadSerializer.toJSONBytes(diff(base, state));
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot encode the delta, sending the full snapshot", e);
+            return null;
+        }
+        if (data.length >= snapshot.length) {
+            return null;
+        }
+        MessageObject message = outlet.createMessage(MessageObject.MessageType.applicationContextDelta, data);
+        message.replyTo = baseVersion;
+        return message;
+    }
+
+    /**
+     * Forgets what a node has when a delta could not be sent to it, so the next update is a full snapshot
+     */
+    private final class NodeCallback implements MessageService.SendCallback {
+        private final String nodeId;
+        private final long version;
+        private final MessageService.SendCallback callback;
+
+        NodeCallback(String nodeId, long version, MessageService.SendCallback callback) {
+            this.nodeId = nodeId;
+            this.version = version;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSuccess() {
+            callback.onSuccess();
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            synchronized (ApplicationContextSync.this) {
+                SentState node = sent.get(nodeId);
+                if (node != null && node.version == version) {
+                    node.version = 0;
+                }
+            }
+            callback.onFailure(exception);
+        }
+    }
+
+    /**
+     * Called when a node acknowledged a snapshot or delta
+     *
+     * @param nodeId  the node that sent the acknowledgement
+     * @param version the version the node has, 0 when a delta did not match its version
+     */
+    synchronized void onAcknowledged(@NonNull String nodeId, long version) {
+        SentState node = sent.get(nodeId);
+        if (node == null) {
+            return;
+        }
+        if (version == 0) {
+            resyncs++;
+            node.version = 0;
+            node.acknowledged = false;
+            if (state != null) {
+                scheduleFlush(null);
+            }
+        } else {
+            node.acknowledged = true;
+        }
+    }
+
+    /**
+     * Apply a received full snapshot
+     *
+     * @param nodeId  the node the snapshot was received from
+     * @param message the snapshot, its id is the version unless it was sent by an older peer
+     * @return the message to store and pass to the listener
+     */
+    @NonNull
+    MessageObject receiveSnapshot(@NonNull String nodeId, @NonNull MessageObject message) {
+        HashMap<String, Object> context = null;
+        try {
+            context = message.data == null ? new HashMap<>() : PayloadSerializer.toHashMap(message.data);
+        } catch (JSONException e) {
+            Log.w(TAG, "Received an application context that is not a JSON object", e);
+        }
+        synchronized (this) {
+            ReceivedState node = received.get(nodeId);
+            if (node == null) {
+                node = new ReceivedState();
+                received.put(nodeId, node);
+            }
+            node.state = context;
+            node.version = context == null ? 0 : message.id;
+        }
+        if (message.id != 0 && context != null) {
+            acknowledge(nodeId, message.id);
+        }
+        return message;
+    }
+
+    /**
+     * Apply a received delta to the state received from the node before
+     *
+     * @param nodeId  the node the delta was received from
+     * @param message the delta
+     * @return the message with the merged state, null when the delta did not match the state
+     */
+    @Nullable
+    MessageObject receiveDelta(@NonNull String nodeId, @NonNull MessageObject message) {
+        byte[] merged = null;
+        synchronized (this) {
+            ReceivedState node = received.get(nodeId);
+            if (node != null && node.version != 0 && node.version == message.replyTo && message.data != null) {
+                try {
+                    HashMap<String, Object> context = deepCopy(node.state);
+                    if (apply(context, PayloadSerializer.toHashMap(message.data))) {
+                        merged = PayloadSerializer.toJSONBytes(context);
+                        node.state = context;
+                        node.version = message.id;
+                    }
+                } catch (JSONException e) {
+                    Log.w(TAG, "Received a delta that is not a JSON object", e);
+                }
+            }
+        }
+        if (merged == null) {
+            // Ask for the full snapshot
+            acknowledge(nodeId, 0);
+            return null;
+        }
+        acknowledge(nodeId, message.id);
+        MessageObject context = new MessageObject(message.sender.platform, message.sender.direction,
+            message.sender.deviceId, MessageObject.MessageType.applicationContext, merged, message.timestamp);
+        context.id = message.id;
+        return context;
+    }
+
+    private void acknowledge(String nodeId, long version) {
+        MessageObject ack = outlet.createMessage(MessageObject.MessageType.applicationContextAck, null);
+        ack.replyTo = version;
+        outlet.send(nodeId, ack, new MessageService.SendCallback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                Log.w(TAG, "Cannot acknowledge the application context of " + nodeId, exception);
+            }
+        });
+    }
+
+    /**
+     * Get the number of deltas, full snapshots and resynchronisations
+     *
+     * @return the statistics by name
+     */
+    @NonNull
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("deltas", (double) deltas);
+        stats.put("snapshots", (double) snapshots);
+        stats.put("resyncs", (double) resyncs);
+        return stats;
+    }
+
+    /**
+     * Compute the delta that turns one state into another
+     *
+     * @return the delta, empty when the states are equal
+     */
+    @NonNull
+    static Map<String, Object> diff(@NonNull Map<String, Object> from, @NonNull Map<String, Object> to) {
+        Map<String, Object> set = new HashMap<>();
+        Map<String, Object> merge = new HashMap<>();
+        List<String> remove = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : to.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (!from.containsKey(key)) {
+                set.put(key, value);
+                continue;
+            }
+            Object previous = from.get(key);
+            if (Objects.equals(previous, value)) {
+                continue;
+            }
+            if (previous instanceof Map && value instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> nested = diff((Map<String, Object>) previous, (Map<String, Object>) value);
+                merge.put(key, nested);
+            } else {
+                set.put(key, value);
+            }
+        }
+        for (String key : from.keySet()) {
+            if (!to.containsKey(key)) {
+                remove.add(key);
+            }
+        }
+        Map<String, Object> delta = new HashMap<>();
+        if (!set.isEmpty()) {
+            delta.put(SET, set);
+        }
+        if (!remove.isEmpty()) {
+            delta.put(REMOVE, remove);
+        }
+        if (!merge.isEmpty()) {
+            delta.put(MERGE, merge);
+        }
+        return delta;
+    }
+
+    /**
+     * Apply a delta to a state in place
+     *
+     * @return false if the delta does not fit the state
+     */
+    @SuppressWarnings("unchecked")
+    static boolean apply(@NonNull Map<String, Object> context, @NonNull Map<String, Object> delta) {
+        Object set = delta.get(SET);
+        if (set instanceof Map) {
+            context.putAll((Map<String, Object>) set);
+        }
+        Object remove = delta.get(REMOVE);
+        if (remove instanceof List) {
+            for (Object key : (List<Object>) remove) {
+                context.remove(String.valueOf(key));
+            }
+        }
+        Object merge = delta.get(MERGE);
+        if (merge instanceof Map) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) merge).entrySet()) {
+                Object nested = context.get(entry.getKey());
+                if (!(nested instanceof Map) || !(entry.getValue() instanceof Map)
+                    || !apply((Map<String, Object>) nested, (Map<String, Object>) entry.getValue())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the maps of a state, so a delta that does not fit leaves the original untouched.
+     * Lists and other values are not changed by deltas and are shared.
+     */
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, Object> deepCopy(Map<String, Object> context) {
+        HashMap<String, Object> copy = new HashMap<>(context);
+        for (Map.Entry<String, Object> entry : copy.entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                entry.setValue(deepCopy((Map<String, Object>) entry.getValue()));
+            }
+        }
+        return copy;
+    }
+}
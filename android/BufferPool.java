@@ -0,0 +1,134 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reuses byte arrays of the exact length that is asked for. The MessageClient sends whole arrays,
+ * so frames cannot be taken from larger buffers, but streams of fixed size payloads ask for
+ * the same few lengths over and over, which makes them allocation free once the pool is warm.
+ * <p>
+ * The pool holds at most MAX_LENGTHS different lengths, the least recently used length is evicted
+ * to make room for a new one. Arrays larger than MAX_POOLED_SIZE are never pooled.
+ * Acquiring and releasing does not allocate.
+ */
+final class BufferPool {
+
+    static final int MAX_POOLED_SIZE = 64 * 1024;
+    static final int MAX_LENGTHS = 16;
+    static final int MAX_BUFFERS_PER_LENGTH = 8;
+
+    /**
+     * The pooled arrays of one length
+     */
+    private static final class Slot {
+        int length = -1;
+        long lastUsed;
+        final byte[][] buffers = new byte[MAX_BUFFERS_PER_LENGTH][];
+        int count;
+    }
+
+    private final Slot[] slots = new Slot[MAX_LENGTHS];
+    private long clock = 0;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    BufferPool() {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Take an array of the length from the pool, its contents are undefined
+     *
+     * @param length the length of the array
+     * @return a pooled array, or a new one when none of the length is pooled
+     */
+    @NonNull
+    byte[] acquire(int length) {
+        if (length <= MAX_POOLED_SIZE) {
+            synchronized (this) {
+                Slot slot = find(length);
+                if (slot != null && slot.count > 0) {
+                    slot.lastUsed = ++clock;
+                    byte[] buffer = slot.buffers[--slot.count];
+                    slot.buffers[slot.count] = null;
+                    hits.incrementAndGet();
+                    return buffer;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return new byte[length];
+    }
+
+    /**
+     * Return an array to the pool, the caller must not use it afterwards
+     *
+     * @param buffer the array, taken from acquire or not
+     */
+    void release(@NonNull byte[] buffer) {
+        if (buffer.length > MAX_POOLED_SIZE) {
+            return;
+        }
+        synchronized (this) {
+            Slot slot = find(buffer.length);
+            if (slot == null) {
+                slot = leastRecentlyUsed();
+                slot.length = buffer.length;
+                for (int i = 0; i < slot.count; i++) {
+                    slot.buffers[i] = null;
+                }
+                slot.count = 0;
+            }
+            slot.lastUsed = ++clock;
+            if (slot.count < slot.buffers.length) {
+                slot.buffers[slot.count++] = buffer;
+            }
+        }
+    }
+
+    private Slot find(int length) {
+        for (Slot slot : slots) {
+            if (slot.length == length) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private Slot leastRecentlyUsed() {
+        Slot oldest = slots[0];
+        for (Slot slot : slots) {
+            if (slot.lastUsed < oldest.lastUsed) {
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Get the number of arrays that were reused and allocated, and the bytes held by the pool
+     *
+     * @return the statistics by name
+     */
+    @NonNull
+    Map<String, Object> getStats() {
+        long pooledBytes = 0;
+        synchronized (this) {
+            for (Slot slot : slots) {
+                pooledBytes += (long) slot.length * slot.count;
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", (double) hits.get());
+        stats.put("misses", (double) misses.get());
+        stats.put("pooledBytes", (double) pooledBytes);
+        return stats;
+    }
+}
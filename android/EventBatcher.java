@@ -0,0 +1,135 @@
+package com.canvasheroes.ommetje;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects events for JavaScript and emits them as a single array per frame,
+ * so a burst of received messages crosses the bridge once instead of once per message.
+ * A batch is emitted on the first frame after the delay, or immediately when it is full.
+ */
+final class EventBatcher {
+
+    /**
+     * Emits a batch of events to JavaScript
+     */
+    interface Emitter {
+        void emit(@NonNull WritableArray events);
+    }
+
+    /**
+     * Runs the flush of a batch on a coming frame
+     */
+    interface FrameScheduler {
+        void postFrame(@NonNull Runnable flush, long delayMillis);
+    }
+
+    /**
+     * Waits for the Choreographer, which can only be used from the main thread
+     */
+    private static final class ChoreographerFrames implements FrameScheduler {
+        private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void postFrame(@NonNull Runnable flush, long delayMillis) {
+            mainHandler.post(() ->
+                Choreographer.getInstance().postFrameCallbackDelayed(frameTimeNanos -> flush.run(), delayMillis));
+        }
+    }
+
+    static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 0;
+
+    private final Emitter emitter;
+    private final FrameScheduler frames;
+    private final Runnable flush = this::flush;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+    private List<WritableMap> pending = new ArrayList<>();
+    private boolean scheduled = false;
+
+    /**
+     * @param emitter emits the batches
+     */
+    EventBatcher(@NonNull Emitter emitter) {
+        this(emitter, new ChoreographerFrames());
+    }
+
+    /**
+     * @param emitter emits the batches
+     * @param frames  runs the flush of a batch on a coming frame
+     */
+    EventBatcher(@NonNull Emitter emitter, @NonNull FrameScheduler frames) {
+        this.emitter = emitter;
+        this.frames = frames;
+    }
+
+    /**
+     * @param maxBatchSize   the maximum number of events in a batch, 1 emits every event on its own
+     * @param maxDelayMillis the time to wait for more events before the next frame, 0 waits for the next frame only
+     */
+    void configure(int maxBatchSize, long maxDelayMillis) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayMillis = Math.max(0, maxDelayMillis);
+    }
+
+    /**
+     * Add an event to the next batch, can be called from any thread
+     *
+     * @param event the payload of the event
+     */
+    void add(@NonNull WritableMap event) {
+        List<WritableMap> full = null;
+        synchronized (this) {
+            pending.add(event);
+            if (pending.size() >= maxBatchSize) {
+                full = take();
+            } else if (!scheduled) {
+                scheduled = true;
+                frames.postFrame(flush, maxDelayMillis);
+            }
+        }
+        if (full != null) {
+            emit(full);
+        }
+    }
+
+    /**
+     * Emit the pending events immediately
+     */
+    void flush() {
+        List<WritableMap> events;
+        synchronized (this) {
+            events = take();
+        }
+        if (!events.isEmpty()) {
+            emit(events);
+        }
+    }
+
+    private List<WritableMap> take() {
+        List<WritableMap> events = pending;
+        pending = new ArrayList<>();
+        scheduled = false;
+        return events;
+    }
+
+    private void emit(List<WritableMap> events) {
+        WritableArray array = Arguments.createArray();
+        for (WritableMap event : events) {
+            array.pushMap(event);
+        }
+        emitter.emit(array);
+    }
+}
@@ -0,0 +1,161 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport that sends to several nodes in parallel, with at most maxConcurrentSends sends in flight.
+ * Sends over the cap wait in a queue and start as soon as another send reports, so the caller never blocks.
+ * The outcome and latency of every send is recorded in the NodeHealth.
+ * <p>
+ * The pending sends double as the callbacks passed to the transport and are recycled once they reported,
+ * so a steady stream of sends does not allocate.
+ */
+final class FanOut implements MessageTransport {
+
+    static final int DEFAULT_MAX_CONCURRENT_SENDS = 4;
+    private static final int MAX_POOLED_SENDS = 64;
+
+    /**
+     * A send waiting for a slot or in flight, reports its outcome to the fan-out before the callback of the caller
+     */
+    private final class PendingSend implements MessageService.SendCallback {
+        String nodeId;
+        String path;
+        byte[] data;
+        MessageService.SendCallback callback;
+        long startedAt;
+        @Nullable
+        PendingSend next;
+
+        @Override
+        public void onSuccess() {
+            String node = nodeId;
+            MessageService.SendCallback caller = callback;
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+            recycle(this);
+            health.recordSuccess(node, latencyMillis);
+            release();
+            caller.onSuccess();
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            String node = nodeId;
+            MessageService.SendCallback caller = callback;
+            recycle(this);
+            health.recordFailure(node);
+            release();
+            caller.onFailure(exception);
+        }
+    }
+
+    private final MessageTransport transport;
+    private final NodeHealth health;
+    // Guarded by this
+    private final ArrayDeque<PendingSend> pending = new ArrayDeque<>();
+    private int inFlight = 0;
+    @Nullable
+    private PendingSend pool;
+    private int pooled = 0;
+    private volatile int maxConcurrentSends = DEFAULT_MAX_CONCURRENT_SENDS;
+
+    /**
+     * @param transport sends the messages
+     * @param health    records the outcome of every send
+     */
+    FanOut(@NonNull MessageTransport transport, @NonNull NodeHealth health) {
+        this.transport = transport;
+        this.health = health;
+    }
+
+    /**
+     * @param maxConcurrentSends the maximum number of sends in flight
+     */
+    void setMaxConcurrentSends(int maxConcurrentSends) {
+        this.maxConcurrentSends = Math.max(1, maxConcurrentSends);
+        drain();
+    }
+
+    @Override
+    public void send(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data,
+                     @NonNull MessageService.SendCallback callback) {
+        synchronized (this) {
+            PendingSend send = pool;
+            if (send != null) {
+                pool = send.next;
+                send.next = null;
+                pooled--;
+            } else {
+                send = new PendingSend();
+            }
+            send.nodeId = nodeId;
+            send.path = path;
+            send.data = data;
+            send.callback = callback;
+            pending.addLast(send);
+        }
+        drain();
+    }
+
+    /**
+     * Start pending sends until the cap is reached
+     */
+    private void drain() {
+        while (true) {
+            PendingSend send;
+            synchronized (this) {
+                if (inFlight >= maxConcurrentSends || pending.isEmpty()) {
+                    return;
+                }
+                send = pending.pollFirst();
+                inFlight++;
+            }
+            start(send);
+        }
+    }
+
+    private void start(PendingSend send) {
+        send.startedAt = System.nanoTime();
+        try {
+            transport.send(send.nodeId, send.path, send.data, send);
+        } catch (RuntimeException e) {
+            send.onFailure(e);
+        }
+    }
+
+    private synchronized void recycle(PendingSend send) {
+        send.nodeId = null;
+        send.path = null;
+        send.data = null;
+        send.callback = null;
+        if (pooled < MAX_POOLED_SENDS) {
+            send.next = pool;
+            pool = send;
+            pooled++;
+        }
+    }
+
+    private void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        drain();
+    }
+
+    /**
+     * @return the number of sends in flight and waiting for a slot
+     */
+    @NonNull
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("inFlight", (double) inFlight);
+        stats.put("pending", (double) pending.size());
+        return stats;
+    }
+}
@@ -0,0 +1,447 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.android.gms.wearable.ChannelClient;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams files between the handheld and wearable over the Wearable ChannelClient.
+ * Files are read and written in fixed size chunks, so they are never loaded into memory as a whole,
+ * and an interrupted transfer can be resumed from the bytes the receiver has.
+ * Received files are written to a directory of their own per transfer id, so files with the same name
+ * never overwrite each other or resume from each other's bytes.
+ * <p>
+ * The sender starts every channel with a header:
+ * <pre>
+ *   int     MAGIC
+ *   UTF     transfer id
+ *   UTF     file name
+ *   long    total size of the file
+ *   boolean whether an earlier attempt of the transfer is resumed
+ *   UTF     metadata as JSON
+ * </pre>
+ * the receiver answers with the offset it wants the data from, as a long,
+ * after which the sender writes the data of the file from that offset.
+ * <p>
+ * Sends and receives run on separate pools, so inbound files are never queued behind outbound ones.
+ */
+final class FileTransferManager extends ChannelClient.ChannelCallback {
+
+    /**
+     * Called when a transfer starts, makes progress, finishes or fails
+     */
+    public interface OnFileTransferListener {
+        void onFileTransfer(@NonNull String type, @NonNull FileTransfer transfer);
+    }
+
+    /**
+     * Live state of an inbound or outbound transfer
+     */
+    static final class FileTransfer {
+        final String id;
+        final String uri;
+        final String nodeId;
+        final Map<String, Object> metadata;
+        final long bytesTotal;
+        final long startTime = System.currentTimeMillis();
+        volatile long startOffset;
+        volatile long bytesTransferred;
+        volatile long endTime = 0;
+        volatile String error;
+
+        FileTransfer(String id, String uri, String nodeId, Map<String, Object> metadata,
+                     long bytesTotal, long startOffset) {
+            this.id = id;
+            this.uri = uri;
+            this.nodeId = nodeId;
+            this.metadata = metadata;
+            this.bytesTotal = bytesTotal;
+            this.startOffset = startOffset;
+            this.bytesTransferred = startOffset;
+        }
+
+        boolean isActive() {
+            return endTime == 0;
+        }
+
+        /**
+         * @return the transfer in the shape of NativeFileTransfer in lib/native-module.ts
+         */
+        @NonNull
+        Map<String, Object> toMap() {
+            long transferred = bytesTransferred;
+            long elapsed = Math.max(1, (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime);
+            double throughput = (transferred - startOffset) * 1000.0 / elapsed;
+            Map<String, Object> map = new HashMap<>();
+            map.put("id", id);
+            map.put("uri", uri);
+            map.put("metadata", metadata);
+            map.put("bytesTotal", (double) bytesTotal);
+            map.put("bytesTransferred", (double) transferred);
+            map.put("fractionCompleted", bytesTotal == 0 ? 1.0 : (double) transferred / bytesTotal);
+            map.put("startTime", (double) startTime);
+            map.put("endTime", endTime == 0 ? null : (double) endTime);
+            map.put("throughput", throughput);
+            map.put("estimatedTimeRemaining",
+                throughput > 0 && endTime == 0 ? (bytesTotal - transferred) / throughput : null);
+            map.put("error", error == null ? null : Collections.singletonMap("message", error));
+            return map;
+        }
+    }
+
+    static final String EVENT_STARTED = "started";
+    static final String EVENT_PROGRESS = "progress";
+    static final String EVENT_FINISHED = "finished";
+    static final String EVENT_ERROR = "error";
+
+    /**
+     * Channels for file transfers use paths starting with this prefix
+     */
+    static final String FILE_PATH_PREFIX = "/ommetje_files/";
+    static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 2;
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x4F4D4654;
+    private static final String TAG = "FileTransferManager";
+    /**
+     * Progress events are sent at most this often per transfer
+     */
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+
+    private final ChannelClient channelClient;
+    private final File receiveDirectory;
+    private final ThreadPoolExecutor sendExecutor = newExecutor();
+    private final ThreadPoolExecutor receiveExecutor = newExecutor();
+    private final ConcurrentHashMap<String, FileTransfer> transfers = new ConcurrentHashMap<>();
+    private volatile OnFileTransferListener listener;
+
+    /**
+     * @param channelClient    the client used to open and accept channels
+     * @param receiveDirectory the directory received files are written to
+     */
+    FileTransferManager(@NonNull ChannelClient channelClient, @NonNull File receiveDirectory) {
+        this.channelClient = channelClient;
+        this.receiveDirectory = receiveDirectory;
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_MAX_CONCURRENT_TRANSFERS,
+            DEFAULT_MAX_CONCURRENT_TRANSFERS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    void setListener(@Nullable OnFileTransferListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the number of transfers that run in parallel in each direction, the others wait for their turn
+     *
+     * @param maxConcurrentTransfers the concurrency cap
+     */
+    void setMaxConcurrentTransfers(int maxConcurrentTransfers) {
+        int max = Math.max(1, maxConcurrentTransfers);
+        setPoolSize(sendExecutor, max);
+        setPoolSize(receiveExecutor, max);
+    }
+
+    private static void setPoolSize(ThreadPoolExecutor executor, int max) {
+        if (max > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(max);
+            executor.setCorePoolSize(max);
+        } else {
+            executor.setCorePoolSize(max);
+            executor.setMaximumPoolSize(max);
+        }
+    }
+
+    /**
+     * @return all transfers, active and completed
+     */
+    @NonNull
+    Collection<FileTransfer> getTransfers() {
+        return transfers.values();
+    }
+
+    /**
+     * Start sending a file to a node
+     *
+     * @param nodeId   the node to send the file to
+     * @param file     the file to send
+     * @param uri      the uri of the file as passed by JavaScript
+     * @param metadata sent along with the file
+     * @return the id of the transfer
+     */
+    @NonNull
+    String send(@NonNull String nodeId, @NonNull File file, @NonNull String uri,
+                @NonNull Map<String, Object> metadata) {
+        FileTransfer transfer = new FileTransfer(UUID.randomUUID().toString(), uri, nodeId, metadata,
+            file.length(), 0);
+        transfers.put(transfer.id, transfer);
+        sendExecutor.execute(() -> runSend(transfer, file));
+        return transfer.id;
+    }
+
+    /**
+     * Resume a failed outbound transfer from the last acknowledged offset
+     *
+     * @param id   the id of the transfer
+     * @param file the file of the transfer
+     * @return false if there is no failed transfer with the id
+     */
+    boolean resume(@NonNull String id, @NonNull File file) {
+        FileTransfer transfer = transfers.get(id);
+        if (transfer == null || transfer.isActive() || transfer.error == null) {
+            return false;
+        }
+        transfer.startOffset = transfer.bytesTransferred;
+        transfer.error = null;
+        transfer.endTime = 0;
+        sendExecutor.execute(() -> runSend(transfer, file));
+        return true;
+    }
+
+    /**
+     * Stop the running transfers
+     */
+    void shutdown() {
+        sendExecutor.shutdownNow();
+        receiveExecutor.shutdownNow();
+    }
+
+    private void runSend(FileTransfer transfer, File file) {
+        ChannelClient.Channel channel = null;
+        emit(EVENT_STARTED, transfer);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            channel = Tasks.await(channelClient.openChannel(transfer.nodeId, FILE_PATH_PREFIX + transfer.id));
+            sendOver(channel, transfer, file, input);
+            finish(transfer, null);
+        } catch (IOException | ExecutionException | InterruptedException e) {
+            Log.e(TAG, "Failed to send " + transfer.uri, e);
+            finish(transfer, e);
+        } finally {
+            if (channel != null) {
+                channelClient.close(channel);
+            }
+        }
+    }
+
+    private void sendOver(ChannelClient.Channel channel, FileTransfer transfer, File file, RandomAccessFile input)
+        throws IOException, ExecutionException, InterruptedException {
+        try (OutputStream outputStream = Tasks.await(channelClient.getOutputStream(channel));
+             InputStream replyStream = Tasks.await(channelClient.getInputStream(channel))) {
+            DataOutputStream header = new DataOutputStream(outputStream);
+            header.writeInt(MAGIC);
+            header.writeUTF(transfer.id);
+            header.writeUTF(file.getName());
+            header.writeLong(transfer.bytesTotal);
+            header.writeBoolean(transfer.startOffset > 0);
+            header.writeUTF(new JSONObject(transfer.metadata).toString());
+            header.flush();
+
+            // The receiver decides where to resume, it knows how many bytes actually arrived
+            long offset = new DataInputStream(replyStream).readLong();
+            if (offset < 0 || offset > transfer.bytesTotal) {
+                throw new IOException("Invalid resume offset " + offset);
+            }
+            transfer.startOffset = offset;
+            transfer.bytesTransferred = offset;
+
+            byte[] chunk = new byte[CHUNK_SIZE];
+            long position = offset;
+            long lastProgress = 0;
+            input.seek(position);
+            while (position < transfer.bytesTotal) {
+                int read = input.read(chunk, 0, (int) Math.min(CHUNK_SIZE, transfer.bytesTotal - position));
+                if (read <= 0) {
+                    throw new IOException("File shrank while it was being sent");
+                }
+                outputStream.write(chunk, 0, read);
+                position += read;
+                transfer.bytesTransferred = position;
+                lastProgress = emitProgress(transfer, lastProgress);
+            }
+        }
+    }
+
+    /**
+     * Called when the other device opens a channel, receives files sent to this device
+     *
+     * @param channel the opened channel
+     */
+    @Override
+    public void onChannelOpened(@NonNull ChannelClient.Channel channel) {
+        if (!channel.getPath().startsWith(FILE_PATH_PREFIX)) {
+            return;
+        }
+        receiveExecutor.execute(() -> runReceive(channel));
+    }
+
+    private void runReceive(ChannelClient.Channel channel) {
+        FileTransfer transfer = null;
+        try (InputStream inputStream = Tasks.await(channelClient.getInputStream(channel))) {
+            DataInputStream header = new DataInputStream(inputStream);
+            if (header.readInt() != MAGIC) {
+                throw new IOException("Invalid file transfer header");
+            }
+            String id = header.readUTF();
+            String name = new File(header.readUTF()).getName();
+            long total = header.readLong();
+            boolean resume = header.readBoolean();
+            Map<String, Object> metadata = toMap(new JSONObject(header.readUTF()));
+            String directoryName = new File(id).getName();
+            if (directoryName.isEmpty() || directoryName.startsWith(".") || name.isEmpty()) {
+                throw new IOException("Invalid file transfer id or name");
+            }
+
+            // The resume offset is looked up by transfer id, never by file name alone
+            File file = new File(new File(receiveDirectory, directoryName), name);
+            long offset = resume && file.exists() ? Math.min(file.length(), total) : 0;
+
+            // Registered before anything else can fail, so every failure from here on is reported
+            FileTransfer existing = transfers.get(id);
+            if (existing == null) {
+                transfer = new FileTransfer(id, file.toURI().toString(), channel.getNodeId(), metadata, total, offset);
+                transfers.put(id, transfer);
+            } else if (existing.isActive()) {
+                throw new IOException("Transfer " + id + " is already running");
+            } else {
+                transfer = existing;
+                transfer.startOffset = offset;
+                transfer.bytesTransferred = offset;
+                transfer.error = null;
+                transfer.endTime = 0;
+            }
+            emit(EVENT_STARTED, transfer);
+
+            try (DataOutputStream reply = new DataOutputStream(Tasks.await(channelClient.getOutputStream(channel)))) {
+                reply.writeLong(offset);
+            }
+
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                FileChannel target = output.getChannel();
+                target.truncate(offset);
+                ReadableByteChannel source = Channels.newChannel(inputStream);
+                ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                long position = offset;
+                long lastProgress = 0;
+                int read;
+                while (position < total && (read = source.read(chunk)) != -1) {
+                    chunk.flip();
+                    while (chunk.hasRemaining()) {
+                        position += target.write(chunk, position);
+                    }
+                    chunk.clear();
+                    transfer.bytesTransferred = position;
+                    lastProgress = emitProgress(transfer, lastProgress);
+                }
+                if (position < total) {
+                    throw new IOException("Channel closed after " + position + " of " + total + " bytes");
+                }
+            }
+            finish(transfer, null);
+        } catch (IOException | JSONException | ExecutionException | InterruptedException e) {
+            Log.e(TAG, "Failed to receive file", e);
+            if (transfer != null) {
+                finish(transfer, e);
+            }
+        } finally {
+            channelClient.close(channel);
+        }
+    }
+
+    private long emitProgress(FileTransfer transfer, long lastProgress) {
+        long now = System.currentTimeMillis();
+        if (now - lastProgress < PROGRESS_INTERVAL_MILLIS) {
+            return lastProgress;
+        }
+        emit(EVENT_PROGRESS, transfer);
+        return now;
+    }
+
+    private void finish(FileTransfer transfer, @Nullable Exception error) {
+        transfer.endTime = System.currentTimeMillis();
+        if (error != null) {
+            transfer.error = error.getMessage() == null ? error.toString() : error.getMessage();
+            emit(EVENT_ERROR, transfer);
+        } else {
+            emit(EVENT_FINISHED, transfer);
+        }
+    }
+
+    private void emit(String type, FileTransfer transfer) {
+        OnFileTransferListener current = listener;
+        if (current != null) {
+            current.onFileTransfer(type, transfer);
+        }
+    }
+
+    static Map<String, Object> toMap(JSONObject json) throws JSONException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        JSONArray names = json.names();
+        if (names != null) {
+            for (int i = 0; i < names.length(); i++) {
+                String key = names.getString(i);
+                map.put(key, fromJson(json.get(key)));
+            }
+        }
+        return map;
+    }
+
+    static List<Object> toList(JSONArray json) throws JSONException {
+        List<Object> list = new ArrayList<>(json.length());
+        for (int i = 0; i < json.length(); i++) {
+            list.add(fromJson(json.get(i)));
+        }
+        return list;
+    }
+
+    private static Object fromJson(Object value) throws JSONException {
+        if (value == JSONObject.NULL) {
+            return null;
+        } else if (value instanceof JSONObject) {
+            return toMap((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            return toList((JSONArray) value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,186 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces messages for a node into a single binary frame,
+ * a batch is sent when the window since its first message has passed
+ * or when adding a message would exceed the byte budget.
+ */
+final class MessageBatcher {
+
+    /**
+     * Sends an encoded batch to a node
+     */
+    interface BatchSender {
+        void send(@NonNull String nodeId, @NonNull byte[] frame, @Nullable MessageService.SendCallback callback);
+    }
+
+    static final long DEFAULT_WINDOW_MILLIS = 20;
+    static final int DEFAULT_MAX_BATCH_BYTES = 8 * 1024;
+
+    private static final class Batch {
+        final List<MessageObject> messages = new ArrayList<>();
+        final List<Long> enqueuedAt = new ArrayList<>();
+        final List<MessageService.SendCallback> callbacks = new ArrayList<>();
+        int bytes = 0;
+        ScheduledFuture<?> flushFuture;
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final BatchSender sender;
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    private volatile long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private volatile int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    /**
+     * Number of messages per sent batch
+     */
+    final Histogram batchSizes = new Histogram();
+    /**
+     * Milliseconds a message waited in a batch before it was sent
+     */
+    final Histogram batchLatencies = new Histogram();
+
+    /**
+     * @param scheduler the executor the timed flushes run on
+     * @param sender    sends the encoded batches
+     */
+    MessageBatcher(@NonNull ScheduledExecutorService scheduler, @NonNull BatchSender sender) {
+        this.scheduler = scheduler;
+        this.sender = sender;
+    }
+
+    /**
+     * @param windowMillis  the maximum time a message waits for other messages
+     * @param maxBatchBytes the maximum size of the data in a batch
+     */
+    void configure(long windowMillis, int maxBatchBytes) {
+        this.windowMillis = windowMillis;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Add a message to the batch of a node
+     *
+     * @param nodeId   the node to send the message to
+     * @param message  the message to add
+     * @param callback called with the outcome of sending the batch to the node
+     */
+    void add(@NonNull String nodeId, @NonNull MessageObject message, @Nullable MessageService.SendCallback callback) {
+        int size = message.data == null ? 0 : message.data.length;
+        Batch full = null;
+        synchronized (batches) {
+            Batch batch = batches.get(nodeId);
+            if (batch != null && batch.bytes + size > maxBatchBytes) {
+                removeBatch(nodeId, batch);
+                full = batch;
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch();
+                batches.put(nodeId, batch);
+                batch.flushFuture = scheduler.schedule(
+                    () -> flush(nodeId), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            batch.messages.add(message);
+            batch.enqueuedAt.add(System.nanoTime());
+            batch.callbacks.add(callback);
+            batch.bytes += size;
+        }
+        if (full != null) {
+            send(nodeId, full);
+        }
+    }
+
+    /**
+     * Send the pending batch of a node immediately
+     *
+     * @param nodeId the node to flush
+     */
+    void flush(@NonNull String nodeId) {
+        Batch batch;
+        synchronized (batches) {
+            batch = batches.get(nodeId);
+            if (batch == null) {
+                return;
+            }
+            removeBatch(nodeId, batch);
+        }
+        send(nodeId, batch);
+    }
+
+    /**
+     * Send the pending batches of all nodes immediately
+     */
+    void flushAll() {
+        Map<String, Batch> pending;
+        synchronized (batches) {
+            pending = new LinkedHashMap<>(batches);
+            for (Map.Entry<String, Batch> entry : pending.entrySet()) {
+                removeBatch(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Batch> entry : pending.entrySet()) {
+            send(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Get the batch size and latency histograms
+     *
+     * @return snapshots of the histograms by name
+     */
+    @NonNull
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("batchSize", batchSizes.snapshot());
+        stats.put("batchLatencyMs", batchLatencies.snapshot());
+        return stats;
+    }
+
+    private void removeBatch(String nodeId, Batch batch) {
+        batches.remove(nodeId);
+        if (batch.flushFuture != null) {
+            batch.flushFuture.cancel(false);
+        }
+    }
+
+    private void send(String nodeId, Batch batch) {
+        long now = System.nanoTime();
+        for (long at : batch.enqueuedAt) {
+            batchLatencies.record(TimeUnit.NANOSECONDS.toMillis(now - at));
+        }
+        batchSizes.record(batch.messages.size());
+        sender.send(nodeId, MessageCodec.encode(batch.messages), new MessageService.SendCallback() {
+            @Override
+            public void onSuccess() {
+                for (MessageService.SendCallback callback : batch.callbacks) {
+                    if (callback != null) {
+                        callback.onSuccess();
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                for (MessageService.SendCallback callback : batch.callbacks) {
+                    if (callback != null) {
+                        callback.onFailure(exception);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,576 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Encodes and decodes MessageObjects to and from the wire, received bytes can also be viewed
+ * as MessageViews that decode the data and timestamp only when asked for.
+ * Two formats are supported, the compact binary format and the JSON format
+ * that is used as a fallback for peers that do not support the binary format.
+ * <p>
+ * The binary format (version 1) has the following structure,
+ * varints are unsigned LEB128 and all other integers are big endian:
+ * <pre>
+ * frame:
+ *   byte    MAGIC
+ *   byte    VERSION
+ *   varint  number of device ids
+ *   device id * number of device ids:
+ *     varint  length
+ *     byte[]  UTF-8 device id
+ *   varint  number of messages
+ *   message * number of messages:
+ *     byte    flags
+ *     byte    platform ordinal
+ *     byte    direction ordinal
+ *     byte    type ordinal
+ *     varint  index in the device id table
+ *     long    timestamp in epoch milliseconds
+ *     varint  length of the data, only if FLAG_DATA is set
+ *     byte[]  data, only if FLAG_DATA is set, when FLAG_COMPRESSED is also set the data is
+ *             a varint with the original length followed by the Deflate output of the PayloadCompressor
+ *     varlong id, only if FLAG_ID is set
+ *     varlong id of the message replied to, only if FLAG_REPLY_TO is set
+ *     varlong sequence number in the reliable stream, only if FLAG_SEQ is set
+ * </pre>
+ * Optional fields are announced by the flags, a decoder rejects messages with unknown flags.
+ */
+final class MessageCodec {
+
+    /**
+     * The format used to put messages on the wire
+     */
+    enum WireFormat {
+        json,
+        binary
+    }
+
+    /**
+     * Thrown when received bytes can not be decoded to a MessageObject
+     */
+    static final class MalformedMessageException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        MalformedMessageException(String message) {
+            super(message);
+        }
+
+        MalformedMessageException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * First byte of a binary frame, chosen so it can never start a JSON document
+     */
+    static final byte MAGIC = (byte) 0xB7;
+    static final byte VERSION = 1;
+
+    /**
+     * Set when the message contains data
+     */
+    static final int FLAG_DATA = 1;
+    /**
+     * Set when the message expects a reply and carries an id
+     */
+    static final int FLAG_ID = 1 << 1;
+    /**
+     * Set when the message is a reply or acknowledgement to another message
+     */
+    static final int FLAG_REPLY_TO = 1 << 2;
+    /**
+     * Set when the data is compressed
+     */
+    static final int FLAG_COMPRESSED = 1 << 3;
+    /**
+     * Set when the message is part of a reliable stream, see ReliableStream
+     */
+    static final int FLAG_SEQ = 1 << 4;
+    /**
+     * All flags understood by this version of the codec
+     */
+    private static final int KNOWN_FLAGS = FLAG_DATA | FLAG_ID | FLAG_REPLY_TO | FLAG_COMPRESSED | FLAG_SEQ;
+
+    private static final MessageObject.MessageType[] TYPES = MessageObject.MessageType.values();
+    private static final MessageObject.Sender.Platform[] PLATFORMS = MessageObject.Sender.Platform.values();
+    private static final MessageObject.Sender.Direction[] DIRECTIONS = MessageObject.Sender.Direction.values();
+
+    /**
+     * Interned device ids, there are only a handful of devices so the encoded bytes
+     * and decoded Strings are cached instead of being converted for every message
+     */
+    private static final ConcurrentHashMap<String, byte[]> encodedDeviceIds = new ConcurrentHashMap<>();
+    private static final List<String> decodedDeviceIds = new CopyOnWriteArrayList<>();
+    private static final int MAX_INTERNED_DEVICE_IDS = 16;
+
+    /**
+     * Per thread buffer that single messages are encoded into before they are copied to a pooled frame
+     */
+    private static final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(1024);
+        }
+    };
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Check if the received bytes contain a binary frame
+     *
+     * @param data the received bytes
+     * @return true if the data starts with the binary frame header
+     */
+    static boolean isBinary(@NonNull byte[] data) {
+        return data.length > 1 && data[0] == MAGIC;
+    }
+
+    /**
+     * Encode a message using the given format
+     *
+     * @param message the message to encode
+     * @param format  the format to use
+     * @return the encoded message
+     */
+    @NonNull
+    static byte[] encode(@NonNull MessageObject message, @NonNull WireFormat format) {
+        if (format == WireFormat.json) {
+            return message.toJSONBytes();
+        }
+        return encode(Collections.singletonList(message));
+    }
+
+    /**
+     * Encode a message into a binary frame taken from the pool, does not allocate once the pool is warm
+     *
+     * @param message the message to encode
+     * @param pool    the pool to take the frame from, it can be released to the pool once it was sent
+     * @return the binary frame, exactly as long as the encoded message
+     */
+    @NonNull
+    static byte[] encode(@NonNull MessageObject message, @NonNull BufferPool pool) {
+        byte[] deviceId = encodeDeviceId(deviceIdOf(message));
+        int size = 2 + varIntSize(1) + varIntSize(deviceId.length) + deviceId.length + varIntSize(1)
+            + messageSize(message, 0);
+        if (size > BufferPool.MAX_POOLED_SIZE) {
+            return encode(Collections.singletonList(message));
+        }
+        ByteBuffer out = scratch.get();
+        if (out.capacity() < size) {
+            out = ByteBuffer.allocate(Math.max(size, out.capacity() * 2));
+            scratch.set(out);
+        }
+        out.clear();
+        out.put(MAGIC);
+        out.put(VERSION);
+        putVarInt(out, 1);
+        putVarInt(out, deviceId.length);
+        out.put(deviceId);
+        putVarInt(out, 1);
+        putMessage(out, message, 0);
+        byte[] frame = pool.acquire(size);
+        System.arraycopy(out.array(), 0, frame, 0, size);
+        return frame;
+    }
+
+    /**
+     * Encode messages into a single binary frame
+     *
+     * @param messages the messages to encode
+     * @return the binary frame
+     */
+    @NonNull
+    static byte[] encode(@NonNull List<MessageObject> messages) {
+        List<String> deviceIds = deviceIdTable(messages);
+        ByteBuffer out = ByteBuffer.allocate(encodedSize(messages, deviceIds));
+        encode(messages, deviceIds, out);
+        return out.array();
+    }
+
+    /**
+     * Encode messages into a single binary frame, written at the position of the buffer
+     *
+     * @param messages the messages to encode
+     * @param out      the buffer to write to, must have at least encodedSize(messages) remaining
+     */
+    static void encode(@NonNull List<MessageObject> messages, @NonNull ByteBuffer out) {
+        encode(messages, deviceIdTable(messages), out);
+    }
+
+    /**
+     * Calculate the size of the binary frame of the messages
+     *
+     * @param messages the messages to encode
+     * @return the size in bytes
+     */
+    static int encodedSize(@NonNull List<MessageObject> messages) {
+        return encodedSize(messages, deviceIdTable(messages));
+    }
+
+    /**
+     * Decode received bytes in either format
+     *
+     * @param data the received bytes
+     * @return the messages contained in the data
+     * @throws MalformedMessageException when the data is not a valid frame or JSON message
+     */
+    @NonNull
+    static List<MessageObject> decode(@NonNull byte[] data) throws MalformedMessageException {
+        if (isBinary(data)) {
+            return decode(ByteBuffer.wrap(data));
+        }
+        try {
+            return Collections.singletonList(
+                new MessageObject(new String(data, StandardCharsets.UTF_8)));
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new MalformedMessageException("Invalid JSON message", e);
+        }
+    }
+
+    /**
+     * Decode a binary frame from the position of the buffer
+     *
+     * @param in the buffer containing the frame
+     * @return the messages contained in the frame
+     * @throws MalformedMessageException when the frame is invalid or of an unsupported version
+     */
+    @NonNull
+    static List<MessageObject> decode(@NonNull ByteBuffer in) throws MalformedMessageException {
+        List<MessageView> views = view(in);
+        List<MessageObject> messages = new ArrayList<>(views.size());
+        for (MessageView view : views) {
+            messages.add(view.toMessageObject());
+        }
+        return messages;
+    }
+
+    /**
+     * View received bytes in either format without decoding the data and timestamps,
+     * the bytes must not change while the views are used
+     *
+     * @param data the received bytes
+     * @return views of the messages contained in the data
+     * @throws MalformedMessageException when the data is not a valid frame or JSON message
+     */
+    @NonNull
+    static List<MessageView> view(@NonNull byte[] data) throws MalformedMessageException {
+        if (isBinary(data)) {
+            return view(ByteBuffer.wrap(data));
+        }
+        try {
+            return Collections.<MessageView>singletonList(
+                new MessageView.Json(new JSONObject(new String(data, StandardCharsets.UTF_8))));
+        } catch (JSONException e) {
+            throw new MalformedMessageException("Invalid JSON message", e);
+        }
+    }
+
+    /**
+     * View a binary frame from the position of the buffer. The structure of the whole frame is validated,
+     * but the data is only skipped, it is copied or inflated when a view is decoded.
+     *
+     * @param in the buffer containing the frame
+     * @return views of the messages contained in the frame
+     * @throws MalformedMessageException when the frame is invalid or of an unsupported version
+     */
+    @NonNull
+    static List<MessageView> view(@NonNull ByteBuffer in) throws MalformedMessageException {
+        try {
+            if (in.get() != MAGIC) {
+                throw new MalformedMessageException("Not a binary frame");
+            }
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new MalformedMessageException("Unsupported version " + version);
+            }
+
+            int deviceCount = getVarInt(in);
+            if (deviceCount < 0 || deviceCount > in.remaining()) {
+                throw new MalformedMessageException("Invalid device id count " + deviceCount);
+            }
+            String[] deviceIds = new String[deviceCount];
+            for (int i = 0; i < deviceCount; i++) {
+                deviceIds[i] = decodeDeviceId(in, getVarInt(in));
+            }
+
+            int messageCount = getVarInt(in);
+            if (messageCount < 0 || messageCount > in.remaining()) {
+                throw new MalformedMessageException("Invalid message count " + messageCount);
+            }
+            List<MessageView> views = new ArrayList<>(messageCount);
+            for (int i = 0; i < messageCount; i++) {
+                int flags = in.get() & 0xFF;
+                if ((flags & ~KNOWN_FLAGS) != 0) {
+                    throw new MalformedMessageException("Unknown flags " + flags);
+                }
+                MessageObject.Sender.Platform platform = PLATFORMS[in.get()];
+                MessageObject.Sender.Direction direction = DIRECTIONS[in.get()];
+                MessageObject.MessageType type = TYPES[in.get()];
+                String deviceId = deviceIds[getVarInt(in)];
+                int timestampOffset = in.position();
+                in.position(timestampOffset + Long.BYTES);
+                int dataOffset = 0;
+                int dataLength = 0;
+                if ((flags & FLAG_DATA) != 0) {
+                    dataLength = getVarInt(in);
+                    if (dataLength < 0 || dataLength > in.remaining()) {
+                        throw new MalformedMessageException("Invalid data length " + dataLength);
+                    }
+                    dataOffset = in.position();
+                    if ((flags & FLAG_COMPRESSED) != 0) {
+                        int inflatedLength = getVarInt(in);
+                        if (inflatedLength < 0 || inflatedLength > PayloadCompressor.MAX_INFLATED_BYTES) {
+                            throw new MalformedMessageException("Invalid inflated length " + inflatedLength);
+                        }
+                        if (in.position() - dataOffset > dataLength) {
+                            throw new MalformedMessageException("Invalid data length " + dataLength);
+                        }
+                    }
+                    in.position(dataOffset + dataLength);
+                }
+                long id = (flags & FLAG_ID) != 0 ? getVarLong(in) : 0;
+                long replyTo = (flags & FLAG_REPLY_TO) != 0 ? getVarLong(in) : 0;
+                long seq = (flags & FLAG_SEQ) != 0 ? getVarLong(in) : 0;
+                views.add(new MessageView.Binary(in, flags, platform, direction, type, deviceId,
+                    timestampOffset, dataOffset, dataLength, id, replyTo, seq));
+            }
+            return views;
+        } catch (BufferUnderflowException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new MalformedMessageException("Truncated or corrupt frame", e);
+        }
+    }
+
+    private static List<String> deviceIdTable(List<MessageObject> messages) {
+        if (messages.size() == 1) {
+            return Collections.singletonList(deviceIdOf(messages.get(0)));
+        }
+        List<String> table = new ArrayList<>(2);
+        for (MessageObject message : messages) {
+            String deviceId = deviceIdOf(message);
+            if (!table.contains(deviceId)) {
+                table.add(deviceId);
+            }
+        }
+        return table;
+    }
+
+    private static String deviceIdOf(MessageObject message) {
+        return message.sender.deviceId == null ? "" : message.sender.deviceId;
+    }
+
+    private static byte[] encodeDeviceId(String deviceId) {
+        byte[] bytes = encodedDeviceIds.get(deviceId);
+        if (bytes == null) {
+            bytes = deviceId.getBytes(StandardCharsets.UTF_8);
+            encodedDeviceIds.putIfAbsent(deviceId, bytes);
+        }
+        return bytes;
+    }
+
+    private static String decodeDeviceId(ByteBuffer in, int length) throws MalformedMessageException {
+        if (length < 0 || length > in.remaining()) {
+            throw new MalformedMessageException("Invalid device id length " + length);
+        }
+        for (String known : decodedDeviceIds) {
+            byte[] bytes = encodeDeviceId(known);
+            if (bytes.length == length && regionMatches(in, bytes)) {
+                in.position(in.position() + length);
+                return known;
+            }
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        String deviceId = new String(bytes, StandardCharsets.UTF_8);
+        if (decodedDeviceIds.size() < MAX_INTERNED_DEVICE_IDS) {
+            decodedDeviceIds.add(deviceId);
+        }
+        return deviceId;
+    }
+
+    private static boolean regionMatches(ByteBuffer in, byte[] bytes) {
+        int position = in.position();
+        if (in.remaining() < bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (in.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int encodedSize(List<MessageObject> messages, List<String> deviceIds) {
+        int size = 2 + varIntSize(deviceIds.size()) + varIntSize(messages.size());
+        for (String deviceId : deviceIds) {
+            int length = encodeDeviceId(deviceId).length;
+            size += varIntSize(length) + length;
+        }
+        for (MessageObject message : messages) {
+            size += messageSize(message, deviceIds.indexOf(deviceIdOf(message)));
+        }
+        return size;
+    }
+
+    private static int messageSize(MessageObject message, int deviceIndex) {
+        int size = 4 + varIntSize(deviceIndex) + 8;
+        if (message.data != null) {
+            int length = dataLength(message);
+            size += varIntSize(length) + length;
+        }
+        if (message.id != 0) {
+            size += varLongSize(message.id);
+        }
+        if (message.replyTo != 0) {
+            size += varLongSize(message.replyTo);
+        }
+        if (message.seq != 0) {
+            size += varLongSize(message.seq);
+        }
+        return size;
+    }
+
+    private static void encode(List<MessageObject> messages, List<String> deviceIds, ByteBuffer out) {
+        out.put(MAGIC);
+        out.put(VERSION);
+
+        putVarInt(out, deviceIds.size());
+        for (String deviceId : deviceIds) {
+            byte[] bytes = encodeDeviceId(deviceId);
+            putVarInt(out, bytes.length);
+            out.put(bytes);
+        }
+
+        putVarInt(out, messages.size());
+        for (MessageObject message : messages) {
+            putMessage(out, message, deviceIds.indexOf(deviceIdOf(message)));
+        }
+    }
+
+    private static void putMessage(ByteBuffer out, MessageObject message, int deviceIndex) {
+        out.put((byte) flagsOf(message));
+        out.put((byte) message.sender.platform.ordinal());
+        out.put((byte) message.sender.direction.ordinal());
+        out.put((byte) message.type.ordinal());
+        putVarInt(out, deviceIndex);
+        out.putLong(message.timestamp != null ? message.timestamp.getTime() : 0);
+        if (message.compressedData != null) {
+            putVarInt(out, dataLength(message));
+            putVarInt(out, message.data.length);
+            out.put(message.compressedData);
+        } else if (message.data != null) {
+            putVarInt(out, message.data.length);
+            out.put(message.data);
+        }
+        if (message.id != 0) {
+            putVarLong(out, message.id);
+        }
+        if (message.replyTo != 0) {
+            putVarLong(out, message.replyTo);
+        }
+        if (message.seq != 0) {
+            putVarLong(out, message.seq);
+        }
+    }
+
+    private static int flagsOf(MessageObject message) {
+        int flags = 0;
+        if (message.data != null) {
+            flags |= FLAG_DATA;
+        }
+        if (message.id != 0) {
+            flags |= FLAG_ID;
+        }
+        if (message.replyTo != 0) {
+            flags |= FLAG_REPLY_TO;
+        }
+        if (message.data != null && message.compressedData != null) {
+            flags |= FLAG_COMPRESSED;
+        }
+        if (message.seq != 0) {
+            flags |= FLAG_SEQ;
+        }
+        return flags;
+    }
+
+    /**
+     * @return the length of the data field of a message with data, as it is put on the wire
+     */
+    private static int dataLength(MessageObject message) {
+        if (message.compressedData != null) {
+            return varIntSize(message.data.length) + message.compressedData.length;
+        }
+        return message.data.length;
+    }
+
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer in) throws MalformedMessageException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new MalformedMessageException("Varlong too long");
+    }
+
+    static int getVarInt(ByteBuffer in) throws MalformedMessageException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new MalformedMessageException("Varint too long");
+    }
+}
@@ -5,6 +5,7 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 
 /**
@@ -15,7 +16,12 @@ public final class MessageObject {
         start,
         stop,
         data,
-        acknowledgement
+        acknowledgement,
+        reply,
+        userInfo,
+        applicationContext,
+        applicationContextDelta,
+        applicationContextAck
     }
 
     public MessageObject(String data) throws JSONException {
@@ -31,10 +37,13 @@ public final class MessageObject {
         sender.direction = Sender.Direction.valueOf(senderObj.getString("direction"));
         sender.deviceId = senderObj.getString("deviceId");
 
-        data = json.getString("data").getBytes();
+        data = json.isNull("data") ? null : json.getString("data").getBytes(StandardCharsets.UTF_8);
         timestamp = Timestamp.valueOf(json.getString("timestamp"));
         type = MessageType.valueOf(json.getString("type"));
-
+        id = json.optLong("id", 0);
+        replyTo = json.optLong("replyTo", 0);
+        seq = json.optLong("seq", 0);
+        acceptsBinary = MessageCodec.WireFormat.binary.name().equals(json.optString("accept", null));
     }
 
     /**
@@ -87,6 +96,32 @@ public final class MessageObject {
      * Contains the timestamp of when the message
      **/
     Timestamp timestamp;
+    /**
+     * Contains the id of a message that expects a reply, 0 when no reply is expected
+     **/
+    long id;
+    /**
+     * Contains the id of the message a reply or acknowledgement belongs to, 0 otherwise
+     **/
+    long replyTo;
+    /**
+     * Contains the sequence number of a message in the ReliableStream to the receiving node,
+     * or the next expected sequence number of a stream acknowledgement, 0 for messages outside a stream
+     **/
+    long seq;
+    /**
+     * Whether the sender of a received message understands the binary wire format
+     **/
+    boolean acceptsBinary;
+    /**
+     * The data compressed by the PayloadCompressor, null when the data is sent as is.
+     * Only used by the binary wire format.
+     **/
+    byte[] compressedData;
+    /**
+     * Whether the data was taken from the BufferPool of the MessageService, it is released once the message was sent
+     **/
+    boolean pooled;
 
 
     MessageObject(Sender.Platform platform,
@@ -125,6 +160,17 @@ public final class MessageObject {
         return new MessageObject(platform, direction, deviceId, MessageType.acknowledgement, null, timestamp);
     }
 
+    static public MessageObject createReply(Sender.Platform platform,
+                                            Sender.Direction direction,
+                                            String deviceId,
+                                            long replyTo,
+                                            byte[] data,
+                                            Timestamp timestamp) {
+        MessageObject reply = new MessageObject(platform, direction, deviceId, MessageType.reply, data, timestamp);
+        reply.replyTo = replyTo;
+        return reply;
+    }
+
     /**
      * Creates a JSON object from the Java object
      *
@@ -139,21 +185,36 @@ public final class MessageObject {
      * type:
      * data:
      * timestamp:
+     * id: (only if a reply is expected)
+     * replyTo: (only for replies and acknowledgements)
+     * seq: (only for messages of a reliable stream)
+     * accept:
      * }
+     * The data is written as a UTF-8 string, accept advertises the binary wire format to the receiver
      */
     public JSONObject toJSON() {
         try {
             JSONObject messageObj = new JSONObject();
 
             JSONObject senderObj = new JSONObject();
-            senderObj.put("platform", sender.platform);
-            senderObj.put("direction", sender.direction);
+            senderObj.put("platform", sender.platform.name());
+            senderObj.put("direction", sender.direction.name());
             senderObj.put("deviceId", sender.deviceId);
 
             messageObj.put("sender", senderObj);
-            messageObj.put("type", type);
-            messageObj.put("data", data);
-            messageObj.put("timestamp", timestamp);
+            messageObj.put("type", type.name());
+            messageObj.put("data", data == null ? JSONObject.NULL : new String(data, StandardCharsets.UTF_8));
+            messageObj.put("timestamp", timestamp.toString());
+            if (id != 0) {
+                messageObj.put("id", id);
+            }
+            if (replyTo != 0) {
+                messageObj.put("replyTo", replyTo);
+            }
+            if (seq != 0) {
+                messageObj.put("seq", seq);
+            }
+            messageObj.put("accept", MessageCodec.WireFormat.binary.name());
             return messageObj;
         } catch (Exception e) {
 
@@ -162,7 +223,17 @@ public final class MessageObject {
     }
 
     public byte[] toJSONBytes() {
-        return toJSON().toString().getBytes();
+        return toJSON().toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes the message in the compact binary wire format
+     *
+     * @return the binary frame containing only this message
+     * @see MessageCodec
+     */
+    public byte[] toBinaryBytes() {
+        return MessageCodec.encode(this, MessageCodec.WireFormat.binary);
     }
 
 }
@@ -7,39 +7,339 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
+import android.provider.Settings;
 import android.util.Log;
 import android.widget.Toast;
 /* Annotations */
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 /* Android messaging */
 import com.google.android.gms.tasks.Task;
 import com.google.android.gms.tasks.Tasks;
 import com.google.android.gms.wearable.CapabilityClient;
 import com.google.android.gms.wearable.CapabilityInfo;
+import com.google.android.gms.wearable.ChannelClient;
 import com.google.android.gms.wearable.DataClient;
+import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataItemBuffer;
 import com.google.android.gms.wearable.MessageClient;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.NodeClient;
+import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
+/* JSON */
+import org.json.JSONException;
 /* Collections */
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A bound service for the communication between the Wearable and Handheld
  */
 public class MessageService extends Service
-    implements MessageClient.OnMessageReceivedListener {
+    implements MessageClient.OnMessageReceivedListener,
+    CapabilityClient.OnCapabilityChangedListener,
+    DataClient.OnDataChangedListener {
 
-    // Create a thread pool of a single thread
-    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private static final SendCallback NO_CALLBACK = new SendCallback() {
+        @Override
+        public void onSuccess() {
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+        }
+    };
+
+    /**
+     * Compresses the data of messages to peers that use the binary format, disabled by default
+     */
+    final PayloadCompressor compressor = new PayloadCompressor();
+
+    /**
+     * Reuses the payloads and binary frames of sent messages, so streams of fixed size messages do not allocate them
+     */
+    final BufferPool bufferPool = new BufferPool();
+
+    private static final int MAX_POOLED_CALLBACKS = 64;
+    // Recycled MeasuredCallbacks and ReceivedTasks, guarded by poolLock
+    private final Object poolLock = new Object();
+    @Nullable
+    private MeasuredCallback callbackPool;
+    private int pooledCallbacks = 0;
+    @Nullable
+    private ReceivedTask receivedPool;
+    private int pooledReceived = 0;
+
+    /**
+     * Counters and histograms of the messaging pipeline
+     */
+    final Metrics metrics = new Metrics();
+
+    /**
+     * Called periodically with a snapshot of the metrics
+     */
+    public interface OnStatsListener {
+        void onStats(@NonNull Map<String, Object> stats);
+    }
+
+    private ScheduledFuture<?> statsFuture;
+
+    /**
+     * Sends the encoded messages, the Wearable MessageClient unless replaced with setTransport
+     */
+    volatile MessageTransport transport = this::sendWithMessageClient;
+
+    /**
+     * Success rate, latency and circuit state of every node
+     */
+    final NodeHealth nodeHealth = new NodeHealth();
+
+    /**
+     * Sends to several nodes in parallel with a cap on the sends in flight, records their health
+     */
+    final FanOut fanOut = new FanOut(
+        (nodeId, path, data, callback) -> transport.send(nodeId, path, data, callback), nodeHealth);
+
+    /**
+     * Bounded queue of outbound messages, sent from its own thread
+     */
+    SendQueue sendQueue = new SendQueue(this::deliver, entry -> releaseData(entry.message));
+
+    /**
+     * The Wearable clients, created once in onCreate so sends and refreshes do not look them up every time
+     */
+    MessageClient messageClient;
+    NodeClient nodeClient;
+    DataClient dataClient;
+    CapabilityClient capabilityClient;
+    ChannelClient channelClient;
+
+    // Refreshes of the connected nodes run on their own thread, so they never wait for sends
+    ExecutorService nodeExecutorService = Executors.newSingleThreadExecutor();
+
+    /**
+     * In memory cache of the connected nodes
+     */
+    NodeRegistry nodeRegistry = new NodeRegistry(
+        () -> Tasks.await(nodeClient.getConnectedNodes()),
+        nodeExecutorService);
+
+    // Runs the timed flushes of the message batches
+    ScheduledExecutorService batchExecutorService = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Cached pair, install and reachability state, updated by the node, capability and health listeners
+     */
+    final ReachabilityMonitor reachability = new ReachabilityMonitor(batchExecutorService);
+
+    /**
+     * The capability the watch app advertises, null when the app does not advertise one
+     * and every connected watch is assumed to have it installed
+     */
+    @Nullable
+    private volatile String appCapability;
+
+    // The reachable nodes that advertise the app capability
+    private volatile Set<String> capableNodeIds = Collections.emptySet();
+
+    /**
+     * Coalesces messages to the same node, only used when batching is enabled
+     */
+    MessageBatcher batcher = new MessageBatcher(batchExecutorService, this::send);
+
+    volatile boolean batchingEnabled = false;
+
+    /**
+     * Runs the reply timeouts of all pending messages
+     */
+    TimerWheel timerWheel = new TimerWheel(50, 512);
+
+    /**
+     * Messages that are waiting for a reply, by id
+     */
+    ReplyRegistry replies = new ReplyRegistry(timerWheel);
+
+    volatile long replyTimeoutMillis = ReplyRegistry.DEFAULT_TIMEOUT_MILLIS;
+
+    /**
+     * Streams files over the ChannelClient, created in onCreate
+     */
+    FileTransferManager fileTransfers;
+
+    /**
+     * Messages waiting for a node to become reachable, survives the process being killed.
+     * Created in onCreate, the batched syncs of the log run on the batchExecutorService.
+     */
+    MessageStore outbox;
+
+    /**
+     * The newest received application context
+     */
+    MessageStore inbox;
+
+    /**
+     * Transfers user info as DataClient data items, created in onCreate with the queues of sent
+     * and received user info, which survive the process being killed
+     */
+    UserInfoTransfer userInfo;
+    UserInfoQueue userInfoOutbox;
+    UserInfoQueue userInfoInbox;
+
+    /**
+     * Sends the application context as deltas and merges received deltas,
+     * its coalesced flushes run on the batchExecutorService
+     */
+    final ApplicationContextSync contextSync = new ApplicationContextSync(batchExecutorService, new ContextOutlet());
+
+    /**
+     * Key/value state replicated as DataClient data items, its throttled flushes run on the batchExecutorService
+     */
+    final ReplicatedState replicatedState = new ReplicatedState(batchExecutorService, new StateOutlet());
+
+    /**
+     * The id of this node, null until it was read in onCreate
+     */
+    @Nullable
+    volatile String localNodeId;
+
+    /**
+     * Routes received messages by path, MESSAGE_PATH to the dispatch thread and other paths to their handlers
+     */
+    final PathRouter router = new PathRouter();
+
+    /**
+     * Numeric samples sent as columnar frames on their own path, its timed flushes run on the batchExecutorService
+     */
+    final TelemetryStream telemetry = new TelemetryStream(batchExecutorService,
+        (frame, callback) -> sendToPath(null, TelemetryStream.PATH, frame, callback));
+
+    /**
+     * Ordered, exactly once delivery for messages sent with sendMessageReliably,
+     * its retransmits and delayed acknowledgements run on the batchExecutorService
+     */
+    final ReliableStream reliableStream = new ReliableStream(batchExecutorService, new StreamOutlet());
+
+    // Sequence numbers of the outbox messages that are being sent, so a replay does not send them twice
+    private final Set<Long> outboxInFlight = ConcurrentHashMap.newKeySet();
+    // The callbacks of the outbox messages sent since the process started, by sequence number
+    private final ConcurrentHashMap<Long, SendCallback> outboxCallbacks = new ConcurrentHashMap<>();
+    private final AtomicBoolean outboxReplayScheduled = new AtomicBoolean(false);
+    /**
+     * The callback of a durable message fails once the message has waited in the outbox this long,
+     * the message itself stays in the outbox until a node received it
+     */
+    static final long DEFAULT_OUTBOX_CALLBACK_TIMEOUT_MILLIS = 60_000;
+    volatile long outboxCallbackTimeoutMillis = DEFAULT_OUTBOX_CALLBACK_TIMEOUT_MILLIS;
+
+    /**
+     * Called when user info or an application context is received, on the dispatch thread
+     */
+    public interface OnStateReceivedListener {
+        /**
+         * Called once for every batch of received user info, which is queued until it is drained or dequeued
+         */
+        void onUserInfoQueued(int count);
+
+        void onApplicationContextReceived(@NonNull MessageObject applicationContext);
+
+        /**
+         * Called once for every batch of received data items that changed replicated state
+         *
+         * @param changes the new value of every changed key as JSON, null for removed keys
+         */
+        void onReplicatedStateChanged(@NonNull Map<String, byte[]> changes);
+    }
+
+    @Nullable
+    private volatile OnStateReceivedListener stateListener;
+
+    /**
+     * Called with the outcome of sending a message,
+     * a message sent to multiple nodes succeeds when at least one node received it
+     */
+    public interface SendCallback {
+        void onSuccess();
+
+        void onFailure(@NonNull Exception exception);
+    }
+
+    /**
+     * Passed to the SendCallback when there is no connected node to send a message to
+     */
+    public static final class NotReachableException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        NotReachableException() {
+            super("No connected nodes");
+        }
+
+        NotReachableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Collects the results of sending a message to several nodes,
+     * and calls the SendCallback once all nodes have reported
+     */
+    static final class SendTracker implements SendCallback {
+        private final SendCallback callback;
+        private final AtomicInteger remaining;
+        private volatile boolean succeeded = false;
+
+        SendTracker(@NonNull SendCallback callback, int nodes) {
+            this.callback = callback;
+            this.remaining = new AtomicInteger(nodes);
+        }
+
+        @Override
+        public void onSuccess() {
+            succeeded = true;
+            if (remaining.decrementAndGet() == 0) {
+                callback.onSuccess();
+            }
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            if (remaining.decrementAndGet() == 0) {
+                if (succeeded) {
+                    callback.onSuccess();
+                } else {
+                    callback.onFailure(exception);
+                }
+            }
+        }
+    }
 
     /**
      * Interface that is required to be extended from when
@@ -49,7 +349,47 @@ public class MessageService extends Service
         void onMessageReceived(@NonNull String data);
     }
 
-    List<OnMessageReceivedListener> listeners;
+    /**
+     * Interface for listeners that consume the raw data of received messages,
+     * which saves decoding the data to a string for every message.
+     * The buffer is read only and only valid during the call.
+     */
+    public interface OnMessageDataReceivedListener {
+        void onMessageDataReceived(@NonNull String sourceNodeId,
+                                   @NonNull MessageObject message,
+                                   @NonNull ByteBuffer data);
+    }
+
+    /**
+     * Decides from the header of a received data message whether it is decoded and passed to the listeners,
+     * called on the dispatch thread before the data and timestamp are decoded
+     */
+    interface MessageFilter {
+        boolean accept(@NonNull String sourceNodeId, @NonNull MessageView message);
+    }
+
+    @Nullable
+    private volatile MessageFilter messageFilter;
+    private final AtomicLong filtered = new AtomicLong();
+
+    /**
+     * Copy on write, listeners are added rarely and iterated for every message without locking
+     */
+    final List<OnMessageReceivedListener> listeners = new CopyOnWriteArrayList<>();
+    final List<OnMessageDataReceivedListener> dataListeners = new CopyOnWriteArrayList<>();
+
+    static final int DISPATCH_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Decodes and dispatches received messages, so slow listeners do not block the Wearable callback thread.
+     * When the queue is full the message is dispatched on the callback thread instead,
+     * which slows the receiver down rather than dropping messages.
+     */
+    final ExecutorService dispatchExecutorService = new ThreadPoolExecutor(
+        1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(DISPATCH_QUEUE_CAPACITY),
+        runnable -> new Thread(runnable, "MessageDispatch"),
+        new ThreadPoolExecutor.CallerRunsPolicy());
 
     String TAG = "MessageService";
 
@@ -58,6 +398,16 @@ public class MessageService extends Service
      */
     private final String MESSAGE_PATH = "/ommetje_messages";
 
+    /**
+     * The id of this device, sent along with every message
+     */
+    String deviceId = "";
+
+    /**
+     * The wire format negotiated with every node, by node id
+     */
+    final ConcurrentHashMap<String, MessageCodec.WireFormat> peerFormats = new ConcurrentHashMap<>();
+
     /**
      * An instance of the MessageBinder
      */
@@ -90,23 +440,23 @@ public class MessageService extends Service
     }
 
     /**
-     * Get all connected Wearable devices
-     * If no connected nodes are returned it means the connection was not able to be established
+     * Get all connected Wearable devices from the in memory cache, does not block
+     * If no connected nodes are returned it means the connection was not able to be established,
+     * or the nodes have not been loaded yet
      *
      * @return A collection of all connected nodes
      */
     public Collection<Node> getNodes() {
-        HashSet<Node> results = new HashSet<Node>();
-        Task<List<Node>> nodeListTask = Wearable.getNodeClient(this).getConnectedNodes();
-        try {
-            List<Node> nodes = Tasks.await(nodeListTask);
-            results.addAll(nodes);
-        } catch (ExecutionException exception) {
-            Log.e(TAG, "Task failed: " + exception);
-        } catch (InterruptedException exception) {
-            Log.e(TAG, "Interrupt occurred: " + exception);
-        }
-        return results;
+        return nodeRegistry.getNodes();
+    }
+
+    /**
+     * Set the time after which the cached connected nodes are refreshed
+     *
+     * @param ttlMillis the time to live in milliseconds
+     */
+    public void setNodeCacheTtl(long ttlMillis) {
+        nodeRegistry.setTtl(ttlMillis);
     }
 
     boolean isConnected() {
@@ -123,107 +473,1680 @@ public class MessageService extends Service
         }
     }
 
+    /**
+     * Get the wire format to use for a node,
+     * nodes use the JSON format until they have shown they understand the binary format
+     *
+     * @param nodeId the id of the node
+     * @return the format to encode messages for the node with
+     */
+    MessageCodec.WireFormat getWireFormat(String nodeId) {
+        MessageCodec.WireFormat format = peerFormats.get(nodeId);
+        return format == null ? MessageCodec.WireFormat.json : format;
+    }
+
+    /**
+     * Wrap data in a MessageObject sent from this device
+     *
+     * @param data the data of the message
+     * @return a data message
+     */
+    MessageObject createDataMessage(byte[] data) {
+        return createMessage(MessageObject.MessageType.data, data);
+    }
+
+    private MessageObject createMessage(MessageObject.MessageType type, byte[] data) {
+        return new MessageObject(MessageObject.Sender.Platform.wearos,
+            MessageObject.Sender.Direction.handheld,
+            deviceId,
+            type,
+            data,
+            new Timestamp(System.currentTimeMillis()));
+    }
+
+    /**
+     * Enable or disable batching of messages,
+     * when enabled messages to the same node are coalesced into a single frame.
+     * Only nodes that understand the binary wire format receive batches.
+     *
+     * @param enabled       whether messages should be batched
+     * @param windowMillis  the maximum time a message waits for other messages
+     * @param maxBatchBytes the maximum size of the data in a batch
+     */
+    public void setBatching(boolean enabled, long windowMillis, int maxBatchBytes) {
+        batcher.configure(windowMillis, maxBatchBytes);
+        batchingEnabled = enabled;
+        if (!enabled) {
+            flushMessages();
+        }
+    }
+
+    /**
+     * Send all batched messages immediately
+     */
+    public void flushMessages() {
+        batcher.flushAll();
+        replicatedState.flush();
+    }
+
+    /**
+     * Configure the queue of outbound messages
+     *
+     * @param capacity       the maximum number of queued messages
+     * @param overflowPolicy what to do when a message is sent while the queue is full
+     */
+    public void setSendQueue(int capacity, @NonNull SendQueue.OverflowPolicy overflowPolicy) {
+        sendQueue.configure(capacity, overflowPolicy);
+    }
+
+    /**
+     * Get the depth of the send queue and the time messages spent in it
+     *
+     * @return the statistics by name
+     */
+    public Map<String, Object> getQueueStats() {
+        return sendQueue.getStats();
+    }
+
+    /**
+     * Get the batch size and latency histograms
+     *
+     * @return snapshots of the histograms by name
+     */
+    public Map<String, Object> getBatchStats() {
+        return batcher.getStats();
+    }
+
     /**
      * Sends a message to all connected nodes
      *
      * @param data to send to all nodes
      */
     public void sendMessageToAll(byte[] data) {
-        // Execute on separate thread
-        executorService.execute(() -> {
-            // Get all connected nodes
-            Collection<Node> nodes = getNodes();
-            for (Node node : nodes) {
-                Task<Integer> sendTask =
-                    Wearable.getMessageClient(this).sendMessage(
-                        node.getId(), MESSAGE_PATH, data);
-                sendTask.addOnSuccessListener(it -> {
-                    Log.d(TAG, "SUCCESS");
-                });
-                sendTask.addOnFailureListener(it -> {
-                    Log.d(TAG, "FAILURE");
-                });
-            }
-        });
+        sendMessageToAll(data, false);
     }
 
     /**
-     * Send a message to a single node, nodes can be received by using getNodes
+     * Sends a message to all connected nodes
      *
-     * @param node to send the data to
-     * @param data to bent sent
+     * @param data   to send to all nodes
+     * @param urgent whether the message should bypass batching
      */
-    public void sendMessage(Node node, byte[] data) {
-        Task<Integer> sendTask =
-            Wearable.getMessageClient(this).sendMessage(
-                node.getId(), MESSAGE_PATH, data);
-        sendTask.addOnSuccessListener(it -> {
-            Log.d(TAG, "SUCCESS");
-        });
-        sendTask.addOnFailureListener(it -> {
-            Log.d(TAG, "FAILURE");
-        });
+    public void sendMessageToAll(byte[] data, boolean urgent) {
+        sendMessageToAll(data, urgent, null);
     }
 
     /**
-     * Add a listener that is called when a message is received
+     * Sends a message to all connected nodes, it is not written to the outbox
      *
-     * @param listener a class that extends MessageService.OnMessageReceived
+     * @param data     to send to all nodes
+     * @param urgent   whether the message should bypass batching
+     * @param callback called with the outcome of sending the message
      */
-    public void addMessageReceiveListener(@NonNull MessageService.OnMessageReceivedListener listener) {
-        listeners.add(listener);
+    public void sendMessageToAll(byte[] data, boolean urgent, @Nullable SendCallback callback) {
+        sendMessageToAll(data, urgent, false, callback);
     }
 
     /**
-     * Remove a previously added listener
+     * Sends a message to all connected nodes
      *
-     * @param listener a class that extends MessageService.OnMessageReceived
+     * @param data     to send to all nodes
+     * @param urgent   whether the message should bypass batching
+     * @param durable  whether the message is written to the outbox first, so it is delivered once a node is
+     *                 reachable, also after the process was killed. Its callback succeeds once a node received it,
+     *                 which may be after a replay of the outbox, or fails once it waited outboxCallbackTimeoutMillis
+     * @param callback called with the outcome of sending the message
      */
-    public void removeMessageReceiveListener(@NonNull MessageService.OnMessageReceivedListener listener) {
-        listeners.remove(listener);
+    public void sendMessageToAll(byte[] data, boolean urgent, boolean durable, @Nullable SendCallback callback) {
+        offerToAll(createDataMessage(data), urgent, durable, callback);
     }
 
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        listeners = new ArrayList<OnMessageReceivedListener>();
+    /**
+     * Sends data taken from the bufferPool to all connected nodes,
+     * the data is returned to the pool once the message was sent
+     *
+     * @param data          to send to all nodes, it must not be used afterwards
+     * @param urgent        whether the message should bypass batching
+     * @param durable       whether the message is written to the outbox first, see sendMessageToAll
+     * @param callback      called with the outcome, also when the message is dropped from a full queue
+     * @param replyCallback called with the first reply, or when no reply arrives before the reply timeout, null to not wait for a reply
+     */
+    void sendPooledMessageToAll(@NonNull byte[] data, boolean urgent, boolean durable, @Nullable SendCallback callback,
+                                @Nullable ReplyRegistry.ReplyCallback replyCallback) {
+        MessageObject message = createDataMessage(data);
+        message.pooled = true;
+        if (replyCallback != null) {
+            callback = expectReply(message, callback, replyCallback);
+        }
+        offerToAll(message, urgent, durable, callback);
+    }
+
+    /**
+     * Sends a message to all connected nodes and waits for a reply or acknowledgement
+     *
+     * @param data          to send to all nodes
+     * @param urgent        whether the message should bypass batching
+     * @param callback      called with the outcome of sending the message
+     * @param replyCallback called with the first reply, or when no reply arrives before the reply timeout
+     */
+    public void sendMessageToAll(byte[] data, boolean urgent, @Nullable SendCallback callback,
+                                 @NonNull ReplyRegistry.ReplyCallback replyCallback) {
+        sendMessageToAll(data, urgent, false, callback, replyCallback);
+    }
+
+    /**
+     * Sends a message to all connected nodes and waits for a reply or acknowledgement.
+     * A durable message is written to the outbox first and delivered once a node is reachable,
+     * but its reply still times out after the reply timeout, counted from now.
+     *
+     * @param data          to send to all nodes
+     * @param urgent        whether the message should bypass batching
+     * @param durable       whether the message is written to the outbox first, see sendMessageToAll
+     * @param callback      called with the outcome of sending the message
+     * @param replyCallback called with the first reply, or when no reply arrives before the reply timeout
+     */
+    public void sendMessageToAll(byte[] data, boolean urgent, boolean durable, @Nullable SendCallback callback,
+                                 @NonNull ReplyRegistry.ReplyCallback replyCallback) {
+        MessageObject message = createDataMessage(data);
+        offerToAll(message, urgent, durable, expectReply(message, callback, replyCallback));
+    }
+
+    private void offerToAll(MessageObject message, boolean urgent, boolean durable, @Nullable SendCallback callback) {
+        if (!durable) {
+            sendQueue.offer(new SendQueue.Entry(message, urgent, callback));
+            return;
+        }
+        // The outbox keeps the message, so its data cannot go back to the pool
+        message.pooled = false;
         try {
-            // Instantiate clients
-            Wearable.getMessageClient(this).addListener(this);   // onMessageReceived
-        } catch (Exception e) {
-            e.printStackTrace();
+            // Writing to the outbox touches the disk, so it is not done on the thread of the caller
+            batchExecutorService.execute(() -> addToOutbox(message, urgent, callback));
+        } catch (RejectedExecutionException e) {
+            if (callback != null) {
+                callback.onFailure(new IllegalStateException("MessageService was destroyed"));
+            }
         }
+    }
 
-        if (BuildConfig.DEBUG) {
-            // Show a message upon Service
-            Toast.makeText(this, "MessageService Starting", Toast.LENGTH_SHORT).show();
+    private void addToOutbox(MessageObject message, boolean urgent, @Nullable SendCallback callback) {
+        long seq = outbox.add(message);
+        if (callback != null) {
+            outboxCallbacks.put(seq, callback);
+            batchExecutorService.schedule(() -> expireOutboxCallback(seq),
+                outboxCallbackTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        // A replay may have taken it already
+        if (outboxInFlight.add(seq)) {
+            offerFromOutbox(seq, message, urgent);
         }
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        try {
-            Wearable.getMessageClient(this).removeListener(this);     // onMessageReceived
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Fail the callback of a message that is still in the outbox, so callers learn it was not delivered yet
+     */
+    private void expireOutboxCallback(long seq) {
+        SendCallback callback = outboxCallbacks.remove(seq);
+        if (callback != null) {
+            callback.onFailure(new NotReachableException(
+                "Not delivered within " + outboxCallbackTimeoutMillis + " ms, the message stays in the outbox"));
+        }
+    }
+
+    private void failOutboxCallbacks(@NonNull Exception exception) {
+        for (Long seq : new ArrayList<>(outboxCallbacks.keySet())) {
+            SendCallback callback = outboxCallbacks.remove(seq);
+            if (callback != null) {
+                callback.onFailure(exception);
+            }
         }
     }
 
     /**
-     * Called when a message is received, calls all listeners with the data as a string
+     * Sends a message to a single node, bypassing batching and the health of the node,
+     * so apps can pick the node with getNodeHealth
      *
-     * @param messageEvent the messageEvent that is received containing the data, path and source node
+     * @param nodeId        the id of the node
+     * @param data          to send to the node
+     * @param callback      called with the outcome of sending the message
+     * @param replyCallback called with the reply, or when no reply arrives before the reply timeout, null to not wait for a reply
      */
-    @Override
-    public void onMessageReceived(@NonNull MessageEvent messageEvent) {
-        if (messageEvent.getPath().equals(MESSAGE_PATH)) {
-            if (listeners == null) {
-                Log.w(TAG, "No listener has been set");
-                return;
-            }
+    public void sendMessageToNode(@NonNull String nodeId, byte[] data, @Nullable SendCallback callback,
+                                  @Nullable ReplyRegistry.ReplyCallback replyCallback) {
+        MessageObject message = createDataMessage(data);
+        if (replyCallback != null) {
+            callback = expectReply(message, callback, replyCallback);
+        }
+        sendQueue.offer(new SendQueue.Entry(message, nodeId, true, callback));
+    }
+
+    /**
+     * Sends a message in the reliable stream, it is received exactly once and in the order it was sent
+     * relative to the other reliable messages to the same node. Messages are pipelined up to the window size
+     * and retransmitted until they are acknowledged, the callback succeeds once every node acknowledged it.
+     * The receiving app must support the reliable stream.
+     *
+     * @param nodeId        the id of the node, null to send to all connected nodes that are not failing
+     * @param data          to send
+     * @param callback      called with the outcome, fails with a ReliableStream.StreamBrokenException
+     *                      when a node did not acknowledge after all retransmits
+     * @param replyCallback called with the first reply, or when no reply arrives before the reply timeout, null to not wait for a reply
+     */
+    public void sendMessageReliably(@Nullable String nodeId, byte[] data, @Nullable SendCallback callback,
+                                    @Nullable ReplyRegistry.ReplyCallback replyCallback) {
+        MessageObject message = createDataMessage(data);
+        if (replyCallback != null) {
+            callback = expectReply(message, callback, replyCallback);
+        }
+        sendQueue.offer(new SendQueue.Entry(message, nodeId, false, callback, 0, true));
+    }
+
+    /**
+     * Configure the reliable stream
+     *
+     * @param windowSize       the maximum number of unacknowledged messages per node
+     * @param retransmitMillis the time after which an unacknowledged message is sent again, doubled for every retransmit
+     * @param maxRetransmits   the number of retransmits after which the messages to a node fail
+     */
+    public void setReliableStream(int windowSize, long retransmitMillis, int maxRetransmits) {
+        reliableStream.configure(windowSize, retransmitMillis, maxRetransmits);
+    }
+
+    /**
+     * Give a message an id and register the callback for its reply
+     *
+     * @return the callback to send the message with, it fails the reply when the message cannot be sent
+     */
+    private SendCallback expectReply(MessageObject message, @Nullable SendCallback callback,
+                                     @NonNull ReplyRegistry.ReplyCallback replyCallback) {
+        long id = replies.nextId();
+        message.id = id;
+        replies.register(id, replyCallback, replyTimeoutMillis);
+        return new SendCallback() {
+            @Override
+            public void onSuccess() {
+                if (callback != null) {
+                    callback.onSuccess();
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                // Nothing will reply to a message that was never received
+                replies.fail(id, exception);
+                if (callback != null) {
+                    callback.onFailure(exception);
+                }
+            }
+        };
+    }
+
+    /**
+     * Queue user info for the connected nodes, it is written to a journal first
+     * and transferred as a data item, which the node receives also after the process was killed
+     *
+     * @param data the user info
+     */
+    public void transferUserInfo(byte[] data) {
+        transferUserInfo(data, null);
+    }
+
+    /**
+     * Queue user info for the connected nodes, replacing queued user info with the same key that was not transferred yet
+     *
+     * @param data the user info
+     * @param key  the coalesce key, null to never replace queued user info
+     */
+    public void transferUserInfo(byte[] data, @Nullable String key) {
+        userInfo.transfer(createMessage(MessageObject.MessageType.userInfo, data), key);
+    }
+
+    /**
+     * Configure how user info is batched
+     *
+     * @param flushDelayMillis the time user info waits for more user info before it is transferred
+     * @param maxBatchBytes    the maximum size of the user info transferred in one data item
+     */
+    public void setUserInfoTransfer(long flushDelayMillis, int maxBatchBytes) {
+        userInfo.configure(flushDelayMillis, maxBatchBytes);
+    }
+
+    /**
+     * Write a key of the replicated state, writes to the same key within the throttle interval are coalesced
+     *
+     * @param key   the key
+     * @param value the value as JSON, null removes the key
+     */
+    public void setReplicatedState(@NonNull String key, @Nullable byte[] value) {
+        replicatedState.set(key, value);
+    }
+
+    /**
+     * Read a key of the replicated state from the cache, without Play Services
+     *
+     * @param key the key
+     * @return the value as JSON, null if the key has no value
+     */
+    @Nullable
+    public byte[] getReplicatedState(@NonNull String key) {
+        return replicatedState.get(key);
+    }
+
+    /**
+     * Read the replicated state from the cache, without Play Services
+     *
+     * @return the value of every key as JSON
+     */
+    @NonNull
+    public Map<String, byte[]> getReplicatedState() {
+        return replicatedState.getAll();
+    }
+
+    /**
+     * Configure where the replicated state is stored and how often it is written
+     *
+     * @param prefix         the path of the data items of the keys
+     * @param throttleMillis the minimum time between two writes of the state
+     */
+    public void setReplicatedStateConfig(@NonNull String prefix, long throttleMillis) {
+        String previous = replicatedState.getPrefix();
+        replicatedState.configure(prefix, throttleMillis);
+        if (!previous.equals(replicatedState.getPrefix())) {
+            nodeExecutorService.execute(this::restoreReplicatedState);
+        }
+    }
+
+    /**
+     * Handle the messages received on other paths than the one of the messages of this library,
+     * on a thread of their own so they do not wait for the messages of other paths
+     *
+     * @param pattern  an exact path, or a prefix ending in "/*" that matches every path below it
+     * @param priority the thread priority of the handler, between Thread.MIN_PRIORITY and Thread.MAX_PRIORITY
+     * @param handler  handles the messages, replaces the handler previously added for the pattern
+     * @throws IllegalArgumentException when the pattern is invalid or the path of this library
+     */
+    public void addPathHandler(@NonNull String pattern, int priority, @NonNull PathRouter.Handler handler) {
+        // A prefix that matches a reserved path is fine, the exact route of the reserved path wins over it
+        if (pattern.equals(MESSAGE_PATH) || pattern.equals(TelemetryStream.PATH)) {
+            throw new IllegalArgumentException(pattern + " is a reserved path");
+        }
+        router.register(pattern, handler, priority, PathRouter.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param pattern the pattern the handler was added with
+     * @return false if no handler was added for the pattern
+     */
+    public boolean removePathHandler(@NonNull String pattern) {
+        return !pattern.equals(MESSAGE_PATH) && !pattern.equals(TelemetryStream.PATH) && router.unregister(pattern);
+    }
+
+    /**
+     * Open a telemetry channel, or reconfigure an open one after sending its samples
+     *
+     * @param name                the name of the channel, received frames carry it
+     * @param type                the type of the values
+     * @param dimensions          the number of values per sample
+     * @param maxSamples          the number of samples after which a frame is sent
+     * @param flushIntervalMillis the maximum time a sample waits before it is sent
+     * @throws IllegalArgumentException when dimensions is not between 1 and TelemetryCodec.MAX_DIMENSIONS
+     */
+    public void openTelemetryChannel(@NonNull String name, @NonNull TelemetryCodec.ValueType type, int dimensions,
+                                     int maxSamples, long flushIntervalMillis) {
+        telemetry.open(name, type, dimensions, maxSamples, flushIntervalMillis);
+    }
+
+    /**
+     * Send the samples of a telemetry channel and close it
+     */
+    public void closeTelemetryChannel(@NonNull String name) {
+        telemetry.close(name);
+    }
+
+    /**
+     * Add a sample to a telemetry channel, it is sent with the other samples of its frame
+     *
+     * @param name      the name of the channel
+     * @param timestamp the time of the sample in epoch milliseconds
+     * @param values    the values of the sample, one per dimension of the channel
+     * @return false if the channel is not open
+     * @throws IllegalArgumentException when the number of values is not the number of dimensions of the channel
+     */
+    public boolean appendTelemetry(@NonNull String name, long timestamp, @NonNull double... values) {
+        return telemetry.append(name, timestamp, values);
+    }
+
+    /**
+     * Add samples to a telemetry channel
+     *
+     * @param name       the name of the channel
+     * @param timestamps the times of the samples in epoch milliseconds
+     * @param values     the values of the samples interleaved by sample, one per dimension of the channel
+     * @return false if the channel is not open
+     * @throws IllegalArgumentException when the number of values is not the number of samples times
+     *                                  the number of dimensions of the channel
+     */
+    public boolean appendTelemetry(@NonNull String name, @NonNull long[] timestamps, @NonNull double[] values) {
+        return telemetry.append(name, timestamps, values);
+    }
+
+    /**
+     * Send the samples of all telemetry channels right away
+     */
+    public void flushTelemetry() {
+        telemetry.flushAll();
+    }
+
+    /**
+     * @param listener called with every received telemetry frame on its own thread, null to remove it
+     */
+    public void setTelemetryListener(@Nullable TelemetryStream.OnFrameListener listener) {
+        telemetry.setListener(listener);
+    }
+
+    /**
+     * Send raw data on a path of its own, it is not framed so the receiver gets the data as is
+     *
+     * @param nodeId   the node to send it to, null for all cached connected nodes that are not failing
+     * @param path     the path, received by the handler of the path on the other node
+     * @param data     the data
+     * @param callback called once the data was sent
+     */
+    public void sendToPath(@Nullable String nodeId, @NonNull String path, @NonNull byte[] data,
+                           @NonNull SendCallback callback) {
+        if (nodeId != null) {
+            fanOut.send(nodeId, path, data, callback);
+            return;
+        }
+        // Called from the bridge and from telemetry flushes on the main thread, so only the cached nodes are used.
+        // Before they are loaded the nodes are refreshed in the background and the send fails
+        Collection<Node> nodes = nodeHealth.select(nodeRegistry.getNodes(), false);
+        if (nodes.isEmpty()) {
+            callback.onFailure(new NotReachableException());
+            return;
+        }
+        SendCallback tracker = nodes.size() == 1 ? callback : new SendTracker(callback, nodes.size());
+        for (Node node : nodes) {
+            fanOut.send(node.getId(), path, data, tracker);
+        }
+    }
+
+    /**
+     * Replace the application context of the connected nodes, like user info it is written to the outbox first.
+     * Only the newest application context is kept in the outbox.
+     * Nodes that have the previous application context only receive what changed,
+     * updates made in quick succession are coalesced.
+     *
+     * @param context the application context as returned by ReadableMap.toHashMap, it must not be changed afterwards
+     * @throws JSONException when the context contains a value that cannot be sent
+     */
+    public void updateApplicationContext(@NonNull Map<String, Object> context) throws JSONException {
+        byte[] data = PayloadSerializer.toJSONBytes(context);
+        long seq = outbox.add(createMessage(MessageObject.MessageType.applicationContext, data));
+        outboxInFlight.add(seq);
+        contextSync.update(context, data, new OutboxCallback(seq));
+    }
+
+    /**
+     * Get the received application context
+     *
+     * @return the newest received application context, null if none was received
+     */
+    @Nullable
+    public MessageObject getReceivedApplicationContext() {
+        return inbox.getApplicationContext();
+    }
+
+    /**
+     * Get the received user info that has not been dequeued,
+     * the ids are increasing in the order the user info was received
+     *
+     * @return the user info by id, in the order it was received
+     */
+    @NonNull
+    public Map<String, MessageObject> getQueuedUserInfo() {
+        Map<String, MessageObject> queued = new LinkedHashMap<>();
+        for (UserInfoQueue.Entry entry : userInfoInbox.getEntries()) {
+            queued.put(String.valueOf(entry.seq), entry.message);
+        }
+        return queued;
+    }
+
+    /**
+     * Remove received user info from the queue, after it was processed
+     *
+     * @param ids the ids of the user info as returned by getQueuedUserInfo
+     */
+    public void dequeueUserInfo(@NonNull Collection<String> ids) {
+        Set<Long> seqs = new HashSet<>();
+        for (String id : ids) {
+            try {
+                seqs.add(Long.parseLong(id));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Cannot dequeue unknown user info " + id);
+            }
+        }
+        userInfoInbox.remove(seqs);
+    }
+
+    /**
+     * Remove the oldest received user info from the queue in one go
+     *
+     * @param max the maximum number of user info to remove
+     * @return the removed user info in the order it was received, with the ids of getQueuedUserInfo
+     */
+    @NonNull
+    public List<UserInfoQueue.Entry> drainUserInfo(int max) {
+        return userInfoInbox.drain(max);
+    }
+
+    /**
+     * @param filter decides which received data messages are decoded and passed to the listeners, null to accept all
+     */
+    void setMessageFilter(@Nullable MessageFilter filter) {
+        messageFilter = filter;
+    }
+
+    /**
+     * @param listener called when user info or an application context is received, null to remove it
+     */
+    public void setStateReceivedListener(@Nullable OnStateReceivedListener listener) {
+        stateListener = listener;
+    }
+
+    private void offerFromOutbox(long seq, MessageObject message, boolean urgent) {
+        if (!sendQueue.offer(new SendQueue.Entry(message, null, urgent, new OutboxCallback(seq), seq))) {
+            // Not queued, it stays in the outbox until the next replay
+            outboxInFlight.remove(seq);
+        }
+    }
+
+    /**
+     * Send the messages in the outbox that are not being sent already,
+     * called when a node became reachable or a failing node recovered
+     */
+    void replayOutbox() {
+        for (Map.Entry<Long, MessageObject> entry : outbox.getMessages().entrySet()) {
+            long seq = entry.getKey();
+            if (!outboxInFlight.add(seq)) {
+                continue;
+            }
+            if (entry.getValue().type != MessageObject.MessageType.applicationContext
+                || !contextSync.resend(new OutboxCallback(seq))) {
+                offerFromOutbox(seq, entry.getValue(), false);
+            }
+        }
+    }
+
+    private void scheduleOutboxReplay(long delayMillis) {
+        if (!outboxReplayScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            batchExecutorService.schedule(() -> {
+                outboxReplayScheduled.set(false);
+                replayOutbox();
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            outboxReplayScheduled.set(false);
+        }
+    }
+
+    /**
+     * Removes a message from the outbox once a node received it and calls the callback it was sent with,
+     * a message that failed stays in the outbox until the next replay, its callback is called once it expires
+     */
+    private final class OutboxCallback implements SendCallback {
+        private final long seq;
+
+        OutboxCallback(long seq) {
+            this.seq = seq;
+        }
+
+        @Override
+        public void onSuccess() {
+            outbox.remove(seq);
+            outboxInFlight.remove(seq);
+            SendCallback callback = outboxCallbacks.remove(seq);
+            if (callback != null) {
+                callback.onSuccess();
+            }
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            outboxInFlight.remove(seq);
+        }
+    }
+
+    /**
+     * Sends the messages of the application context sync to single nodes through the send queue
+     */
+    private final class ContextOutlet implements ApplicationContextSync.Outlet {
+        @NonNull
+        @Override
+        public Collection<String> getNodeIds() {
+            return getNodeIdList();
+        }
+
+        @NonNull
+        @Override
+        public MessageObject createMessage(@NonNull MessageObject.MessageType type, @Nullable byte[] data) {
+            return MessageService.this.createMessage(type, data);
+        }
+
+        @Override
+        public void send(@NonNull String nodeId, @NonNull MessageObject message, @NonNull SendCallback callback) {
+            sendQueue.offer(new SendQueue.Entry(message, nodeId, false, callback));
+        }
+    }
+
+    private List<String> getNodeIdList() {
+        Collection<Node> nodes = getNodes();
+        List<String> nodeIds = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            nodeIds.add(node.getId());
+        }
+        return nodeIds;
+    }
+
+    /**
+     * Puts and deletes the data items of the user info transfer with the DataClient
+     */
+    private final class UserInfoOutlet implements UserInfoTransfer.Outlet {
+        @NonNull
+        @Override
+        public Collection<String> getNodeIds() {
+            return getNodeIdList();
+        }
+
+        @Override
+        public void put(@NonNull String path, @NonNull byte[] data, @NonNull SendCallback callback) {
+            Task<DataItem> putTask = dataClient.putDataItem(PutDataRequest.create(path).setData(data).setUrgent());
+            putTask.addOnSuccessListener(it -> callback.onSuccess());
+            putTask.addOnFailureListener(callback::onFailure);
+        }
+
+        @Override
+        public void delete(@NonNull String sourceNodeId, @NonNull String path) {
+            dataClient.deleteDataItems(Uri.parse("wear://" + sourceNodeId + path))
+                .addOnFailureListener(e -> Log.w(TAG, "Cannot delete data item " + path, e));
+        }
+    }
+
+    /**
+     * Puts and deletes the data items of the replicated state with the DataClient
+     */
+    private final class StateOutlet implements ReplicatedState.Outlet {
+        @Override
+        public void put(@NonNull String path, @NonNull byte[] data, @NonNull SendCallback callback) {
+            Task<DataItem> putTask = dataClient.putDataItem(PutDataRequest.create(path).setData(data).setUrgent());
+            putTask.addOnSuccessListener(it -> callback.onSuccess());
+            putTask.addOnFailureListener(callback::onFailure);
+        }
+
+        @Override
+        public void delete(@NonNull String path) {
+            // Without a host the items of all nodes are deleted
+            dataClient.deleteDataItems(Uri.parse("wear:" + path))
+                .addOnFailureListener(e -> Log.w(TAG, "Cannot delete data item " + path, e));
+        }
+    }
+
+    /**
+     * Sends the messages and acknowledgements of the reliable stream directly, they are already flow controlled
+     */
+    private final class StreamOutlet implements ReliableStream.Outlet {
+        @NonNull
+        @Override
+        public MessageObject createMessage(@NonNull MessageObject.MessageType type, @Nullable byte[] data) {
+            return MessageService.this.createMessage(type, data);
+        }
+
+        @Override
+        public void send(@NonNull String nodeId, @NonNull MessageObject message, @NonNull SendCallback callback) {
+            MessageService.this.send(nodeId, MessageCodec.encode(message, getWireFormat(nodeId)), callback);
+        }
+    }
+
+    /**
+     * Configure the fan-out of messages to several nodes
+     *
+     * @param maxConcurrentSends the maximum number of sends in flight
+     * @param failureThreshold   the number of failed sends in a row after which a node is skipped
+     * @param baseBackoffMillis  the time a failing node is skipped before it is probed, doubled after every failed probe
+     * @param maxBackoffMillis   the maximum time a failing node is skipped
+     */
+    public void setFanOut(int maxConcurrentSends, int failureThreshold, long baseBackoffMillis, long maxBackoffMillis) {
+        fanOut.setMaxConcurrentSends(maxConcurrentSends);
+        nodeHealth.configure(failureThreshold, baseBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * Get the health of the connected nodes, so apps can pick the node to send to
+     *
+     * @return per node the id, display name, whether it is nearby and its health
+     */
+    @NonNull
+    public List<Map<String, Object>> getNodeHealth() {
+        List<Map<String, Object>> nodes = new ArrayList<>();
+        for (Node node : getNodes()) {
+            Map<String, Object> health = new LinkedHashMap<>();
+            health.put("id", node.getId());
+            health.put("name", node.getDisplayName());
+            health.put("nearby", node.isNearby());
+            health.putAll(nodeHealth.getStats(node.getId()));
+            nodes.add(health);
+        }
+        return nodes;
+    }
+
+    /**
+     * Compress the data of messages to peers that support it
+     *
+     * @param enabled  whether data is compressed
+     * @param minBytes data smaller than this is sent as is
+     */
+    public void setCompression(boolean enabled, int minBytes) {
+        compressor.configure(enabled, minBytes);
+    }
+
+    /**
+     * Get the counters and latencies of the messaging pipeline,
+     * including the statistics of the send queue, batching, replies, compression, application context and outbox
+     *
+     * @return the statistics by name
+     */
+    public Map<String, Object> getStats() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Report the statistics periodically
+     *
+     * @param listener       called with the statistics, null to stop reporting
+     * @param intervalMillis the time between reports, 0 to stop reporting
+     */
+    public synchronized void setStatsListener(@Nullable OnStatsListener listener, long intervalMillis) {
+        if (statsFuture != null) {
+            statsFuture.cancel(false);
+            statsFuture = null;
+        }
+        if (listener != null && intervalMillis > 0) {
+            statsFuture = batchExecutorService.scheduleAtFixedRate(
+                () -> listener.onStats(metrics.snapshot()), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Set the time to wait for a reply to a message
+     *
+     * @param timeoutMillis the timeout in milliseconds
+     */
+    public void setReplyTimeout(long timeoutMillis) {
+        replyTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Get the number of messages waiting for a reply, the number of timeouts and the reply latency
+     *
+     * @return the statistics by name
+     */
+    public Map<String, Object> getReplyStats() {
+        return replies.getStats();
+    }
+
+    /**
+     * Create the id JavaScript uses to reply to a received message
+     *
+     * @param nodeId the node the message was received from
+     * @param id     the id of the message
+     * @return the id in the form nodeId:id
+     */
+    static String formatMessageId(@NonNull String nodeId, long id) {
+        return nodeId + ":" + id;
+    }
+
+    /**
+     * Reply to a received message
+     *
+     * @param messageId the id of the message as created by formatMessageId
+     * @param data      the data of the reply
+     * @param callback  called with the outcome of sending the reply
+     */
+    public void replyToMessage(@NonNull String messageId, byte[] data, @Nullable SendCallback callback) {
+        int separator = messageId.lastIndexOf(':');
+        long id = 0;
+        if (separator > 0) {
+            try {
+                id = Long.parseLong(messageId.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                id = 0;
+            }
+        }
+        if (id == 0) {
+            if (callback != null) {
+                callback.onFailure(new IllegalArgumentException("Invalid message id " + messageId));
+            }
+            return;
+        }
+        MessageObject reply = MessageObject.createReply(MessageObject.Sender.Platform.wearos,
+            MessageObject.Sender.Direction.handheld,
+            deviceId,
+            id,
+            data,
+            new Timestamp(System.currentTimeMillis()));
+        sendQueue.offer(new SendQueue.Entry(reply, messageId.substring(0, separator), true, callback));
+    }
+
+    /**
+     * Start sending a file to the watch, a nearby and healthy node is preferred when several are connected
+     *
+     * @param file     the file to send
+     * @param uri      the uri of the file as passed by JavaScript
+     * @param metadata sent along with the file
+     * @return the id of the transfer
+     * @throws NotReachableException when no node is connected or all nodes are failing
+     */
+    public String transferFile(@NonNull File file, @NonNull String uri, @NonNull Map<String, Object> metadata)
+        throws NotReachableException {
+        Node target = nodeHealth.best(getNodes());
+        if (target == null) {
+            throw new NotReachableException();
+        }
+        return fileTransfers.send(target.getId(), file, uri, metadata);
+    }
+
+    /**
+     * Resume a failed file transfer from the bytes the receiver already has
+     *
+     * @param id   the id of the transfer
+     * @param file the file of the transfer
+     * @return false if there is no failed transfer with the id
+     */
+    public boolean resumeFileTransfer(@NonNull String id, @NonNull File file) {
+        return fileTransfers.resume(id, file);
+    }
+
+    /**
+     * @return the state of all inbound and outbound file transfers
+     */
+    public Collection<FileTransferManager.FileTransfer> getFileTransfers() {
+        return fileTransfers.getTransfers();
+    }
+
+    public void setFileTransferListener(@Nullable FileTransferManager.OnFileTransferListener listener) {
+        fileTransfers.setListener(listener);
+    }
+
+    /**
+     * Set the number of file transfers that run in parallel
+     *
+     * @param maxConcurrentTransfers the concurrency cap
+     */
+    public void setMaxConcurrentFileTransfers(int maxConcurrentTransfers) {
+        fileTransfers.setMaxConcurrentTransfers(maxConcurrentTransfers);
+    }
+
+    /**
+     * Sends a message taken from the send queue, runs on the send queue thread
+     *
+     * @param entry the queued message
+     */
+    private void deliver(@NonNull SendQueue.Entry entry) {
+        MessageObject message = entry.message;
+        boolean batch = batchingEnabled && !entry.urgent;
+        if (entry.reliable) {
+            deliverReliably(entry);
+            return;
+        }
+        if (entry.nodeId != null) {
+            MessageCodec.WireFormat format = getWireFormat(entry.nodeId);
+            if (format == MessageCodec.WireFormat.binary) {
+                compressor.prepare(message);
+                send(entry.nodeId, MessageCodec.encode(message, bufferPool), entry.callback, true);
+            } else {
+                send(entry.nodeId, MessageCodec.encode(message, format), entry.callback, false);
+            }
+            releaseData(message);
+            return;
+        }
+        // Get all connected nodes, only waits when they have never been loaded.
+        // Failing nodes are skipped, urgent messages go to nearby nodes first
+        Collection<Node> connected = nodeRegistry.awaitNodes();
+        Collection<Node> nodes = nodeHealth.select(connected, entry.urgent);
+        if (nodes.isEmpty()) {
+            // Durable messages stay in the outbox, they are sent again once a node is reachable or recovered.
+            // When all nodes are failing nothing else may probe them, so the outbox probes them itself
+            if (entry.outboxSeq != 0 && !connected.isEmpty()) {
+                scheduleOutboxReplay(nodeHealth.millisUntilProbe(connected));
+            }
+            entry.fail(new NotReachableException());
+            return;
+        }
+        SendCallback tracker = entry.callback == null ? null
+            : nodes.size() == 1 ? entry.callback : new SendTracker(entry.callback, nodes.size());
+        // The JSON format is encoded at most once, no matter how many nodes use it.
+        // Binary frames are pooled and released by their send, so every node gets its own
+        byte[] json = null;
+        boolean batched = false;
+        for (Node node : nodes) {
+            MessageCodec.WireFormat format = getWireFormat(node.getId());
+            if (format == MessageCodec.WireFormat.json) {
+                if (json == null) {
+                    json = MessageCodec.encode(message, format);
+                }
+                send(node.getId(), json, tracker, false);
+                continue;
+            }
+            // Only compressed once, however many nodes it is sent to
+            compressor.prepare(message);
+            if (batch) {
+                batcher.add(node.getId(), message, tracker);
+                batched = true;
+                continue;
+            }
+            send(node.getId(), MessageCodec.encode(message, bufferPool), tracker, true);
+        }
+        if (!batched) {
+            releaseData(message);
+        }
+    }
+
+    /**
+     * Return the data of a sent message to the pool, once it was encoded for every node
+     */
+    private void releaseData(MessageObject message) {
+        if (message.pooled) {
+            message.pooled = false;
+            bufferPool.release(message.data);
+            message.data = null;
+        }
+    }
+
+    /**
+     * Hands a message to the reliable stream of every node it is sent to, it is never batched
+     */
+    private void deliverReliably(@NonNull SendQueue.Entry entry) {
+        MessageObject message = entry.message;
+        if (entry.nodeId != null) {
+            if (getWireFormat(entry.nodeId) == MessageCodec.WireFormat.binary) {
+                compressor.prepare(message);
+            }
+            reliableStream.send(entry.nodeId, message, entry.callback);
+            return;
+        }
+        Collection<Node> nodes = nodeHealth.select(nodeRegistry.awaitNodes(), false);
+        if (nodes.isEmpty()) {
+            entry.fail(new NotReachableException());
+            return;
+        }
+        SendCallback tracker = entry.callback == null ? null : new SendTracker(entry.callback, nodes.size());
+        for (Node node : nodes) {
+            if (getWireFormat(node.getId()) == MessageCodec.WireFormat.binary) {
+                // The copies for every node share the compressed data
+                compressor.prepare(message);
+            }
+            reliableStream.send(node.getId(), message, tracker);
+        }
+    }
+
+    /**
+     * Send a message to a single node, nodes can be received by using getNodes
+     *
+     * @param node to send the data to
+     * @param data to bent sent
+     */
+    public void sendMessage(Node node, byte[] data) {
+        send(node.getId(), MessageCodec.encode(createDataMessage(data), getWireFormat(node.getId())), null);
+    }
+
+    private void send(@NonNull String nodeId, @NonNull byte[] encoded, @Nullable SendCallback callback) {
+        send(nodeId, encoded, callback, false);
+    }
+
+    /**
+     * @param pooled whether the encoded frame was taken from the bufferPool, it is released once it was sent
+     */
+    private void send(@NonNull String nodeId, @NonNull byte[] encoded, @Nullable SendCallback callback, boolean pooled) {
+        MeasuredCallback measured;
+        synchronized (poolLock) {
+            measured = callbackPool;
+            if (measured != null) {
+                callbackPool = measured.next;
+                measured.next = null;
+                pooledCallbacks--;
+            }
+        }
+        if (measured == null) {
+            measured = new MeasuredCallback();
+        }
+        measured.nodeId = nodeId;
+        measured.frame = encoded;
+        measured.pooled = pooled;
+        measured.startedAt = System.nanoTime();
+        measured.callback = callback == null ? NO_CALLBACK : callback;
+        fanOut.send(nodeId, MESSAGE_PATH, encoded, measured);
+    }
+
+    /**
+     * Records the outcome and latency of a send before passing it on, then releases the frame
+     * and recycles itself. The transport must report every send exactly once.
+     */
+    private final class MeasuredCallback implements SendCallback {
+        String nodeId;
+        byte[] frame;
+        boolean pooled;
+        long startedAt;
+        SendCallback callback;
+        @Nullable
+        MeasuredCallback next;
+
+        @Override
+        public void onSuccess() {
+            metrics.recordSend(nodeId, frame.length, startedAt, true);
+            recycle().onSuccess();
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            metrics.recordSend(nodeId, frame.length, startedAt, false);
+            recycle().onFailure(exception);
+        }
+
+        /**
+         * @return the callback of the caller
+         */
+        private SendCallback recycle() {
+            SendCallback caller = callback;
+            if (pooled) {
+                bufferPool.release(frame);
+            }
+            nodeId = null;
+            frame = null;
+            callback = null;
+            synchronized (poolLock) {
+                if (pooledCallbacks < MAX_POOLED_CALLBACKS) {
+                    next = callbackPool;
+                    callbackPool = this;
+                    pooledCallbacks++;
+                }
+            }
+            return caller;
+        }
+    }
+
+    /**
+     * Replace the transport messages are sent with, used to run the send path without Play Services
+     *
+     * @param transport the transport, sends with the MessageClient by default
+     */
+    void setTransport(@NonNull MessageTransport transport) {
+        this.transport = transport;
+    }
+
+    private void sendWithMessageClient(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data,
+                                       @NonNull SendCallback callback) {
+        Task<Integer> sendTask = messageClient.sendMessage(nodeId, path, data);
+        sendTask.addOnSuccessListener(it -> callback.onSuccess());
+        sendTask.addOnFailureListener(callback::onFailure);
+    }
+
+    /**
+     * Add a listener that is called when a message is received
+     *
+     * @param listener a class that extends MessageService.OnMessageReceived
+     */
+    public void addMessageReceiveListener(@NonNull MessageService.OnMessageReceivedListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a previously added listener
+     *
+     * @param listener a class that extends MessageService.OnMessageReceived
+     */
+    public void removeMessageReceiveListener(@NonNull MessageService.OnMessageReceivedListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add a listener that is called with the raw data of every received message
+     *
+     * @param listener a class that extends MessageService.OnMessageDataReceivedListener
+     */
+    public void addMessageDataReceiveListener(@NonNull MessageService.OnMessageDataReceivedListener listener) {
+        dataListeners.add(listener);
+    }
+
+    /**
+     * Remove a previously added data listener
+     *
+     * @param listener a class that extends MessageService.OnMessageDataReceivedListener
+     */
+    public void removeMessageDataReceiveListener(@NonNull MessageService.OnMessageDataReceivedListener listener) {
+        dataListeners.remove(listener);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        long createStartedAt = System.nanoTime();
+        messageClient = Wearable.getMessageClient(this);
+        nodeClient = Wearable.getNodeClient(this);
+        dataClient = Wearable.getDataClient(this);
+        capabilityClient = Wearable.getCapabilityClient(this);
+        channelClient = Wearable.getChannelClient(this);
+        fileTransfers = new FileTransferManager(channelClient, new File(getFilesDir(), "watch_files"));
+        outbox = MessageStore.open(new File(getFilesDir(), "watch_outbox"), batchExecutorService);
+        inbox = MessageStore.open(new File(getFilesDir(), "watch_inbox"), batchExecutorService);
+        userInfoOutbox = UserInfoQueue.open(new File(getFilesDir(), "watch_user_info_out"), batchExecutorService);
+        userInfoInbox = UserInfoQueue.open(new File(getFilesDir(), "watch_user_info_in"), batchExecutorService);
+        userInfo = new UserInfoTransfer(batchExecutorService, new UserInfoOutlet(), userInfoOutbox, userInfoInbox);
+        userInfo.setListener(this::onUserInfoQueued);
+        replicatedState.setListener(changes -> {
+            OnStateReceivedListener listener = stateListener;
+            if (listener != null) {
+                listener.onReplicatedStateChanged(changes);
+            }
+        });
+        migrateUserInfo();
+        router.registerInline(MESSAGE_PATH, this::receiveMessage);
+        router.register(TelemetryStream.PATH, (sourceNodeId, path, data) -> telemetry.receive(sourceNodeId, data),
+            Thread.NORM_PRIORITY, PathRouter.DEFAULT_QUEUE_CAPACITY);
+        metrics.register("sendQueue", sendQueue::getStats);
+        metrics.register("batching", batcher::getStats);
+        metrics.register("replies", replies::getStats);
+        metrics.register("compression", compressor::getStats);
+        metrics.register("applicationContext", contextSync::getStats);
+        metrics.register("fanOut", fanOut::getStats);
+        metrics.register("nodeHealth", nodeHealth::getStats);
+        metrics.register("reliable", reliableStream::getStats);
+        metrics.register("bufferPool", bufferPool::getStats);
+        metrics.register("filter", () -> Collections.singletonMap("filtered", (Object) (double) filtered.get()));
+        metrics.register("userInfo", userInfo::getStats);
+        metrics.register("replicatedState", replicatedState::getStats);
+        metrics.register("paths", router::getStats);
+        metrics.register("telemetry", telemetry::getStats);
+        metrics.register("outbox", () -> Collections.singletonMap("depth", (Object) (double) outbox.size()));
+        restoreApplicationContext();
+        nodeRegistry.setListener(nodes -> {
+            updateReachability();
+            if (!nodes.isEmpty()) {
+                replayOutbox();
+                userInfo.resend();
+            }
+        });
+        nodeHealth.setListener((nodeId, state) -> {
+            updateReachability();
+            if (state == NodeHealth.State.closed) {
+                // Messages that waited for the node while every node was failing can be sent now
+                replayOutbox();
+            }
+        });
+        String androidId = Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);
+        deviceId = androidId == null ? "" : androidId;
+        try {
+            messageClient.addListener(this);   // onMessageReceived
+            capabilityClient
+                .addListener(this, Uri.parse("wear://"), CapabilityClient.FILTER_PREFIX); // onCapabilityChanged
+            channelClient.registerChannelCallback(fileTransfers);      // onChannelOpened
+            dataClient.addListener(this);                              // onDataChanged
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        // Warm the node cache so the first send does not have to wait
+        nodeRegistry.refreshAsync();
+        nodeExecutorService.execute(this::restoreDataItems);
+        timerWheel.start();
+        metrics.recordCreated(createStartedAt);
+
+        if (BuildConfig.DEBUG) {
+            // Show a message upon Service
+            Toast.makeText(this, "MessageService Starting", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Move user info received before it had its own queue out of the inbox
+     */
+    private void migrateUserInfo() {
+        for (Map.Entry<Long, MessageObject> entry : inbox.getMessages().entrySet()) {
+            if (entry.getValue().type == MessageObject.MessageType.userInfo) {
+                userInfoInbox.add(entry.getValue(), null);
+                inbox.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Learn the id of this node, then read the data items that were put while the process was not running:
+     * the user info for this node is queued and the replicated state is cached
+     */
+    private void restoreDataItems() {
+        try {
+            String nodeId = Tasks.await(nodeClient.getLocalNode()).getId();
+            localNodeId = nodeId;
+            userInfo.setLocalNodeId(nodeId);
+            List<DataItem> missed = getDataItems(UserInfoTransfer.PATH + "/");
+            dispatchExecutorService.execute(() -> receiveDataItems(missed, Collections.emptyList()));
+        } catch (ExecutionException | RejectedExecutionException e) {
+            Log.e(TAG, "Cannot get the user info put while the service was not running", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        restoreReplicatedState();
+    }
+
+    private void restoreReplicatedState() {
+        try {
+            List<Map.Entry<String, byte[]>> values = new ArrayList<>();
+            for (DataItem item : getDataItems(replicatedState.getPrefix() + "/")) {
+                String path = item.getUri().getPath();
+                if (path != null && item.getData() != null && replicatedState.accepts(path)) {
+                    values.add(new AbstractMap.SimpleImmutableEntry<>(path, item.getData()));
+                }
+            }
+            replicatedState.restore(values);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Cannot read the replicated state", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read the data items of all nodes under a path, blocks
+     */
+    private List<DataItem> getDataItems(String pathPrefix) throws ExecutionException, InterruptedException {
+        DataItemBuffer items = Tasks.await(
+            dataClient.getDataItems(Uri.parse("wear:" + pathPrefix), DataClient.FILTER_PREFIX));
+        List<DataItem> frozen = new ArrayList<>();
+        try {
+            for (DataItem item : items) {
+                frozen.add(item.freeze());
+            }
+        } finally {
+            items.release();
+        }
+        return frozen;
+    }
+
+    /**
+     * Called when data items changed, hands them to the dispatch thread.
+     * The buffer is only valid during the call, so the items are frozen first.
+     *
+     * @param dataEvents the changed and deleted data items
+     */
+    @Override
+    public void onDataChanged(@NonNull DataEventBuffer dataEvents) {
+        List<DataItem> changed = new ArrayList<>();
+        List<Uri> deleted = new ArrayList<>();
+        try {
+            for (DataEvent event : dataEvents) {
+                if (event.getType() == DataEvent.TYPE_CHANGED) {
+                    changed.add(event.getDataItem().freeze());
+                } else if (event.getType() == DataEvent.TYPE_DELETED) {
+                    deleted.add(event.getDataItem().getUri());
+                }
+            }
+        } finally {
+            dataEvents.release();
+        }
+        if (changed.isEmpty() && deleted.isEmpty()) {
+            return;
+        }
+        try {
+            dispatchExecutorService.execute(() -> receiveDataItems(changed, deleted));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Data items changed after the service was destroyed, they are read on the next start");
+        }
+    }
+
+    /**
+     * Queue the user info for this node and apply the changes of the replicated state made by other nodes,
+     * all changes of the state in one call
+     */
+    private void receiveDataItems(List<DataItem> changed, List<Uri> deleted) {
+        String nodeId = localNodeId;
+        List<Map.Entry<String, byte[]>> stateChanges = new ArrayList<>();
+        for (DataItem item : changed) {
+            Uri uri = item.getUri();
+            String path = uri.getPath();
+            String host = uri.getHost();
+            byte[] data = item.getData();
+            if (path == null || host == null || data == null) {
+                continue;
+            }
+            if (userInfo.accepts(path)) {
+                userInfo.receive(host, path, data);
+            } else if (!host.equals(nodeId) && replicatedState.accepts(path)) {
+                stateChanges.add(new AbstractMap.SimpleImmutableEntry<>(path, data));
+            }
+        }
+        for (Uri uri : deleted) {
+            String path = uri.getPath();
+            String host = uri.getHost();
+            if (path != null && host != null && !host.equals(nodeId) && replicatedState.accepts(path)) {
+                stateChanges.add(new AbstractMap.SimpleImmutableEntry<>(path, null));
+            }
+        }
+        if (!stateChanges.isEmpty()) {
+            replicatedState.receive(stateChanges);
+        }
+    }
+
+    private void onUserInfoQueued(int count) {
+        OnStateReceivedListener listener = stateListener;
+        if (listener != null) {
+            listener.onUserInfoQueued(count);
+        }
+    }
+
+    /**
+     * Restore an application context that was not sent before the process was killed,
+     * it is sent once a node is reachable
+     */
+    private void restoreApplicationContext() {
+        MessageObject pending = outbox.getApplicationContext();
+        if (pending == null || pending.data == null) {
+            return;
+        }
+        try {
+            contextSync.update(PayloadSerializer.toHashMap(pending.data), pending.data, null);
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot restore the application context", e);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        try {
+            messageClient.removeListener(this);     // onMessageReceived
+            capabilityClient.removeListener(this);  // onCapabilityChanged
+            channelClient.unregisterChannelCallback(fileTransfers);
+            dataClient.removeListener(this);        // onDataChanged
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        // Hand the buffered telemetry and batches to the Wearable clients while the queue and executors still run
+        telemetry.flushAll();
+        batcher.flushAll();
+        nodeExecutorService.shutdownNow();
+        dispatchExecutorService.shutdownNow();
+        router.shutdown();
+        sendQueue.close();
+        outbox.close();
+        inbox.close();
+        userInfoOutbox.close();
+        userInfoInbox.close();
+        batchExecutorService.shutdownNow();
+        fileTransfers.shutdown();
+        timerWheel.stop();
+        replies.failAll(new IllegalStateException("MessageService was destroyed"));
+        failOutboxCallbacks(new IllegalStateException("MessageService was destroyed"));
+        reliableStream.failAll(new IllegalStateException("MessageService was destroyed"));
+    }
+
+    /**
+     * Called when the reachable nodes change, refreshes the cached nodes
+     *
+     * @param capabilityInfo the capability that changed
+     */
+    @Override
+    public void onCapabilityChanged(@NonNull CapabilityInfo capabilityInfo) {
+        if (capabilityInfo.getName().equals(appCapability)) {
+            capableNodeIds = nodeIdsOf(capabilityInfo.getNodes());
+            updateReachability();
+        }
+        nodeRegistry.invalidate();
+    }
+
+    private static Set<String> nodeIdsOf(Collection<Node> nodes) {
+        Set<String> ids = new HashSet<>();
+        for (Node node : nodes) {
+            ids.add(node.getId());
+        }
+        return Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Report the pair, install and reachability state of the connected nodes to the monitor,
+     * a node is reachable when it has the app installed and is not failing
+     */
+    void updateReachability() {
+        if (!nodeRegistry.isLoaded()) {
+            return;
+        }
+        Collection<Node> nodes = nodeRegistry.getNodes();
+        String capability = appCapability;
+        Set<String> capable = capableNodeIds;
+        boolean installed = false;
+        boolean reachable = false;
+        for (Node node : nodes) {
+            if (capability == null || capable.contains(node.getId())) {
+                installed = true;
+                if (nodeHealth.isClosed(node.getId())) {
+                    reachable = true;
+                    break;
+                }
+            }
+        }
+        reachability.update(!nodes.isEmpty(), installed, reachable);
+    }
+
+    /**
+     * Configure how the pair, install and reachability state is determined
+     *
+     * @param capability     the capability the watch app advertises, null to assume every connected watch has the app
+     * @param debounceMillis the time a changed state has to hold before it is reported
+     */
+    public void setReachability(@Nullable String capability, long debounceMillis) {
+        reachability.setDebounceMillis(debounceMillis);
+        appCapability = capability;
+        if (capability == null) {
+            capableNodeIds = Collections.emptySet();
+            updateReachability();
+            return;
+        }
+        nodeExecutorService.execute(() -> {
+            try {
+                CapabilityInfo info = Tasks.await(capabilityClient
+                    .getCapability(capability, CapabilityClient.FILTER_REACHABLE));
+                if (capability.equals(appCapability)) {
+                    capableNodeIds = nodeIdsOf(info.getNodes());
+                }
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Cannot get the nodes of capability " + capability, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            updateReachability();
+        });
+    }
+
+    /**
+     * Called when a message is received, hands the data to the handler of its path
+     *
+     * @param messageEvent the messageEvent that is received containing the data, path and source node
+     */
+    @Override
+    public void onMessageReceived(@NonNull MessageEvent messageEvent) {
+        byte[] data = messageEvent.getData();
+        metrics.recordReceive(data.length);
+        if (!router.dispatch(messageEvent.getSourceNodeId(), messageEvent.getPath(), data)) {
+            Log.w(TAG, "Dropped a message on " + messageEvent.getPath() + ", no handler has been added for it");
+        }
+    }
+
+    /**
+     * Hands the data received on MESSAGE_PATH to the dispatch thread, runs on the Wearable callback thread
+     */
+    private void receiveMessage(@NonNull String sourceNodeId, @NonNull String path, @NonNull byte[] data) {
+        ReceivedTask task;
+        synchronized (poolLock) {
+            task = receivedPool;
+            if (task != null) {
+                receivedPool = task.next;
+                task.next = null;
+                pooledReceived--;
+            }
+        }
+        if (task == null) {
+            task = new ReceivedTask();
+        }
+        task.sourceNodeId = sourceNodeId;
+        task.data = data;
+        try {
+            dispatchExecutorService.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Dropped a message received after the service was destroyed");
+        }
+    }
+
+    /**
+     * Hands received data to handleMessage on the dispatch thread, recycled once it ran
+     */
+    private final class ReceivedTask implements Runnable {
+        String sourceNodeId;
+        byte[] data;
+        @Nullable
+        ReceivedTask next;
+
+        @Override
+        public void run() {
+            String nodeId = sourceNodeId;
+            byte[] received = data;
+            sourceNodeId = null;
+            data = null;
+            synchronized (poolLock) {
+                if (pooledReceived < MAX_POOLED_CALLBACKS) {
+                    next = receivedPool;
+                    receivedPool = this;
+                    pooledReceived++;
+                }
+            }
+            handleMessage(nodeId, received);
+        }
+    }
+
+    /**
+     * Decodes the MessageObjects in received data, resolves replies
+     * and calls all listeners with the data of every data message.
+     * Data that is not a MessageObject is passed to the listeners as is, as older peers send raw data.
+     * Messages of a reliable stream are passed on in sequence order and at most once.
+     * Runs on the dispatch thread, or on the calling thread when the receive path is driven without a MessageEvent.
+     *
+     * @param sourceNodeId the node the data was received from
+     * @param data         the received data
+     */
+    void handleMessage(@NonNull String sourceNodeId, @NonNull byte[] data) {
+        if (listeners.isEmpty() && dataListeners.isEmpty()) {
+            Log.w(TAG, "No listener has been set");
+        }
+        List<MessageView> views;
+        try {
+            views = MessageCodec.view(data);
+        } catch (MessageCodec.MalformedMessageException e) {
+            dispatch(sourceNodeId, new MessageObject(MessageObject.Sender.Platform.wearos,
+                MessageObject.Sender.Direction.wearable, sourceNodeId, MessageObject.MessageType.data, data, new Timestamp(System.currentTimeMillis())));
+            return;
+        }
+        MessageFilter filter = messageFilter;
+        for (MessageView view : views) {
+            // Messages of a reliable stream are always decoded, the stream has to acknowledge them
+            if (filter != null && view.getType() == MessageObject.MessageType.data && view.getSeq() == 0
+                && !filter.accept(sourceNodeId, view)) {
+                filtered.incrementAndGet();
+                continue;
+            }
+            MessageObject message;
+            try {
+                message = view.toMessageObject();
+            } catch (MessageCodec.MalformedMessageException e) {
+                Log.w(TAG, "Dropped a malformed message from " + sourceNodeId, e);
+                continue;
+            }
+            if (message.acceptsBinary) {
+                peerFormats.put(sourceNodeId, MessageCodec.WireFormat.binary);
+            }
+            if (message.seq == 0) {
+                route(sourceNodeId, message);
+            } else if (message.type == MessageObject.MessageType.acknowledgement) {
+                reliableStream.onAcknowledged(sourceNodeId, message.seq, message.data);
+            } else {
+                // Held back until the messages before it arrived, duplicates are dropped
+                for (MessageObject ready : reliableStream.receive(sourceNodeId, message)) {
+                    route(sourceNodeId, ready);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves a reply or passes a decoded message to the listeners and state handlers for its type
+     */
+    private void route(@NonNull String sourceNodeId, @NonNull MessageObject message) {
+        if (message.replyTo != 0
+            && (message.type == MessageObject.MessageType.reply
+            || message.type == MessageObject.MessageType.acknowledgement)) {
+            if (!replies.resolve(message)) {
+                Log.w(TAG, "Received a reply to unknown message " + message.replyTo);
+            }
+            return;
+        }
+        if (message.type == MessageObject.MessageType.data && message.data != null) {
+            dispatch(sourceNodeId, message);
+        } else if (message.type == MessageObject.MessageType.userInfo) {
+            // Sent as a message by peers that do not transfer user info as data items
+            userInfoInbox.addAll(Collections.singletonList(message));
+            onUserInfoQueued(1);
+        } else if (message.type == MessageObject.MessageType.applicationContext) {
+            receiveState(contextSync.receiveSnapshot(sourceNodeId, message));
+        } else if (message.type == MessageObject.MessageType.applicationContextDelta) {
+            MessageObject merged = contextSync.receiveDelta(sourceNodeId, message);
+            if (merged != null) {
+                receiveState(merged);
+            }
+        } else if (message.type == MessageObject.MessageType.applicationContextAck) {
+            contextSync.onAcknowledged(sourceNodeId, message.replyTo);
+        }
+    }
+
+    /**
+     * Stores a received application context before the listener is called
+     */
+    private void receiveState(MessageObject message) {
+        inbox.add(message);
+        OnStateReceivedListener listener = stateListener;
+        if (listener != null) {
+            listener.onApplicationContextReceived(message);
+        }
+    }
+
+    /**
+     * Calls the listeners with the data of a message,
+     * the data is decoded to a string at most once and only when a string listener is set
+     */
+    private void dispatch(String sourceNodeId, MessageObject message) {
+        if (!dataListeners.isEmpty()) {
+            ByteBuffer buffer = ByteBuffer.wrap(message.data).asReadOnlyBuffer();
+            for (OnMessageDataReceivedListener listener : dataListeners) {
+                try {
+                    listener.onMessageDataReceived(sourceNodeId, message, buffer.duplicate());
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Message listener failed", e);
+                }
+            }
+        }
+        if (!listeners.isEmpty()) {
+            String data = new String(message.data, StandardCharsets.UTF_8);
             for (OnMessageReceivedListener listener : listeners) {
-                listener.onMessageReceived(new String(messageEvent.getData(), StandardCharsets.UTF_8));
+                try {
+                    listener.onMessageReceived(data);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Message listener failed", e);
+                }
             }
         }
     }
@@ -0,0 +1,158 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A durable queue of MessageObjects on a SegmentLog, it survives the process being killed.
+ * Only the newest application context is kept, adding one removes the previous.
+ * <p>
+ * When the log cannot be opened the store keeps its messages in memory only,
+ * so messaging keeps working without the guarantee.
+ */
+final class MessageStore {
+
+    private static final String TAG = "MessageStore";
+
+    @Nullable
+    private final SegmentLog log;
+    private final TreeMap<Long, MessageObject> messages = new TreeMap<>();
+    private long applicationContextSeq = 0;
+    private long nextMemorySeq = 1;
+
+    private MessageStore(@Nullable SegmentLog log) {
+        this.log = log;
+        if (log == null) {
+            return;
+        }
+        for (Map.Entry<Long, byte[]> record : log.getRecords().entrySet()) {
+            try {
+                List<MessageObject> decoded = MessageCodec.decode(record.getValue());
+                if (decoded.size() == 1) {
+                    put(record.getKey(), decoded.get(0));
+                    continue;
+                }
+            } catch (MessageCodec.MalformedMessageException e) {
+                Log.w(TAG, "Dropping unreadable message " + record.getKey(), e);
+            }
+            delete(record.getKey());
+        }
+    }
+
+    /**
+     * Open the store in a directory
+     *
+     * @param directory the directory of the log
+     * @param scheduler runs the batched syncs of the log
+     * @return the store, in memory only when the log could not be opened
+     */
+    @NonNull
+    static MessageStore open(@NonNull File directory, @NonNull ScheduledExecutorService scheduler) {
+        try {
+            return new MessageStore(new SegmentLog(directory, scheduler));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + directory + ", messages are kept in memory only", e);
+            return new MessageStore(null);
+        }
+    }
+
+    /**
+     * Add a message to the end of the queue
+     *
+     * @param message the message to add
+     * @return the sequence number of the message
+     */
+    synchronized long add(@NonNull MessageObject message) {
+        long seq = 0;
+        if (log != null) {
+            try {
+                seq = log.append(MessageCodec.encode(Collections.singletonList(message)));
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot persist message, it is kept in memory only", e);
+            }
+        }
+        if (seq == 0) {
+            // Memory only sequence numbers are negative, so they never collide with those of the log
+            seq = Long.MIN_VALUE + nextMemorySeq++;
+        }
+        put(seq, message);
+        return seq;
+    }
+
+    /**
+     * Remove a message from the queue
+     *
+     * @param seq the sequence number of the message
+     * @return false if the message is not in the queue
+     */
+    synchronized boolean remove(long seq) {
+        if (messages.remove(seq) == null) {
+            return false;
+        }
+        if (seq == applicationContextSeq) {
+            applicationContextSeq = 0;
+        }
+        delete(seq);
+        return true;
+    }
+
+    /**
+     * @return the queued messages by sequence number, in the order they were added
+     */
+    @NonNull
+    synchronized Map<Long, MessageObject> getMessages() {
+        return new TreeMap<>(messages);
+    }
+
+    /**
+     * @return the newest application context, null if there is none
+     */
+    @Nullable
+    synchronized MessageObject getApplicationContext() {
+        return applicationContextSeq == 0 ? null : messages.get(applicationContextSeq);
+    }
+
+    synchronized int size() {
+        return messages.size();
+    }
+
+    /**
+     * Sync and close the log
+     */
+    synchronized void close() {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private void put(long seq, MessageObject message) {
+        if (message.type == MessageObject.MessageType.applicationContext) {
+            if (applicationContextSeq != 0 && messages.remove(applicationContextSeq) != null) {
+                delete(applicationContextSeq);
+            }
+            applicationContextSeq = seq;
+        }
+        messages.put(seq, message);
+    }
+
+    private void delete(long seq) {
+        if (log == null || seq < 0) {
+            return;
+        }
+        try {
+            log.delete(seq);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot remove message " + seq + " from the log", e);
+        }
+    }
+}
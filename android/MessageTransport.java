@@ -0,0 +1,18 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Sends encoded messages to a node. The MessageService uses the Wearable MessageClient,
+ * a fake transport lets the send path run on a plain JVM, for example in benchmarks.
+ */
+interface MessageTransport {
+    /**
+     * @param nodeId   the node to send to
+     * @param path     the path of the message
+     * @param data     the encoded message
+     * @param callback called with the outcome, on any thread
+     */
+    void send(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data,
+              @NonNull MessageService.SendCallback callback);
+}
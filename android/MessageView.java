@@ -0,0 +1,277 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.zip.DataFormatException;
+
+/**
+ * A received message whose fields are decoded on access. The header, the type, sender and ids,
+ * is available right away, the data is only copied or inflated and the timestamp only parsed
+ * when they are asked for, so messages can be routed or dropped without decoding them completely.
+ * <p>
+ * A view over a binary frame reads the received bytes, which must not change while the view is used.
+ * A view over a JSON message holds the parsed JSONObject.
+ */
+abstract class MessageView {
+
+    private MessageView() {
+    }
+
+    @NonNull
+    abstract MessageObject.MessageType getType();
+
+    @NonNull
+    abstract MessageObject.Sender.Platform getPlatform();
+
+    @NonNull
+    abstract MessageObject.Sender.Direction getDirection();
+
+    @NonNull
+    abstract String getDeviceId();
+
+    /**
+     * @return the id of a message that expects a reply, 0 otherwise
+     */
+    abstract long getId();
+
+    /**
+     * @return the id of the message a reply or acknowledgement belongs to, 0 otherwise
+     */
+    abstract long getReplyTo();
+
+    /**
+     * @return the sequence number in a reliable stream, 0 for messages outside a stream
+     */
+    abstract long getSeq();
+
+    abstract boolean hasData();
+
+    /**
+     * Parse the timestamp
+     *
+     * @return the time the message was sent in epoch milliseconds
+     * @throws MessageCodec.MalformedMessageException when the timestamp is invalid
+     */
+    abstract long getTimestamp() throws MessageCodec.MalformedMessageException;
+
+    /**
+     * Decode the complete message, the data is copied or inflated
+     *
+     * @return the message
+     * @throws MessageCodec.MalformedMessageException when the data or timestamp is invalid
+     */
+    @NonNull
+    abstract MessageObject toMessageObject() throws MessageCodec.MalformedMessageException;
+
+    /**
+     * A message in a binary frame, the offsets are absolute positions in the buffer
+     */
+    static final class Binary extends MessageView {
+        private final ByteBuffer buffer;
+        private final int flags;
+        private final MessageObject.Sender.Platform platform;
+        private final MessageObject.Sender.Direction direction;
+        private final MessageObject.MessageType type;
+        private final String deviceId;
+        private final int timestampOffset;
+        private final int dataOffset;
+        private final int dataLength;
+        final long id;
+        final long replyTo;
+        final long seq;
+
+        Binary(ByteBuffer buffer, int flags, MessageObject.Sender.Platform platform,
+               MessageObject.Sender.Direction direction, MessageObject.MessageType type, String deviceId,
+               int timestampOffset, int dataOffset, int dataLength, long id, long replyTo, long seq) {
+            this.buffer = buffer;
+            this.flags = flags;
+            this.platform = platform;
+            this.direction = direction;
+            this.type = type;
+            this.deviceId = deviceId;
+            this.timestampOffset = timestampOffset;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.id = id;
+            this.replyTo = replyTo;
+            this.seq = seq;
+        }
+
+        @NonNull
+        @Override
+        MessageObject.MessageType getType() {
+            return type;
+        }
+
+        @NonNull
+        @Override
+        MessageObject.Sender.Platform getPlatform() {
+            return platform;
+        }
+
+        @NonNull
+        @Override
+        MessageObject.Sender.Direction getDirection() {
+            return direction;
+        }
+
+        @NonNull
+        @Override
+        String getDeviceId() {
+            return deviceId;
+        }
+
+        @Override
+        long getId() {
+            return id;
+        }
+
+        @Override
+        long getReplyTo() {
+            return replyTo;
+        }
+
+        @Override
+        long getSeq() {
+            return seq;
+        }
+
+        @Override
+        boolean hasData() {
+            return (flags & MessageCodec.FLAG_DATA) != 0;
+        }
+
+        @Override
+        long getTimestamp() {
+            return buffer.getLong(timestampOffset);
+        }
+
+        @NonNull
+        @Override
+        MessageObject toMessageObject() throws MessageCodec.MalformedMessageException {
+            byte[] data = null;
+            if (hasData()) {
+                ByteBuffer in = buffer.duplicate();
+                in.position(dataOffset);
+                if ((flags & MessageCodec.FLAG_COMPRESSED) != 0) {
+                    int inflatedLength = MessageCodec.getVarInt(in);
+                    if (inflatedLength < 0 || inflatedLength > PayloadCompressor.MAX_INFLATED_BYTES) {
+                        throw new MessageCodec.MalformedMessageException("Invalid inflated length " + inflatedLength);
+                    }
+                    byte[] deflated = new byte[dataLength - (in.position() - dataOffset)];
+                    in.get(deflated);
+                    try {
+                        data = PayloadCompressor.inflate(deflated, inflatedLength);
+                    } catch (DataFormatException e) {
+                        throw new MessageCodec.MalformedMessageException("Corrupt compressed data", e);
+                    }
+                } else {
+                    data = new byte[dataLength];
+                    in.get(data);
+                }
+            }
+            MessageObject message = new MessageObject(platform, direction, deviceId, type, data,
+                new Timestamp(getTimestamp()));
+            message.id = id;
+            message.replyTo = replyTo;
+            message.seq = seq;
+            message.acceptsBinary = true;
+            return message;
+        }
+    }
+
+    /**
+     * A JSON message, the header is read from the parsed object, the data and timestamp are converted on access
+     */
+    static final class Json extends MessageView {
+        private final JSONObject json;
+        private final MessageObject.Sender.Platform platform;
+        private final MessageObject.Sender.Direction direction;
+        private final MessageObject.MessageType type;
+        private final String deviceId;
+
+        /**
+         * @throws JSONException when the header is missing or invalid
+         */
+        Json(@NonNull JSONObject json) throws JSONException {
+            this.json = json;
+            JSONObject sender = json.getJSONObject("sender");
+            try {
+                platform = MessageObject.Sender.Platform.valueOf(sender.getString("platform"));
+                direction = MessageObject.Sender.Direction.valueOf(sender.getString("direction"));
+                type = MessageObject.MessageType.valueOf(json.getString("type"));
+            } catch (IllegalArgumentException e) {
+                throw new JSONException("Invalid header: " + e.getMessage());
+            }
+            deviceId = sender.getString("deviceId");
+        }
+
+        @NonNull
+        @Override
+        MessageObject.MessageType getType() {
+            return type;
+        }
+
+        @NonNull
+        @Override
+        MessageObject.Sender.Platform getPlatform() {
+            return platform;
+        }
+
+        @NonNull
+        @Override
+        MessageObject.Sender.Direction getDirection() {
+            return direction;
+        }
+
+        @NonNull
+        @Override
+        String getDeviceId() {
+            return deviceId;
+        }
+
+        @Override
+        long getId() {
+            return json.optLong("id", 0);
+        }
+
+        @Override
+        long getReplyTo() {
+            return json.optLong("replyTo", 0);
+        }
+
+        @Override
+        long getSeq() {
+            return json.optLong("seq", 0);
+        }
+
+        @Override
+        boolean hasData() {
+            return !json.isNull("data");
+        }
+
+        @Override
+        long getTimestamp() throws MessageCodec.MalformedMessageException {
+            try {
+                return Timestamp.valueOf(json.getString("timestamp")).getTime();
+            } catch (JSONException | IllegalArgumentException e) {
+                throw new MessageCodec.MalformedMessageException("Invalid timestamp", e);
+            }
+        }
+
+        @NonNull
+        @Override
+        MessageObject toMessageObject() throws MessageCodec.MalformedMessageException {
+            try {
+                return new MessageObject(json);
+            } catch (JSONException | IllegalArgumentException e) {
+                throw new MessageCodec.MalformedMessageException("Invalid JSON message", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the messaging pipeline.
+ * Everything is recorded with atomic increments, so the metrics can stay enabled in production.
+ * The statistics of other components, such as the send queue, are registered as sources
+ * and included in the snapshot under their name.
+ */
+final class Metrics {
+
+    /**
+     * A component that reports its own statistics
+     */
+    interface Source {
+        @NonNull
+        Map<String, Object> getStats();
+    }
+
+    private static final class NodeStats {
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+    }
+
+    private final Map<String, Source> sources = new LinkedHashMap<>();
+    private final ConcurrentHashMap<String, NodeStats> nodes = new ConcurrentHashMap<>();
+
+    final AtomicLong messagesSent = new AtomicLong();
+    final AtomicLong messagesFailed = new AtomicLong();
+    final AtomicLong messagesReceived = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+    /**
+     * Milliseconds between handing a message to the MessageClient and its success
+     */
+    final Histogram sendLatencies = new Histogram();
+    /**
+     * Sizes of the sent and received messages in bytes, after encoding
+     */
+    final Histogram sentSizes = new Histogram();
+    final Histogram receivedSizes = new Histogram();
+
+    /**
+     * System.nanoTime() when the service started to be created, and the milliseconds since then
+     * until it was created, until the first message was sent and until the first message was received
+     */
+    private volatile long createdAt = 0;
+    private volatile long createMillis = -1;
+    private final AtomicLong firstSendMillis = new AtomicLong(-1);
+    private final AtomicLong firstReceiveMillis = new AtomicLong(-1);
+
+    /**
+     * @param name   the key of the statistics in the snapshot
+     * @param source the component to include
+     */
+    synchronized void register(@NonNull String name, @NonNull Source source) {
+        sources.put(name, source);
+    }
+
+    /**
+     * Record the time it took to create the service, the first send and receive are timed from its start
+     *
+     * @param startedAt System.nanoTime() when onCreate started
+     */
+    void recordCreated(long startedAt) {
+        createdAt = startedAt;
+        createMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+
+    /**
+     * Record the outcome of sending a message to a node
+     *
+     * @param nodeId    the node the message was sent to
+     * @param bytes     the size of the encoded message
+     * @param startedAt System.nanoTime() when the message was handed to the MessageClient
+     * @param success   whether the node received the message
+     */
+    void recordSend(@NonNull String nodeId, int bytes, long startedAt, boolean success) {
+        NodeStats node = nodes.get(nodeId);
+        if (node == null) {
+            node = nodes.computeIfAbsent(nodeId, id -> new NodeStats());
+        }
+        sentSizes.record(bytes);
+        if (success) {
+            messagesSent.incrementAndGet();
+            bytesSent.addAndGet(bytes);
+            node.sent.incrementAndGet();
+            sendLatencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            recordFirst(firstSendMillis);
+        } else {
+            messagesFailed.incrementAndGet();
+            node.failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record received data
+     *
+     * @param bytes the size of the received data
+     */
+    void recordReceive(int bytes) {
+        messagesReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+        receivedSizes.record(bytes);
+        recordFirst(firstReceiveMillis);
+    }
+
+    private void recordFirst(AtomicLong first) {
+        long start = createdAt;
+        if (first.get() < 0 && start != 0) {
+            first.compareAndSet(-1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Get all statistics, including those of the registered sources
+     *
+     * @return the statistics by name, can be passed to JavaScript
+     */
+    @NonNull
+    synchronized Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("messagesSent", (double) messagesSent.get());
+        stats.put("messagesFailed", (double) messagesFailed.get());
+        stats.put("messagesReceived", (double) messagesReceived.get());
+        stats.put("bytesSent", (double) bytesSent.get());
+        stats.put("bytesReceived", (double) bytesReceived.get());
+        stats.put("sendLatencyMs", sendLatencies.snapshot());
+        stats.put("sentBytes", sentSizes.snapshot());
+        stats.put("receivedBytes", receivedSizes.snapshot());
+
+        Map<String, Object> nodeStats = new LinkedHashMap<>();
+        for (Map.Entry<String, NodeStats> entry : nodes.entrySet()) {
+            long sent = entry.getValue().sent.get();
+            long failed = entry.getValue().failed.get();
+            Map<String, Object> node = new LinkedHashMap<>();
+            node.put("sent", (double) sent);
+            node.put("failed", (double) failed);
+            node.put("failureRate", sent + failed == 0 ? 0.0 : (double) failed / (sent + failed));
+            nodeStats.put(entry.getKey(), node);
+        }
+        stats.put("nodes", nodeStats);
+
+        Map<String, Object> lifecycle = new LinkedHashMap<>();
+        lifecycle.put("createMs", createMillis < 0 ? null : (double) createMillis);
+        lifecycle.put("firstSendMs", firstSendMillis.get() < 0 ? null : (double) firstSendMillis.get());
+        lifecycle.put("firstReceiveMs", firstReceiveMillis.get() < 0 ? null : (double) firstReceiveMillis.get());
+        stats.put("lifecycle", lifecycle);
+
+        for (Map.Entry<String, Source> source : sources.entrySet()) {
+            stats.put(source.getKey(), source.getValue().getStats());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,309 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.wearable.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks how well every node receives messages and stops sending to nodes that keep failing.
+ * A node that fails failureThreshold sends in a row is opened, it is skipped by broadcasts
+ * until its backoff has passed. Then a single message is let through as a probe, if it succeeds the node
+ * is closed again, if it fails the node is opened for twice as long, up to the maximum backoff.
+ * <p>
+ * The latency of a node is an exponentially weighted moving average of its successful sends.
+ */
+final class NodeHealth {
+
+    static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    static final long DEFAULT_BASE_BACKOFF_MILLIS = 1_000;
+    static final long DEFAULT_MAX_BACKOFF_MILLIS = 60_000;
+    /**
+     * Weight of a new latency sample in the moving average
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    /**
+     * The circuit of a node, messages only flow when it is closed
+     */
+    enum State {
+        closed,
+        open,
+        halfOpen
+    }
+
+    private static final class Health {
+        long successes;
+        long failures;
+        int consecutiveFailures;
+        /**
+         * -1 until the first successful send
+         */
+        double latencyMillis = -1;
+        State state = State.closed;
+        long backoffMillis;
+        /**
+         * System.nanoTime() at which an open node may be probed
+         */
+        long probeAt;
+    }
+
+    /**
+     * Called when a node was opened or closed, on the thread that reported the send
+     */
+    interface OnStateChangedListener {
+        void onStateChanged(@NonNull String nodeId, @NonNull State state);
+    }
+
+    private final ConcurrentHashMap<String, Health> nodes = new ConcurrentHashMap<>();
+    @Nullable
+    private volatile OnStateChangedListener listener;
+
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long baseBackoffMillis = DEFAULT_BASE_BACKOFF_MILLIS;
+    private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    /**
+     * @param failureThreshold  the number of failures in a row after which a node is opened
+     * @param baseBackoffMillis the time a node stays open after it was opened the first time
+     * @param maxBackoffMillis  the maximum time a node stays open
+     */
+    void configure(int failureThreshold, long baseBackoffMillis, long maxBackoffMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.baseBackoffMillis = Math.max(0, baseBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.baseBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * @param listener called when a node was opened or closed, null to remove it
+     */
+    void setListener(@Nullable OnStateChangedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Whether messages flow to a node, nodes that were never sent to are closed
+     *
+     * @param nodeId the node
+     * @return true if the circuit of the node is closed
+     */
+    boolean isClosed(@NonNull String nodeId) {
+        Health health = nodes.get(nodeId);
+        if (health == null) {
+            return true;
+        }
+        synchronized (health) {
+            return health.state == State.closed;
+        }
+    }
+
+    private Health get(String nodeId) {
+        Health health = nodes.get(nodeId);
+        if (health == null) {
+            health = nodes.computeIfAbsent(nodeId, id -> new Health());
+        }
+        return health;
+    }
+
+    /**
+     * Select the nodes a broadcast is sent to. Open nodes are left out unless their backoff has passed,
+     * in which case the message is their probe. The healthiest nodes come first,
+     * so their sends start first when the fan-out is capped.
+     *
+     * @param candidates    the connected nodes
+     * @param preferNearby  whether nodes that are connected directly come first, for latency sensitive messages
+     * @return the nodes to send to, empty when all nodes are open
+     */
+    @NonNull
+    List<Node> select(@NonNull Collection<Node> candidates, boolean preferNearby) {
+        List<Node> selected = new ArrayList<>(candidates.size());
+        long now = System.nanoTime();
+        for (Node node : candidates) {
+            if (admit(get(node.getId()), now)) {
+                selected.add(node);
+            }
+        }
+        sort(selected, preferNearby);
+        return selected;
+    }
+
+    /**
+     * Pick the single best node, nearby nodes are preferred over healthier nodes
+     *
+     * @param candidates the connected nodes
+     * @return the node, null when all nodes are open
+     */
+    @Nullable
+    Node best(@NonNull Collection<Node> candidates) {
+        List<Node> admissible = new ArrayList<>(candidates.size());
+        long now = System.nanoTime();
+        for (Node node : candidates) {
+            Health health = get(node.getId());
+            synchronized (health) {
+                if (health.state == State.closed || now - health.probeAt >= 0) {
+                    admissible.add(node);
+                }
+            }
+        }
+        sort(admissible, true);
+        for (Node node : admissible) {
+            // Another thread may have taken the probe in the meantime
+            if (admit(get(node.getId()), now)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the time until select returns a node again
+     *
+     * @param candidates the connected nodes
+     * @return the milliseconds until the first open node may be probed, 0 when a node is closed or may be probed now
+     */
+    long millisUntilProbe(@NonNull Collection<Node> candidates) {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (Node node : candidates) {
+            Health health = get(node.getId());
+            synchronized (health) {
+                wait = Math.min(wait, health.state == State.closed ? 0 : Math.max(0, health.probeAt - now));
+            }
+        }
+        return wait == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMillis(wait);
+    }
+
+    /**
+     * Whether a message may be sent to a node, a node that is not closed gets one probe per backoff
+     */
+    private boolean admit(Health health, long now) {
+        synchronized (health) {
+            if (health.state == State.closed) {
+                return true;
+            }
+            if (now - health.probeAt < 0) {
+                return false;
+            }
+            // A probe that never reports does not keep the node open forever, it is retried after the backoff
+            health.state = State.halfOpen;
+            health.probeAt = now + TimeUnit.MILLISECONDS.toNanos(health.backoffMillis);
+            return true;
+        }
+    }
+
+    private void sort(List<Node> selected, boolean preferNearby) {
+        if (selected.size() > 1) {
+            selected.sort((a, b) -> {
+                if (preferNearby && a.isNearby() != b.isNearby()) {
+                    return a.isNearby() ? -1 : 1;
+                }
+                return Double.compare(latencyOf(a.getId()), latencyOf(b.getId()));
+            });
+        }
+    }
+
+    private double latencyOf(String nodeId) {
+        Health health = nodes.get(nodeId);
+        // Nodes without samples go last, after the measured ones
+        return health == null || health.latencyMillis < 0 ? Double.MAX_VALUE : health.latencyMillis;
+    }
+
+    /**
+     * Record a successful send, closes the node
+     *
+     * @param nodeId        the node the message was sent to
+     * @param latencyMillis the time the send took
+     */
+    void recordSuccess(@NonNull String nodeId, long latencyMillis) {
+        Health health = get(nodeId);
+        boolean closed;
+        synchronized (health) {
+            health.successes++;
+            health.consecutiveFailures = 0;
+            health.latencyMillis = health.latencyMillis < 0
+                ? latencyMillis
+                : health.latencyMillis + LATENCY_WEIGHT * (latencyMillis - health.latencyMillis);
+            closed = health.state != State.closed;
+            health.state = State.closed;
+            health.backoffMillis = 0;
+        }
+        if (closed) {
+            notifyListener(nodeId, State.closed);
+        }
+    }
+
+    /**
+     * Record a failed send, opens the node when it failed too often in a row or its probe failed
+     *
+     * @param nodeId the node the message was sent to
+     */
+    void recordFailure(@NonNull String nodeId) {
+        Health health = get(nodeId);
+        boolean opened = false;
+        synchronized (health) {
+            health.failures++;
+            health.consecutiveFailures++;
+            if (health.state == State.halfOpen || health.consecutiveFailures >= failureThreshold) {
+                opened = health.state == State.closed;
+                health.backoffMillis = health.backoffMillis == 0
+                    ? baseBackoffMillis
+                    : Math.min(health.backoffMillis * 2, maxBackoffMillis);
+                health.probeAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(health.backoffMillis);
+                health.state = State.open;
+            }
+        }
+        if (opened) {
+            notifyListener(nodeId, State.open);
+        }
+    }
+
+    private void notifyListener(String nodeId, State state) {
+        OnStateChangedListener stateListener = listener;
+        if (stateListener != null) {
+            stateListener.onStateChanged(nodeId, state);
+        }
+    }
+
+    /**
+     * Get the health of a node
+     *
+     * @param nodeId the node
+     * @return the state, success rate, latency, failures in a row and the time until the next probe
+     */
+    @NonNull
+    Map<String, Object> getStats(@NonNull String nodeId) {
+        Health health = get(nodeId);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (health) {
+            long total = health.successes + health.failures;
+            stats.put("state", health.state.name());
+            stats.put("successRate", total == 0 ? 1.0 : (double) health.successes / total);
+            stats.put("latencyMs", health.latencyMillis < 0 ? null : health.latencyMillis);
+            stats.put("consecutiveFailures", (double) health.consecutiveFailures);
+            stats.put("retryInMs", health.state != State.closed
+                ? (double) Math.max(0, TimeUnit.NANOSECONDS.toMillis(health.probeAt - System.nanoTime()))
+                : 0.0);
+        }
+        return stats;
+    }
+
+    /**
+     * @return the health of every node that was sent to, by node id
+     */
+    @NonNull
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (String nodeId : nodes.keySet()) {
+            stats.put(nodeId, getStats(nodeId));
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,199 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.gms.wearable.Node;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the set of connected nodes in memory, so senders do not have to
+ * query the NodeClient for every message.
+ * The set is refreshed in the background when it is older than the TTL,
+ * or when a capability/connection change is reported.
+ */
+final class NodeRegistry {
+
+    /**
+     * Source of the connected nodes, the MessageService uses the Wearable NodeClient,
+     * a fake source can be used to drive the registry without Play Services
+     */
+    public interface NodeSource {
+        @NonNull
+        Collection<Node> getConnectedNodes() throws ExecutionException, InterruptedException;
+    }
+
+    /**
+     * Called on the refreshing thread when the set of connected nodes changed, and when it was first loaded
+     */
+    public interface OnNodesChangedListener {
+        void onNodesChanged(@NonNull Set<Node> nodes);
+    }
+
+    /**
+     * The default time after which the cached nodes are considered stale
+     */
+    static final long DEFAULT_TTL_MILLIS = 30_000;
+
+    private static final String TAG = "NodeRegistry";
+
+    private final NodeSource source;
+    private final Executor executor;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    /**
+     * Incremented by every invalidation, a refresh that started before it does not make the nodes fresh
+     */
+    private final AtomicLong generation = new AtomicLong();
+    private final Object loadLock = new Object();
+
+    private volatile Set<Node> nodes = Collections.emptySet();
+    private volatile long ttlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL_MILLIS);
+    private volatile boolean loaded = false;
+    /**
+     * Time of the last refresh in System.nanoTime(), 0 when never loaded or invalidated
+     */
+    private volatile long refreshedAt = 0;
+    @Nullable
+    private volatile OnNodesChangedListener listener;
+
+    /**
+     * @param source   to query the connected nodes from
+     * @param executor the executor refreshes run on, may be blocked by the source
+     */
+    NodeRegistry(@NonNull NodeSource source, @NonNull Executor executor) {
+        this.source = source;
+        this.executor = executor;
+    }
+
+    /**
+     * Set the time after which the cached nodes are refreshed
+     *
+     * @param ttlMillis the time to live in milliseconds
+     */
+    void setTtl(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Get the cached connected nodes without blocking,
+     * when the cache is stale a refresh is started in the background
+     *
+     * @return an unmodifiable snapshot of the connected nodes
+     */
+    @NonNull
+    Set<Node> getNodes() {
+        if (isStale()) {
+            refreshAsync();
+        }
+        return nodes;
+    }
+
+    /**
+     * Get the connected nodes, only blocks if the nodes have never been loaded.
+     * Should not be called from the main thread.
+     *
+     * @return an unmodifiable snapshot of the connected nodes
+     */
+    @NonNull
+    Set<Node> awaitNodes() {
+        if (!loaded) {
+            synchronized (loadLock) {
+                if (!loaded) {
+                    refresh(generation.get());
+                }
+            }
+        }
+        return getNodes();
+    }
+
+    /**
+     * @param listener called when the connected nodes changed, null to remove the listener
+     */
+    void setListener(@Nullable OnNodesChangedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Whether the nodes have been loaded at least once
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Mark the cached nodes as stale and refresh them in the background,
+     * called when a capability or connection change is reported
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+        refreshedAt = 0;
+        refreshAsync();
+    }
+
+    /**
+     * Start a refresh in the background, unless one is already running.
+     * A running refresh queries the nodes again when they were invalidated while it ran.
+     */
+    void refreshAsync() {
+        if (refreshing.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                long refreshed;
+                try {
+                    do {
+                        refreshed = generation.get();
+                        refresh(refreshed);
+                    } while (refreshed != generation.get());
+                } finally {
+                    refreshing.set(false);
+                }
+                // Invalidated after the last check, while the refresh could not be started again
+                if (refreshed != generation.get()) {
+                    refreshAsync();
+                }
+            });
+        }
+    }
+
+    private boolean isStale() {
+        long at = refreshedAt;
+        return at == 0 || System.nanoTime() - at > ttlNanos;
+    }
+
+    /**
+     * @param expectedGeneration the generation when the refresh started,
+     *                           the nodes are only fresh if it was not invalidated since
+     */
+    private void refresh(long expectedGeneration) {
+        try {
+            Collection<Node> connected = source.getConnectedNodes();
+            Set<Node> previous = nodes;
+            Set<Node> current = Collections.unmodifiableSet(new HashSet<>(connected));
+            boolean first = !loaded;
+            nodes = current;
+            if (generation.get() == expectedGeneration) {
+                refreshedAt = System.nanoTime();
+            }
+            loaded = true;
+            OnNodesChangedListener changedListener = listener;
+            if (changedListener != null && (first || !current.equals(previous))) {
+                changedListener.onNodesChanged(current);
+            }
+        } catch (ExecutionException exception) {
+            Log.e(TAG, "Task failed: " + exception);
+        } catch (InterruptedException exception) {
+            Log.e(TAG, "Interrupt occurred: " + exception);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes received messages to the handlers registered for their path.
+ * A pattern is either an exact path, or a prefix ending in "/*" that matches every path below it.
+ * <p>
+ * The routes are compiled into an immutable table whenever they change, exact paths in a hash map
+ * and prefixes in a trie of path segments. Routing a message is one hash lookup and, only when
+ * that misses, one walk down the trie, without locking. An exact route wins over the prefixes,
+ * a longer prefix over a shorter one.
+ * <p>
+ * Every route handles its messages on its own lane, a single thread with a bounded queue and its own
+ * thread priority, so a busy path does not delay the messages of other paths. When a lane is full
+ * the message is handled on the receiving thread instead, which slows the receiver down rather than
+ * dropping messages. Inline routes call the handler on the receiving thread.
+ */
+final class PathRouter {
+
+    static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private static final String TAG = "PathRouter";
+    private static final String WILDCARD = "/*";
+
+    /**
+     * Handles the messages received on a path
+     */
+    interface Handler {
+        void onMessage(@NonNull String sourceNodeId, @NonNull String path, @NonNull byte[] data);
+    }
+
+    /**
+     * A registered pattern, its handler and lane
+     */
+    static final class Route {
+        final String pattern;
+        final Handler handler;
+        @Nullable
+        private final ThreadPoolExecutor lane;
+        final AtomicLong handled = new AtomicLong();
+        final AtomicLong overflowed = new AtomicLong();
+
+        Route(@NonNull String pattern, @NonNull Handler handler, @Nullable ThreadPoolExecutor lane) {
+            this.pattern = pattern;
+            this.handler = handler;
+            this.lane = lane;
+        }
+
+        void dispatch(@NonNull String sourceNodeId, @NonNull String path, @NonNull byte[] data) {
+            handled.incrementAndGet();
+            if (lane != null) {
+                try {
+                    lane.execute(() -> handle(sourceNodeId, path, data));
+                    return;
+                } catch (RejectedExecutionException e) {
+                    if (lane.isShutdown()) {
+                        return;
+                    }
+                    overflowed.incrementAndGet();
+                }
+            }
+            handle(sourceNodeId, path, data);
+        }
+
+        private void handle(String sourceNodeId, String path, byte[] data) {
+            try {
+                handler.onMessage(sourceNodeId, path, data);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Handler for " + pattern + " failed", e);
+            }
+        }
+
+        void shutdown() {
+            if (lane != null) {
+                lane.shutdown();
+            }
+        }
+    }
+
+    /**
+     * A path segment in the trie of prefix routes
+     */
+    private static final class Segment {
+        final Map<String, Segment> children = new HashMap<>();
+        @Nullable
+        Route route;
+    }
+
+    /**
+     * The compiled routes, replaced as a whole when the routes change
+     */
+    private static final class Table {
+        final Map<String, Route> exact;
+        final Segment prefixes;
+
+        Table(Map<String, Route> exact, Segment prefixes) {
+            this.exact = exact;
+            this.prefixes = prefixes;
+        }
+    }
+
+    // Guarded by this, in the order they were registered
+    private final Map<String, Route> routes = new LinkedHashMap<>();
+    private volatile Table table = new Table(Collections.emptyMap(), new Segment());
+
+    /**
+     * Register a handler that runs on its own lane, it replaces the handler of the same pattern
+     *
+     * @param pattern       an exact path, or a prefix ending in "/*"
+     * @param handler       handles the messages
+     * @param priority      the thread priority of the lane, between Thread.MIN_PRIORITY and Thread.MAX_PRIORITY
+     * @param queueCapacity the number of messages that can wait for the handler
+     */
+    void register(@NonNull String pattern, @NonNull Handler handler, int priority, int queueCapacity) {
+        validate(pattern);
+        int threadPriority = Math.max(Thread.MIN_PRIORITY, Math.min(Thread.MAX_PRIORITY, priority));
+        ThreadPoolExecutor lane = new ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+            runnable -> {
+                Thread thread = new Thread(runnable, "PathRoute " + pattern);
+                thread.setPriority(threadPriority);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+        put(new Route(pattern, handler, lane));
+    }
+
+    /**
+     * Register a handler that runs on the receiving thread, for handlers that hand the message off themselves
+     *
+     * @param pattern an exact path, or a prefix ending in "/*"
+     * @param handler handles the messages, must not block
+     */
+    void registerInline(@NonNull String pattern, @NonNull Handler handler) {
+        put(new Route(validate(pattern), handler, null));
+    }
+
+    /**
+     * Remove the handler of a pattern, messages waiting on its lane are still handled
+     *
+     * @param pattern the pattern it was registered with
+     * @return false if no handler was registered for the pattern
+     */
+    synchronized boolean unregister(@NonNull String pattern) {
+        Route removed = routes.remove(pattern);
+        if (removed == null) {
+            return false;
+        }
+        removed.shutdown();
+        compile();
+        return true;
+    }
+
+    /**
+     * Find the route of a path
+     *
+     * @param path the path of a received message
+     * @return the route, null when no pattern matches the path
+     */
+    @Nullable
+    Route find(@NonNull String path) {
+        Table current = table;
+        Route route = current.exact.get(path);
+        if (route != null) {
+            return route;
+        }
+        Segment segment = current.prefixes;
+        Route longest = segment.route;
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                // The last segment, a prefix route needs something below it
+                break;
+            }
+            segment = segment.children.get(path.substring(start, end));
+            if (segment == null) {
+                break;
+            }
+            if (segment.route != null) {
+                longest = segment.route;
+            }
+            start = end + 1;
+        }
+        return longest;
+    }
+
+    /**
+     * Hand a received message to the handler of its path
+     *
+     * @return false when no pattern matches the path
+     */
+    boolean dispatch(@NonNull String sourceNodeId, @NonNull String path, @NonNull byte[] data) {
+        Route route = find(path);
+        if (route == null) {
+            return false;
+        }
+        route.dispatch(sourceNodeId, path, data);
+        return true;
+    }
+
+    /**
+     * Stop the lanes of all routes
+     */
+    synchronized void shutdown() {
+        for (Route route : routes.values()) {
+            route.shutdown();
+        }
+    }
+
+    /**
+     * Get the messages handled and the messages waiting for every pattern
+     *
+     * @return the statistics by pattern
+     */
+    @NonNull
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Route route : routes.values()) {
+            Map<String, Object> routeStats = new LinkedHashMap<>();
+            routeStats.put("handled", (double) route.handled.get());
+            routeStats.put("overflowed", (double) route.overflowed.get());
+            routeStats.put("queued", (double) (route.lane == null ? 0 : route.lane.getQueue().size()));
+            stats.put(route.pattern, routeStats);
+        }
+        return stats;
+    }
+
+    private synchronized void put(Route route) {
+        Route replaced = routes.put(route.pattern, route);
+        if (replaced != null) {
+            replaced.shutdown();
+        }
+        compile();
+    }
+
+    private void compile() {
+        Map<String, Route> exact = new HashMap<>();
+        Segment prefixes = new Segment();
+        for (Route route : routes.values()) {
+            if (!route.pattern.endsWith(WILDCARD)) {
+                exact.put(route.pattern, route);
+                continue;
+            }
+            Segment segment = prefixes;
+            String prefix = route.pattern.substring(0, route.pattern.length() - WILDCARD.length());
+            if (!prefix.isEmpty()) {
+                for (String name : prefix.substring(1).split("/", -1)) {
+                    Segment child = segment.children.get(name);
+                    if (child == null) {
+                        child = new Segment();
+                        segment.children.put(name, child);
+                    }
+                    segment = child;
+                }
+            }
+            segment.route = route;
+        }
+        table = new Table(exact, prefixes);
+    }
+
+    private static String validate(String pattern) {
+        if (!pattern.startsWith("/") || pattern.length() < 2 || pattern.indexOf('*') != pattern.lastIndexOf('*')
+            || (pattern.indexOf('*') >= 0 && !pattern.endsWith(WILDCARD))) {
+            throw new IllegalArgumentException("Invalid path pattern " + pattern);
+        }
+        return pattern;
+    }
+}
@@ -0,0 +1,182 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the data of outbound messages with raw Deflate and a preset dictionary of common JSON tokens,
+ * which makes even small telemetry payloads compress well.
+ * Payloads below the size threshold are sent as is. When a payload does not compress well
+ * the following payloads are skipped with an exponential backoff, so incompressible streams cost little CPU.
+ * <p>
+ * Compressed data is only sent to peers that use the binary format, see MessageCodec.FLAG_COMPRESSED.
+ */
+final class PayloadCompressor {
+
+    static final int DEFAULT_MIN_BYTES = 256;
+    /**
+     * Compressed data larger than this fraction of the original is not worth it
+     */
+    static final double MAX_RATIO = 0.9;
+    /**
+     * The largest payload a peer can make us inflate, protects against decompression bombs
+     */
+    static final int MAX_INFLATED_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_BACKOFF = 64;
+
+    /**
+     * Part of the wire format, changing it breaks compressed messages between versions
+     */
+    private static final byte[] DICTIONARY = ("{\"type\":\"data\",\"value\":\"timestamp\":\"id\":\"name\":"
+        + "\"heartRate\":\"steps\":\"x\":\"y\":\"z\":\"accelerometer\":\"gyroscope\":\"message\":\"text\":"
+        + "true,false,null,\"},{\"],[\":[{\":0.0,\":1,\":\"").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private volatile boolean enabled = false;
+    private volatile int minBytes = DEFAULT_MIN_BYTES;
+
+    private final AtomicInteger backoff = new AtomicInteger(1);
+    private final AtomicInteger skip = new AtomicInteger(0);
+
+    final AtomicLong compressed = new AtomicLong();
+    final AtomicLong incompressible = new AtomicLong();
+    final AtomicLong skipped = new AtomicLong();
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * @param enabled  whether data is compressed at all
+     * @param minBytes data smaller than this is never compressed
+     */
+    void configure(boolean enabled, int minBytes) {
+        this.enabled = enabled;
+        this.minBytes = Math.max(0, minBytes);
+        backoff.set(1);
+        skip.set(0);
+    }
+
+    /**
+     * Compress the data of a message if it is worth it, the result is stored in compressedData.
+     * Calling it again for the same message does nothing.
+     *
+     * @param message the message to compress
+     */
+    void prepare(@NonNull MessageObject message) {
+        byte[] data = message.data;
+        if (!enabled || data == null || message.compressedData != null || data.length < minBytes) {
+            return;
+        }
+        if (skip.get() > 0 && skip.getAndDecrement() > 0) {
+            skipped.incrementAndGet();
+            return;
+        }
+        byte[] deflated = deflate(data, (int) (data.length * MAX_RATIO));
+        if (deflated == null) {
+            incompressible.incrementAndGet();
+            int next = Math.min(backoff.get() * 2, MAX_BACKOFF);
+            backoff.set(next);
+            skip.set(next);
+            return;
+        }
+        backoff.set(1);
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(data.length);
+        bytesOut.addAndGet(deflated.length);
+        message.compressedData = deflated;
+    }
+
+    /**
+     * Deflate the data, giving up as soon as the output exceeds the limit
+     *
+     * @return the deflated data, null if it does not fit the limit
+     */
+    private static byte[] deflate(byte[] data, int limit) {
+        Deflater deflater = deflaters.get();
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[limit];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return deflater.finished() ? Arrays.copyOf(buffer, length) : null;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Inflate data compressed by a peer
+     *
+     * @param data   the compressed data
+     * @param length the length of the original data
+     * @return the original data
+     * @throws DataFormatException when the data is corrupt or does not have the announced length
+     */
+    @NonNull
+    static byte[] inflate(@NonNull byte[] data, int length) throws DataFormatException {
+        if (length < 0 || length > MAX_INFLATED_BYTES) {
+            throw new DataFormatException("Invalid inflated length " + length);
+        }
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(data);
+            byte[] inflated = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(inflated, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != length) {
+                throw new DataFormatException("Inflated " + read + " bytes, expected " + length);
+            }
+            return inflated;
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Get the number of compressed and skipped payloads and the bytes saved
+     *
+     * @return the statistics by name
+     */
+    @NonNull
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long in = bytesIn.get();
+        stats.put("compressed", (double) compressed.get());
+        stats.put("incompressible", (double) incompressible.get());
+        stats.put("skipped", (double) skipped.get());
+        stats.put("bytesSaved", (double) (in - bytesOut.get()));
+        stats.put("ratio", in == 0 ? 1.0 : (double) bytesOut.get() / in);
+        return stats;
+    }
+}
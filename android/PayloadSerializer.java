@@ -0,0 +1,688 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts payloads between the bridge types and UTF-8 JSON without building a JSONObject tree.
+ * ReadableMaps are written straight into a reusable per thread buffer,
+ * received JSON is parsed straight into WritableMaps.
+ * The JSON is the same as BridgeUtil produces, so peers cannot tell the difference.
+ * <p>
+ * Plain Java maps, as returned by ReadableMap.toHashMap, are supported as well,
+ * for state that is kept natively instead of being passed to JavaScript.
+ */
+final class PayloadSerializer {
+
+    /**
+     * Buffers up to this size are kept for the next payload, larger ones are released after use
+     */
+    private static final int MAX_POOLED_SIZE = 64 * 1024;
+    private static final int MAX_DEPTH = 256;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<Writer> writers = new ThreadLocal<Writer>() {
+        @Override
+        protected Writer initialValue() {
+            return new Writer();
+        }
+    };
+
+    private PayloadSerializer() {
+    }
+
+    /**
+     * Serialize a map to UTF-8 JSON
+     *
+     * @param map the map to serialize
+     * @return the JSON bytes
+     * @throws JSONException when the map contains NaN or infinite numbers, which JSON cannot represent
+     */
+    @NonNull
+    static byte[] toJSONBytes(@NonNull ReadableMap map) throws JSONException {
+        Writer writer = writers.get();
+        try {
+            writer.writeMap(map, 0);
+            return writer.toByteArray();
+        } finally {
+            writer.reset();
+        }
+    }
+
+    /**
+     * Serialize a map to UTF-8 JSON in an array taken from the pool
+     *
+     * @param map  the map to serialize
+     * @param pool the pool to take the array from
+     * @return the JSON bytes, the array is exactly as long as the JSON
+     * @throws JSONException when the map contains NaN or infinite numbers, which JSON cannot represent
+     */
+    @NonNull
+    static byte[] toJSONBytes(@NonNull ReadableMap map, @NonNull BufferPool pool) throws JSONException {
+        Writer writer = writers.get();
+        try {
+            writer.writeMap(map, 0);
+            return writer.toByteArray(pool);
+        } finally {
+            writer.reset();
+        }
+    }
+
+    /**
+     * Serialize a map of plain Java values to UTF-8 JSON,
+     * the values can be maps, lists, strings, numbers, booleans and null
+     *
+     * @param map the map to serialize
+     * @return the JSON bytes
+     * @throws JSONException when the map contains an unsupported value, NaN or infinite numbers
+     */
+    @NonNull
+    static byte[] toJSONBytes(@NonNull Map<String, ?> map) throws JSONException {
+        Writer writer = writers.get();
+        try {
+            writer.writeValue(map, 0);
+            return writer.toByteArray();
+        } finally {
+            writer.reset();
+        }
+    }
+
+    /**
+     * Parse a UTF-8 JSON object into a HashMap, nested objects become HashMaps, arrays ArrayLists
+     * and numbers Doubles, like ReadableMap.toHashMap returns them
+     *
+     * @param data the JSON bytes
+     * @return the map
+     * @throws JSONException when the data is not a JSON object
+     */
+    @NonNull
+    static HashMap<String, Object> toHashMap(@NonNull byte[] data) throws JSONException {
+        Parser parser = new Parser(data);
+        parser.skipWhitespace();
+        if (parser.peek() != '{') {
+            throw parser.error("Expected '{'");
+        }
+        @SuppressWarnings("unchecked")
+        HashMap<String, Object> map = (HashMap<String, Object>) parser.readValue(0);
+        parser.skipWhitespace();
+        if (parser.position != data.length) {
+            throw parser.error("Unexpected data after the object");
+        }
+        return map;
+    }
+
+    /**
+     * Parse a UTF-8 JSON object into a map
+     *
+     * @param data the JSON bytes
+     * @return the map
+     * @throws JSONException when the data is not a JSON object
+     */
+    @NonNull
+    static WritableMap toWritableMap(@NonNull byte[] data) throws JSONException {
+        Parser parser = new Parser(data);
+        parser.skipWhitespace();
+        WritableMap map = parser.readMap(0);
+        parser.skipWhitespace();
+        if (parser.position != data.length) {
+            throw parser.error("Unexpected data after the object");
+        }
+        return map;
+    }
+
+    private static final class Writer {
+        private byte[] buffer = new byte[256];
+        private int length = 0;
+
+        void reset() {
+            length = 0;
+            if (buffer.length > MAX_POOLED_SIZE) {
+                buffer = new byte[256];
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        byte[] toByteArray(BufferPool pool) {
+            byte[] bytes = pool.acquire(length);
+            System.arraycopy(buffer, 0, bytes, 0, length);
+            return bytes;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        private void write(byte b) {
+            ensure(1);
+            buffer[length++] = b;
+        }
+
+        private void writeAscii(String string) {
+            ensure(string.length());
+            for (int i = 0; i < string.length(); i++) {
+                buffer[length++] = (byte) string.charAt(i);
+            }
+        }
+
+        void writeMap(ReadableMap map, int depth) throws JSONException {
+            checkDepth(depth);
+            write((byte) '{');
+            boolean first = true;
+            ReadableMapKeySetIterator iterator = map.keySetIterator();
+            while (iterator.hasNextKey()) {
+                String key = iterator.nextKey();
+                if (!first) {
+                    write((byte) ',');
+                }
+                first = false;
+                writeString(key);
+                write((byte) ':');
+                switch (map.getType(key)) {
+                    case Null:
+                        writeAscii("null");
+                        break;
+                    case Boolean:
+                        writeAscii(map.getBoolean(key) ? "true" : "false");
+                        break;
+                    case Number:
+                        writeNumber(map.getDouble(key));
+                        break;
+                    case String:
+                        writeString(map.getString(key));
+                        break;
+                    case Map:
+                        writeMap(map.getMap(key), depth + 1);
+                        break;
+                    case Array:
+                        writeArray(map.getArray(key), depth + 1);
+                        break;
+                }
+            }
+            write((byte) '}');
+        }
+
+        void writeArray(ReadableArray array, int depth) throws JSONException {
+            checkDepth(depth);
+            write((byte) '[');
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) {
+                    write((byte) ',');
+                }
+                switch (array.getType(i)) {
+                    case Null:
+                        writeAscii("null");
+                        break;
+                    case Boolean:
+                        writeAscii(array.getBoolean(i) ? "true" : "false");
+                        break;
+                    case Number:
+                        writeNumber(array.getDouble(i));
+                        break;
+                    case String:
+                        writeString(array.getString(i));
+                        break;
+                    case Map:
+                        writeMap(array.getMap(i), depth + 1);
+                        break;
+                    case Array:
+                        writeArray(array.getArray(i), depth + 1);
+                        break;
+                }
+            }
+            write((byte) ']');
+        }
+
+        void writeValue(Object value, int depth) throws JSONException {
+            if (value == null) {
+                writeAscii("null");
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof Boolean) {
+                writeAscii((Boolean) value ? "true" : "false");
+            } else if (value instanceof Number) {
+                writeNumber(((Number) value).doubleValue());
+            } else if (value instanceof Map) {
+                checkDepth(depth);
+                write((byte) '{');
+                boolean first = true;
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    if (!first) {
+                        write((byte) ',');
+                    }
+                    first = false;
+                    writeString(String.valueOf(entry.getKey()));
+                    write((byte) ':');
+                    writeValue(entry.getValue(), depth + 1);
+                }
+                write((byte) '}');
+            } else if (value instanceof List) {
+                checkDepth(depth);
+                write((byte) '[');
+                boolean first = true;
+                for (Object item : (List<?>) value) {
+                    if (!first) {
+                        write((byte) ',');
+                    }
+                    first = false;
+                    writeValue(item, depth + 1);
+                }
+                write((byte) ']');
+            } else {
+                throw new JSONException("Unsupported value " + value.getClass().getName());
+            }
+        }
+
+        /**
+         * Numbers are written like JSONObject does, whole numbers without a fraction
+         */
+        private void writeNumber(double value) throws JSONException {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new JSONException("Forbidden numeric value: " + value);
+            }
+            long whole = (long) value;
+            if (value == whole) {
+                writeAscii(Long.toString(whole));
+            } else {
+                writeAscii(Double.toString(value));
+            }
+        }
+
+        private void writeString(String string) {
+            // A char takes at most 3 bytes in UTF-8, or 6 as an escape
+            ensure(string.length() * 6 + 2);
+            byte[] out = buffer;
+            int at = length;
+            out[at++] = '"';
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out[at++] = '\\';
+                    out[at++] = (byte) c;
+                } else if (c < 0x20) {
+                    out[at++] = '\\';
+                    switch (c) {
+                        case '\b':
+                            out[at++] = 'b';
+                            break;
+                        case '\f':
+                            out[at++] = 'f';
+                            break;
+                        case '\n':
+                            out[at++] = 'n';
+                            break;
+                        case '\r':
+                            out[at++] = 'r';
+                            break;
+                        case '\t':
+                            out[at++] = 't';
+                            break;
+                        default:
+                            out[at++] = 'u';
+                            out[at++] = '0';
+                            out[at++] = '0';
+                            out[at++] = HEX[c >> 4];
+                            out[at++] = HEX[c & 0xF];
+                    }
+                } else if (c < 0x80) {
+                    out[at++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[at++] = (byte) (0xC0 | c >> 6);
+                    out[at++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                    out[at++] = (byte) (0xF0 | codePoint >> 18);
+                    out[at++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    out[at++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    out[at++] = (byte) (0x80 | codePoint & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    // An unpaired surrogate cannot be encoded, String.getBytes does the same
+                    out[at++] = '?';
+                } else {
+                    out[at++] = (byte) (0xE0 | c >> 12);
+                    out[at++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    out[at++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            out[at++] = '"';
+            length = at;
+        }
+    }
+
+    private static final class Parser {
+        private final byte[] data;
+        int position = 0;
+
+        Parser(byte[] data) {
+            this.data = data;
+        }
+
+        JSONException error(String message) {
+            return new JSONException(message + " at " + position);
+        }
+
+        void skipWhitespace() {
+            while (position < data.length) {
+                byte b = data[position];
+                if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                    return;
+                }
+                position++;
+            }
+        }
+
+        private byte next() throws JSONException {
+            if (position >= data.length) {
+                throw error("Unexpected end of data");
+            }
+            return data[position++];
+        }
+
+        private void expect(byte expected) throws JSONException {
+            if (next() != expected) {
+                throw error("Expected '" + (char) expected + "'");
+            }
+        }
+
+        byte peek() throws JSONException {
+            if (position >= data.length) {
+                throw error("Unexpected end of data");
+            }
+            return data[position];
+        }
+
+        /**
+         * Read any value as a plain Java object
+         */
+        Object readValue(int depth) throws JSONException {
+            switch (peek()) {
+                case '{': {
+                    checkDepth(depth);
+                    position++;
+                    HashMap<String, Object> map = new HashMap<>();
+                    skipWhitespace();
+                    if (peek() == '}') {
+                        position++;
+                        return map;
+                    }
+                    while (true) {
+                        skipWhitespace();
+                        expect((byte) '"');
+                        String key = readString();
+                        skipWhitespace();
+                        expect((byte) ':');
+                        skipWhitespace();
+                        map.put(key, readValue(depth + 1));
+                        skipWhitespace();
+                        byte b = next();
+                        if (b == '}') {
+                            return map;
+                        } else if (b != ',') {
+                            throw error("Expected ',' or '}'");
+                        }
+                    }
+                }
+                case '[': {
+                    checkDepth(depth);
+                    position++;
+                    List<Object> list = new ArrayList<>();
+                    skipWhitespace();
+                    if (peek() == ']') {
+                        position++;
+                        return list;
+                    }
+                    while (true) {
+                        skipWhitespace();
+                        list.add(readValue(depth + 1));
+                        skipWhitespace();
+                        byte b = next();
+                        if (b == ']') {
+                            return list;
+                        } else if (b != ',') {
+                            throw error("Expected ',' or ']'");
+                        }
+                    }
+                }
+                case '"':
+                    position++;
+                    return readString();
+                case 't':
+                    readLiteral("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    readLiteral("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    readLiteral("null");
+                    return null;
+                default:
+                    return readNumber();
+            }
+        }
+
+        WritableMap readMap(int depth) throws JSONException {
+            checkDepth(depth);
+            expect((byte) '{');
+            WritableMap map = Arguments.createMap();
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return map;
+            }
+            while (true) {
+                skipWhitespace();
+                expect((byte) '"');
+                String key = readString();
+                skipWhitespace();
+                expect((byte) ':');
+                skipWhitespace();
+                switch (peek()) {
+                    case '{':
+                        map.putMap(key, readMap(depth + 1));
+                        break;
+                    case '[':
+                        map.putArray(key, readArray(depth + 1));
+                        break;
+                    case '"':
+                        position++;
+                        map.putString(key, readString());
+                        break;
+                    case 't':
+                        readLiteral("true");
+                        map.putBoolean(key, true);
+                        break;
+                    case 'f':
+                        readLiteral("false");
+                        map.putBoolean(key, false);
+                        break;
+                    case 'n':
+                        readLiteral("null");
+                        map.putNull(key);
+                        break;
+                    default:
+                        map.putDouble(key, readNumber());
+                }
+                skipWhitespace();
+                byte b = next();
+                if (b == '}') {
+                    return map;
+                } else if (b != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        WritableArray readArray(int depth) throws JSONException {
+            checkDepth(depth);
+            expect((byte) '[');
+            WritableArray array = Arguments.createArray();
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                skipWhitespace();
+                switch (peek()) {
+                    case '{':
+                        array.pushMap(readMap(depth + 1));
+                        break;
+                    case '[':
+                        array.pushArray(readArray(depth + 1));
+                        break;
+                    case '"':
+                        position++;
+                        array.pushString(readString());
+                        break;
+                    case 't':
+                        readLiteral("true");
+                        array.pushBoolean(true);
+                        break;
+                    case 'f':
+                        readLiteral("false");
+                        array.pushBoolean(false);
+                        break;
+                    case 'n':
+                        readLiteral("null");
+                        array.pushNull();
+                        break;
+                    default:
+                        array.pushDouble(readNumber());
+                }
+                skipWhitespace();
+                byte b = next();
+                if (b == ']') {
+                    return array;
+                } else if (b != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        }
+
+        private void readLiteral(String literal) throws JSONException {
+            for (int i = 0; i < literal.length(); i++) {
+                if (next() != literal.charAt(i)) {
+                    throw error("Expected " + literal);
+                }
+            }
+        }
+
+        private double readNumber() throws JSONException {
+            int start = position;
+            while (position < data.length) {
+                byte b = data[position];
+                if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+                    position++;
+                } else {
+                    break;
+                }
+            }
+            if (start == position) {
+                throw error("Unexpected character");
+            }
+            try {
+                return Double.parseDouble(new String(data, start, position - start, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw error("Malformed number");
+            }
+        }
+
+        /**
+         * Read a string after its opening quote, strings without escapes are decoded in one go
+         */
+        private String readString() throws JSONException {
+            int start = position;
+            while (position < data.length) {
+                byte b = data[position];
+                if (b == '"') {
+                    String string = new String(data, start, position - start, StandardCharsets.UTF_8);
+                    position++;
+                    return string;
+                } else if (b == '\\') {
+                    return readEscapedString(start);
+                }
+                position++;
+            }
+            throw error("Unterminated string");
+        }
+
+        private String readEscapedString(int start) throws JSONException {
+            StringBuilder builder = new StringBuilder(position - start + 16);
+            builder.append(new String(data, start, position - start, StandardCharsets.UTF_8));
+            while (true) {
+                int run = position;
+                while (position < data.length && data[position] != '"' && data[position] != '\\') {
+                    position++;
+                }
+                builder.append(new String(data, run, position - run, StandardCharsets.UTF_8));
+                byte b = next();
+                if (b == '"') {
+                    return builder.toString();
+                }
+                byte escape = next();
+                switch (escape) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        builder.append((char) escape);
+                        break;
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > data.length) {
+                            throw error("Unterminated escape");
+                        }
+                        try {
+                            builder.append((char) Integer.parseInt(
+                                new String(data, position, 4, StandardCharsets.US_ASCII), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Malformed escape");
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        throw error("Unknown escape");
+                }
+            }
+        }
+    }
+
+    private static void checkDepth(int depth) throws JSONException {
+        if (depth > MAX_DEPTH) {
+            throw new JSONException("Payload is nested deeper than " + MAX_DEPTH + " levels");
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches whether a watch is paired, has the app installed and is reachable, so reading it never blocks.
+ * The state is pushed in by the node and capability listeners of the MessageService.
+ * Changes are debounced, the listener is only called once a new state held for the debounce time,
+ * so a watch that briefly drops its connection does not cause a pair of events.
+ * The first state is published right away.
+ */
+final class ReachabilityMonitor {
+
+    static final long DEFAULT_DEBOUNCE_MILLIS = 1_000;
+    /**
+     * The time getState waits for the first state, afterwards it calls back with the not paired state
+     */
+    static final long STATE_TIMEOUT_MILLIS = 5_000;
+
+    /**
+     * Called on the scheduler thread when a published state changed
+     */
+    interface OnChangedListener {
+        void onPairStatusChanged(boolean paired);
+
+        void onInstallStatusChanged(boolean installed);
+
+        void onReachabilityChanged(boolean reachable);
+    }
+
+    /**
+     * Receives the state once it is known
+     */
+    interface StateCallback {
+        void onState(boolean paired, boolean installed, boolean reachable);
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private volatile long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+    @Nullable
+    private volatile OnChangedListener listener;
+
+    private volatile boolean paired = false;
+    private volatile boolean installed = false;
+    private volatile boolean reachable = false;
+    private volatile boolean known = false;
+
+    // The newest state, published once it held for the debounce time
+    private boolean nextPaired;
+    private boolean nextInstalled;
+    private boolean nextReachable;
+    @Nullable
+    private ScheduledFuture<?> publishFuture;
+    private final List<StateCallback> waiting = new ArrayList<>();
+
+    /**
+     * @param scheduler runs the debounced publishes
+     */
+    ReachabilityMonitor(@NonNull ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param debounceMillis the time a new state has to hold before it is published
+     */
+    void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = Math.max(0, debounceMillis);
+    }
+
+    /**
+     * @param listener called when a published state changed, null to remove it
+     */
+    void setListener(@Nullable OnChangedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return whether the first state was published
+     */
+    boolean isKnown() {
+        return known;
+    }
+
+    boolean isPaired() {
+        return paired;
+    }
+
+    boolean isInstalled() {
+        return installed;
+    }
+
+    boolean isReachable() {
+        return reachable;
+    }
+
+    /**
+     * Call back with the state, right away when it is known, otherwise once it is first published
+     *
+     * @param callback receives the state
+     */
+    void getState(@NonNull StateCallback callback) {
+        synchronized (this) {
+            if (!known) {
+                waiting.add(callback);
+                try {
+                    scheduler.schedule(() -> {
+                        boolean timedOut;
+                        synchronized (this) {
+                            timedOut = waiting.remove(callback);
+                        }
+                        if (timedOut) {
+                            callback.onState(paired, installed, reachable);
+                        }
+                    }, STATE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    waiting.remove(callback);
+                    callback.onState(false, false, false);
+                }
+                return;
+            }
+        }
+        callback.onState(paired, installed, reachable);
+    }
+
+    /**
+     * Report the current state, a watch cannot be reachable or have the app installed without being paired
+     *
+     * @param paired    whether a node is connected
+     * @param installed whether a connected node has the app installed
+     * @param reachable whether messages can be sent to a node with the app installed
+     */
+    void update(boolean paired, boolean installed, boolean reachable) {
+        List<StateCallback> callbacks;
+        synchronized (this) {
+            nextPaired = paired;
+            nextInstalled = paired && installed;
+            nextReachable = paired && installed && reachable;
+            if (known) {
+                if (publishFuture != null) {
+                    publishFuture.cancel(false);
+                    publishFuture = null;
+                }
+                if (nextPaired != this.paired || nextInstalled != this.installed || nextReachable != this.reachable) {
+                    try {
+                        publishFuture = scheduler.schedule(this::publish, debounceMillis, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // The service is shutting down, nobody listens anymore
+                    }
+                }
+                return;
+            }
+            this.paired = nextPaired;
+            this.installed = nextInstalled;
+            this.reachable = nextReachable;
+            known = true;
+            callbacks = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (StateCallback callback : callbacks) {
+            callback.onState(paired, paired && installed, paired && installed && reachable);
+        }
+    }
+
+    private void publish() {
+        boolean pairedChanged;
+        boolean installedChanged;
+        boolean reachableChanged;
+        boolean newPaired;
+        boolean newInstalled;
+        boolean newReachable;
+        synchronized (this) {
+            publishFuture = null;
+            newPaired = nextPaired;
+            newInstalled = nextInstalled;
+            newReachable = nextReachable;
+            pairedChanged = paired != newPaired;
+            installedChanged = installed != newInstalled;
+            reachableChanged = reachable != newReachable;
+            paired = newPaired;
+            installed = newInstalled;
+            reachable = newReachable;
+        }
+        OnChangedListener changedListener = listener;
+        if (changedListener == null) {
+            return;
+        }
+        if (pairedChanged) {
+            changedListener.onPairStatusChanged(newPaired);
+        }
+        if (installedChanged) {
+            changedListener.onInstallStatusChanged(newInstalled);
+        }
+        if (reachableChanged) {
+            changedListener.onReachabilityChanged(newReachable);
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers messages to a node exactly once and in the order they were sent, over the MessageClient
+ * which gives neither guarantee. Every message of the stream to a node gets the next sequence number,
+ * up to windowSize messages are in flight at once, later messages wait until the oldest ones are acknowledged.
+ * <p>
+ * The receiver acknowledges with an acknowledgement message whose seq is the next sequence number it expects,
+ * and whose data is a 64 bit big endian bitmap of the messages after it that it already received,
+ * bit i stands for the sequence number seq + i. Unacknowledged messages are retransmitted after the
+ * retransmit timeout, doubled for every retransmit, and right away when an acknowledgement shows a gap before them.
+ * After maxRetransmits the stream to the node is broken, the callbacks of its messages fail and
+ * a new epoch starts.
+ * <p>
+ * The receiver holds messages that arrived early in a reorder buffer and drops duplicates,
+ * both are tracked with the bitmap of the 64 sequence numbers after the next expected one.
+ * <p>
+ * A sequence number is the epoch in the upper 32 bits and a counter starting at 1 in the lower 32 bits.
+ * The epoch is a random 31 bit number picked when the sender starts, incremented when the stream breaks.
+ * A receiver starts over on any change of the epoch, as a restarted sender may well pick a lower one,
+ * and ignores retransmits from the epoch it left.
+ * Both ends must support the stream, older peers do not acknowledge and reject the sequence flag.
+ */
+final class ReliableStream {
+
+    static final int DEFAULT_WINDOW_SIZE = 32;
+    /**
+     * The size of the receive bitmap, a larger send window would send messages the receiver drops
+     */
+    static final int MAX_WINDOW_SIZE = 64;
+    static final long DEFAULT_RETRANSMIT_MILLIS = 1_000;
+    static final int DEFAULT_MAX_RETRANSMITS = 5;
+    /**
+     * The time an in order message waits for more messages before it is acknowledged,
+     * out of order messages are acknowledged right away so the sender retransmits the gap
+     */
+    static final long ACK_DELAY_MILLIS = 20;
+
+    private static final String TAG = "ReliableStream";
+    private static final long COUNTER_MASK = 0xFFFFFFFFL;
+    private static final int MAX_BACKOFF_SHIFT = 5;
+
+    /**
+     * Passed to the callbacks of the messages to a node when the stream to it broke
+     */
+    static final class StreamBrokenException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        StreamBrokenException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Creates and sends the messages of the stream
+     */
+    interface Outlet {
+        @NonNull
+        MessageObject createMessage(@NonNull MessageObject.MessageType type, @Nullable byte[] data);
+
+        void send(@NonNull String nodeId, @NonNull MessageObject message, @NonNull MessageService.SendCallback callback);
+    }
+
+    private static final MessageService.SendCallback NO_CALLBACK = new MessageService.SendCallback() {
+        @Override
+        public void onSuccess() {
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+        }
+    };
+
+    /**
+     * A message in the send window or waiting for it
+     */
+    private static final class Outbound {
+        final MessageObject message;
+        final MessageService.SendCallback callback;
+        long sentAt;
+        int retransmits;
+        boolean acknowledged;
+        boolean fastRetransmitted;
+
+        Outbound(MessageObject message, MessageService.SendCallback callback) {
+            this.message = message;
+            this.callback = callback;
+        }
+
+        long counter() {
+            return message.seq & COUNTER_MASK;
+        }
+    }
+
+    /**
+     * The stream to a node
+     */
+    private static final class Sender {
+        long epoch;
+        long nextCounter = 1;
+        /**
+         * The messages that were sent, in sequence order, until the receiver acknowledged them in order
+         */
+        final ArrayDeque<Outbound> window = new ArrayDeque<>();
+        final ArrayDeque<Outbound> waiting = new ArrayDeque<>();
+        @Nullable
+        ScheduledFuture<?> timer;
+
+        Sender(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * The stream from a node
+     */
+    private static final class Receiver {
+        long epoch = -1;
+        /**
+         * The epoch before the current one, its late retransmits must not start the stream over again
+         */
+        long previousEpoch = -1;
+        long next = 1;
+        /**
+         * Bit i is set when the message with counter next + i was received, bit 0 is never set between calls
+         */
+        long received;
+        final MessageObject[] buffer = new MessageObject[MAX_WINDOW_SIZE];
+        boolean ackScheduled;
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Outlet outlet;
+    private final long initialEpoch;
+    private final Map<String, Sender> senders = new HashMap<>();
+    private final Map<String, Receiver> receivers = new HashMap<>();
+
+    private volatile int windowSize = DEFAULT_WINDOW_SIZE;
+    private volatile long retransmitMillis = DEFAULT_RETRANSMIT_MILLIS;
+    private volatile int maxRetransmits = DEFAULT_MAX_RETRANSMITS;
+
+    private long delivered = 0;
+    private long retransmits = 0;
+    private long duplicates = 0;
+    private long reordered = 0;
+    private long broken = 0;
+
+    /**
+     * @param scheduler runs the retransmit timers and delayed acknowledgements
+     * @param outlet    sends the messages
+     */
+    ReliableStream(@NonNull ScheduledExecutorService scheduler, @NonNull Outlet outlet) {
+        this(scheduler, outlet, new SecureRandom().nextInt() & 0x7FFFFFFFL);
+    }
+
+    /**
+     * @param scheduler    runs the retransmit timers and delayed acknowledgements
+     * @param outlet       sends the messages
+     * @param initialEpoch the epoch of the streams to every node, at most 31 bits
+     */
+    ReliableStream(@NonNull ScheduledExecutorService scheduler, @NonNull Outlet outlet, long initialEpoch) {
+        this.scheduler = scheduler;
+        this.outlet = outlet;
+        this.initialEpoch = initialEpoch & 0x7FFFFFFFL;
+    }
+
+    /**
+     * @param windowSize       the maximum number of unacknowledged messages per node, at most MAX_WINDOW_SIZE
+     * @param retransmitMillis the time after which an unacknowledged message is sent again
+     * @param maxRetransmits   the number of retransmits after which the stream to a node is broken
+     */
+    void configure(int windowSize, long retransmitMillis, int maxRetransmits) {
+        this.windowSize = Math.max(1, Math.min(windowSize, MAX_WINDOW_SIZE));
+        this.retransmitMillis = Math.max(10, retransmitMillis);
+        this.maxRetransmits = Math.max(0, maxRetransmits);
+    }
+
+    /**
+     * Send a message in the stream to a node, the callback succeeds once the node acknowledged it.
+     * The message is copied, so the same message can be sent to several nodes.
+     *
+     * @param nodeId   the node
+     * @param message  the message, the seq is assigned by the stream
+     * @param callback called once the node received the message, or when the stream to it broke
+     */
+    void send(@NonNull String nodeId, @NonNull MessageObject message, @Nullable MessageService.SendCallback callback) {
+        Outbound outbound = new Outbound(copyOf(message), callback == null ? NO_CALLBACK : callback);
+        boolean start;
+        synchronized (this) {
+            Sender sender = senders.get(nodeId);
+            if (sender == null) {
+                sender = new Sender(initialEpoch);
+                senders.put(nodeId, sender);
+            }
+            start = sender.window.size() < windowSize && sender.waiting.isEmpty();
+            if (start) {
+                open(nodeId, sender, outbound);
+            } else {
+                sender.waiting.addLast(outbound);
+            }
+        }
+        if (start) {
+            transmit(nodeId, outbound);
+        }
+    }
+
+    /**
+     * Give a message the next sequence number and add it to the window, must hold the lock
+     */
+    private void open(String nodeId, Sender sender, Outbound outbound) {
+        outbound.message.seq = (sender.epoch << 32) | sender.nextCounter++;
+        outbound.sentAt = System.nanoTime();
+        sender.window.addLast(outbound);
+        if (sender.timer == null) {
+            long tick = Math.max(5, retransmitMillis / 2);
+            try {
+                sender.timer = scheduler.scheduleWithFixedDelay(
+                    () -> checkRetransmits(nodeId), tick, tick, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The service is shutting down, the callbacks are failed by failAll
+            }
+        }
+    }
+
+    private void transmit(String nodeId, Outbound outbound) {
+        outlet.send(nodeId, outbound.message, new MessageService.SendCallback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                // Retransmitted by the timer, the callback only fails when the stream breaks
+                Log.w(TAG, "Sending " + outbound.counter() + " to " + nodeId + " failed", exception);
+            }
+        });
+    }
+
+    /**
+     * Process an acknowledgement, completes the acknowledged messages and sends the next ones
+     *
+     * @param nodeId the node that acknowledged
+     * @param seq    the next sequence number the node expects
+     * @param bitmap the data of the acknowledgement, the messages after seq the node received
+     */
+    void onAcknowledged(@NonNull String nodeId, long seq, @Nullable byte[] bitmap) {
+        long received = bitmap != null && bitmap.length >= 8 ? ByteBuffer.wrap(bitmap).getLong() : 0;
+        long next = seq & COUNTER_MASK;
+        List<Outbound> acknowledged = new ArrayList<>();
+        List<Outbound> transmits = new ArrayList<>();
+        synchronized (this) {
+            Sender sender = senders.get(nodeId);
+            if (sender == null || seq >>> 32 != sender.epoch) {
+                return;
+            }
+            while (!sender.window.isEmpty() && sender.window.peekFirst().counter() < next) {
+                Outbound outbound = sender.window.pollFirst();
+                if (!outbound.acknowledged) {
+                    acknowledged.add(outbound);
+                }
+            }
+            long highest = -1;
+            for (Outbound outbound : sender.window) {
+                long offset = outbound.counter() - next;
+                if (offset < MAX_WINDOW_SIZE && (received & (1L << offset)) != 0) {
+                    highest = offset;
+                    if (!outbound.acknowledged) {
+                        outbound.acknowledged = true;
+                        acknowledged.add(outbound);
+                    }
+                }
+            }
+            // The receiver has messages after these, so they were most likely lost
+            for (Outbound outbound : sender.window) {
+                if (outbound.counter() - next >= highest) {
+                    break;
+                }
+                if (!outbound.acknowledged && !outbound.fastRetransmitted) {
+                    outbound.fastRetransmitted = true;
+                    outbound.sentAt = System.nanoTime();
+                    retransmits++;
+                    transmits.add(outbound);
+                }
+            }
+            while (sender.window.size() < windowSize && !sender.waiting.isEmpty()) {
+                Outbound outbound = sender.waiting.pollFirst();
+                open(nodeId, sender, outbound);
+                transmits.add(outbound);
+            }
+            if (sender.window.isEmpty()) {
+                stopTimer(sender);
+            }
+        }
+        for (Outbound outbound : acknowledged) {
+            outbound.callback.onSuccess();
+        }
+        for (Outbound outbound : transmits) {
+            transmit(nodeId, outbound);
+        }
+    }
+
+    /**
+     * Retransmit the messages that were not acknowledged in time, or break the stream
+     * when a message was retransmitted too often
+     */
+    private void checkRetransmits(String nodeId) {
+        List<Outbound> transmits = new ArrayList<>();
+        List<Outbound> failed = null;
+        synchronized (this) {
+            Sender sender = senders.get(nodeId);
+            if (sender == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Outbound outbound : sender.window) {
+                if (outbound.acknowledged) {
+                    continue;
+                }
+                long timeout = retransmitMillis << Math.min(outbound.retransmits, MAX_BACKOFF_SHIFT);
+                if (now - outbound.sentAt < TimeUnit.MILLISECONDS.toNanos(timeout)) {
+                    continue;
+                }
+                if (outbound.retransmits >= maxRetransmits) {
+                    failed = breakStream(sender);
+                    break;
+                }
+                outbound.retransmits++;
+                outbound.sentAt = now;
+                retransmits++;
+                transmits.add(outbound);
+            }
+            if (failed != null) {
+                transmits.clear();
+            }
+        }
+        if (failed != null) {
+            Log.w(TAG, "The stream to " + nodeId + " broke, failing " + failed.size() + " messages");
+            StreamBrokenException exception = new StreamBrokenException("Node " + nodeId + " does not acknowledge");
+            for (Outbound outbound : failed) {
+                outbound.callback.onFailure(exception);
+            }
+            return;
+        }
+        for (Outbound outbound : transmits) {
+            transmit(nodeId, outbound);
+        }
+    }
+
+    /**
+     * Start a new epoch for a node, must hold the lock
+     *
+     * @return the messages whose callbacks have to fail
+     */
+    private List<Outbound> breakStream(Sender sender) {
+        List<Outbound> failed = new ArrayList<>(sender.window.size() + sender.waiting.size());
+        for (Outbound outbound : sender.window) {
+            if (!outbound.acknowledged) {
+                failed.add(outbound);
+            }
+        }
+        failed.addAll(sender.waiting);
+        sender.window.clear();
+        sender.waiting.clear();
+        sender.epoch = (sender.epoch + 1) & 0x7FFFFFFFL;
+        sender.nextCounter = 1;
+        stopTimer(sender);
+        broken++;
+        return failed;
+    }
+
+    private static void stopTimer(Sender sender) {
+        if (sender.timer != null) {
+            sender.timer.cancel(false);
+            sender.timer = null;
+        }
+    }
+
+    /**
+     * Process a received message of a stream
+     *
+     * @param nodeId  the node the message was received from
+     * @param message the message, with a seq
+     * @return the messages that can be handled now in sequence order, empty when the message is a duplicate
+     * or arrived before a message that is still missing
+     */
+    @NonNull
+    List<MessageObject> receive(@NonNull String nodeId, @NonNull MessageObject message) {
+        long epoch = message.seq >>> 32;
+        long counter = message.seq & COUNTER_MASK;
+        List<MessageObject> ready;
+        boolean ackNow;
+        synchronized (this) {
+            Receiver receiver = receivers.get(nodeId);
+            if (receiver == null) {
+                receiver = new Receiver();
+                receivers.put(nodeId, receiver);
+            }
+            if (epoch == receiver.previousEpoch) {
+                // A retransmit of a stream that was given up
+                return Collections.emptyList();
+            }
+            if (epoch != receiver.epoch) {
+                receiver.previousEpoch = receiver.epoch;
+                receiver.epoch = epoch;
+                receiver.next = 1;
+                receiver.received = 0;
+                Arrays.fill(receiver.buffer, null);
+            }
+            long offset = counter - receiver.next;
+            if (offset < 0 || (offset < MAX_WINDOW_SIZE && (receiver.received & (1L << offset)) != 0)) {
+                duplicates++;
+                ready = Collections.emptyList();
+                ackNow = true;
+            } else if (offset >= MAX_WINDOW_SIZE) {
+                // Beyond the window, the sender retransmits it once the gap is filled
+                return Collections.emptyList();
+            } else {
+                receiver.received |= 1L << offset;
+                receiver.buffer[(int) (counter % MAX_WINDOW_SIZE)] = message;
+                ready = new ArrayList<>(1);
+                while ((receiver.received & 1) != 0) {
+                    int index = (int) (receiver.next % MAX_WINDOW_SIZE);
+                    ready.add(receiver.buffer[index]);
+                    receiver.buffer[index] = null;
+                    receiver.received >>>= 1;
+                    receiver.next++;
+                }
+                delivered += ready.size();
+                ackNow = receiver.received != 0;
+                if (ackNow) {
+                    reordered++;
+                }
+            }
+            if (!ackNow) {
+                if (receiver.ackScheduled) {
+                    return ready;
+                }
+                receiver.ackScheduled = true;
+            }
+        }
+        if (ackNow) {
+            acknowledge(nodeId);
+        } else {
+            try {
+                scheduler.schedule(() -> acknowledge(nodeId), ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                acknowledge(nodeId);
+            }
+        }
+        return ready;
+    }
+
+    private void acknowledge(String nodeId) {
+        long seq;
+        long received;
+        synchronized (this) {
+            Receiver receiver = receivers.get(nodeId);
+            if (receiver == null) {
+                return;
+            }
+            receiver.ackScheduled = false;
+            seq = (receiver.epoch << 32) | receiver.next;
+            received = receiver.received;
+        }
+        MessageObject ack = outlet.createMessage(MessageObject.MessageType.acknowledgement,
+            ByteBuffer.allocate(8).putLong(received).array());
+        ack.seq = seq;
+        outlet.send(nodeId, ack, NO_CALLBACK);
+    }
+
+    /**
+     * Fail the callbacks of all messages that were not acknowledged, when the service is destroyed
+     *
+     * @param exception passed to the callbacks
+     */
+    void failAll(@NonNull Exception exception) {
+        List<Outbound> failed = new ArrayList<>();
+        synchronized (this) {
+            for (Sender sender : senders.values()) {
+                for (Outbound outbound : sender.window) {
+                    if (!outbound.acknowledged) {
+                        failed.add(outbound);
+                    }
+                }
+                failed.addAll(sender.waiting);
+                stopTimer(sender);
+            }
+            senders.clear();
+        }
+        for (Outbound outbound : failed) {
+            outbound.callback.onFailure(exception);
+        }
+    }
+
+    private static MessageObject copyOf(MessageObject message) {
+        MessageObject copy = new MessageObject(message.sender.platform, message.sender.direction,
+            message.sender.deviceId, message.type, message.data, message.timestamp);
+        copy.id = message.id;
+        copy.replyTo = message.replyTo;
+        copy.compressedData = message.compressedData;
+        return copy;
+    }
+
+    /**
+     * Get the messages in flight and waiting for the window, and the counters of the stream
+     *
+     * @return the statistics by name
+     */
+    @NonNull
+    synchronized Map<String, Object> getStats() {
+        int inFlight = 0;
+        int waiting = 0;
+        for (Sender sender : senders.values()) {
+            for (Outbound outbound : sender.window) {
+                if (!outbound.acknowledged) {
+                    inFlight++;
+                }
+            }
+            waiting += sender.waiting.size();
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("inFlight", (double) inFlight);
+        stats.put("waiting", (double) waiting);
+        stats.put("delivered", (double) delivered);
+        stats.put("retransmits", (double) retransmits);
+        stats.put("duplicates", (double) duplicates);
+        stats.put("reordered", (double) reordered);
+        stats.put("broken", (double) broken);
+        return stats;
+    }
+}
@@ -0,0 +1,295 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A key/value state replicated to the connected nodes as DataClient data items, for state of which
+ * only the newest value matters. Every key is a data item at prefix/key, the data layer syncs it to the
+ * nodes once they are connected and only keeps its newest value.
+ * <p>
+ * Writes are throttled per key, a key is put at most once per throttle interval and values written
+ * in between replace each other, so high frequency state does not put every intermediate value.
+ * Written and received values are kept in a cache that answers reads without Play Services,
+ * the value of a key is the one that was written or received last.
+ * <p>
+ * Values are the UTF-8 JSON of a map, keys are URL encoded in the path.
+ */
+final class ReplicatedState {
+
+    static final String DEFAULT_PREFIX = "/ommetje_state";
+    static final long DEFAULT_THROTTLE_MILLIS = 250;
+
+    private static final String TAG = "ReplicatedState";
+
+    /**
+     * Puts and deletes the data items of the keys
+     */
+    interface Outlet {
+        void put(@NonNull String path, @NonNull byte[] data, @NonNull MessageService.SendCallback callback);
+
+        void delete(@NonNull String path);
+    }
+
+    /**
+     * Called with the keys that changed in one batch of received data items, on the thread that received them
+     */
+    interface OnChangedListener {
+        /**
+         * @param changes the new value of every changed key, null for removed keys
+         */
+        void onStateChanged(@NonNull Map<String, byte[]> changes);
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Outlet outlet;
+    private final ConcurrentHashMap<String, byte[]> cache = new ConcurrentHashMap<>();
+    @Nullable
+    private volatile OnChangedListener listener;
+
+    // Guarded by this
+    private String prefix = DEFAULT_PREFIX;
+    private long throttleMillis = DEFAULT_THROTTLE_MILLIS;
+    /**
+     * Values written since the last flush, null removes the key
+     */
+    private final Map<String, byte[]> dirty = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+    private long lastFlush = 0;
+
+    private long writes = 0;
+    private long puts = 0;
+    private long coalesced = 0;
+    private long failures = 0;
+    private long received = 0;
+
+    /**
+     * @param scheduler runs the throttled flushes
+     * @param outlet    puts and deletes the data items
+     */
+    ReplicatedState(@NonNull ScheduledExecutorService scheduler, @NonNull Outlet outlet) {
+        this.scheduler = scheduler;
+        this.outlet = outlet;
+    }
+
+    /**
+     * @param prefix         the path under which the keys are stored, keys stored under another prefix are not read
+     * @param throttleMillis the minimum time between two puts of the state
+     */
+    synchronized void configure(@NonNull String prefix, long throttleMillis) {
+        String normalized = prefix.startsWith("/") ? prefix : "/" + prefix;
+        if (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        if (!normalized.equals(this.prefix)) {
+            // The cached keys belong to the old prefix
+            cache.clear();
+            this.prefix = normalized;
+        }
+        this.throttleMillis = Math.max(0, throttleMillis);
+    }
+
+    /**
+     * @return the path under which the keys are stored, without a trailing slash
+     */
+    @NonNull
+    synchronized String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @param listener called when received data items changed keys, null to remove it
+     */
+    void setListener(@Nullable OnChangedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Write the value of a key, it is put once the throttle interval has passed
+     *
+     * @param key   the key
+     * @param value the value, null removes the key
+     */
+    void set(@NonNull String key, @Nullable byte[] value) {
+        if (value == null) {
+            cache.remove(key);
+        } else {
+            cache.put(key, value);
+        }
+        synchronized (this) {
+            writes++;
+            if (dirty.containsKey(key)) {
+                coalesced++;
+            }
+            dirty.put(key, value);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+            long delayMillis = Math.max(0, lastFlush + throttleMillis - System.currentTimeMillis());
+            try {
+                scheduler.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flushScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * @return the newest value of a key, null if the key has no value
+     */
+    @Nullable
+    byte[] get(@NonNull String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * @return the newest value of every key
+     */
+    @NonNull
+    Map<String, byte[]> getAll() {
+        return new HashMap<>(cache);
+    }
+
+    /**
+     * Put the values written since the last flush
+     */
+    void flush() {
+        Map<String, byte[]> values;
+        String path;
+        synchronized (this) {
+            flushScheduled = false;
+            lastFlush = System.currentTimeMillis();
+            if (dirty.isEmpty()) {
+                return;
+            }
+            values = new LinkedHashMap<>(dirty);
+            dirty.clear();
+            path = prefix + "/";
+            puts += values.size();
+        }
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            String itemPath = path + encodeKey(entry.getKey());
+            if (entry.getValue() == null) {
+                outlet.delete(itemPath);
+                continue;
+            }
+            outlet.put(itemPath, entry.getValue(), new MessageService.SendCallback() {
+                @Override
+                public void onSuccess() {
+                }
+
+                @Override
+                public void onFailure(@NonNull Exception exception) {
+                    Log.w(TAG, "Cannot put state " + entry.getKey(), exception);
+                    synchronized (ReplicatedState.this) {
+                        failures++;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Check whether a data item belongs to the state
+     *
+     * @param path the path of the data item
+     * @return whether it is the value of a key
+     */
+    synchronized boolean accepts(@NonNull String path) {
+        return path.length() > prefix.length() + 1 && path.startsWith(prefix + "/");
+    }
+
+    /**
+     * Update the cache with a batch of received data items and call the listener once
+     *
+     * @param items the path and data of the changed items, null data for deleted items, in the order they changed
+     */
+    void receive(@NonNull List<Map.Entry<String, byte[]>> items) {
+        Map<String, byte[]> changes = new LinkedHashMap<>();
+        int start;
+        synchronized (this) {
+            start = prefix.length() + 1;
+            received += items.size();
+        }
+        for (Map.Entry<String, byte[]> item : items) {
+            String key = decodeKey(item.getKey().substring(start));
+            byte[] value = item.getValue();
+            if (value == null) {
+                cache.remove(key);
+            } else {
+                cache.put(key, value);
+            }
+            changes.put(key, value);
+        }
+        OnChangedListener changedListener = listener;
+        if (!changes.isEmpty() && changedListener != null) {
+            changedListener.onStateChanged(Collections.unmodifiableMap(changes));
+        }
+    }
+
+    /**
+     * Fill the cache with the data items that exist already, without calling the listener
+     *
+     * @param items the path and data of the items
+     */
+    void restore(@NonNull List<Map.Entry<String, byte[]>> items) {
+        int start;
+        synchronized (this) {
+            start = prefix.length() + 1;
+        }
+        for (Map.Entry<String, byte[]> item : items) {
+            String key = decodeKey(item.getKey().substring(start));
+            // A value written before the items were read is newer
+            cache.putIfAbsent(key, item.getValue());
+        }
+    }
+
+    private static String encodeKey(String key) {
+        try {
+            return URLEncoder.encode(key, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decodeKey(String segment) {
+        try {
+            return URLDecoder.decode(segment, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return segment;
+        }
+    }
+
+    /**
+     * Get the number of writes, the puts they resulted in and the received changes
+     *
+     * @return the statistics by name
+     */
+    @NonNull
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("keys", (double) cache.size());
+        stats.put("writes", (double) writes);
+        stats.put("puts", (double) puts);
+        stats.put("coalesced", (double) coalesced);
+        stats.put("failures", (double) failures);
+        stats.put("received", (double) received);
+        return stats;
+    }
+}
@@ -0,0 +1,158 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Correlates replies with the messages that are waiting for them.
+ * Every pending message has a timeout on a shared TimerWheel,
+ * the pending table is a ConcurrentHashMap so replies resolve without locking.
+ */
+final class ReplyRegistry {
+
+    /**
+     * Called with the reply to a message, or with an error when no reply arrived in time.
+     * Exactly one of the methods is called.
+     */
+    public interface ReplyCallback {
+        void onReply(@NonNull MessageObject reply);
+
+        void onError(@NonNull Exception exception);
+    }
+
+    /**
+     * Passed to the ReplyCallback when no reply arrived before the timeout
+     */
+    static final class ReplyTimeoutException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        ReplyTimeoutException(long timeoutMillis) {
+            super("No reply received within " + timeoutMillis + "ms");
+        }
+    }
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    private static final class Pending {
+        final ReplyCallback callback;
+        final long sentAt = System.nanoTime();
+        volatile TimerWheel.Timeout timeout;
+
+        Pending(ReplyCallback callback) {
+            this.callback = callback;
+        }
+
+        void cancelTimeout() {
+            TimerWheel.Timeout scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+    private final TimerWheel timerWheel;
+    /**
+     * Ids are seeded with the time, so they do not repeat ids of an earlier process
+     */
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() << 16);
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Milliseconds between sending a message and receiving its reply
+     */
+    final Histogram replyLatencies = new Histogram();
+
+    /**
+     * @param timerWheel the wheel the reply timeouts are scheduled on
+     */
+    ReplyRegistry(@NonNull TimerWheel timerWheel) {
+        this.timerWheel = timerWheel;
+    }
+
+    /**
+     * @return a new id for an outbound message, never 0
+     */
+    long nextId() {
+        return nextId.incrementAndGet();
+    }
+
+    /**
+     * Wait for the reply to a message
+     *
+     * @param id            the id of the sent message
+     * @param callback      called with the reply or the timeout
+     * @param timeoutMillis the time to wait for the reply
+     */
+    void register(long id, @NonNull ReplyCallback callback, long timeoutMillis) {
+        Pending entry = new Pending(callback);
+        pending.put(id, entry);
+        entry.timeout = timerWheel.schedule(() -> {
+            if (pending.remove(id, entry)) {
+                timeouts.incrementAndGet();
+                entry.callback.onError(new ReplyTimeoutException(timeoutMillis));
+            }
+        }, timeoutMillis);
+    }
+
+    /**
+     * Resolve the message a reply or acknowledgement belongs to
+     *
+     * @param reply the received reply, replyTo contains the id of the message
+     * @return false if no message is waiting for the reply, it may have timed out
+     */
+    boolean resolve(@NonNull MessageObject reply) {
+        Pending entry = pending.remove(reply.replyTo);
+        if (entry == null) {
+            return false;
+        }
+        entry.cancelTimeout();
+        replyLatencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.sentAt));
+        entry.callback.onReply(reply);
+        return true;
+    }
+
+    /**
+     * Stop waiting for the reply to a message, for example because sending it failed
+     *
+     * @param id        the id of the message
+     * @param exception passed to the callback
+     */
+    void fail(long id, @NonNull Exception exception) {
+        Pending entry = pending.remove(id);
+        if (entry != null) {
+            entry.cancelTimeout();
+            entry.callback.onError(exception);
+        }
+    }
+
+    /**
+     * Fail all pending messages, used when the service stops
+     *
+     * @param exception passed to the callbacks
+     */
+    void failAll(@NonNull Exception exception) {
+        for (Long id : pending.keySet()) {
+            fail(id, exception);
+        }
+    }
+
+    /**
+     * Get the number of pending replies, timeouts and the reply latency
+     *
+     * @return the statistics by name
+     */
+    @NonNull
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pending", (double) pending.size());
+        stats.put("timeouts", (double) timeouts.get());
+        stats.put("replyLatencyMs", replyLatencies.snapshot());
+        return stats;
+    }
+}
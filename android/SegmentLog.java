@@ -0,0 +1,398 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records in memory mapped segment files.
+ * Records are appended with a sequence number and removed by appending a delete record,
+ * segments of which all records are removed are deleted from disk.
+ * <p>
+ * Writes go to the mapped memory and are forced to disk in batches, at most syncDelay after the write,
+ * so many appends share a single fsync. A record that was torn by a crash fails its checksum
+ * and ends the recovery of its segment.
+ * <p>
+ * Segment layout, records are written back to back and the rest of the segment is zero:
+ * <pre>
+ *     byte    type, 0 marks the end of the segment
+ *     int     length of the payload
+ *     long    sequence number
+ *     int     CRC32 of the type, sequence number and payload
+ *     byte[]  payload
+ * </pre>
+ */
+final class SegmentLog implements Closeable {
+
+    static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    static final long DEFAULT_SYNC_DELAY_MILLIS = 50;
+
+    private static final byte TYPE_END = 0;
+    private static final byte TYPE_APPEND = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final int HEADER_SIZE = 1 + 4 + 8 + 4;
+    private static final String SUFFIX = ".log";
+    /**
+     * When there are more segments, the live records of the oldest segment are copied
+     * to the active segment so the oldest segment can be deleted
+     */
+    private static final int MAX_SEGMENTS = 4;
+
+    private static final class Segment {
+        final long index;
+        final File file;
+        final Set<Long> live = new HashSet<>();
+        MappedByteBuffer buffer;
+        /**
+         * The bytes of all records in the segment, and of its live records
+         */
+        long used;
+        long liveBytes;
+
+        Segment(long index, File file) {
+            this.index = index;
+            this.file = file;
+        }
+
+        void addLive(long seq, int length) {
+            if (live.add(seq)) {
+                liveBytes += HEADER_SIZE + length;
+            }
+        }
+
+        void removeLive(long seq, int length) {
+            if (live.remove(seq)) {
+                liveBytes -= HEADER_SIZE + length;
+            }
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final ScheduledExecutorService scheduler;
+    private final long syncDelayMillis;
+
+    private final List<Segment> segments = new ArrayList<>();
+    /**
+     * Payloads of the live records in order of their sequence number
+     */
+    private final TreeMap<Long, byte[]> records = new TreeMap<>();
+    private final Map<Long, Segment> locations = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+
+    private Segment active;
+    private long nextSeq = 1;
+    private boolean syncScheduled = false;
+    private boolean closed = false;
+
+    /**
+     * Open the log in a directory, the records of existing segments are recovered
+     *
+     * @param directory       the directory of the segment files, created when it does not exist
+     * @param scheduler       runs the batched syncs
+     * @param segmentSize     the size of a segment file
+     * @param syncDelayMillis the maximum time between a write and the sync that includes it
+     * @throws IOException when the directory or a segment cannot be read
+     */
+    SegmentLog(@NonNull File directory, @NonNull ScheduledExecutorService scheduler,
+               int segmentSize, long syncDelayMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.scheduler = scheduler;
+        this.syncDelayMillis = syncDelayMillis;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        recover();
+    }
+
+    SegmentLog(@NonNull File directory, @NonNull ScheduledExecutorService scheduler) throws IOException {
+        this(directory, scheduler, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_DELAY_MILLIS);
+    }
+
+    /**
+     * Append a record
+     *
+     * @param payload the data of the record
+     * @return the sequence number of the record
+     * @throws IOException when a new segment cannot be created
+     */
+    synchronized long append(@NonNull byte[] payload) throws IOException {
+        checkOpen();
+        long seq = nextSeq++;
+        write(TYPE_APPEND, seq, payload);
+        records.put(seq, payload);
+        locations.put(seq, active);
+        active.addLive(seq, payload.length);
+        scheduleSync();
+        return seq;
+    }
+
+    /**
+     * Remove a record, the segment it is in is deleted once all its records are removed
+     *
+     * @param seq the sequence number of the record
+     * @return false if there is no such record
+     * @throws IOException when a new segment cannot be created
+     */
+    synchronized boolean delete(long seq) throws IOException {
+        checkOpen();
+        byte[] payload = records.remove(seq);
+        if (payload == null) {
+            return false;
+        }
+        write(TYPE_DELETE, seq, new byte[0]);
+        Segment segment = locations.remove(seq);
+        if (segment != null) {
+            segment.removeLive(seq, payload.length);
+        }
+        compact();
+        scheduleSync();
+        return true;
+    }
+
+    /**
+     * @return the live records in order of their sequence number
+     */
+    @NonNull
+    synchronized SortedMap<Long, byte[]> getRecords() {
+        return new TreeMap<>(records);
+    }
+
+    /**
+     * @return the number of live records
+     */
+    synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     * Force all written records to disk
+     */
+    synchronized void sync() {
+        syncScheduled = false;
+        if (!closed && active != null) {
+            active.buffer.force();
+        }
+    }
+
+    /**
+     * Sync and close the log, it cannot be used afterwards
+     */
+    @Override
+    public synchronized void close() {
+        sync();
+        closed = true;
+        for (Segment segment : segments) {
+            segment.buffer = null;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Log is closed");
+        }
+    }
+
+    private void scheduleSync() {
+        if (!syncScheduled) {
+            syncScheduled = true;
+            try {
+                scheduler.schedule(this::sync, syncDelayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The scheduler is shutting down, sync right away instead
+                sync();
+            }
+        }
+    }
+
+    private void write(byte type, long seq, byte[] payload) throws IOException {
+        int size = HEADER_SIZE + payload.length;
+        if (active == null || active.buffer.remaining() < size + 1) {
+            roll(size + 1);
+        }
+        MappedByteBuffer buffer = active.buffer;
+        buffer.put(type);
+        buffer.putInt(payload.length);
+        buffer.putLong(seq);
+        buffer.putInt(checksum(type, seq, payload));
+        buffer.put(payload);
+        active.used += size;
+    }
+
+    private int checksum(byte type, long seq, byte[] payload) {
+        crc.reset();
+        crc.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (seq >>> shift));
+        }
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Start a new active segment, large enough for a record of the size
+     */
+    private void roll(int minimumSize) throws IOException {
+        if (active != null) {
+            active.buffer.force();
+        }
+        long index = active == null ? 0 : active.index + 1;
+        Segment segment = new Segment(index, new File(directory, String.format("%020d%s", index, SUFFIX)));
+        segment.buffer = map(segment.file, Math.max(segmentSize, minimumSize));
+        segments.add(segment);
+        active = segment;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+
+    /**
+     * Delete the oldest segments without live records. Only a prefix of the segments is deleted,
+     * as later segments contain the delete records of records in earlier segments.
+     * When there are too many segments the live records of the oldest are copied to the active segment.
+     * The copies can fill new segments, so a segment is only copied when at most half of it is live,
+     * which shrinks the log with every copy. A segment that is mostly live is copied once the log has
+     * twice as many segments, and then only one per call.
+     */
+    private void compact() throws IOException {
+        boolean copiedMostlyLive = false;
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (!oldest.live.isEmpty()) {
+                boolean mostlyLive = oldest.liveBytes * 2 > oldest.used;
+                if (segments.size() <= MAX_SEGMENTS
+                    || (mostlyLive && (copiedMostlyLive || segments.size() <= 2 * MAX_SEGMENTS))) {
+                    return;
+                }
+                copiedMostlyLive |= mostlyLive;
+                List<Long> copies = new ArrayList<>(oldest.live);
+                Collections.sort(copies);
+                for (Long seq : copies) {
+                    byte[] payload = records.get(seq);
+                    write(TYPE_APPEND, seq, payload);
+                    locations.put(seq, active);
+                    active.addLive(seq, payload.length);
+                }
+                oldest.live.clear();
+                oldest.liveBytes = 0;
+                // The copies must be on disk before the originals are deleted
+                active.buffer.force();
+            }
+            segments.remove(0);
+            oldest.buffer = null;
+            if (!oldest.file.delete()) {
+                throw new IOException("Cannot delete " + oldest.file);
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            long index;
+            try {
+                index = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = new Segment(index, file);
+            segment.buffer = map(file, file.length());
+            segments.add(segment);
+            active = segment;
+            recoverSegment(segment);
+        }
+        for (Segment segment : segments) {
+            if (segment != active) {
+                segment.buffer = null;
+            }
+        }
+        // Re-run compaction, a crash may have happened before deleting an empty segment
+        if (active != null) {
+            compact();
+        }
+    }
+
+    private void recoverSegment(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            byte type = buffer.get();
+            if (type == TYPE_END) {
+                buffer.position(start);
+                return;
+            }
+            int length = buffer.getInt();
+            long seq = buffer.getLong();
+            int checksum = buffer.getInt();
+            if ((type != TYPE_APPEND && type != TYPE_DELETE) || length < 0 || length > buffer.remaining()) {
+                truncate(buffer, start);
+                return;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (checksum(type, seq, payload) != checksum) {
+                truncate(buffer, start);
+                return;
+            }
+            nextSeq = Math.max(nextSeq, seq + 1);
+            segment.used += HEADER_SIZE + length;
+            if (type == TYPE_APPEND) {
+                Segment previous = locations.put(seq, segment);
+                byte[] original = records.put(seq, payload);
+                if (previous != null && original != null) {
+                    previous.removeLive(seq, original.length);
+                }
+                segment.addLive(seq, payload.length);
+            } else {
+                byte[] deleted = records.remove(seq);
+                Segment previous = locations.remove(seq);
+                if (previous != null && deleted != null) {
+                    previous.removeLive(seq, deleted.length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Zero a torn record and everything after it, so later writes are not followed by its remains
+     */
+    private static void truncate(MappedByteBuffer buffer, int position) {
+        buffer.position(position);
+        while (buffer.hasRemaining()) {
+            buffer.put(TYPE_END);
+        }
+        buffer.position(position);
+        buffer.force();
+    }
+}
@@ -0,0 +1,349 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of outbound messages, drained by a single worker thread.
+ * Control messages (start, stop, acknowledgement, reply) are always taken before other messages,
+ * when the queue is full the OverflowPolicy decides which message is given up.
+ */
+final class SendQueue {
+
+    /**
+     * What happens when a message is offered to a full queue
+     */
+    enum OverflowPolicy {
+        /**
+         * Drop the oldest message of the lowest priority to make room
+         */
+        dropOldest,
+        /**
+         * Drop the offered message, its callback fails as if it was dropped from the queue
+         */
+        dropNewest,
+        /**
+         * Refuse the offered message, its callback fails with the capacity of the queue
+         */
+        reject
+    }
+
+    /**
+     * Thrown to the callback of a message that was dropped or rejected
+     */
+    static final class QueueFullException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        QueueFullException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Handles a message taken from the queue, called on the worker thread
+     */
+    interface Consumer {
+        void accept(@NonNull Entry entry);
+    }
+
+    /**
+     * A queued message
+     */
+    static final class Entry {
+        final MessageObject message;
+        /**
+         * The node to send the message to, null to send it to all connected nodes
+         */
+        @Nullable
+        final String nodeId;
+        final boolean urgent;
+        @Nullable
+        final MessageService.SendCallback callback;
+        /**
+         * The sequence number of the message in the outbox, 0 when it is not persisted
+         */
+        final long outboxSeq;
+        /**
+         * Whether the message is sent in the ReliableStream to every node
+         */
+        final boolean reliable;
+        final long enqueuedAt = System.nanoTime();
+
+        Entry(@NonNull MessageObject message, boolean urgent, @Nullable MessageService.SendCallback callback) {
+            this(message, null, urgent, callback);
+        }
+
+        Entry(@NonNull MessageObject message, @Nullable String nodeId, boolean urgent,
+              @Nullable MessageService.SendCallback callback) {
+            this(message, nodeId, urgent, callback, 0);
+        }
+
+        Entry(@NonNull MessageObject message, @Nullable String nodeId, boolean urgent,
+              @Nullable MessageService.SendCallback callback, long outboxSeq) {
+            this(message, nodeId, urgent, callback, outboxSeq, false);
+        }
+
+        Entry(@NonNull MessageObject message, @Nullable String nodeId, boolean urgent,
+              @Nullable MessageService.SendCallback callback, long outboxSeq, boolean reliable) {
+            this.message = message;
+            this.nodeId = nodeId;
+            this.urgent = urgent;
+            this.callback = callback;
+            this.outboxSeq = outboxSeq;
+            this.reliable = reliable;
+        }
+
+        void fail(Exception exception) {
+            if (callback != null) {
+                callback.onFailure(exception);
+            }
+        }
+    }
+
+    static final int DEFAULT_CAPACITY = 256;
+
+    private static final String TAG = "SendQueue";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Entry> control = new ArrayDeque<>();
+    private final ArrayDeque<Entry> data = new ArrayDeque<>();
+    private final Consumer consumer;
+    private final Consumer discarded;
+    private final Thread worker;
+
+    private int capacity = DEFAULT_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.dropOldest;
+    private volatile boolean running = true;
+
+    /**
+     * Milliseconds messages spent in the queue before they were taken
+     */
+    final Histogram queueTimes = new Histogram();
+    final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param consumer handles the messages taken from the queue
+     */
+    SendQueue(@NonNull Consumer consumer) {
+        this(consumer, entry -> {
+        });
+    }
+
+    /**
+     * @param consumer  handles the messages taken from the queue
+     * @param discarded called with every message that is dropped, rejected or failed on close instead of
+     *                  being taken, after its callback failed, to release the resources of the message
+     */
+    SendQueue(@NonNull Consumer consumer, @NonNull Consumer discarded) {
+        this.consumer = consumer;
+        this.discarded = discarded;
+        this.worker = new Thread(this::drain, TAG);
+        this.worker.start();
+    }
+
+    /**
+     * @param capacity       the maximum number of queued messages
+     * @param overflowPolicy what to do when the queue is full
+     */
+    void configure(int capacity, @NonNull OverflowPolicy overflowPolicy) {
+        ArrayDeque<Entry> evicted = new ArrayDeque<>();
+        lock.lock();
+        try {
+            this.capacity = Math.max(1, capacity);
+            this.overflowPolicy = overflowPolicy;
+            while (size() > this.capacity) {
+                evicted.add(dropOldestLocked());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Entry entry : evicted) {
+            discard(entry, new QueueFullException("Dropped after the send queue was shrunk"));
+        }
+    }
+
+    /**
+     * Whether a message is sent ahead of other messages
+     *
+     * @param type the type of the message
+     * @return true for control messages
+     */
+    static boolean isControl(@NonNull MessageObject.MessageType type) {
+        switch (type) {
+            case start:
+            case stop:
+            case acknowledgement:
+            case reply:
+            case applicationContextAck:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Add a message to the queue, applying the overflow policy when the queue is full.
+     * The callback of a message that is not queued is failed before this returns.
+     *
+     * @param entry the message to add
+     * @return false if the message was not queued
+     */
+    boolean offer(@NonNull Entry entry) {
+        Entry evicted = null;
+        Exception rejection = null;
+        lock.lock();
+        try {
+            if (!running) {
+                rejection = new IllegalStateException("Send queue is closed");
+            } else if (size() >= capacity) {
+                switch (overflowPolicy) {
+                    case dropOldest:
+                        // Control messages are never given up for a message of lower priority
+                        if (data.isEmpty() && !isControl(entry.message.type)) {
+                            dropped.incrementAndGet();
+                            rejection = new QueueFullException("Send queue is full of control messages");
+                        } else {
+                            evicted = dropOldestLocked();
+                        }
+                        break;
+                    case dropNewest:
+                        dropped.incrementAndGet();
+                        rejection = new QueueFullException("Dropped from a full send queue");
+                        break;
+                    case reject:
+                        dropped.incrementAndGet();
+                        rejection = new QueueFullException("Send queue is full (" + capacity + " messages)");
+                        break;
+                }
+            }
+            if (rejection == null) {
+                (isControl(entry.message.type) ? control : data).addLast(entry);
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Callbacks are called outside of the lock, they may call back into the queue
+        if (evicted != null) {
+            Log.w(TAG, "Send queue is full, dropped the oldest message");
+            discard(evicted, new QueueFullException("Dropped from a full send queue"));
+        }
+        if (rejection != null) {
+            discard(entry, rejection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of queued messages
+     */
+    int getDepth() {
+        lock.lock();
+        try {
+            return size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the queue depth, time in queue and number of dropped messages
+     *
+     * @return the statistics by name
+     */
+    @NonNull
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("depth", (double) getDepth());
+        stats.put("dropped", (double) dropped.get());
+        stats.put("queueTimeMs", queueTimes.snapshot());
+        return stats;
+    }
+
+    /**
+     * Stop the worker, messages that are still queued are failed
+     */
+    void close() {
+        ArrayDeque<Entry> remaining = new ArrayDeque<>();
+        lock.lock();
+        try {
+            running = false;
+            remaining.addAll(control);
+            remaining.addAll(data);
+            control.clear();
+            data.clear();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        worker.interrupt();
+        for (Entry entry : remaining) {
+            discard(entry, new IllegalStateException("Send queue is closed"));
+        }
+    }
+
+    private void discard(Entry entry, Exception exception) {
+        entry.fail(exception);
+        discarded.accept(entry);
+    }
+
+    private int size() {
+        return control.size() + data.size();
+    }
+
+    /**
+     * Drop the oldest data message, or the oldest control message when only control messages are queued
+     */
+    private Entry dropOldestLocked() {
+        dropped.incrementAndGet();
+        return data.isEmpty() ? control.pollFirst() : data.pollFirst();
+    }
+
+    private Entry take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (running && control.isEmpty() && data.isEmpty()) {
+                notEmpty.await();
+            }
+            if (!running) {
+                return null;
+            }
+            return control.isEmpty() ? data.pollFirst() : control.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        while (running) {
+            Entry entry;
+            try {
+                entry = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (entry == null) {
+                return;
+            }
+            queueTimes.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.enqueuedAt));
+            try {
+                consumer.accept(entry);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to send message", e);
+                entry.fail(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.canvasheroes.ommetje;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binds the MessageService on first use and keeps it bound.
+ * <p>
+ * Nothing is started or bound until the first call, so creating the module costs nothing at app start.
+ * Calls made before the service is connected wait in a bounded buffer and are replayed in order once it is,
+ * calls that overflow the buffer or wait longer than the bind timeout fail. Calls made while the service is
+ * connected run right away on the executor.
+ * <p>
+ * When the service process dies the system reconnects it by itself, the binding is only renewed
+ * when the system reports the binding as dead or does not reconnect within the bind timeout.
+ * Renewals that do not connect either are retried with a doubling delay.
+ */
+final class ServiceBinding {
+
+    static final int DEFAULT_MAX_PENDING_CALLS = 256;
+    static final long MAX_REBIND_DELAY_MILLIS = 60_000;
+
+    private static final String TAG = "ServiceBinding";
+
+    /**
+     * A call that needs the connected MessageService
+     */
+    interface Call {
+        void call(@NonNull MessageService service) throws Exception;
+    }
+
+    /**
+     * Why a call did not run
+     */
+    enum Reason {
+        /**
+         * The service was not connected within the bind timeout
+         */
+        unavailable,
+        /**
+         * The buffer of calls waiting for the service was full
+         */
+        overflow,
+        /**
+         * The call threw
+         */
+        failed
+    }
+
+    interface OnFailed {
+        void onFailed(@NonNull Reason reason, @NonNull Exception exception);
+    }
+
+    /**
+     * Called on the main thread when the service is connected or lost, to add and remove listeners
+     */
+    interface Listener {
+        void onConnected(@NonNull MessageService service);
+
+        void onDisconnected(@NonNull MessageService service);
+    }
+
+    private static final class PendingCall {
+        final Call call;
+        final OnFailed onFailed;
+        final long enqueuedAt = System.nanoTime();
+
+        PendingCall(Call call, OnFailed onFailed) {
+            this.call = call;
+            this.onFailed = onFailed;
+        }
+    }
+
+    private final Context context;
+    private final ScheduledExecutorService executor;
+    private final Listener listener;
+    private final int maxPendingCalls;
+    private final long bindTimeoutMillis;
+    private final Connection connection = new Connection();
+
+    @Nullable
+    private volatile MessageService service;
+
+    // Guarded by this
+    private final ArrayDeque<PendingCall> pending = new ArrayDeque<>();
+    private boolean binding = false;
+    private boolean released = false;
+    private boolean expiryScheduled = false;
+    private long bindStartedAt = 0;
+    private long rebindDelayMillis;
+
+    private long bindMillis = -1;
+    private long binds = 0;
+    private long rebinds = 0;
+    private long disconnects = 0;
+    private long replayed = 0;
+    private long overflowed = 0;
+    private long expired = 0;
+
+    /**
+     * @param context           the application context
+     * @param executor          runs the calls, in the order they were made
+     * @param listener          called when the service is connected or lost
+     * @param maxPendingCalls   the maximum number of calls waiting for the service
+     * @param bindTimeoutMillis the time a call waits for the service and the time a lost service gets to reconnect
+     */
+    ServiceBinding(@NonNull Context context, @NonNull ScheduledExecutorService executor, @NonNull Listener listener,
+                   int maxPendingCalls, long bindTimeoutMillis) {
+        this.context = context;
+        this.executor = executor;
+        this.listener = listener;
+        this.maxPendingCalls = Math.max(1, maxPendingCalls);
+        this.bindTimeoutMillis = bindTimeoutMillis;
+        this.rebindDelayMillis = bindTimeoutMillis;
+    }
+
+    /**
+     * Get the service for calls that can not wait, binding it if that did not happen yet
+     *
+     * @return the service, null when it is not connected
+     */
+    @Nullable
+    MessageService get() {
+        MessageService current = service;
+        if (current == null) {
+            bind();
+        }
+        return current;
+    }
+
+    /**
+     * Start and bind the service, if it is not bound or being bound
+     */
+    synchronized void bind() {
+        if (binding || released) {
+            return;
+        }
+        binding = true;
+        bindStartedAt = System.nanoTime();
+        binds++;
+        Intent intent = new Intent(context, MessageService.class);
+        try {
+            // Started as well, so it keeps receiving messages while no module is bound
+            context.startService(intent);
+        } catch (RuntimeException e) {
+            // Starting a service from the background is not allowed on Android 8 and later, binding is
+            Log.w(TAG, "Cannot start the MessageService, it only runs while it is bound", e);
+        }
+        if (!context.bindService(intent, connection, Context.BIND_AUTO_CREATE)) {
+            Log.e(TAG, "Cannot bind the MessageService");
+        }
+        scheduleExpiry(bindTimeoutMillis);
+    }
+
+    /**
+     * Run a call on the executor once the service is connected
+     *
+     * @param call     the call
+     * @param onFailed called when the call did not run or threw
+     */
+    void run(@NonNull Call call, @NonNull OnFailed onFailed) {
+        MessageService current = service;
+        if (current == null) {
+            synchronized (this) {
+                current = service;
+                if (current == null) {
+                    if (released) {
+                        onFailed.onFailed(Reason.unavailable, new IllegalStateException("MessageService was released"));
+                        return;
+                    }
+                    if (pending.size() >= maxPendingCalls) {
+                        overflowed++;
+                        onFailed.onFailed(Reason.overflow,
+                            new IllegalStateException(maxPendingCalls + " calls are waiting for the MessageService"));
+                        return;
+                    }
+                    pending.addLast(new PendingCall(call, onFailed));
+                    bind();
+                    return;
+                }
+            }
+        }
+        execute(current, call, onFailed);
+    }
+
+    private void execute(MessageService current, Call call, OnFailed onFailed) {
+        try {
+            executor.execute(() -> {
+                try {
+                    call.call(current);
+                } catch (Exception e) {
+                    onFailed.onFailed(Reason.failed, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            onFailed.onFailed(Reason.unavailable, e);
+        }
+    }
+
+    /**
+     * Unbind the service and fail the calls that wait for it
+     */
+    void release() {
+        MessageService current;
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            current = service;
+            service = null;
+            if (binding) {
+                binding = false;
+                try {
+                    context.unbindService(connection);
+                } catch (IllegalArgumentException e) {
+                    // Not bound
+                }
+            }
+        }
+        if (current != null) {
+            listener.onDisconnected(current);
+        }
+        failPending(0);
+    }
+
+    private synchronized void scheduleExpiry(long delayMillis) {
+        if (expiryScheduled) {
+            return;
+        }
+        expiryScheduled = true;
+        try {
+            executor.schedule(this::expire, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            expiryScheduled = false;
+        }
+    }
+
+    /**
+     * Fail the calls that waited longer than the bind timeout, and renew a binding that did not connect in time
+     */
+    private void expire() {
+        boolean renew;
+        synchronized (this) {
+            expiryScheduled = false;
+            if (service != null || released || (!binding && pending.isEmpty())) {
+                return;
+            }
+            renew = binding && System.nanoTime() - bindStartedAt >= TimeUnit.MILLISECONDS.toNanos(rebindDelayMillis);
+        }
+        failPending(TimeUnit.MILLISECONDS.toNanos(bindTimeoutMillis));
+        if (renew) {
+            rebind();
+        } else {
+            scheduleExpiry(bindTimeoutMillis);
+        }
+    }
+
+    private void failPending(long olderThanNanos) {
+        List<PendingCall> failed = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            PendingCall oldest;
+            while ((oldest = pending.peekFirst()) != null && now - oldest.enqueuedAt >= olderThanNanos) {
+                failed.add(pending.pollFirst());
+            }
+            expired += failed.size();
+        }
+        for (PendingCall call : failed) {
+            call.onFailed.onFailed(Reason.unavailable, new IllegalStateException("MessageService is not bound"));
+        }
+    }
+
+    private void rebind() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            rebinds++;
+            rebindDelayMillis = Math.min(rebindDelayMillis * 2, MAX_REBIND_DELAY_MILLIS);
+            if (binding) {
+                binding = false;
+                try {
+                    context.unbindService(connection);
+                } catch (IllegalArgumentException e) {
+                    // Not bound
+                }
+            }
+        }
+        bind();
+    }
+
+    private final class Connection implements ServiceConnection {
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            MessageService connected = ((MessageService.MessageBinder) binder).getService();
+            List<PendingCall> calls;
+            synchronized (ServiceBinding.this) {
+                if (released) {
+                    return;
+                }
+                listener.onConnected(connected);
+                rebindDelayMillis = bindTimeoutMillis;
+                if (bindMillis < 0) {
+                    bindMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - bindStartedAt);
+                }
+                calls = new ArrayList<>(pending);
+                pending.clear();
+                replayed += calls.size();
+                // Queued behind the replayed calls, so new calls can not overtake them
+                for (PendingCall call : calls) {
+                    execute(connected, call.call, call.onFailed);
+                }
+                service = connected;
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            MessageService lost;
+            synchronized (ServiceBinding.this) {
+                lost = service;
+                service = null;
+                if (lost != null) {
+                    disconnects++;
+                }
+                // The system reconnects by itself, the binding is renewed if it does not within the timeout
+                bindStartedAt = System.nanoTime();
+            }
+            if (lost != null) {
+                listener.onDisconnected(lost);
+            }
+            scheduleExpiry(bindTimeoutMillis);
+        }
+
+        @Override
+        public void onBindingDied(ComponentName name) {
+            Log.w(TAG, "The binding of the MessageService died, binding it again");
+            onServiceDisconnected(name);
+            rebind();
+        }
+
+        @Override
+        public void onNullBinding(ComponentName name) {
+            Log.e(TAG, "The MessageService can not be bound");
+            failPending(0);
+        }
+    }
+
+    /**
+     * Get the time the first bind took and how often the service was bound, lost and bound again
+     *
+     * @return the statistics by name
+     */
+    @NonNull
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("bound", service != null);
+        stats.put("bindMs", bindMillis < 0 ? null : (double) bindMillis);
+        stats.put("binds", (double) binds);
+        stats.put("rebinds", (double) rebinds);
+        stats.put("disconnects", (double) disconnects);
+        stats.put("pending", (double) pending.size());
+        stats.put("replayed", (double) replayed);
+        stats.put("overflowed", (double) overflowed);
+        stats.put("expired", (double) expired);
+        return stats;
+    }
+}
@@ -0,0 +1,273 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes the samples of a telemetry channel as one columnar frame.
+ * <p>
+ * A frame stores the timestamps as one column and every dimension of the values as a column of its own,
+ * so the differences between consecutive samples are small and encode in few bytes.
+ * Timestamps are delta-of-delta encoded, a channel sampled at a steady rate costs one byte per timestamp.
+ * Integer values are delta encoded, float values are XORed with the previous value of their column,
+ * so repeated values cost one byte and slowly changing values only their changed bytes.
+ * <p>
+ * Frame, varints are unsigned LEB128, zigzag varints encode signed values and all other integers are big endian:
+ * <pre>
+ *   byte    MAGIC
+ *   byte    VERSION
+ *   varint  length of the channel name
+ *   byte[]  UTF-8 channel name
+ *   byte    value type ordinal
+ *   varint  number of dimensions
+ *   varint  number of samples
+ *   timestamps, only if there are samples:
+ *     zigzag varlong  first timestamp in epoch milliseconds
+ *     zigzag varlong  delta to the first timestamp, only if there are two samples or more
+ *     zigzag varlong  delta of the delta to the previous delta, for every further sample
+ *   values, one column per dimension, only if there are samples:
+ *     integer:
+ *       zigzag varlong  first value
+ *       zigzag varlong  delta to the previous value, for every further sample
+ *     floating:
+ *       long    bits of the first value
+ *       for every further sample, the bits XORed with those of the previous value:
+ *         byte    0 if the XOR is 0, otherwise the number of leading zero bytes in the high nibble
+ *                 and the number of meaningful bytes in the low nibble
+ *         byte[]  the meaningful bytes of the XOR
+ * </pre>
+ */
+final class TelemetryCodec {
+
+    /**
+     * First byte of a frame, differs from the MessageCodec frames and can never start a JSON document
+     */
+    static final byte MAGIC = (byte) 0xB8;
+    static final byte VERSION = 1;
+    /**
+     * The maximum number of values per sample
+     */
+    static final int MAX_DIMENSIONS = 64;
+
+    /**
+     * The type of the values of a channel
+     */
+    enum ValueType {
+        /**
+         * Whole numbers such as a heart rate, values are rounded when they are encoded
+         */
+        integer,
+        /**
+         * Doubles such as acceleration
+         */
+        floating
+    }
+
+    private static final ValueType[] VALUE_TYPES = ValueType.values();
+
+    /**
+     * The samples of one frame, values are interleaved by sample
+     */
+    static final class Frame {
+        @NonNull
+        final String channel;
+        @NonNull
+        final ValueType type;
+        final int dimensions;
+        final int count;
+        @NonNull
+        final long[] timestamps;
+        /**
+         * Value d of sample i is at i * dimensions + d
+         */
+        @NonNull
+        final double[] values;
+
+        Frame(@NonNull String channel, @NonNull ValueType type, int dimensions, int count,
+              @NonNull long[] timestamps, @NonNull double[] values) {
+            this.channel = channel;
+            this.type = type;
+            this.dimensions = dimensions;
+            this.count = count;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    private TelemetryCodec() {
+    }
+
+    /**
+     * @return the maximum size of a frame of the samples, to size the buffer passed to encode
+     */
+    static int maxSize(@NonNull byte[] channel, int dimensions, int count) {
+        // A zigzag varlong takes at most 10 bytes, an XORed float at most 9
+        return 2 + MessageCodec.varIntSize(channel.length) + channel.length + 1
+            + MessageCodec.varIntSize(dimensions) + MessageCodec.varIntSize(count)
+            + 10 * count + 10 * count * dimensions;
+    }
+
+    /**
+     * Encode samples into a buffer
+     *
+     * @param channel    the UTF-8 name of the channel
+     * @param type       the type of the values
+     * @param dimensions the number of values per sample
+     * @param count      the number of samples
+     * @param timestamps the timestamps of the samples, at least count
+     * @param values     the values interleaved by sample, at least count * dimensions
+     * @param out        receives the frame, with at least maxSize remaining
+     */
+    static void encode(@NonNull byte[] channel, @NonNull ValueType type, int dimensions, int count,
+                       @NonNull long[] timestamps, @NonNull double[] values, @NonNull ByteBuffer out) {
+        out.put(MAGIC);
+        out.put(VERSION);
+        MessageCodec.putVarInt(out, channel.length);
+        out.put(channel);
+        out.put((byte) type.ordinal());
+        MessageCodec.putVarInt(out, dimensions);
+        MessageCodec.putVarInt(out, count);
+        if (count == 0) {
+            return;
+        }
+        putZigZag(out, timestamps[0]);
+        long previousDelta = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = timestamps[i] - timestamps[i - 1];
+            putZigZag(out, delta - previousDelta);
+            previousDelta = delta;
+        }
+        for (int d = 0; d < dimensions; d++) {
+            if (type == ValueType.integer) {
+                long previous = Math.round(values[d]);
+                putZigZag(out, previous);
+                for (int i = 1; i < count; i++) {
+                    long value = Math.round(values[i * dimensions + d]);
+                    putZigZag(out, value - previous);
+                    previous = value;
+                }
+            } else {
+                long previous = Double.doubleToLongBits(values[d]);
+                out.putLong(previous);
+                for (int i = 1; i < count; i++) {
+                    long bits = Double.doubleToLongBits(values[i * dimensions + d]);
+                    putXor(out, bits ^ previous);
+                    previous = bits;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode a frame
+     *
+     * @param data the frame
+     * @return the samples
+     * @throws MessageCodec.MalformedMessageException when the data is not a valid frame
+     */
+    @NonNull
+    static Frame decode(@NonNull byte[] data) throws MessageCodec.MalformedMessageException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            if (in.get() != MAGIC) {
+                throw new MessageCodec.MalformedMessageException("Not a telemetry frame");
+            }
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new MessageCodec.MalformedMessageException("Unsupported telemetry version " + version);
+            }
+            int nameLength = MessageCodec.getVarInt(in);
+            if (nameLength < 0 || nameLength > in.remaining()) {
+                throw new MessageCodec.MalformedMessageException("Invalid channel name length " + nameLength);
+            }
+            String channel = new String(data, in.position(), nameLength, StandardCharsets.UTF_8);
+            in.position(in.position() + nameLength);
+            int typeOrdinal = in.get();
+            if (typeOrdinal < 0 || typeOrdinal >= VALUE_TYPES.length) {
+                throw new MessageCodec.MalformedMessageException("Unknown value type " + typeOrdinal);
+            }
+            ValueType type = VALUE_TYPES[typeOrdinal];
+            int dimensions = MessageCodec.getVarInt(in);
+            int count = MessageCodec.getVarInt(in);
+            // Every sample takes at least a byte per column, which bounds the arrays by the size of the frame
+            if (dimensions < 1 || dimensions > MAX_DIMENSIONS || count < 0
+                || (long) count * ((long) dimensions + 1) > in.remaining()) {
+                throw new MessageCodec.MalformedMessageException(
+                    "Invalid frame of " + count + " samples of " + dimensions + " values");
+            }
+            long[] timestamps = new long[count];
+            double[] values = new double[count * dimensions];
+            if (count > 0) {
+                timestamps[0] = getZigZag(in);
+                long delta = 0;
+                for (int i = 1; i < count; i++) {
+                    delta += getZigZag(in);
+                    timestamps[i] = timestamps[i - 1] + delta;
+                }
+            }
+            for (int d = 0; d < dimensions && count > 0; d++) {
+                if (type == ValueType.integer) {
+                    long value = getZigZag(in);
+                    values[d] = value;
+                    for (int i = 1; i < count; i++) {
+                        value += getZigZag(in);
+                        values[i * dimensions + d] = value;
+                    }
+                } else {
+                    long bits = in.getLong();
+                    values[d] = Double.longBitsToDouble(bits);
+                    for (int i = 1; i < count; i++) {
+                        bits ^= getXor(in);
+                        values[i * dimensions + d] = Double.longBitsToDouble(bits);
+                    }
+                }
+            }
+            return new Frame(channel, type, dimensions, count, timestamps, values);
+        } catch (BufferUnderflowException e) {
+            throw new MessageCodec.MalformedMessageException("Truncated telemetry frame", e);
+        }
+    }
+
+    private static void putZigZag(ByteBuffer out, long value) {
+        MessageCodec.putVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static long getZigZag(ByteBuffer in) throws MessageCodec.MalformedMessageException {
+        long value = MessageCodec.getVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void putXor(ByteBuffer out, long xor) {
+        if (xor == 0) {
+            out.put((byte) 0);
+            return;
+        }
+        int leading = Long.numberOfLeadingZeros(xor) >>> 3;
+        int trailing = Long.numberOfTrailingZeros(xor) >>> 3;
+        int meaningful = 8 - leading - trailing;
+        out.put((byte) (leading << 4 | meaningful));
+        for (int shift = (meaningful + trailing - 1) * 8; shift >= trailing * 8; shift -= 8) {
+            out.put((byte) (xor >>> shift));
+        }
+    }
+
+    private static long getXor(ByteBuffer in) throws MessageCodec.MalformedMessageException {
+        int header = in.get() & 0xFF;
+        if (header == 0) {
+            return 0;
+        }
+        int leading = header >>> 4;
+        int meaningful = header & 0x0F;
+        if (meaningful == 0 || leading + meaningful > 8) {
+            throw new MessageCodec.MalformedMessageException("Invalid float header " + header);
+        }
+        long xor = 0;
+        for (int i = 0; i < meaningful; i++) {
+            xor = xor << 8 | (in.get() & 0xFF);
+        }
+        return xor << ((8 - leading - meaningful) * 8);
+    }
+}
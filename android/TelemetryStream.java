@@ -0,0 +1,312 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams numeric samples, such as a heart rate or acceleration, over named channels.
+ * <p>
+ * A channel accumulates its samples in primitive arrays, without a MessageObject or boxed value per sample,
+ * and sends them as one TelemetryCodec frame once it holds maxSamples samples or once flushIntervalMillis
+ * has passed since its first unsent sample, whichever comes first. The arrays are reused for the next frame.
+ * Samples are sent to every connected node and are not retried, the next frame carries newer samples anyway.
+ */
+final class TelemetryStream {
+
+    static final String PATH = "/ommetje_telemetry";
+    static final int DEFAULT_MAX_SAMPLES = 64;
+    static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final String TAG = "TelemetryStream";
+
+    /**
+     * Sends the frames
+     */
+    interface Outlet {
+        void send(@NonNull byte[] frame, @NonNull MessageService.SendCallback callback);
+    }
+
+    /**
+     * Called with every received frame, on the thread that received it
+     */
+    interface OnFrameListener {
+        void onFrame(@NonNull String sourceNodeId, @NonNull TelemetryCodec.Frame frame);
+    }
+
+    /**
+     * The samples of a channel that were not sent yet
+     */
+    private final class Channel {
+        final String name;
+        final byte[] encodedName;
+        final TelemetryCodec.ValueType type;
+        final int dimensions;
+        final int maxSamples;
+        final long flushIntervalMillis;
+        final long[] timestamps;
+        final double[] values;
+        final ByteBuffer buffer;
+        int count;
+        boolean flushScheduled;
+
+        Channel(String name, TelemetryCodec.ValueType type, int dimensions, int maxSamples, long flushIntervalMillis) {
+            this.name = name;
+            this.encodedName = name.getBytes(StandardCharsets.UTF_8);
+            this.type = type;
+            this.dimensions = dimensions;
+            this.maxSamples = maxSamples;
+            this.flushIntervalMillis = flushIntervalMillis;
+            this.timestamps = new long[maxSamples];
+            this.values = new double[maxSamples * dimensions];
+            this.buffer = ByteBuffer.allocate(TelemetryCodec.maxSize(encodedName, dimensions, maxSamples));
+        }
+
+        /**
+         * Encode the samples and reset the channel, guarded by the channel
+         *
+         * @return the frame, null when there are no samples
+         */
+        @Nullable
+        byte[] drain() {
+            if (count == 0) {
+                return null;
+            }
+            buffer.clear();
+            TelemetryCodec.encode(encodedName, type, dimensions, count, timestamps, values, buffer);
+            byte[] frame = Arrays.copyOf(buffer.array(), buffer.position());
+            synchronized (TelemetryStream.this) {
+                samples += count;
+                frames++;
+                bytes += frame.length;
+            }
+            count = 0;
+            return frame;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Outlet outlet;
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+    @Nullable
+    private volatile OnFrameListener listener;
+
+    // Guarded by this
+    private long samples = 0;
+    private long frames = 0;
+    private long bytes = 0;
+    private long failures = 0;
+    private long received = 0;
+    private long malformed = 0;
+
+    /**
+     * @param scheduler runs the timed flushes
+     * @param outlet    sends the frames
+     */
+    TelemetryStream(@NonNull ScheduledExecutorService scheduler, @NonNull Outlet outlet) {
+        this.scheduler = scheduler;
+        this.outlet = outlet;
+    }
+
+    /**
+     * @param listener called with the received frames, null to remove it
+     */
+    void setListener(@Nullable OnFrameListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Open a channel, or replace the configuration of an open channel after sending its samples
+     *
+     * @param name                the name of the channel
+     * @param type                the type of the values
+     * @param dimensions          the number of values per sample, 3 for the axes of an accelerometer
+     * @param maxSamples          the number of samples after which a frame is sent
+     * @param flushIntervalMillis the maximum time a sample waits before it is sent
+     * @throws IllegalArgumentException when dimensions is not between 1 and TelemetryCodec.MAX_DIMENSIONS
+     */
+    void open(@NonNull String name, @NonNull TelemetryCodec.ValueType type, int dimensions, int maxSamples,
+              long flushIntervalMillis) {
+        if (dimensions < 1 || dimensions > TelemetryCodec.MAX_DIMENSIONS) {
+            throw new IllegalArgumentException("Invalid number of dimensions " + dimensions);
+        }
+        Channel channel = new Channel(name, type, dimensions, Math.max(1, maxSamples),
+            Math.max(0, flushIntervalMillis));
+        Channel replaced = channels.put(name, channel);
+        if (replaced != null) {
+            flush(replaced);
+        }
+    }
+
+    /**
+     * Send the samples of a channel and close it
+     *
+     * @param name the name of the channel
+     */
+    void close(@NonNull String name) {
+        Channel channel = channels.remove(name);
+        if (channel != null) {
+            flush(channel);
+        }
+    }
+
+    /**
+     * Add a sample to a channel
+     *
+     * @param name      the name of the channel
+     * @param timestamp the time of the sample in epoch milliseconds
+     * @param values    the values of the sample, one per dimension of the channel
+     * @return false if the channel is not open
+     * @throws IllegalArgumentException when the number of values is not the number of dimensions of the channel
+     */
+    boolean append(@NonNull String name, long timestamp, @NonNull double... values) {
+        Channel channel = channels.get(name);
+        if (channel == null) {
+            return false;
+        }
+        if (values.length != channel.dimensions) {
+            throw new IllegalArgumentException(
+                values.length + " values for channel " + name + " of " + channel.dimensions + " dimensions");
+        }
+        append(channel, timestamp, values, 0);
+        return true;
+    }
+
+    /**
+     * Add samples to a channel
+     *
+     * @param name       the name of the channel
+     * @param timestamps the times of the samples in epoch milliseconds
+     * @param values     the values of the samples interleaved by sample, one per dimension of the channel
+     * @return false if the channel is not open
+     * @throws IllegalArgumentException when the number of values is not the number of samples times
+     *                                  the number of dimensions of the channel
+     */
+    boolean append(@NonNull String name, @NonNull long[] timestamps, @NonNull double[] values) {
+        Channel channel = channels.get(name);
+        if (channel == null) {
+            return false;
+        }
+        if (values.length != (long) timestamps.length * channel.dimensions) {
+            throw new IllegalArgumentException(values.length + " values for " + timestamps.length
+                + " samples of channel " + name + " of " + channel.dimensions + " dimensions");
+        }
+        for (int i = 0; i < timestamps.length; i++) {
+            append(channel, timestamps[i], values, i * channel.dimensions);
+        }
+        return true;
+    }
+
+    private void append(Channel channel, long timestamp, double[] values, int offset) {
+        byte[] frame = null;
+        synchronized (channel) {
+            System.arraycopy(values, offset, channel.values, channel.count * channel.dimensions, channel.dimensions);
+            channel.timestamps[channel.count++] = timestamp;
+            if (channel.count == channel.maxSamples) {
+                frame = channel.drain();
+            } else if (!channel.flushScheduled) {
+                channel.flushScheduled = true;
+                try {
+                    scheduler.schedule(() -> flush(channel), channel.flushIntervalMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    channel.flushScheduled = false;
+                }
+            }
+        }
+        if (frame != null) {
+            send(channel.name, frame);
+        }
+    }
+
+    /**
+     * Send the samples of all channels
+     */
+    void flushAll() {
+        for (Channel channel : channels.values()) {
+            flush(channel);
+        }
+    }
+
+    private void flush(Channel channel) {
+        byte[] frame;
+        synchronized (channel) {
+            channel.flushScheduled = false;
+            frame = channel.drain();
+        }
+        if (frame != null) {
+            send(channel.name, frame);
+        }
+    }
+
+    private void send(String name, byte[] frame) {
+        outlet.send(frame, new MessageService.SendCallback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                Log.w(TAG, "Cannot send telemetry " + name, exception);
+                synchronized (TelemetryStream.this) {
+                    failures++;
+                }
+            }
+        });
+    }
+
+    /**
+     * Decode a received frame and pass it to the listener
+     *
+     * @param sourceNodeId the node that sent the frame
+     * @param data         the frame
+     */
+    void receive(@NonNull String sourceNodeId, @NonNull byte[] data) {
+        TelemetryCodec.Frame frame;
+        try {
+            frame = TelemetryCodec.decode(data);
+        } catch (MessageCodec.MalformedMessageException e) {
+            Log.w(TAG, "Dropped unreadable telemetry from " + sourceNodeId, e);
+            synchronized (this) {
+                malformed++;
+            }
+            return;
+        }
+        synchronized (this) {
+            received += frame.count;
+        }
+        OnFrameListener frameListener = listener;
+        if (frameListener != null) {
+            frameListener.onFrame(sourceNodeId, frame);
+        }
+    }
+
+    /**
+     * Get the number of samples and frames sent and received, and the bytes per sent sample
+     *
+     * @return the statistics by name
+     */
+    @NonNull
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("channels", (double) channels.size());
+        stats.put("samples", (double) samples);
+        stats.put("frames", (double) frames);
+        stats.put("bytes", (double) bytes);
+        stats.put("bytesPerSample", samples == 0 ? 0.0 : (double) bytes / samples);
+        stats.put("failures", (double) failures);
+        stats.put("received", (double) received);
+        stats.put("malformed", (double) malformed);
+        return stats;
+    }
+}
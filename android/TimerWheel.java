@@ -0,0 +1,143 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel, runs many timeouts from a single thread.
+ * Timeouts are only accurate to a tick, which is fine for reply timeouts
+ * and much cheaper than scheduling a task per message.
+ * <p>
+ * Timeouts can be added and cancelled from any thread, the buckets themselves
+ * are only touched by the tick thread.
+ */
+final class TimerWheel {
+
+    /**
+     * A scheduled timeout, cancelling it prevents the task from running
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static final String TAG = "TimerWheel";
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<List<Timeout>> buckets;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    /**
+     * The time of tick 0 in System.nanoTime(), set when the tick thread starts
+     */
+    private volatile long startTime = System.nanoTime();
+    private long tick = 0;
+    private ScheduledExecutorService ticker;
+
+    /**
+     * @param tickMillis the resolution of the timer
+     * @param wheelSize  the number of buckets, rounded up to a power of two
+     */
+    TimerWheel(long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Start the tick thread
+     */
+    synchronized void start() {
+        if (ticker == null) {
+            // Ticks are counted from now, not from when the wheel was created
+            startTime = System.nanoTime() - tick * tickNanos;
+            ticker = Executors.newSingleThreadScheduledExecutor();
+            ticker.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Stop the tick thread, pending timeouts do not run
+     */
+    synchronized void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    /**
+     * Run a task after the delay, on the tick thread
+     *
+     * @param task        the task to run, should be short
+     * @param delayMillis the delay in milliseconds
+     * @return the timeout that can be cancelled
+     */
+    @NonNull
+    Timeout schedule(@NonNull Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void tick() {
+        transferAdded();
+        Iterator<Timeout> iterator = buckets.get((int) (tick & mask)).iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if (timeout.rounds <= 0) {
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Timeout task failed", e);
+                }
+            } else {
+                timeout.rounds--;
+            }
+        }
+        tick++;
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long deadlineTick = Math.max(tick, (timeout.deadline - startTime + tickNanos - 1) / tickNanos);
+            timeout.rounds = (deadlineTick - tick) / buckets.size();
+            buckets.get((int) (deadlineTick & mask)).add(timeout);
+        }
+    }
+}
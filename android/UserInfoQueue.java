@@ -0,0 +1,366 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A durable FIFO queue of user info on a SegmentLog, it survives the process being killed.
+ * <p>
+ * The queue is held in memory as a ring buffer of entries in journal order, so adding at the tail
+ * and removing at the head never scans. User info added with a coalesce key replaces the queued
+ * user info with the same key, the replaced entry stays in the ring as a tombstone until it reaches the head.
+ * Entries that are taken, because they are being transferred, are not coalesced anymore
+ * and are either removed or given back as a whole.
+ * <p>
+ * Journal record, the user info is stored as a binary frame with a single message:
+ * <pre>
+ *     varint  length of the coalesce key, 0 without a key
+ *     byte[]  UTF-8 coalesce key
+ *     byte[]  frame
+ * </pre>
+ * When the log cannot be opened the queue is kept in memory only.
+ */
+final class UserInfoQueue {
+
+    private static final String TAG = "UserInfoQueue";
+
+    /**
+     * Queued user info
+     */
+    static final class Entry {
+        /**
+         * The sequence number in the journal, increasing in the order the user info was added
+         */
+        final long seq;
+        @Nullable
+        final String key;
+        @NonNull
+        final MessageObject message;
+        boolean removed;
+        boolean taken;
+
+        Entry(long seq, @Nullable String key, @NonNull MessageObject message) {
+            this.seq = seq;
+            this.key = key;
+            this.message = message;
+        }
+
+        int size() {
+            return message.data == null ? 0 : message.data.length;
+        }
+    }
+
+    @Nullable
+    private final SegmentLog log;
+    private final ArrayDeque<Entry> ring = new ArrayDeque<>();
+    // The entries that can still be coalesced, by key
+    private final Map<String, Entry> keyed = new HashMap<>();
+    private int live = 0;
+    private long nextMemorySeq = 1;
+    private long coalesced = 0;
+
+    private UserInfoQueue(@Nullable SegmentLog log) {
+        this.log = log;
+        if (log == null) {
+            return;
+        }
+        for (Map.Entry<Long, byte[]> record : log.getRecords().entrySet()) {
+            Entry entry = null;
+            try {
+                entry = read(record.getKey(), record.getValue());
+            } catch (MessageCodec.MalformedMessageException e) {
+                Log.w(TAG, "Dropping unreadable user info " + record.getKey(), e);
+            }
+            if (entry == null) {
+                delete(record.getKey());
+            } else {
+                // A crash between adding user info and removing the user info it replaced leaves both
+                put(entry);
+            }
+        }
+    }
+
+    /**
+     * Open the queue in a directory
+     *
+     * @param directory the directory of the journal
+     * @param scheduler runs the batched syncs of the journal
+     * @return the queue, in memory only when the journal could not be opened
+     */
+    @NonNull
+    static UserInfoQueue open(@NonNull File directory, @NonNull ScheduledExecutorService scheduler) {
+        try {
+            return new UserInfoQueue(new SegmentLog(directory, scheduler));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + directory + ", user info is kept in memory only", e);
+            return new UserInfoQueue(null);
+        }
+    }
+
+    /**
+     * Add user info to the end of the queue
+     *
+     * @param message the user info
+     * @param key     replaces queued user info with the same key that was not taken yet, null to never replace
+     * @return the sequence number of the user info
+     */
+    synchronized long add(@NonNull MessageObject message, @Nullable String key) {
+        long seq = 0;
+        if (log != null) {
+            try {
+                seq = log.append(write(key, message));
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot persist user info, it is kept in memory only", e);
+            }
+        }
+        if (seq == 0) {
+            // Memory only sequence numbers are negative, so they never collide with those of the journal
+            seq = Long.MIN_VALUE + nextMemorySeq++;
+        }
+        put(new Entry(seq, key, message));
+        return seq;
+    }
+
+    /**
+     * Add received user info to the end of the queue and force it to disk,
+     * so it can be acknowledged to the sender
+     *
+     * @param messages the user info in the order it was sent
+     */
+    synchronized void addAll(@NonNull List<MessageObject> messages) {
+        for (MessageObject message : messages) {
+            add(message, null);
+        }
+        if (log != null) {
+            log.sync();
+        }
+    }
+
+    /**
+     * Take user info from the head of the queue, it stays queued until removeTaken or is given back with untake
+     *
+     * @param maxBytes the maximum size of the data of the taken user info, at least one is taken
+     * @return the taken user info in FIFO order, empty when the queue is empty or user info is taken already
+     */
+    @NonNull
+    synchronized List<Entry> take(int maxBytes) {
+        trim();
+        Entry head = ring.peekFirst();
+        if (head == null || head.taken) {
+            return Collections.emptyList();
+        }
+        List<Entry> taken = new ArrayList<>();
+        int bytes = 0;
+        for (Entry entry : ring) {
+            if (entry.removed) {
+                continue;
+            }
+            if (!taken.isEmpty() && bytes + entry.size() > maxBytes) {
+                break;
+            }
+            entry.taken = true;
+            if (entry.key != null) {
+                keyed.remove(entry.key, entry);
+            }
+            taken.add(entry);
+            bytes += entry.size();
+        }
+        return taken;
+    }
+
+    /**
+     * Give the taken user info back, it is taken again by the next take
+     */
+    synchronized void untake() {
+        for (Entry entry : ring) {
+            if (entry.removed) {
+                continue;
+            }
+            if (!entry.taken) {
+                break;
+            }
+            entry.taken = false;
+            if (entry.key != null) {
+                if (keyed.containsKey(entry.key)) {
+                    // Replaced by user info that was added while it was taken
+                    tombstone(entry);
+                    coalesced++;
+                } else {
+                    keyed.put(entry.key, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the taken user info from the queue
+     *
+     * @return the number of removed user info
+     */
+    synchronized int removeTaken() {
+        int removed = 0;
+        Entry head;
+        while ((head = ring.peekFirst()) != null && (head.taken || head.removed)) {
+            ring.pollFirst();
+            if (!head.removed) {
+                delete(head.seq);
+                live--;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove user info from the head of the queue
+     *
+     * @param max the maximum number of user info to remove
+     * @return the removed user info in FIFO order
+     */
+    @NonNull
+    synchronized List<Entry> drain(int max) {
+        List<Entry> drained = new ArrayList<>(Math.min(max, live));
+        Entry head;
+        while (drained.size() < max && (head = ring.pollFirst()) != null) {
+            if (head.removed) {
+                continue;
+            }
+            if (head.key != null) {
+                keyed.remove(head.key, head);
+            }
+            delete(head.seq);
+            live--;
+            drained.add(head);
+        }
+        return drained;
+    }
+
+    /**
+     * Remove user info anywhere in the queue
+     *
+     * @param seqs the sequence numbers of the user info
+     */
+    synchronized void remove(@NonNull Collection<Long> seqs) {
+        for (Entry entry : ring) {
+            if (!entry.removed && !entry.taken && seqs.contains(entry.seq)) {
+                tombstone(entry);
+            }
+        }
+        trim();
+    }
+
+    /**
+     * @return the queued user info in FIFO order
+     */
+    @NonNull
+    synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(live);
+        for (Entry entry : ring) {
+            if (!entry.removed) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    synchronized int size() {
+        return live;
+    }
+
+    /**
+     * @return the number of user info that was replaced before it was taken
+     */
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Sync and close the journal
+     */
+    synchronized void close() {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private void put(Entry entry) {
+        if (entry.key != null) {
+            Entry replaced = keyed.put(entry.key, entry);
+            if (replaced != null) {
+                tombstone(replaced);
+                coalesced++;
+            }
+        }
+        ring.addLast(entry);
+        live++;
+    }
+
+    private void tombstone(Entry entry) {
+        entry.removed = true;
+        if (entry.key != null) {
+            keyed.remove(entry.key, entry);
+        }
+        delete(entry.seq);
+        live--;
+    }
+
+    /**
+     * Drop the tombstones at the head of the ring
+     */
+    private void trim() {
+        Entry head;
+        while ((head = ring.peekFirst()) != null && head.removed) {
+            ring.pollFirst();
+        }
+    }
+
+    private void delete(long seq) {
+        if (log == null || seq < 0) {
+            return;
+        }
+        try {
+            log.delete(seq);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot remove user info " + seq + " from the journal", e);
+        }
+    }
+
+    private static byte[] write(@Nullable String key, MessageObject message) {
+        byte[] keyBytes = key == null ? new byte[0] : key.getBytes(StandardCharsets.UTF_8);
+        List<MessageObject> messages = Collections.singletonList(message);
+        ByteBuffer out = ByteBuffer.allocate(MessageCodec.varIntSize(keyBytes.length) + keyBytes.length
+            + MessageCodec.encodedSize(messages));
+        MessageCodec.putVarInt(out, keyBytes.length);
+        out.put(keyBytes);
+        MessageCodec.encode(messages, out);
+        return out.array();
+    }
+
+    @Nullable
+    private static Entry read(long seq, byte[] record) throws MessageCodec.MalformedMessageException {
+        ByteBuffer in = ByteBuffer.wrap(record);
+        int keyLength = MessageCodec.getVarInt(in);
+        if (keyLength < 0 || keyLength > in.remaining()) {
+            throw new MessageCodec.MalformedMessageException("Invalid key length " + keyLength);
+        }
+        String key = keyLength == 0 ? null : new String(record, in.position(), keyLength, StandardCharsets.UTF_8);
+        in.position(in.position() + keyLength);
+        List<MessageObject> messages = MessageCodec.decode(in);
+        return messages.size() == 1 ? new Entry(seq, key, messages.get(0)) : null;
+    }
+}
@@ -0,0 +1,344 @@
+package com.canvasheroes.ommetje;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers user info to the connected nodes in FIFO order as DataClient data items.
+ * <p>
+ * Transferred user info is queued in a durable UserInfoQueue first, where user info with a coalesce key
+ * replaces the queued user info with the same key. Once the flush delay has passed the queued user info
+ * is encoded in one binary frame and put as a data item for every connected node, the data layer keeps it
+ * until the node received it, also when the node is not connected. The user info is removed from the queue
+ * once the data items were put, a failed put is retried for the nodes that failed with the same path.
+ * <p>
+ * A receiver appends the user info of a data item addressed to it to its own queue and forces it to disk
+ * before it deletes the data item, so user info is never lost. It is received again only if the process is
+ * killed between the two, data items that are delivered twice while the process runs are recognized by their path.
+ * <p>
+ * Data item path, one batch of user info for one node:
+ * <pre>
+ *     PATH/target node id/batch id
+ * </pre>
+ */
+final class UserInfoTransfer {
+
+    static final String PATH = "/ommetje_user_info";
+    static final long DEFAULT_FLUSH_DELAY_MILLIS = 100;
+    /**
+     * Data items are limited to 100KB, the frame around the data adds a few bytes per user info
+     */
+    static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+    static final long RETRY_DELAY_MILLIS = 5000;
+
+    private static final String TAG = "UserInfoTransfer";
+    private static final int MAX_RECEIVED_BATCHES = 256;
+
+    /**
+     * Puts and deletes the data items of the transfer
+     */
+    interface Outlet {
+        @NonNull
+        Collection<String> getNodeIds();
+
+        void put(@NonNull String path, @NonNull byte[] data, @NonNull MessageService.SendCallback callback);
+
+        void delete(@NonNull String sourceNodeId, @NonNull String path);
+    }
+
+    /**
+     * Called with the number of user info that was received and queued, on the thread that received it
+     */
+    interface OnReceivedListener {
+        void onUserInfoReceived(int count);
+    }
+
+    /**
+     * The user info taken from the queue and the nodes it was not put for yet
+     */
+    private static final class Batch {
+        final String id;
+        final byte[] frame;
+        final int count;
+        final Set<String> remaining;
+        int outstanding;
+
+        Batch(String id, byte[] frame, int count, Collection<String> nodeIds) {
+            this.id = id;
+            this.frame = frame;
+            this.count = count;
+            this.remaining = new HashSet<>(nodeIds);
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Outlet outlet;
+    private final UserInfoQueue outgoing;
+    private final UserInfoQueue incoming;
+    private volatile long flushDelayMillis = DEFAULT_FLUSH_DELAY_MILLIS;
+    private volatile int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    @Nullable
+    private volatile String localNodeId;
+    @Nullable
+    private volatile OnReceivedListener listener;
+
+    // Batch ids are unique across restarts, the epoch is the time the transfer was created
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private long nextBatch = 1;
+    @Nullable
+    private Batch batch;
+    private boolean flushScheduled = false;
+    // Paths of recently received data items, the oldest first
+    private final LinkedHashSet<String> received = new LinkedHashSet<>();
+
+    private long transferred = 0;
+    private long batches = 0;
+    private long retries = 0;
+    private long receivedCount = 0;
+    private long duplicates = 0;
+
+    /**
+     * @param scheduler runs the flushes and retries
+     * @param outlet    puts and deletes the data items
+     * @param outgoing  the user info waiting to be put
+     * @param incoming  the received user info that was not dequeued yet
+     */
+    UserInfoTransfer(@NonNull ScheduledExecutorService scheduler, @NonNull Outlet outlet,
+                     @NonNull UserInfoQueue outgoing, @NonNull UserInfoQueue incoming) {
+        this.scheduler = scheduler;
+        this.outlet = outlet;
+        this.outgoing = outgoing;
+        this.incoming = incoming;
+    }
+
+    /**
+     * @param flushDelayMillis the time user info waits for more user info before it is put
+     * @param maxBatchBytes    the maximum size of the data of the user info in one data item
+     */
+    void configure(long flushDelayMillis, int maxBatchBytes) {
+        this.flushDelayMillis = Math.max(0, flushDelayMillis);
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+    }
+
+    /**
+     * @param localNodeId the id of this node, data items addressed to other nodes are ignored
+     */
+    void setLocalNodeId(@NonNull String localNodeId) {
+        this.localNodeId = localNodeId;
+    }
+
+    /**
+     * @param listener called when user info was received, null to remove it
+     */
+    void setListener(@Nullable OnReceivedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queue user info, it is put once the flush delay has passed
+     *
+     * @param message the user info
+     * @param key     replaces queued user info with the same key that was not put yet, null to never replace
+     */
+    void transfer(@NonNull MessageObject message, @Nullable String key) {
+        outgoing.add(message, key);
+        scheduleFlush(flushDelayMillis);
+    }
+
+    /**
+     * Put the queued user info right away, called when a node connected
+     */
+    void resend() {
+        if (outgoing.size() > 0) {
+            scheduleFlush(0);
+        }
+    }
+
+    private synchronized void scheduleFlush(long delayMillis) {
+        if (flushScheduled || batch != null) {
+            return;
+        }
+        flushScheduled = true;
+        try {
+            scheduler.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the user info stays queued until the next start
+            flushScheduled = false;
+        }
+    }
+
+    /**
+     * Take the queued user info and put it for every connected node,
+     * it stays queued when no node is connected
+     */
+    void flush() {
+        Batch next;
+        synchronized (this) {
+            flushScheduled = false;
+            if (batch != null) {
+                return;
+            }
+            List<UserInfoQueue.Entry> entries = outgoing.take(maxBatchBytes);
+            if (entries.isEmpty()) {
+                return;
+            }
+            Collection<String> nodeIds = outlet.getNodeIds();
+            if (nodeIds.isEmpty()) {
+                outgoing.untake();
+                return;
+            }
+            List<MessageObject> messages = new ArrayList<>(entries.size());
+            for (UserInfoQueue.Entry entry : entries) {
+                messages.add(entry.message);
+            }
+            next = new Batch(epoch + "-" + Long.toHexString(nextBatch++),
+                MessageCodec.encode(messages), messages.size(), nodeIds);
+            batch = next;
+        }
+        put(next);
+    }
+
+    private void put(Batch batch) {
+        List<String> nodeIds;
+        synchronized (this) {
+            nodeIds = new ArrayList<>(batch.remaining);
+            batch.outstanding = nodeIds.size();
+        }
+        for (String nodeId : nodeIds) {
+            outlet.put(PATH + "/" + nodeId + "/" + batch.id, batch.frame, new MessageService.SendCallback() {
+                @Override
+                public void onSuccess() {
+                    onPut(batch, nodeId, null);
+                }
+
+                @Override
+                public void onFailure(@NonNull Exception exception) {
+                    onPut(batch, nodeId, exception);
+                }
+            });
+        }
+    }
+
+    /**
+     * Called with the outcome of a put, once all nodes reported the user info is removed
+     * or the failed puts are retried
+     */
+    private void onPut(Batch put, String nodeId, @Nullable Exception exception) {
+        boolean retry;
+        synchronized (this) {
+            if (exception == null) {
+                put.remaining.remove(nodeId);
+            } else {
+                Log.w(TAG, "Cannot put user info for " + nodeId, exception);
+            }
+            if (--put.outstanding > 0) {
+                return;
+            }
+            retry = !put.remaining.isEmpty();
+            if (retry) {
+                retries++;
+            } else {
+                transferred += outgoing.removeTaken();
+                batches++;
+                batch = null;
+            }
+        }
+        if (retry) {
+            try {
+                scheduler.schedule(() -> put(put), RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the user info stays queued and is put again on the next start
+            }
+        } else if (outgoing.size() > 0) {
+            scheduleFlush(0);
+        }
+    }
+
+    /**
+     * Check whether a data item belongs to the transfer
+     *
+     * @param path the path of the data item
+     * @return whether it is user info for this node
+     */
+    boolean accepts(@NonNull String path) {
+        String nodeId = localNodeId;
+        return nodeId != null && path.startsWith(PATH + "/" + nodeId + "/");
+    }
+
+    /**
+     * Queue the user info of a received data item and delete it
+     *
+     * @param sourceNodeId the node that put the data item
+     * @param path         the path of the data item, as accepted by accepts
+     * @param data         the frame with the user info
+     */
+    void receive(@NonNull String sourceNodeId, @NonNull String path, @NonNull byte[] data) {
+        String batchKey = sourceNodeId + path;
+        List<MessageObject> messages;
+        synchronized (this) {
+            if (received.contains(batchKey)) {
+                duplicates++;
+                messages = null;
+            } else {
+                try {
+                    messages = MessageCodec.decode(data);
+                } catch (MessageCodec.MalformedMessageException e) {
+                    Log.w(TAG, "Dropped unreadable user info from " + sourceNodeId, e);
+                    messages = null;
+                }
+                received.add(batchKey);
+                if (received.size() > MAX_RECEIVED_BATCHES) {
+                    Iterator<String> oldest = received.iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+            if (messages != null) {
+                // On disk before the data item is deleted
+                incoming.addAll(messages);
+                receivedCount += messages.size();
+            }
+        }
+        outlet.delete(sourceNodeId, path);
+        OnReceivedListener receivedListener = listener;
+        if (messages != null && !messages.isEmpty() && receivedListener != null) {
+            receivedListener.onUserInfoReceived(messages.size());
+        }
+    }
+
+    /**
+     * Get the number of user info waiting to be put, put and received,
+     * and the number of user info that was replaced before it was put
+     *
+     * @return the statistics by name
+     */
+    @NonNull
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queued", (double) outgoing.size());
+        stats.put("inFlight", (double) (batch == null ? 0 : batch.count));
+        stats.put("transferred", (double) transferred);
+        stats.put("batches", (double) batches);
+        stats.put("coalesced", (double) outgoing.getCoalesced());
+        stats.put("retries", (double) retries);
+        stats.put("received", (double) receivedCount);
+        stats.put("duplicates", (double) duplicates);
+        stats.put("pending", (double) incoming.size());
+        return stats;
+    }
+}
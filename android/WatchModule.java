@@ -1,17 +1,16 @@
 package com.canvasheroes.ommetje;
 
-import android.content.ComponentName;
-import android.content.Context;
-import android.content.Intent;
-import android.content.ServiceConnection;
-import android.os.IBinder;
+import android.net.Uri;
+import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.facebook.react.ReactPackage;
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.NativeModule;
+import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
@@ -35,10 +34,22 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Dictionary;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
   ArrayUtil exposes a set of helper methods for working with
@@ -130,6 +141,77 @@ class BridgeUtil {
 
         return jsonArray;
     }
+
+    /**
+     * Convert received JSON data to a map for JavaScript,
+     * data that is not a JSON object is put in the map under the key data
+     *
+     * @param data UTF-8 JSON, may be null
+     * @return the map, empty when there is no data
+     */
+    public static WritableMap toWritableMap(@Nullable byte[] data) {
+        if (data == null || data.length == 0) {
+            return Arguments.createMap();
+        }
+        try {
+            return PayloadSerializer.toWritableMap(data);
+        } catch (JSONException e) {
+            WritableMap map = Arguments.createMap();
+            map.putString("data", new String(data, StandardCharsets.UTF_8));
+            return map;
+        }
+    }
+
+    public static WritableMap toWritableMap(JSONObject jsonObject) throws JSONException {
+        WritableMap writableMap = Arguments.createMap();
+
+        Iterator<String> iterator = jsonObject.keys();
+
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            Object value = jsonObject.opt(key);
+
+            if (value == null || value == JSONObject.NULL) {
+                writableMap.putNull(key);
+            } else if (value instanceof Boolean) {
+                writableMap.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Number) {
+                writableMap.putDouble(key, ((Number) value).doubleValue());
+            } else if (value instanceof String) {
+                writableMap.putString(key, (String) value);
+            } else if (value instanceof JSONObject) {
+                writableMap.putMap(key, toWritableMap((JSONObject) value));
+            } else if (value instanceof JSONArray) {
+                writableMap.putArray(key, toWritableArray((JSONArray) value));
+            }
+        }
+
+        return writableMap;
+    }
+
+    public static WritableArray toWritableArray(JSONArray jsonArray) throws JSONException {
+        WritableArray writableArray = Arguments.createArray();
+
+        for (int i = 0; i < jsonArray.length(); i++) {
+            Object value = jsonArray.get(i);
+
+            if (value == null || value == JSONObject.NULL) {
+                writableArray.pushNull();
+            } else if (value instanceof Boolean) {
+                writableArray.pushBoolean((Boolean) value);
+            } else if (value instanceof Number) {
+                writableArray.pushDouble(((Number) value).doubleValue());
+            } else if (value instanceof String) {
+                writableArray.pushString((String) value);
+            } else if (value instanceof JSONObject) {
+                writableArray.pushMap(toWritableMap((JSONObject) value));
+            } else if (value instanceof JSONArray) {
+                writableArray.pushArray(toWritableArray((JSONArray) value));
+            }
+        }
+
+        return writableArray;
+    }
 }
 
 class AppPackage implements ReactPackage {
@@ -164,47 +246,201 @@ class RNWatch extends ReactContextBaseJavaModule implements RCTEventEmitter {
     static String EVENT_FILE_TRANSFER = "WatchFileTransfer";
     static String EVENT_RECEIVE_MESSAGE = "WatchReceiveMessage";
     static String EVENT_RECEIVE_MESSAGE_DATA = "WatchReceiveMessageData";
+    static String EVENT_RECEIVE_MESSAGE_BATCH = "WatchReceiveMessageBatch";
     static String EVENT_ACTIVATION_ERROR = "WatchActivationError";
     static String EVENT_WATCH_REACHABILITY_CHANGED = "WatchReachabilityChanged";
     static String EVENT_WATCH_USER_INFO_RECEIVED = "WatchUserInfoReceived";
+    static String EVENT_USER_INFO_QUEUED = "WatchUserInfoQueued";
+    static String EVENT_REPLICATED_STATE_CHANGED = "WatchReplicatedStateChanged";
+    static String EVENT_PATH_MESSAGE = "WatchPathMessage";
+    static String EVENT_TELEMETRY = "WatchTelemetry";
     static String EVENT_APPLICATION_CONTEXT_RECEIVED = "WatchApplicationContextReceived";
     static String EVENT_SESSION_DID_DEACTIVATE = "WatchSessionDidDeactivate";
     static String EVENT_SESSION_BECAME_INACTIVE = "WatchSessionBecameInactive";
     static String EVENT_PAIR_STATUS_CHANGED = "WatchPairStatusChanged";
     static String EVENT_INSTALL_STATUS_CHANGED = "WatchInstallStatusChanged";
+    static String EVENT_STATS = "WatchStats";
+
+    /**
+     * Error codes passed to JavaScript, ERROR_CODE_SESSION_UNREACHABLE matches lib/errors.ts
+     */
+    static String ERROR_CODE_SESSION_UNREACHABLE = "EWCERRORDOMAIN7007";
+    static String ERROR_CODE_QUEUE_FULL = "ESENDQUEUEFULL";
+    static String ERROR_CODE_SEND_FAILED = "ESENDFAILED";
+    static String ERROR_CODE_REPLY_TIMEOUT = "EREPLYTIMEOUT";
+    static String ERROR_CODE_INVALID_FILE = "EINVALIDFILE";
+    static String ERROR_CODE_SERVICE_UNAVAILABLE = "ESERVICEUNAVAILABLE";
+    static String ERROR_CODE_INVALID_TELEMETRY = "EINVALIDTELEMETRY";
+    static String ERROR_CODE_INVALID_OPTIONS = "EINVALIDOPTIONS";
+
+    /**
+     * The time a bridge call waits for the MessageService to be bound before it is rejected
+     */
+    static final long BIND_TIMEOUT_MILLIS = 5_000;
 
     public String TAG = "RNWatch";
 
-    /* Messaging Service Connection code */
-    Intent messageServiceIntent;
-    Boolean isServiceBound = false;
-    MessageService boundService;
-    MessageServiceConnection serviceConnection;
+    /**
+     * Runs the bridge calls that touch the disk or need the service, in the order they were made,
+     * so the JavaScript and native modules threads never block
+     */
+    private final ScheduledExecutorService bridgeExecutor = Executors.newSingleThreadScheduledExecutor(
+        runnable -> new Thread(runnable, "RNWatchBridge"));
 
-    private class MessageServiceConnection implements ServiceConnection {
+    /**
+     * Binds the MessageService on the first call that needs it, calls made before it is connected are buffered
+     */
+    private final ServiceBinding binding;
+
+    private interface OnCallFailed {
+        void onFailed(@NonNull String code, @NonNull Exception exception);
+    }
 
+    /**
+     * Emits received messages to JavaScript in batches of EVENT_RECEIVE_MESSAGE_BATCH events
+     */
+    final EventBatcher messageEvents = new EventBatcher(
+        events -> sendEvent(EVENT_RECEIVE_MESSAGE_BATCH, events));
+    private final MessageService.OnMessageDataReceivedListener messageListener = this::onMessageReceived;
+
+    /**
+     * Emits received user info and application contexts
+     */
+    private final MessageService.OnStateReceivedListener stateListener = new MessageService.OnStateReceivedListener() {
         @Override
-        public void onServiceConnected(ComponentName componentName, IBinder service) {
-            MessageService.MessageBinder myBinder = (MessageService.MessageBinder) service;
-            boundService = myBinder.getService();
-            isServiceBound = true;
+        public void onUserInfoQueued(int count) {
+            // JavaScript drains the queue in one call instead of receiving the user info one event at a time
+            WritableMap event = Arguments.createMap();
+            event.putInt("count", count);
+            sendEvent(EVENT_USER_INFO_QUEUED, event);
         }
 
         @Override
-        public void onServiceDisconnected(ComponentName name) {
-            isServiceBound = false;
+        public void onApplicationContextReceived(@NonNull MessageObject applicationContext) {
+            sendEvent(EVENT_APPLICATION_CONTEXT_RECEIVED, BridgeUtil.toWritableMap(applicationContext.data));
         }
 
-    }
+        @Override
+        public void onReplicatedStateChanged(@NonNull Map<String, byte[]> changes) {
+            sendEvent(EVENT_REPLICATED_STATE_CHANGED, toStateMap(changes));
+        }
+    };
+
+    /**
+     * Emits the pair, install and reachability changes
+     */
+    private final ReachabilityMonitor.OnChangedListener reachabilityListener = new ReachabilityMonitor.OnChangedListener() {
+        @Override
+        public void onPairStatusChanged(boolean paired) {
+            WritableMap event = Arguments.createMap();
+            event.putBoolean("paired", paired);
+            sendEvent(EVENT_PAIR_STATUS_CHANGED, event);
+        }
+
+        @Override
+        public void onInstallStatusChanged(boolean installed) {
+            WritableMap event = Arguments.createMap();
+            event.putBoolean("installed", installed);
+            sendEvent(EVENT_INSTALL_STATUS_CHANGED, event);
+        }
+
+        @Override
+        public void onReachabilityChanged(boolean reachable) {
+            WritableMap event = Arguments.createMap();
+            event.putBoolean("reachability", reachable);
+            sendEvent(EVENT_WATCH_REACHABILITY_CHANGED, event);
+        }
+    };
+
+    /**
+     * Adds the listeners of the module to the service once it is connected, and removes them when it is lost
+     */
+    private final ServiceBinding.Listener serviceListener = new ServiceBinding.Listener() {
+        @Override
+        public void onConnected(@NonNull MessageService service) {
+            service.setFileTransferListener(RNWatch.this::onFileTransfer);
+            service.addMessageDataReceiveListener(messageListener);
+            service.setStateReceivedListener(stateListener);
+            service.setTelemetryListener(RNWatch.this::onTelemetry);
+            service.reachability.setListener(reachabilityListener);
+        }
+
+        @Override
+        public void onDisconnected(@NonNull MessageService service) {
+            service.removeMessageDataReceiveListener(messageListener);
+            service.setStateReceivedListener(null);
+            service.setTelemetryListener(null);
+            service.reachability.setListener(null);
+        }
+    };
 
     public RNWatch(ReactApplicationContext reactContext) {
         super(reactContext);
-        serviceConnection = new MessageServiceConnection();
+        // The service is started and bound by the first call that needs it, not while the app starts
+        binding = new ServiceBinding(reactContext.getApplicationContext(), bridgeExecutor, serviceListener,
+            ServiceBinding.DEFAULT_MAX_PENDING_CALLS, BIND_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        binding.release();
+        bridgeExecutor.shutdown();
+        super.onCatalystInstanceDestroy();
+    }
+
+    /**
+     * Called by the NativeEventEmitter when JavaScript subscribes to an event,
+     * binds the service so it can emit events
+     */
+    @ReactMethod
+    public void addListener(String eventName) {
+        binding.bind();
+    }
 
-        messageServiceIntent = new Intent(reactContext, MessageService.class);
-        reactContext.startService(messageServiceIntent);
-        reactContext.bindService(messageServiceIntent, serviceConnection, Context.BIND_AUTO_CREATE);
+    @ReactMethod
+    public void removeListeners(double count) {
+        // The service stays bound, other subscriptions may follow
+    }
 
+    /**
+     * Run a call on the bridge executor once the service is bound, binding it if that did not happen yet.
+     * The promise is rejected when the service is not bound in time or the call throws,
+     * calls without a promise log the error instead.
+     *
+     * @param promise settled by the call, null for calls without a result
+     * @param call    the call
+     */
+    private void runOnService(@Nullable Promise promise, @NonNull ServiceBinding.Call call) {
+        runOnService(call, (code, exception) -> {
+            if (promise != null) {
+                promise.reject(code, exception);
+            } else {
+                Log.e(TAG, "Bridge call failed", exception);
+            }
+        });
+    }
+
+    /**
+     * Run a call on the bridge executor once the service is bound
+     *
+     * @param call     the call
+     * @param onFailed called with the error code when the service is not bound in time, too many calls wait for it
+     *                 or the call throws
+     */
+    private void runOnService(@NonNull ServiceBinding.Call call, @NonNull OnCallFailed onFailed) {
+        binding.run(call, (reason, exception) -> {
+            switch (reason) {
+                case overflow:
+                    onFailed.onFailed(ERROR_CODE_QUEUE_FULL, exception);
+                    break;
+                case failed:
+                    onFailed.onFailed(ERROR_CODE_SEND_FAILED, exception);
+                    break;
+                default:
+                    onFailed.onFailed(ERROR_CODE_SERVICE_UNAVAILABLE, exception);
+                    break;
+            }
+        });
     }
 
     @NotNull
@@ -215,62 +451,847 @@ class RNWatch extends ReactContextBaseJavaModule implements RCTEventEmitter {
 
     @ReactMethod
     public void sendMessage(ReadableMap message, Callback replyCallback, Callback errCallback) throws JSONException {
-        JSONObject json = BridgeUtil.toJSONObject(message);
-        Log.w(TAG, json.toString());
+        send(message, false, false, false, null, replyCallback, errCallback);
+    }
+
+    /**
+     * Send a message with options, the following options are supported:
+     * urgent: Boolean, send the message immediately instead of batching it, nearby watches are sent to first
+     * nodeId: String, send the message to this watch only, as returned by getNodeHealth
+     * reliable: Boolean, deliver the message exactly once and in order with the other reliable messages,
+     * the watch app must support the reliable stream
+     * durable: Boolean, write a message to all watches to the outbox first, so it is delivered once a watch is
+     * reachable, also after the app was restarted. The error callback is called when it is still in the outbox
+     * after a minute, the message stays there. The default is false
+     */
+    @ReactMethod
+    public void sendMessageWithOptions(ReadableMap message, ReadableMap options, Callback replyCallback, Callback errCallback) throws JSONException {
+        boolean urgent = options.hasKey("urgent") && options.getBoolean("urgent");
+        boolean reliable = options.hasKey("reliable") && options.getBoolean("reliable");
+        boolean durable = options.hasKey("durable") && options.getBoolean("durable");
+        String nodeId = options.hasKey("nodeId") ? options.getString("nodeId") : null;
+
+        send(message, urgent, reliable, durable, nodeId, replyCallback, errCallback);
+    }
+
+    /**
+     * Sending only queues the message, so it is done on the calling thread once the service is bound.
+     * Plain broadcasts are serialized into a pooled buffer that the service releases once the message was sent.
+     */
+    private void send(ReadableMap message, boolean urgent, boolean reliable, boolean durable, @Nullable String nodeId,
+                      Callback replyCallback, Callback errCallback) throws JSONException {
+        MessageCallbacks callbacks = new MessageCallbacks(replyCallback, errCallback);
+        MessageService service = binding.get();
+        if (service != null && !reliable && nodeId == null) {
+            service.sendPooledMessageToAll(PayloadSerializer.toJSONBytes(message, service.bufferPool), urgent, durable,
+                callbacks, replyCallback != null ? callbacks : null);
+            return;
+        }
+        byte[] data = PayloadSerializer.toJSONBytes(message);
+        if (service != null) {
+            send(service, data, urgent, reliable, durable, nodeId, callbacks, replyCallback != null);
+        } else {
+            runOnService(bound -> send(bound, data, urgent, reliable, durable, nodeId, callbacks, replyCallback != null),
+                (code, exception) -> callbacks.onFailure(exception));
+        }
+    }
+
+    private static void send(MessageService service, byte[] data, boolean urgent, boolean reliable, boolean durable,
+                             @Nullable String nodeId, MessageCallbacks callbacks, boolean expectReply) {
+        if (reliable) {
+            service.sendMessageReliably(nodeId, data, callbacks, expectReply ? callbacks : null);
+        } else if (nodeId != null) {
+            service.sendMessageToNode(nodeId, data, callbacks, expectReply ? callbacks : null);
+        } else if (expectReply) {
+            service.sendMessageToAll(data, urgent, durable, callbacks, callbacks);
+        } else {
+            service.sendMessageToAll(data, urgent, durable, callbacks);
+        }
+    }
+
+    /**
+     * Set the time to wait for the reply to a message, before the error callback is called
+     */
+    @ReactMethod
+    public void setReplyTimeout(double timeoutMs) {
+        runOnService(null, service -> service.setReplyTimeout((long) timeoutMs));
+    }
+
+    /**
+     * Resolves with the connected watches and their health, the following fields are included per watch:
+     * id, name, nearby, state (closed, open or halfOpen), successRate, latencyMs,
+     * consecutiveFailures and retryInMs, the time until a failing watch is tried again
+     */
+    @ReactMethod
+    public void getNodeHealth(Promise promise) {
+        runOnService(promise, service -> promise.resolve(Arguments.makeNativeArray(service.getNodeHealth())));
+    }
+
+    /**
+     * Configure the fan-out of messages to several watches, the following options are supported:
+     * maxConcurrentSends: Number, the maximum number of sends in flight
+     * failureThreshold: Number, the failed sends in a row after which a watch is skipped
+     * baseBackoffMs: Number, the time a failing watch is skipped before it is tried again, doubled after every failure
+     * maxBackoffMs: Number, the maximum time a failing watch is skipped
+     */
+    @ReactMethod
+    public void configureFanOut(ReadableMap options) {
+        int maxConcurrentSends = options.hasKey("maxConcurrentSends")
+            ? options.getInt("maxConcurrentSends") : FanOut.DEFAULT_MAX_CONCURRENT_SENDS;
+        int failureThreshold = options.hasKey("failureThreshold")
+            ? options.getInt("failureThreshold") : NodeHealth.DEFAULT_FAILURE_THRESHOLD;
+        long baseBackoffMs = options.hasKey("baseBackoffMs")
+            ? (long) options.getDouble("baseBackoffMs") : NodeHealth.DEFAULT_BASE_BACKOFF_MILLIS;
+        long maxBackoffMs = options.hasKey("maxBackoffMs")
+            ? (long) options.getDouble("maxBackoffMs") : NodeHealth.DEFAULT_MAX_BACKOFF_MILLIS;
+        runOnService(null, service -> service.setFanOut(maxConcurrentSends, failureThreshold, baseBackoffMs, maxBackoffMs));
+    }
+
+    /**
+     * Configure the reliable stream, the following options are supported:
+     * windowSize: Number, the maximum number of unacknowledged reliable messages per watch, at most 64
+     * retransmitMs: Number, the time after which an unacknowledged message is sent again, doubled for every retransmit
+     * maxRetransmits: Number, the retransmits after which the reliable messages to a watch fail
+     */
+    @ReactMethod
+    public void configureReliableStream(ReadableMap options) {
+        int windowSize = options.hasKey("windowSize")
+            ? options.getInt("windowSize") : ReliableStream.DEFAULT_WINDOW_SIZE;
+        long retransmitMs = options.hasKey("retransmitMs")
+            ? (long) options.getDouble("retransmitMs") : ReliableStream.DEFAULT_RETRANSMIT_MILLIS;
+        int maxRetransmits = options.hasKey("maxRetransmits")
+            ? options.getInt("maxRetransmits") : ReliableStream.DEFAULT_MAX_RETRANSMITS;
+        runOnService(null, service -> service.setReliableStream(windowSize, retransmitMs, maxRetransmits));
+    }
+
+    /**
+     * Configure compression of outbound messages, the following options are supported:
+     * enabled: Boolean, whether messages are compressed, only watches that support it receive compressed messages
+     * minBytes: Number, messages smaller than this are sent as is
+     */
+    @ReactMethod
+    public void configureCompression(ReadableMap options) {
+        boolean enabled = options.hasKey("enabled") && options.getBoolean("enabled");
+        int minBytes = options.hasKey("minBytes")
+            ? options.getInt("minBytes") : PayloadCompressor.DEFAULT_MIN_BYTES;
+        runOnService(null, service -> service.setCompression(enabled, minBytes));
+    }
+
+    /**
+     * Resolves with the counters and latencies of the messaging pipeline
+     */
+    @ReactMethod
+    public void getStats(Promise promise) {
+        runOnService(promise, service -> {
+            Map<String, Object> stats = service.getStats();
+            stats.put("binding", binding.getStats());
+            promise.resolve(Arguments.makeNativeMap(stats));
+        });
+    }
+
+    /**
+     * Emit the statistics as EVENT_STATS events every interval, 0 stops the events
+     */
+    @ReactMethod
+    public void setStatsInterval(double intervalMs) {
+        runOnService(null, service -> service.setStatsListener(
+            stats -> sendEvent(EVENT_STATS, Arguments.makeNativeMap(stats)), (long) intervalMs));
+    }
+
+    @ReactMethod
+    public void getReplyStats(Promise promise) {
+        runOnService(promise, service -> promise.resolve(Arguments.makeNativeMap(service.getReplyStats())));
+    }
 
-        boundService.sendMessageToAll(json.toString().getBytes());
+    /**
+     * Configure the queue of outbound messages, the following options are supported:
+     * capacity: Number, the maximum number of queued messages
+     * overflowPolicy: String, one of dropOldest, dropNewest or reject
+     * The promise is rejected when the overflow policy is not one of those
+     */
+    @ReactMethod
+    public void configureSendQueue(ReadableMap options, Promise promise) {
+        int capacity = options.hasKey("capacity")
+            ? options.getInt("capacity") : SendQueue.DEFAULT_CAPACITY;
+        SendQueue.OverflowPolicy policy = SendQueue.OverflowPolicy.dropOldest;
+        if (options.hasKey("overflowPolicy")) {
+            String name = options.getString("overflowPolicy");
+            try {
+                policy = SendQueue.OverflowPolicy.valueOf(String.valueOf(name));
+            } catch (IllegalArgumentException e) {
+                promise.reject(ERROR_CODE_INVALID_OPTIONS, "Unknown overflow policy " + name, e);
+                return;
+            }
+        }
+        SendQueue.OverflowPolicy overflowPolicy = policy;
+        runOnService(promise, service -> {
+            service.setSendQueue(capacity, overflowPolicy);
+            promise.resolve(null);
+        });
     }
 
     @ReactMethod
-    public void sendMessageData(ReadableMap data, Number encoding, Callback replyCallback, Callback errCallback) {
+    public void getSendQueueStats(Promise promise) {
+        runOnService(promise, service -> promise.resolve(Arguments.makeNativeMap(service.getQueueStats())));
+    }
+
+    /**
+     * Passes the outcome of a sent message to the JavaScript callbacks,
+     * the reply callback with the reply, or the error callback when sending failed or no reply arrived.
+     * A callback can only be invoked once, so only the first outcome is passed on.
+     */
+    private static final class MessageCallbacks implements MessageService.SendCallback, ReplyRegistry.ReplyCallback {
+        private final Callback replyCallback;
+        private final Callback errCallback;
+        /**
+         * Whether the reply is passed as its raw data in base64 instead of as a map
+         */
+        private final boolean rawReply;
+        private final AtomicBoolean invoked = new AtomicBoolean(false);
+
+        MessageCallbacks(Callback replyCallback, Callback errCallback) {
+            this(replyCallback, errCallback, false);
+        }
+
+        MessageCallbacks(Callback replyCallback, Callback errCallback, boolean rawReply) {
+            this.replyCallback = replyCallback;
+            this.errCallback = errCallback;
+            this.rawReply = rawReply;
+        }
+
+        @Override
+        public void onSuccess() {
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            onError(exception);
+        }
 
+        @Override
+        public void onReply(@NonNull MessageObject reply) {
+            if (replyCallback == null || !invoked.compareAndSet(false, true)) {
+                return;
+            }
+            if (rawReply) {
+                replyCallback.invoke(reply.data == null ? "" : Base64.encodeToString(reply.data, Base64.NO_WRAP));
+            } else {
+                replyCallback.invoke(BridgeUtil.toWritableMap(reply.data));
+            }
+        }
+
+        @Override
+        public void onError(@NonNull Exception exception) {
+            if (errCallback == null || !invoked.compareAndSet(false, true)) {
+                return;
+            }
+            errCallback.invoke(createError(exception));
+        }
+    }
+
+    static WritableMap createError(@NonNull Exception exception) {
+        WritableMap error = Arguments.createMap();
+        error.putString("message", exception.getMessage());
+        if (exception instanceof MessageService.NotReachableException) {
+            error.putString("code", ERROR_CODE_SESSION_UNREACHABLE);
+        } else if (exception instanceof SendQueue.QueueFullException) {
+            error.putString("code", ERROR_CODE_QUEUE_FULL);
+        } else if (exception instanceof ReplyRegistry.ReplyTimeoutException) {
+            error.putString("code", ERROR_CODE_REPLY_TIMEOUT);
+        } else {
+            error.putString("code", ERROR_CODE_SEND_FAILED);
+        }
+        return error;
     }
 
+    /**
+     * Configure the batching of messages, the following options are supported:
+     * enabled: Boolean
+     * windowMs: Number, the maximum time a message waits for other messages
+     * maxBytes: Number, the maximum size of the data in a batch
+     */
     @ReactMethod
+    public void configureMessageBatching(ReadableMap options) {
+        boolean enabled = options.hasKey("enabled") && options.getBoolean("enabled");
+        long windowMillis = options.hasKey("windowMs")
+            ? (long) options.getDouble("windowMs") : MessageBatcher.DEFAULT_WINDOW_MILLIS;
+        int maxBytes = options.hasKey("maxBytes")
+            ? options.getInt("maxBytes") : MessageBatcher.DEFAULT_MAX_BATCH_BYTES;
+        runOnService(null, service -> service.setBatching(enabled, windowMillis, maxBytes));
+    }
+
+    @ReactMethod
+    public void flushMessages() {
+        runOnService(null, MessageService::flushMessages);
+    }
+
+    @ReactMethod
+    public void getMessageBatchStats(Promise promise) {
+        runOnService(promise, service -> promise.resolve(Arguments.makeNativeMap(service.getBatchStats())));
+    }
+
+    /**
+     * Send a string as the raw data of a message, encoded with one of the NSStringEncoding values of
+     * lib/encoding.ts. Binary peers receive the bytes as they are. The reply data is passed to the reply
+     * callback base64 encoded, as on iOS.
+     */
+    @ReactMethod
+    public void sendMessageData(String data, double encoding, Callback replyCallback, Callback errCallback) {
+        Charset charset = charsetOf((long) encoding);
+        if (charset == null) {
+            WritableMap error = Arguments.createMap();
+            error.putString("message", "Unsupported encoding " + (long) encoding);
+            error.putString("code", ERROR_CODE_INVALID_OPTIONS);
+            errCallback.invoke(error);
+            return;
+        }
+        byte[] bytes = data.getBytes(charset);
+        MessageCallbacks callbacks = new MessageCallbacks(replyCallback, errCallback, true);
+        MessageService service = binding.get();
+        if (service != null) {
+            send(service, bytes, false, false, false, null, callbacks, replyCallback != null);
+        } else {
+            runOnService(bound -> send(bound, bytes, false, false, false, null, callbacks, replyCallback != null),
+                (code, exception) -> callbacks.onFailure(exception));
+        }
+    }
+
+    /**
+     * @param encoding an NSStringEncoding value
+     * @return the charset, null when Java has no equivalent
+     */
+    @Nullable
+    static Charset charsetOf(long encoding) {
+        String name;
+        if (encoding == 1) {
+            name = "US-ASCII";
+        } else if (encoding == 3) {
+            name = "EUC-JP";
+        } else if (encoding == 4) {
+            name = "UTF-8";
+        } else if (encoding == 5) {
+            name = "ISO-8859-1";
+        } else if (encoding == 8) {
+            name = "Shift_JIS";
+        } else if (encoding == 9) {
+            name = "ISO-8859-2";
+        } else if (encoding == 10) {
+            name = "UTF-16";
+        } else if (encoding == 11) {
+            name = "windows-1251";
+        } else if (encoding == 12) {
+            name = "windows-1252";
+        } else if (encoding == 13) {
+            name = "windows-1253";
+        } else if (encoding == 14) {
+            name = "windows-1254";
+        } else if (encoding == 15) {
+            name = "windows-1250";
+        } else if (encoding == 21) {
+            name = "ISO-2022-JP";
+        } else if (encoding == 30) {
+            name = "x-MacRoman";
+        } else if (encoding == 0x90000100L) {
+            name = "UTF-16BE";
+        } else if (encoding == 0x94000100L) {
+            name = "UTF-16LE";
+        } else if (encoding == 0x8c000100L) {
+            name = "UTF-32";
+        } else if (encoding == 0x98000100L) {
+            name = "UTF-32BE";
+        } else if (encoding == 0x9c000100L) {
+            name = "UTF-32LE";
+        } else {
+            return null;
+        }
+        try {
+            return Charset.isSupported(name) ? Charset.forName(name) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A constant, so it is safe to call synchronously
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
     public String getPlatform() {
         return "wearos";
     }
 
+    /**
+     * Resolves with whether a watch is connected, from the cached state
+     */
+    @ReactMethod
+    public void getIsPaired(Promise promise) {
+        runOnService(promise, service -> service.reachability.getState(
+            (paired, installed, reachable) -> promise.resolve(paired)));
+    }
+
+    /**
+     * Resolves with whether a watch with the app installed can receive messages, from the cached state
+     */
+    @ReactMethod
+    public void getReachability(Promise promise) {
+        runOnService(promise, service -> service.reachability.getState(
+            (paired, installed, reachable) -> promise.resolve(reachable)));
+    }
+
+    /**
+     * Returns the cached paired, installed and reachability state synchronously,
+     * null while the service is not bound or the state is not known yet.
+     * Only reads volatile fields, so it never blocks the JavaScript thread.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    @Nullable
+    public WritableMap getCachedReachability() {
+        MessageService service = binding.get();
+        if (service == null || !service.reachability.isKnown()) {
+            return null;
+        }
+        WritableMap state = Arguments.createMap();
+        state.putBoolean("paired", service.reachability.isPaired());
+        state.putBoolean("installed", service.reachability.isInstalled());
+        state.putBoolean("reachability", service.reachability.isReachable());
+        return state;
+    }
+
+    /**
+     * Write a key of the replicated state, a null value removes the key.
+     * Writes to the same key within the throttle interval are coalesced, only the newest value is sent.
+     */
+    @ReactMethod
+    public void setReplicatedState(String key, @Nullable ReadableMap value) throws JSONException {
+        byte[] data = value == null ? null : PayloadSerializer.toJSONBytes(value);
+        runOnService(null, service -> service.setReplicatedState(key, data));
+    }
+
+    /**
+     * Returns the value of a key of the replicated state synchronously from the native cache,
+     * null when the key has no value or the service is not bound
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    @Nullable
+    public WritableMap getReplicatedState(String key) {
+        MessageService service = binding.get();
+        byte[] value = service == null ? null : service.getReplicatedState(key);
+        return value == null ? null : BridgeUtil.toWritableMap(value);
+    }
+
+    /**
+     * Returns all keys of the replicated state synchronously from the native cache,
+     * empty when the service is not bound
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public WritableMap getAllReplicatedState() {
+        MessageService service = binding.get();
+        if (service == null) {
+            return Arguments.createMap();
+        }
+        return toStateMap(service.getReplicatedState());
+    }
+
+    private static WritableMap toStateMap(Map<String, byte[]> state) {
+        WritableMap map = Arguments.createMap();
+        for (Map.Entry<String, byte[]> entry : state.entrySet()) {
+            if (entry.getValue() == null) {
+                map.putNull(entry.getKey());
+            } else {
+                map.putMap(entry.getKey(), BridgeUtil.toWritableMap(entry.getValue()));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Configure the replicated state, the following options are supported:
+     * prefix: String, the path under which the keys are stored as data items
+     * throttleMs: Number, the minimum time between two writes of the state, writes in between are coalesced
+     */
     @ReactMethod
-    public Boolean getIsPaired() {
-        return boundService.isConnected();
+    public void configureReplicatedState(ReadableMap options) {
+        String prefix = options.hasKey("prefix") ? options.getString("prefix") : ReplicatedState.DEFAULT_PREFIX;
+        long throttleMs = options.hasKey("throttleMs")
+            ? (long) options.getDouble("throttleMs") : ReplicatedState.DEFAULT_THROTTLE_MILLIS;
+        runOnService(null, service -> service.setReplicatedStateConfig(prefix, throttleMs));
     }
 
+    /**
+     * Emit the messages received on a path as path message events, on a thread of their own.
+     * The pattern is an exact path, or a prefix ending in "/*" that matches every path below it,
+     * the priority is the thread priority of the handler, between 1 and 10
+     */
     @ReactMethod
-    public boolean getReachability() {
-        Log.d(TAG, "getReachability");
-        return true;
+    public void addPathListener(String pattern, double priority) {
+        runOnService(null, service -> service.addPathHandler(pattern, (int) priority, (sourceNodeId, path, data) -> {
+            WritableMap event = Arguments.createMap();
+            event.putString("path", path);
+            event.putString("pattern", pattern);
+            event.putString("sourceNodeId", sourceNodeId);
+            event.putMap("data", BridgeUtil.toWritableMap(data));
+            sendEvent(EVENT_PATH_MESSAGE, event);
+        }));
+    }
+
+    @ReactMethod
+    public void removePathListener(String pattern) {
+        runOnService(null, service -> service.removePathHandler(pattern));
+    }
+
+    /**
+     * Send a payload on a path of its own, to one node or to all connected nodes when nodeId is null.
+     * Resolves once it was sent
+     */
+    @ReactMethod
+    public void sendToPath(String path, ReadableMap payload, @Nullable String nodeId, Promise promise) throws JSONException {
+        byte[] data = PayloadSerializer.toJSONBytes(payload);
+        runOnService(promise, service -> service.sendToPath(nodeId, path, data, new MessageService.SendCallback() {
+            @Override
+            public void onSuccess() {
+                promise.resolve(null);
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                promise.reject(exception instanceof MessageService.NotReachableException
+                    ? ERROR_CODE_SESSION_UNREACHABLE : ERROR_CODE_SEND_FAILED, exception);
+            }
+        }));
     }
 
+    /**
+     * Open a telemetry channel, the following options are supported:
+     * type: String, "integer" for whole numbers such as a heart rate or "float", the default
+     * dimensions: Number, the number of values per sample, 3 for the axes of an accelerometer
+     * maxSamples: Number, the number of samples after which a frame is sent
+     * flushIntervalMs: Number, the maximum time a sample waits before it is sent
+     * The promise is rejected when dimensions is not between 1 and TelemetryCodec.MAX_DIMENSIONS
+     */
     @ReactMethod
-    public void replyToMessageWithId() {
-        Log.d(TAG, "replyToMessageWithId");
+    public void openTelemetryChannel(String channel, ReadableMap options, Promise promise) {
+        TelemetryCodec.ValueType type = options.hasKey("type") && "integer".equals(options.getString("type"))
+            ? TelemetryCodec.ValueType.integer : TelemetryCodec.ValueType.floating;
+        int dimensions = options.hasKey("dimensions") ? options.getInt("dimensions") : 1;
+        int maxSamples = options.hasKey("maxSamples") ? options.getInt("maxSamples") : TelemetryStream.DEFAULT_MAX_SAMPLES;
+        long flushIntervalMs = options.hasKey("flushIntervalMs")
+            ? (long) options.getDouble("flushIntervalMs") : TelemetryStream.DEFAULT_FLUSH_INTERVAL_MILLIS;
+        runOnService(promise, service -> {
+            try {
+                service.openTelemetryChannel(channel, type, dimensions, maxSamples, flushIntervalMs);
+                promise.resolve(null);
+            } catch (IllegalArgumentException e) {
+                promise.reject(ERROR_CODE_INVALID_TELEMETRY, e);
+            }
+        });
     }
 
     @ReactMethod
-    public boolean getIsWatchAppInstalled() {
-        Log.d(TAG, "getIsWatchAppInstalled");
-        return true;
+    public void closeTelemetryChannel(String channel) {
+        runOnService(null, service -> service.closeTelemetryChannel(channel));
     }
 
+    /**
+     * Add samples to a telemetry channel, the values are interleaved by sample with one value per dimension
+     * of the channel. They are copied into the primitive arrays of the channel on the calling thread once
+     * the service is bound. The promise is rejected when the channel is not open or the number of values
+     * does not match the dimensions of the channel.
+     */
     @ReactMethod
-    public void getApplicationContext() {
-        Log.d(TAG, "getApplicationContext");
+    public void appendTelemetry(String channel, ReadableArray timestamps, ReadableArray values, Promise promise) {
+        int count = timestamps.size();
+        long[] times = new long[count];
+        double[] samples = new double[values.size()];
+        for (int i = 0; i < count; i++) {
+            times[i] = (long) timestamps.getDouble(i);
+        }
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = values.getDouble(i);
+        }
+        MessageService service = binding.get();
+        if (service != null) {
+            appendTelemetry(service, channel, times, samples, promise);
+        } else {
+            runOnService(promise, bound -> appendTelemetry(bound, channel, times, samples, promise));
+        }
+    }
+
+    private void appendTelemetry(MessageService service, String channel, long[] timestamps, double[] values,
+                                 Promise promise) {
+        try {
+            if (service.appendTelemetry(channel, timestamps, values)) {
+                promise.resolve(null);
+            } else {
+                promise.reject(ERROR_CODE_INVALID_TELEMETRY, "Telemetry channel " + channel + " is not open");
+            }
+        } catch (IllegalArgumentException e) {
+            promise.reject(ERROR_CODE_INVALID_TELEMETRY, e);
+        }
     }
 
     @ReactMethod
-    public void transferFile() {
-        Log.d(TAG, "transferFile");
+    public void flushTelemetry() {
+        runOnService(null, MessageService::flushTelemetry);
     }
 
+    /**
+     * Emits a received telemetry frame, the timestamps and values are passed as the base64 of little endian
+     * float64 arrays, so JavaScript can view them as Float64Arrays instead of parsing an array of numbers
+     */
+    private void onTelemetry(@NonNull String sourceNodeId, @NonNull TelemetryCodec.Frame frame) {
+        ByteBuffer timestamps = ByteBuffer.allocate(frame.count * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frame.count; i++) {
+            timestamps.putDouble(frame.timestamps[i]);
+        }
+        ByteBuffer values = ByteBuffer.allocate(frame.values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        values.asDoubleBuffer().put(frame.values);
+        WritableMap event = Arguments.createMap();
+        event.putString("channel", frame.channel);
+        event.putString("sourceNodeId", sourceNodeId);
+        event.putString("type", frame.type == TelemetryCodec.ValueType.integer ? "integer" : "float");
+        event.putInt("dimensions", frame.dimensions);
+        event.putInt("count", frame.count);
+        event.putString("timestamps", Base64.encodeToString(timestamps.array(), Base64.NO_WRAP));
+        event.putString("values", Base64.encodeToString(values.array(), Base64.NO_WRAP));
+        sendEvent(EVENT_TELEMETRY, event);
+    }
+
+    /**
+     * Configure how the pair, install and reachability state is determined, the following options are supported:
+     * capability: String, the capability the watch app advertises, without it every connected watch is assumed to have the app
+     * debounceMs: Number, the time a changed state has to hold before the change events are emitted
+     */
     @ReactMethod
-    public void getFileTransfers() {
-        Log.d(TAG, "getFileTransfers");
+    public void configureReachability(ReadableMap options) {
+        String capability = options.hasKey("capability") ? options.getString("capability") : null;
+        long debounceMs = options.hasKey("debounceMs")
+            ? (long) options.getDouble("debounceMs") : ReachabilityMonitor.DEFAULT_DEBOUNCE_MILLIS;
+        runOnService(null, service -> service.setReachability(capability, debounceMs));
     }
 
     @ReactMethod
-    public void dequeueUserInfo() {
-        Log.d(TAG, "dequeueUserInfo");
+    public void replyToMessageWithId(String messageId, ReadableMap message) throws JSONException {
+        byte[] data = PayloadSerializer.toJSONBytes(message);
+        runOnService(null, service -> service.replyToMessage(messageId, data, null));
+    }
+
+    /**
+     * Resolves with whether a connected watch has the app installed, from the cached state
+     */
+    @ReactMethod
+    public void getIsWatchAppInstalled(Promise promise) {
+        runOnService(promise, service -> service.reachability.getState(
+            (paired, installed, reachable) -> promise.resolve(installed)));
+    }
+
+    /**
+     * Resolves with the newest application context received from the watch, null if none was received
+     */
+    @ReactMethod
+    public void getApplicationContext(Promise promise) {
+        runOnService(promise, service -> {
+            MessageObject context = service.getReceivedApplicationContext();
+            promise.resolve(context == null ? null : BridgeUtil.toWritableMap(context.data));
+        });
+    }
+
+    /**
+     * Writes the context to the outbox before it is sent, on the bridge executor
+     */
+    @ReactMethod
+    public void updateApplicationContext(ReadableMap context) {
+        Map<String, Object> map = context.toHashMap();
+        runOnService(null, service -> service.updateApplicationContext(map));
+    }
+
+    /**
+     * Queue user info for the watch, it is delivered when the watch is reachable,
+     * also when the app was killed in the meantime. It is written to the outbox on the bridge executor.
+     */
+    @ReactMethod
+    public void transferUserInfo(ReadableMap userInfo) throws JSONException {
+        byte[] data = PayloadSerializer.toJSONBytes(userInfo);
+        runOnService(null, service -> service.transferUserInfo(data));
+    }
+
+    /**
+     * Queue user info for the watch like transferUserInfo,
+     * queued user info with the same key that was not transferred yet is dropped
+     */
+    @ReactMethod
+    public void transferCoalescedUserInfo(String key, ReadableMap userInfo) throws JSONException {
+        byte[] data = PayloadSerializer.toJSONBytes(userInfo);
+        runOnService(null, service -> service.transferUserInfo(data, key));
+    }
+
+    /**
+     * Configure the transfer of user info, the following options are supported:
+     * flushDelayMs: Number, the time user info waits for more user info before it is transferred
+     * maxBatchBytes: Number, the maximum size of the user info transferred together
+     */
+    @ReactMethod
+    public void configureUserInfo(ReadableMap options) {
+        long flushDelayMs = options.hasKey("flushDelayMs")
+            ? (long) options.getDouble("flushDelayMs") : UserInfoTransfer.DEFAULT_FLUSH_DELAY_MILLIS;
+        int maxBatchBytes = options.hasKey("maxBatchBytes")
+            ? options.getInt("maxBatchBytes") : UserInfoTransfer.DEFAULT_MAX_BATCH_BYTES;
+        runOnService(null, service -> service.setUserInfoTransfer(flushDelayMs, maxBatchBytes));
+    }
+
+    /**
+     * Wear OS has no complication specific transfer, the user info is transferred like any other
+     */
+    @ReactMethod
+    public void transferCurrentComplicationUserInfo(ReadableMap userInfo) throws JSONException {
+        transferUserInfo(userInfo);
+    }
+
+    /**
+     * Resolves with the received user info that has not been dequeued, by id
+     */
+    @ReactMethod
+    public void getQueuedUserInfo(Promise promise) {
+        runOnService(promise, service -> {
+            WritableMap queue = Arguments.createMap();
+            for (Map.Entry<String, MessageObject> entry : service.getQueuedUserInfo().entrySet()) {
+                queue.putMap(entry.getKey(), BridgeUtil.toWritableMap(entry.getValue().data));
+            }
+            promise.resolve(queue);
+        });
+    }
+
+    /**
+     * Removes the oldest received user info from the queue and resolves with it,
+     * an array of {id, timestamp, userInfo} in the order it was received
+     */
+    @ReactMethod
+    public void drainUserInfo(int max, Promise promise) {
+        runOnService(promise, service -> {
+            WritableArray drained = Arguments.createArray();
+            for (UserInfoQueue.Entry entry : service.drainUserInfo(max)) {
+                WritableMap item = Arguments.createMap();
+                item.putString("id", String.valueOf(entry.seq));
+                item.putDouble("timestamp", entry.message.timestamp.getTime());
+                item.putMap("userInfo", BridgeUtil.toWritableMap(entry.message.data));
+                drained.pushMap(item);
+            }
+            promise.resolve(drained);
+        });
+    }
+
+    /**
+     * Start sending a file to the watch, resolves with the id of the transfer.
+     * Progress is reported through EVENT_FILE_TRANSFER events.
+     */
+    @ReactMethod
+    public void transferFile(String uri, @Nullable ReadableMap metadata, Promise promise) {
+        String path = Uri.parse(uri).getPath();
+        if (path == null) {
+            promise.reject(ERROR_CODE_INVALID_FILE, "Not a file uri: " + uri);
+            return;
+        }
+        Map<String, Object> meta = metadata == null ? new HashMap<>() : metadata.toHashMap();
+        runOnService(promise, service -> {
+            File file = new File(path);
+            if (!file.isFile()) {
+                promise.reject(ERROR_CODE_INVALID_FILE, "File does not exist: " + uri);
+                return;
+            }
+            try {
+                promise.resolve(service.transferFile(file, uri, meta));
+            } catch (MessageService.NotReachableException e) {
+                promise.reject(ERROR_CODE_SESSION_UNREACHABLE, e);
+            }
+        });
+    }
+
+    /**
+     * Resume a failed file transfer, resolves with false if there is no failed transfer with the id
+     */
+    @ReactMethod
+    public void resumeFileTransfer(String id, Promise promise) {
+        runOnService(promise, service -> {
+            for (FileTransferManager.FileTransfer transfer : service.getFileTransfers()) {
+                if (transfer.id.equals(id)) {
+                    String path = Uri.parse(transfer.uri).getPath();
+                    promise.resolve(path != null && service.resumeFileTransfer(id, new File(path)));
+                    return;
+                }
+            }
+            promise.resolve(false);
+        });
+    }
+
+    /**
+     * Resolves with the live state of all file transfers by id
+     */
+    @ReactMethod
+    public void getFileTransfers(Promise promise) {
+        runOnService(promise, service -> {
+            Map<String, Object> transfers = new HashMap<>();
+            for (FileTransferManager.FileTransfer transfer : service.getFileTransfers()) {
+                transfers.put(transfer.id, transfer.toMap());
+            }
+            promise.resolve(Arguments.makeNativeMap(transfers));
+        });
+    }
+
+    @ReactMethod
+    public void setMaxConcurrentFileTransfers(int maxConcurrentTransfers) {
+        runOnService(null, service -> service.setMaxConcurrentFileTransfers(maxConcurrentTransfers));
+    }
+
+    /**
+     * Configure the emission of received messages, the following options are supported:
+     * maxBatchSize: Number, the maximum number of messages per event
+     * maxDelayMs: Number, the time to wait for more messages before the next frame
+     */
+    @ReactMethod
+    public void configureMessageEvents(ReadableMap options) {
+        int maxBatchSize = options.hasKey("maxBatchSize")
+            ? options.getInt("maxBatchSize") : EventBatcher.DEFAULT_MAX_BATCH_SIZE;
+        long maxDelay = options.hasKey("maxDelayMs")
+            ? (long) options.getDouble("maxDelayMs") : EventBatcher.DEFAULT_MAX_DELAY_MILLIS;
+        messageEvents.configure(maxBatchSize, maxDelay);
+    }
+
+    private void onMessageReceived(@NonNull String sourceNodeId, @NonNull MessageObject message, @NonNull ByteBuffer data) {
+        WritableMap payload = BridgeUtil.toWritableMap(message.data);
+        if (message.id != 0) {
+            payload.putString("id", MessageService.formatMessageId(sourceNodeId, message.id));
+        }
+        messageEvents.add(payload);
+    }
+
+    private void onFileTransfer(@NonNull String type, @NonNull FileTransferManager.FileTransfer transfer) {
+        Map<String, Object> event = transfer.toMap();
+        event.put("type", type);
+        sendEvent(EVENT_FILE_TRANSFER, Arguments.makeNativeMap(event));
+    }
+
+    /**
+     * Emit an event to the JavaScript NativeEventEmitter
+     *
+     * @param eventName one of the EVENT_ constants
+     * @param payload   the payload of the event
+     */
+    void sendEvent(String eventName, @Nullable Object payload) {
+        ReactApplicationContext context = getReactApplicationContext();
+        if (context == null || !context.hasActiveCatalystInstance()) {
+            return;
+        }
+        context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(eventName, payload);
+    }
+
+    /**
+     * Remove processed user info from the queue
+     */
+    @ReactMethod
+    public void dequeueUserInfo(ReadableArray ids) {
+        List<String> dequeued = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            dequeued.add(ids.getString(i));
+        }
+        runOnService(null, service -> service.dequeueUserInfo(dequeued));
     }
 
     @Override
@@ -0,0 +1,123 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The allocations of the send and receive paths for a fixed-size payload, run it with the GC profiler:
+ * <pre>
+ * java -jar target/benchmarks.jar Allocation -prof gc
+ * </pre>
+ * gc.alloc.rate.norm is the number of bytes allocated per message, by all threads.
+ * The pooled variants take their arrays from the BufferPool as the bridge does, the others allocate them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationBenchmark {
+
+    static final int BATCH = SendThroughputBenchmark.BATCH;
+
+    @Param({"sensor", "list"})
+    public String shape;
+
+    private MessageService service;
+    private MessageObject message;
+    private byte[] data;
+    private byte[] frame;
+    private long received;
+    private final BufferPool pool = new BufferPool();
+    private final Semaphore done = new Semaphore(0);
+    private final AtomicLong failures = new AtomicLong();
+    private final MessageService.SendCallback callback = new MessageService.SendCallback() {
+        @Override
+        public void onSuccess() {
+            done.release();
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            failures.incrementAndGet();
+            done.release();
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        service = JvmHarness.createService(
+            new JvmHarness.FakeNodeSource(JvmHarness.nodes(1), 0), new JvmHarness.ImmediateTransport());
+        service.peerFormats.put("node-0", MessageCodec.WireFormat.binary);
+        service.addMessageDataReceiveListener((sourceNodeId, message, data) -> received += data.remaining());
+        data = Payloads.json(Payloads.Shape.valueOf(shape));
+        message = JvmHarness.dataMessage(data);
+        frame = MessageCodec.encode(Collections.singletonList(message));
+    }
+
+    @TearDown
+    public void tearDown() {
+        JvmHarness.destroy(service);
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " sends failed");
+        }
+    }
+
+    @Benchmark
+    public int encode() {
+        return message.toBinaryBytes().length;
+    }
+
+    @Benchmark
+    public int encodePooled() {
+        byte[] encoded = MessageCodec.encode(message, pool);
+        int length = encoded.length;
+        pool.release(encoded);
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void send() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            service.sendMessageToAll(data, false, false, callback);
+        }
+        done.acquire(BATCH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendPooled() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            byte[] pooled = service.bufferPool.acquire(data.length);
+            System.arraycopy(data, 0, pooled, 0, data.length);
+            service.sendPooledMessageToAll(pooled, false, false, callback, null);
+        }
+        done.acquire(BATCH);
+    }
+
+    @Benchmark
+    public long receive() {
+        service.handleMessage("node-0", frame);
+        return received;
+    }
+}
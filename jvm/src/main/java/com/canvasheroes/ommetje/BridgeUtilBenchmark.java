@@ -0,0 +1,72 @@
+package com.canvasheroes.ommetje;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting the payloads JS sends into the JSONObject tree of BridgeUtil, and on into the bytes of a message
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BridgeUtilBenchmark {
+
+    @Param({"command", "sensor", "list"})
+    public String shape;
+
+    private ReadableMap payload;
+    private ReadableArray payloads;
+
+    @Setup
+    public void setUp() {
+        payload = Payloads.create(Payloads.Shape.valueOf(shape));
+        JavaOnlyArray array = new JavaOnlyArray();
+        for (int i = 0; i < 10; i++) {
+            array.pushMap(Payloads.create(Payloads.Shape.valueOf(shape)));
+        }
+        payloads = array;
+    }
+
+    @Benchmark
+    public JSONObject toJSONObject() throws JSONException {
+        return BridgeUtil.toJSONObject(payload);
+    }
+
+    /**
+     * What the bridge did to send a payload before the PayloadSerializer
+     */
+    @Benchmark
+    public byte[] toJSONObjectBytes() throws JSONException {
+        return BridgeUtil.toJSONObject(payload).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An array of ten payloads
+     */
+    @Benchmark
+    public JSONArray toJSONArray() throws JSONException {
+        return BridgeUtil.toJSONArray(payloads);
+    }
+}
@@ -0,0 +1,119 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost the module adds to the start of the app, and the time from creating it to the first message
+ * reaching the transport. The service is connected as soon as it is bound, the time the system takes to
+ * start it is not included. Every invocation starts from a new module and service.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 50)
+@Measurement(iterations = 200)
+@Fork(1)
+public class ColdStartBenchmark {
+
+    private File directory;
+    private JvmHarness.BindingContext context;
+    private MessageService service;
+    private RNWatch module;
+    private CountDownLatch sent;
+    private final ReadableMap payload = Payloads.create(Payloads.Shape.sensor);
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("cold-start").toFile();
+        context = new JvmHarness.BindingContext();
+        sent = new CountDownLatch(1);
+        CountDownLatch first = sent;
+        service = JvmHarness.createService(new JvmHarness.FakeNodeSource(JvmHarness.nodes(1), 0),
+            (nodeId, path, data, callback) -> {
+                callback.onSuccess();
+                first.countDown();
+            });
+        JvmHarness.openStores(service, directory, new UserInfoTransfer.Outlet() {
+            @NonNull
+            @Override
+            public Collection<String> getNodeIds() {
+                return Collections.singletonList("node-0");
+            }
+
+            @Override
+            public void put(@NonNull String path, @NonNull byte[] data, @NonNull MessageService.SendCallback callback) {
+                callback.onSuccess();
+            }
+
+            @Override
+            public void delete(@NonNull String sourceNodeId, @NonNull String path) {
+            }
+        });
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        if (module != null) {
+            module.onCatalystInstanceDestroy();
+            module = null;
+        }
+        JvmHarness.destroy(service);
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Creating the module while the app starts, nothing is bound yet
+     */
+    @Benchmark
+    public RNWatch createModule() {
+        module = new RNWatch(context);
+        return module;
+    }
+
+    /**
+     * Creating the module and sending a message right away: the message waits for the service
+     * to be bound and is replayed once it is connected
+     */
+    @Benchmark
+    public void firstMessage() throws Exception {
+        module = new RNWatch(context);
+        module.sendMessage(payload, null, null);
+        context.connect(service);
+        if (!sent.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("The first message was not sent");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.canvasheroes.ommetje;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU cost and the bytes on the wire of compressing the data of a binary message.
+ * The dataBytes and wireBytes counters are the totals of an iteration, their ratio is the size
+ * of a frame against the data it carries. The sensor data is below the size threshold and is never compressed.
+ * The random data does not compress, after the first attempts the compressor backs off and sends it as is.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"sensor", "list", "random"})
+    public String data;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wire {
+        public long dataBytes;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            dataBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    private MessageObject message;
+    private final PayloadCompressor compressor = new PayloadCompressor();
+    private byte[] plainFrame;
+    private byte[] compressedFrame;
+
+    @Setup
+    public void setUp() {
+        byte[] bytes;
+        if (data.equals("random")) {
+            bytes = new byte[2048];
+            new Random(42).nextBytes(bytes);
+        } else {
+            bytes = Payloads.json(Payloads.Shape.valueOf(data));
+        }
+        message = JvmHarness.dataMessage(bytes);
+        compressor.configure(true, PayloadCompressor.DEFAULT_MIN_BYTES);
+        plainFrame = message.toBinaryBytes();
+        compressor.prepare(message);
+        compressedFrame = message.toBinaryBytes();
+    }
+
+    @Benchmark
+    public byte[] sendUncompressed(Wire wire) {
+        message.compressedData = null;
+        byte[] frame = message.toBinaryBytes();
+        wire.dataBytes += message.data.length;
+        wire.wireBytes += frame.length;
+        return frame;
+    }
+
+    @Benchmark
+    public byte[] sendCompressed(Wire wire) {
+        message.compressedData = null;
+        compressor.prepare(message);
+        byte[] frame = message.toBinaryBytes();
+        wire.dataBytes += message.data.length;
+        wire.wireBytes += frame.length;
+        return frame;
+    }
+
+    @Benchmark
+    public List<MessageObject> receiveUncompressed() throws MessageCodec.MalformedMessageException {
+        return MessageCodec.decode(plainFrame);
+    }
+
+    @Benchmark
+    public List<MessageObject> receiveCompressed() throws MessageCodec.MalformedMessageException {
+        return MessageCodec.decode(compressedFrame);
+    }
+}
@@ -0,0 +1,206 @@
+package com.canvasheroes.ommetje;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.google.android.gms.wearable.Node;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the MessageService on a plain JVM, without onCreate and so without Play Services:
+ * the connected nodes come from a FakeNodeSource and messages are sent with a MessageTransport of choice.
+ */
+final class JvmHarness {
+
+    static final String DEVICE_ID = "jvm-device";
+
+    private JvmHarness() {
+    }
+
+    static Node node(@NonNull String id, boolean nearby) {
+        return new Node() {
+            @Override
+            public String getId() {
+                return id;
+            }
+
+            @Override
+            public String getDisplayName() {
+                return id;
+            }
+
+            @Override
+            public boolean isNearby() {
+                return nearby;
+            }
+        };
+    }
+
+    /**
+     * @return count nearby nodes named node-0, node-1, ...
+     */
+    static List<Node> nodes(int count) {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(node("node-" + i, true));
+        }
+        return nodes;
+    }
+
+    /**
+     * Returns a fixed set of nodes after waiting as long as the NodeClient would
+     */
+    static final class FakeNodeSource implements NodeRegistry.NodeSource {
+        volatile Collection<Node> nodes;
+        volatile long latencyMicros;
+        volatile int queries = 0;
+
+        FakeNodeSource(@NonNull Collection<Node> nodes, long latencyMicros) {
+            this.nodes = nodes;
+            this.latencyMicros = latencyMicros;
+        }
+
+        @NonNull
+        @Override
+        public Collection<Node> getConnectedNodes() throws InterruptedException {
+            queries++;
+            if (latencyMicros > 0) {
+                TimeUnit.MICROSECONDS.sleep(latencyMicros);
+            }
+            return Collections.unmodifiableCollection(nodes);
+        }
+    }
+
+    /**
+     * A transport that reports every send as successful right away
+     */
+    static final class ImmediateTransport implements MessageTransport {
+        volatile long sent = 0;
+        volatile long bytes = 0;
+
+        @Override
+        public void send(@NonNull String nodeId, @NonNull String path, @NonNull byte[] data,
+                         @NonNull MessageService.SendCallback callback) {
+            sent++;
+            bytes += data.length;
+            callback.onSuccess();
+        }
+    }
+
+    /**
+     * A context that holds on to the connection of bindService, so the caller decides when the service
+     * is connected or lost, as the system would
+     */
+    static final class BindingContext extends ReactApplicationContext {
+        volatile int starts = 0;
+        volatile int binds = 0;
+        volatile int unbinds = 0;
+        @Nullable
+        volatile ServiceConnection connection;
+
+        @Override
+        public ComponentName startService(Intent intent) {
+            starts++;
+            return null;
+        }
+
+        @Override
+        public boolean bindService(Intent intent, ServiceConnection connection, int flags) {
+            binds++;
+            this.connection = connection;
+            return true;
+        }
+
+        @Override
+        public void unbindService(ServiceConnection connection) {
+            unbinds++;
+        }
+
+        /**
+         * Connect the service to the last binding
+         */
+        void connect(@NonNull MessageService service) {
+            ServiceConnection current = connection;
+            if (current == null) {
+                throw new IllegalStateException("The service was not bound");
+            }
+            current.onServiceConnected(null, service.onBind(null));
+        }
+
+        /**
+         * Report the service as lost, as when its process dies
+         */
+        void disconnect() {
+            ServiceConnection current = connection;
+            if (current != null) {
+                current.onServiceDisconnected(null);
+            }
+        }
+    }
+
+    /**
+     * Create a service that takes its nodes from the source and sends with the transport
+     */
+    @NonNull
+    static MessageService createService(@NonNull NodeRegistry.NodeSource source, @NonNull MessageTransport transport) {
+        MessageService service = new MessageService();
+        service.nodeRegistry = new NodeRegistry(source, service.nodeExecutorService);
+        service.setTransport(transport);
+        service.deviceId = DEVICE_ID;
+        return service;
+    }
+
+    /**
+     * Open the stores onCreate opens in the files directory of the app. User info is put with the outlet
+     * instead of the DataClient, and there is no ChannelClient, files cannot be transferred.
+     */
+    static void openStores(@NonNull MessageService service, @NonNull File directory,
+                           @NonNull UserInfoTransfer.Outlet outlet) {
+        service.fileTransfers = new FileTransferManager(null, new File(directory, "watch_files"));
+        service.outbox = MessageStore.open(new File(directory, "watch_outbox"), service.batchExecutorService);
+        service.inbox = MessageStore.open(new File(directory, "watch_inbox"), service.batchExecutorService);
+        service.userInfoOutbox = UserInfoQueue.open(
+            new File(directory, "watch_user_info_out"), service.batchExecutorService);
+        service.userInfoInbox = UserInfoQueue.open(
+            new File(directory, "watch_user_info_in"), service.batchExecutorService);
+        service.userInfo = new UserInfoTransfer(
+            service.batchExecutorService, outlet, service.userInfoOutbox, service.userInfoInbox);
+    }
+
+    /**
+     * Stop the threads of a service created with createService and close its stores,
+     * onDestroy expects onCreate to have run
+     */
+    static void destroy(@NonNull MessageService service) {
+        service.sendQueue.close();
+        service.nodeExecutorService.shutdownNow();
+        service.dispatchExecutorService.shutdownNow();
+        service.router.shutdown();
+        service.batchExecutorService.shutdownNow();
+        service.timerWheel.stop();
+        if (service.fileTransfers != null) {
+            service.fileTransfers.shutdown();
+            service.outbox.close();
+            service.inbox.close();
+            service.userInfoOutbox.close();
+            service.userInfoInbox.close();
+        }
+    }
+
+    @NonNull
+    static MessageObject dataMessage(@NonNull byte[] data) {
+        return new MessageObject(MessageObject.Sender.Platform.wearos, MessageObject.Sender.Direction.wearable,
+            DEVICE_ID, MessageObject.MessageType.data, data, new java.sql.Timestamp(1_600_000_000_000L));
+    }
+}
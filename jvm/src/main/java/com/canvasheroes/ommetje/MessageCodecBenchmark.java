@@ -0,0 +1,65 @@
+package com.canvasheroes.ommetje;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a MessageObject in the JSON and the binary wire format
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({"command", "sensor", "list"})
+    public String shape;
+
+    private MessageObject message;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        message = JvmHarness.dataMessage(Payloads.json(Payloads.Shape.valueOf(shape)));
+        message.id = 42;
+        json = message.toJSONBytes();
+        binary = message.toBinaryBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return message.toJSONBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return message.toBinaryBytes();
+    }
+
+    @Benchmark
+    public MessageObject decodeJson() throws JSONException {
+        return new MessageObject(new String(json, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public List<MessageObject> decodeBinary() throws MessageCodec.MalformedMessageException {
+        return MessageCodec.decode(binary);
+    }
+}
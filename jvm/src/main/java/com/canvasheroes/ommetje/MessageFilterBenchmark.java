@@ -0,0 +1,100 @@
+package com.canvasheroes.ommetje;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiving a batch of messages from four watches when the app only wants those of some of them.
+ * The lazy filter rejects messages from the header of their view, the eager filter is a listener
+ * that drops them after they were decoded, as apps did before the message filter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFilterBenchmark {
+
+    static final int WATCHES = 4;
+    static final int BATCH = 32;
+
+    /**
+     * The number of the four watches whose messages are accepted
+     */
+    @Param({"0", "1", "4"})
+    public int accepted;
+
+    @Param({"sensor", "list"})
+    public String shape;
+
+    private MessageService lazy;
+    private MessageService eager;
+    private byte[] frame;
+    private long received;
+
+    @Setup
+    public void setUp() {
+        byte[] data = Payloads.json(Payloads.Shape.valueOf(shape));
+        List<MessageObject> messages = new ArrayList<>();
+        for (int i = 0; i < BATCH; i++) {
+            messages.add(new MessageObject(MessageObject.Sender.Platform.wearos,
+                MessageObject.Sender.Direction.wearable, "watch-" + i % WATCHES, MessageObject.MessageType.data,
+                data, new Timestamp(1_600_000_000_000L + i)));
+        }
+        frame = MessageCodec.encode(messages);
+
+        lazy = JvmHarness.createService(
+            new JvmHarness.FakeNodeSource(JvmHarness.nodes(1), 0), new JvmHarness.ImmediateTransport());
+        lazy.setMessageFilter((sourceNodeId, message) -> isAccepted(message.getDeviceId()));
+        lazy.addMessageDataReceiveListener((sourceNodeId, message, buffer) -> received += buffer.remaining());
+
+        eager = JvmHarness.createService(
+            new JvmHarness.FakeNodeSource(JvmHarness.nodes(1), 0), new JvmHarness.ImmediateTransport());
+        eager.addMessageDataReceiveListener((sourceNodeId, message, buffer) -> {
+            if (isAccepted(message.sender.deviceId)) {
+                received += buffer.remaining();
+            }
+        });
+    }
+
+    private boolean isAccepted(String deviceId) {
+        return deviceId.charAt(deviceId.length() - 1) - '0' < accepted;
+    }
+
+    @TearDown
+    public void tearDown() {
+        JvmHarness.destroy(lazy);
+        JvmHarness.destroy(eager);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long lazyFilter() {
+        lazy.handleMessage("node-0", frame);
+        return received;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long eagerFilter() {
+        eager.handleMessage("node-0", frame);
+        return received;
+    }
+}
@@ -0,0 +1,69 @@
+package com.canvasheroes.ommetje;
+
+import com.google.android.gms.wearable.Node;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of finding the connected nodes before a send: querying a source that takes as long as the
+ * NodeClient for every message, against reading the nodes cached by the NodeRegistry
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeRegistryBenchmark {
+
+    /**
+     * The round trip of getConnectedNodes, none and a fast one of a nearby watch
+     */
+    @Param({"0", "2000"})
+    public long latencyMicros;
+
+    private JvmHarness.FakeNodeSource source;
+    private MessageService service;
+
+    @Setup
+    public void setUp() {
+        source = new JvmHarness.FakeNodeSource(JvmHarness.nodes(2), latencyMicros);
+        service = JvmHarness.createService(source, new JvmHarness.ImmediateTransport());
+        service.nodeRegistry.awaitNodes();
+    }
+
+    @TearDown
+    public void tearDown() {
+        JvmHarness.destroy(service);
+    }
+
+    @Benchmark
+    public Collection<Node> blockingQuery() throws ExecutionException, InterruptedException {
+        return source.getConnectedNodes();
+    }
+
+    @Benchmark
+    public Collection<Node> cachedNodes() {
+        return service.getNodes();
+    }
+
+    @Benchmark
+    public boolean isConnected() {
+        return service.isConnected();
+    }
+}
@@ -0,0 +1,95 @@
+package com.canvasheroes.ommetje;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persisting a durable message and removing it once it is delivered, against a temporary directory.
+ * The outbox holds a backlog of undelivered messages, every operation queues one message and
+ * removes the oldest, as a connected watch drains it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutboxBenchmark {
+
+    @Param({"0", "1000"})
+    public int backlog;
+
+    @Param({"sensor", "list"})
+    public String shape;
+
+    private ScheduledExecutorService scheduler;
+    private File directory;
+    private SegmentLog log;
+    private MessageStore store;
+    private MessageObject message;
+    private byte[] frame;
+    private final ArrayDeque<Long> logSeqs = new ArrayDeque<>();
+    private final ArrayDeque<Long> storeSeqs = new ArrayDeque<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        directory = Files.createTempDirectory("outbox").toFile();
+        log = new SegmentLog(new File(directory, "log"), scheduler);
+        store = MessageStore.open(new File(directory, "store"), scheduler);
+        message = JvmHarness.dataMessage(Payloads.json(Payloads.Shape.valueOf(shape)));
+        frame = message.toBinaryBytes();
+        for (int i = 0; i < backlog; i++) {
+            logSeqs.add(log.append(frame));
+            storeSeqs.add(store.add(message));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        log.close();
+        store.close();
+        scheduler.shutdownNow();
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public boolean logAppendDelete() throws IOException {
+        logSeqs.add(log.append(frame));
+        return log.delete(logSeqs.poll());
+    }
+
+    @Benchmark
+    public boolean storeAddRemove() {
+        storeSeqs.add(store.add(message));
+        return store.remove(storeSeqs.poll());
+    }
+}
@@ -0,0 +1,78 @@
+package com.canvasheroes.ommetje;
+
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The PayloadSerializer against the JSONObject tree of BridgeUtil, from a payload of JS to the bytes
+ * of a message, and from received bytes back to a map for JS
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadSerializerBenchmark {
+
+    @Param({"command", "sensor", "list"})
+    public String shape;
+
+    private ReadableMap payload;
+    private byte[] json;
+    private final BufferPool pool = new BufferPool();
+
+    @Setup
+    public void setUp() {
+        payload = Payloads.create(Payloads.Shape.valueOf(shape));
+        json = Payloads.json(Payloads.Shape.valueOf(shape));
+    }
+
+    @Benchmark
+    public byte[] writeBridgeUtil() throws JSONException {
+        return BridgeUtil.toJSONObject(payload).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeSerializer() throws JSONException {
+        return PayloadSerializer.toJSONBytes(payload);
+    }
+
+    /**
+     * As the send path uses it, the array goes back to the pool once the message is sent
+     */
+    @Benchmark
+    public int writeSerializerPooled() throws JSONException {
+        byte[] bytes = PayloadSerializer.toJSONBytes(payload, pool);
+        int length = bytes.length;
+        pool.release(bytes);
+        return length;
+    }
+
+    @Benchmark
+    public WritableMap readBridgeUtil() throws JSONException {
+        return BridgeUtil.toWritableMap(new JSONObject(new String(json, StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public WritableMap readSerializer() throws JSONException {
+        return PayloadSerializer.toWritableMap(json);
+    }
+}
@@ -0,0 +1,84 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.json.JSONException;
+
+/**
+ * The payload shapes the benchmarks send, modelled on what apps send to their watch
+ */
+final class Payloads {
+
+    /**
+     * The shapes, from a tiny command to a screen of list items
+     */
+    enum Shape {
+        /**
+         * A command with an argument, about 40 bytes of JSON
+         */
+        command,
+        /**
+         * A heart rate and acceleration reading with a few nested fields, about 250 bytes
+         */
+        sensor,
+        /**
+         * A list of 50 items with a title, subtitle and flags, about 5 KB
+         */
+        list
+    }
+
+    private Payloads() {
+    }
+
+    @NonNull
+    static ReadableMap create(@NonNull Shape shape) {
+        switch (shape) {
+            case command:
+                return JavaOnlyMap.of("type", "play", "track", 12);
+            case sensor:
+                return sensor(0);
+            case list:
+                JavaOnlyArray items = new JavaOnlyArray();
+                for (int i = 0; i < 50; i++) {
+                    items.pushMap(JavaOnlyMap.of(
+                        "id", "item-" + i,
+                        "title", "Morning run " + i,
+                        "subtitle", "5.2 km · 28 min",
+                        "done", i % 3 == 0,
+                        "score", i * 1.5,
+                        "tags", JavaOnlyArray.of("run", "outdoor")));
+                }
+                return JavaOnlyMap.of("type", "list", "page", 1, "items", items);
+            default:
+                throw new IllegalArgumentException(shape.name());
+        }
+    }
+
+    @NonNull
+    static ReadableMap sensor(int sample) {
+        return JavaOnlyMap.of(
+            "type", "sensor",
+            "timestamp", 1_600_000_000_000.0 + sample * 20,
+            "heartRate", 72 + sample % 5,
+            "acceleration", JavaOnlyArray.of(0.012 * sample, -9.81, 0.5),
+            "battery", JavaOnlyMap.of("level", 0.83, "charging", false),
+            "activity", "running",
+            "location", JavaOnlyMap.of("lat", 52.0907, "lon", 5.1214, "accuracy", 4.5));
+    }
+
+    /**
+     * @return the payload as UTF-8 JSON, as it is sent as the data of a message
+     */
+    @NonNull
+    static byte[] json(@NonNull Shape shape) {
+        try {
+            return PayloadSerializer.toJSONBytes(create(shape));
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
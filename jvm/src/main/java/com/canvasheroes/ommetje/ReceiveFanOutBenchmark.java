@@ -0,0 +1,71 @@
+package com.canvasheroes.ommetje;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a received message and passing it to every listener, as onMessageReceived does on the dispatch thread
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveFanOutBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int listeners;
+
+    /**
+     * string listeners get the data as a String, data listeners as a ByteBuffer
+     */
+    @Param({"string", "data"})
+    public String listener;
+
+    @Param({"sensor", "list"})
+    public String shape;
+
+    private MessageService service;
+    private byte[] frame;
+    private long received;
+
+    @Setup
+    public void setUp() {
+        service = JvmHarness.createService(
+            new JvmHarness.FakeNodeSource(JvmHarness.nodes(1), 0), new JvmHarness.ImmediateTransport());
+        for (int i = 0; i < listeners; i++) {
+            if (listener.equals("string")) {
+                service.addMessageReceiveListener(data -> received += data.length());
+            } else {
+                service.addMessageDataReceiveListener((sourceNodeId, message, data) -> received += data.remaining());
+            }
+        }
+        MessageObject message = JvmHarness.dataMessage(Payloads.json(Payloads.Shape.valueOf(shape)));
+        frame = MessageCodec.encode(Collections.singletonList(message));
+    }
+
+    @TearDown
+    public void tearDown() {
+        JvmHarness.destroy(service);
+    }
+
+    @Benchmark
+    public long handleMessage() {
+        service.handleMessage("node-0", frame);
+        return received;
+    }
+}
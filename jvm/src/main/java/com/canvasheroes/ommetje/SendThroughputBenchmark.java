@@ -0,0 +1,92 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages per second through sendMessageToAll, from the call to the callback,
+ * through the send queue, the encoding and the fan out to a transport that sends right away
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendThroughputBenchmark {
+
+    /**
+     * Below the capacity of the send queue, so no message is dropped
+     */
+    static final int BATCH = 128;
+
+    @Param({"1", "3"})
+    public int nodes;
+
+    @Param({"json", "binary"})
+    public String format;
+
+    @Param({"sensor", "list"})
+    public String shape;
+
+    private MessageService service;
+    private byte[] data;
+    private final Semaphore done = new Semaphore(0);
+    private final AtomicLong failures = new AtomicLong();
+    private final MessageService.SendCallback callback = new MessageService.SendCallback() {
+        @Override
+        public void onSuccess() {
+            done.release();
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            failures.incrementAndGet();
+            done.release();
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        service = JvmHarness.createService(
+            new JvmHarness.FakeNodeSource(JvmHarness.nodes(nodes), 0), new JvmHarness.ImmediateTransport());
+        for (int i = 0; i < nodes; i++) {
+            service.peerFormats.put("node-" + i, MessageCodec.WireFormat.valueOf(format));
+        }
+        data = Payloads.json(Payloads.Shape.valueOf(shape));
+    }
+
+    @TearDown
+    public void tearDown() {
+        JvmHarness.destroy(service);
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " sends failed");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendMessageToAll() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            service.sendMessageToAll(data, false, false, callback);
+        }
+        done.acquire(BATCH);
+    }
+}
@@ -0,0 +1,15 @@
+package android.app;
+
+public abstract class Service extends android.content.Context {
+    public static final int START_STICKY = 1;
+
+    public void onCreate() {}
+
+    public void onDestroy() {}
+
+    public abstract android.os.IBinder onBind(android.content.Intent i);
+
+    public int onStartCommand(android.content.Intent i, int f, int id) {
+        return 0;
+    }
+}
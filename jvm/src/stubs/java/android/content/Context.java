@@ -0,0 +1,37 @@
+package android.content;
+
+import java.io.File;
+
+public abstract class Context {
+    public static final int BIND_AUTO_CREATE = 1;
+
+    public ContentResolver getContentResolver() {
+        return null;
+    }
+
+    public File getFilesDir() {
+        return null;
+    }
+
+    public File getCacheDir() {
+        return null;
+    }
+
+    public ComponentName startService(Intent i) {
+        return null;
+    }
+
+    public boolean bindService(Intent i, ServiceConnection c, int f) {
+        return false;
+    }
+
+    public void unbindService(ServiceConnection c) {}
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public android.os.Looper getMainLooper() {
+        return null;
+    }
+}
@@ -0,0 +1,29 @@
+package android.net;
+
+public abstract class Uri {
+    public static Uri parse(String s) {
+        return null;
+    }
+
+    public static Uri fromFile(java.io.File f) {
+        return null;
+    }
+
+    public String getPath() {
+        return null;
+    }
+
+    public String getScheme() {
+        return null;
+    }
+
+    public String getHost() {
+        return null;
+    }
+
+    public String getLastPathSegment() {
+        return null;
+    }
+
+    public abstract String toString();
+}
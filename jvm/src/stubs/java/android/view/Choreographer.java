@@ -0,0 +1,17 @@
+package android.view;
+
+public class Choreographer {
+    public interface FrameCallback {
+        void doFrame(long frameTimeNanos);
+    }
+
+    public static Choreographer getInstance() {
+        return null;
+    }
+
+    public void postFrameCallback(FrameCallback c) {}
+
+    public void postFrameCallbackDelayed(FrameCallback c, long d) {}
+
+    public void removeFrameCallback(FrameCallback c) {}
+}
@@ -0,0 +1,5 @@
+package com.canvasheroes.ommetje;
+
+public final class BuildConfig {
+    public static final boolean DEBUG = true;
+}
@@ -0,0 +1,11 @@
+package com.facebook.react;
+
+import com.facebook.react.bridge.*;
+
+import java.util.List;
+
+public interface ReactPackage {
+    List<NativeModule> createNativeModules(ReactApplicationContext c);
+
+    List<com.facebook.react.uimanager.ViewManager> createViewManagers(ReactApplicationContext c);
+}
@@ -0,0 +1,27 @@
+package com.facebook.react.bridge;
+
+import java.util.List;
+import java.util.Map;
+
+/** Creates the Java only maps and arrays instead of native ones */
+public class Arguments {
+
+    public static WritableMap createMap() {
+        return new JavaOnlyMap();
+    }
+
+    public static WritableArray createArray() {
+        return new JavaOnlyArray();
+    }
+
+    public static WritableMap makeNativeMap(Map<String, Object> map) {
+        return (WritableMap) JavaOnlyArray.convert(map);
+    }
+
+    public static WritableArray makeNativeArray(Object array) {
+        if (array instanceof List) {
+            return JavaOnlyArray.of(((List<?>) array).toArray());
+        }
+        return JavaOnlyArray.of((Object[]) array);
+    }
+}
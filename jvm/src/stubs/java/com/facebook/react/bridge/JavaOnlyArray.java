@@ -0,0 +1,176 @@
+package com.facebook.react.bridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An array backed by Java collections, stands in for the native arrays of the bridge
+ */
+public class JavaOnlyArray implements WritableArray {
+
+    private final List<Object> backing = new ArrayList<>();
+
+    /**
+     * @param values the values, converted like those of the bridge
+     */
+    public static JavaOnlyArray of(Object... values) {
+        JavaOnlyArray array = new JavaOnlyArray();
+        for (Object value : values) {
+            array.backing.add(convert(value));
+        }
+        return array;
+    }
+
+    /**
+     * Convert a value to the type the bridge stores: numbers as doubles, maps and lists as readables
+     */
+    @SuppressWarnings("unchecked")
+    static Object convert(Object value) {
+        if (value instanceof Number && !(value instanceof Double)) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Map) {
+            JavaOnlyMap map = new JavaOnlyMap();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                map.put(entry.getKey(), entry.getValue());
+            }
+            return map;
+        }
+        if (value instanceof List) {
+            return of(((List<?>) value).toArray());
+        }
+        return value;
+    }
+
+    static Object unwrap(Object value) {
+        if (value instanceof ReadableMap) {
+            return ((ReadableMap) value).toHashMap();
+        }
+        if (value instanceof ReadableArray) {
+            return ((ReadableArray) value).toArrayList();
+        }
+        return value;
+    }
+
+    static ReadableType typeOf(Object value) {
+        if (value == null) {
+            return ReadableType.Null;
+        } else if (value instanceof Boolean) {
+            return ReadableType.Boolean;
+        } else if (value instanceof Number) {
+            return ReadableType.Number;
+        } else if (value instanceof String) {
+            return ReadableType.String;
+        } else if (value instanceof ReadableMap) {
+            return ReadableType.Map;
+        } else if (value instanceof ReadableArray) {
+            return ReadableType.Array;
+        }
+        throw new IllegalArgumentException("Unsupported value " + value.getClass());
+    }
+
+    @Override
+    public int size() {
+        return backing.size();
+    }
+
+    @Override
+    public boolean isNull(int index) {
+        return backing.get(index) == null;
+    }
+
+    @Override
+    public boolean getBoolean(int index) {
+        return (Boolean) backing.get(index);
+    }
+
+    @Override
+    public double getDouble(int index) {
+        return ((Number) backing.get(index)).doubleValue();
+    }
+
+    @Override
+    public int getInt(int index) {
+        return ((Number) backing.get(index)).intValue();
+    }
+
+    @Override
+    public String getString(int index) {
+        return (String) backing.get(index);
+    }
+
+    @Override
+    public ReadableArray getArray(int index) {
+        return (ReadableArray) backing.get(index);
+    }
+
+    @Override
+    public ReadableMap getMap(int index) {
+        return (ReadableMap) backing.get(index);
+    }
+
+    @Override
+    public ReadableType getType(int index) {
+        return typeOf(backing.get(index));
+    }
+
+    @Override
+    public ArrayList<Object> toArrayList() {
+        ArrayList<Object> list = new ArrayList<>();
+        for (Object value : backing) {
+            list.add(unwrap(value));
+        }
+        return list;
+    }
+
+    @Override
+    public void pushNull() {
+        backing.add(null);
+    }
+
+    @Override
+    public void pushBoolean(boolean value) {
+        backing.add(value);
+    }
+
+    @Override
+    public void pushDouble(double value) {
+        backing.add(value);
+    }
+
+    @Override
+    public void pushInt(int value) {
+        backing.add((double) value);
+    }
+
+    @Override
+    public void pushString(String value) {
+        backing.add(value);
+    }
+
+    @Override
+    public void pushArray(ReadableArray value) {
+        backing.add(value);
+    }
+
+    @Override
+    public void pushMap(ReadableMap value) {
+        backing.add(value);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof JavaOnlyArray && backing.equals(((JavaOnlyArray) other).backing);
+    }
+
+    @Override
+    public int hashCode() {
+        return backing.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return backing.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package com.facebook.react.bridge;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map backed by Java collections, stands in for the native maps of the bridge
+ */
+public class JavaOnlyMap implements WritableMap {
+
+    private final Map<String, Object> backing = new LinkedHashMap<>();
+
+    /**
+     * @param keysAndValues alternating keys and values, values are converted like those of the bridge
+     */
+    public static JavaOnlyMap of(Object... keysAndValues) {
+        JavaOnlyMap map = new JavaOnlyMap();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    void put(String key, Object value) {
+        backing.put(key, JavaOnlyArray.convert(value));
+    }
+
+    @Override
+    public boolean hasKey(String key) {
+        return backing.containsKey(key);
+    }
+
+    @Override
+    public boolean isNull(String key) {
+        return backing.get(key) == null;
+    }
+
+    @Override
+    public boolean getBoolean(String key) {
+        return (Boolean) backing.get(key);
+    }
+
+    @Override
+    public double getDouble(String key) {
+        return ((Number) backing.get(key)).doubleValue();
+    }
+
+    @Override
+    public int getInt(String key) {
+        return ((Number) backing.get(key)).intValue();
+    }
+
+    @Override
+    public String getString(String key) {
+        return (String) backing.get(key);
+    }
+
+    @Override
+    public ReadableArray getArray(String key) {
+        return (ReadableArray) backing.get(key);
+    }
+
+    @Override
+    public ReadableMap getMap(String key) {
+        return (ReadableMap) backing.get(key);
+    }
+
+    @Override
+    public ReadableType getType(String key) {
+        return JavaOnlyArray.typeOf(backing.get(key));
+    }
+
+    @Override
+    public ReadableMapKeySetIterator keySetIterator() {
+        Iterator<String> keys = backing.keySet().iterator();
+        return new ReadableMapKeySetIterator() {
+            @Override
+            public boolean hasNextKey() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public String nextKey() {
+                return keys.next();
+            }
+        };
+    }
+
+    @Override
+    public HashMap<String, Object> toHashMap() {
+        HashMap<String, Object> map = new HashMap<>();
+        for (Map.Entry<String, Object> entry : backing.entrySet()) {
+            map.put(entry.getKey(), JavaOnlyArray.unwrap(entry.getValue()));
+        }
+        return map;
+    }
+
+    @Override
+    public void putNull(String key) {
+        backing.put(key, null);
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        backing.put(key, value);
+    }
+
+    @Override
+    public void putDouble(String key, double value) {
+        backing.put(key, value);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        backing.put(key, (double) value);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        backing.put(key, value);
+    }
+
+    @Override
+    public void putArray(String key, ReadableArray value) {
+        backing.put(key, value);
+    }
+
+    @Override
+    public void putMap(String key, ReadableMap value) {
+        backing.put(key, value);
+    }
+
+    @Override
+    public void merge(ReadableMap source) {
+        for (Map.Entry<String, Object> entry : source.toHashMap().entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public WritableMap copy() {
+        JavaOnlyMap copy = new JavaOnlyMap();
+        copy.merge(this);
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof JavaOnlyMap && backing.equals(((JavaOnlyMap) other).backing);
+    }
+
+    @Override
+    public int hashCode() {
+        return backing.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return backing.toString();
+    }
+}
@@ -0,0 +1,13 @@
+package com.facebook.react.bridge;
+
+public interface Promise {
+    void resolve(Object v);
+
+    void reject(String code, String msg);
+
+    void reject(String code, Throwable e);
+
+    void reject(String code, String msg, Throwable e);
+
+    void reject(Throwable e);
+}
@@ -0,0 +1,15 @@
+package com.facebook.react.bridge;
+
+public class ReactContext extends android.content.Context {
+    public <T extends JavaScriptModule> T getJSModule(Class<T> c) {
+        return null;
+    }
+
+    public boolean hasActiveCatalystInstance() {
+        return true;
+    }
+
+    public void runOnUiQueueThread(Runnable r) {}
+
+    public void addLifecycleEventListener(LifecycleEventListener l) {}
+}
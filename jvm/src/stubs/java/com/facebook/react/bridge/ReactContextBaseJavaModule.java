@@ -0,0 +1,15 @@
+package com.facebook.react.bridge;
+
+public abstract class ReactContextBaseJavaModule implements NativeModule {
+    public ReactContextBaseJavaModule(ReactApplicationContext c) {}
+
+    protected final ReactApplicationContext getReactApplicationContext() {
+        return null;
+    }
+
+    public void onCatalystInstanceDestroy() {}
+
+    public void initialize() {}
+
+    public void invalidate() {}
+}
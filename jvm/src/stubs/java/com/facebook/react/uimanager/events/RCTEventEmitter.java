@@ -0,0 +1,9 @@
+package com.facebook.react.uimanager.events;
+
+import com.facebook.react.bridge.*;
+
+public interface RCTEventEmitter extends JavaScriptModule {
+    void receiveEvent(int t, String n, WritableMap e);
+
+    void receiveTouches(String n, WritableArray t, WritableArray c);
+}
@@ -0,0 +1,26 @@
+package com.google.android.gms.tasks;
+
+public abstract class Task<T> {
+    public abstract Task<T> addOnSuccessListener(OnSuccessListener<? super T> l);
+
+    public abstract Task<T> addOnSuccessListener(
+            java.util.concurrent.Executor e, OnSuccessListener<? super T> l);
+
+    public abstract Task<T> addOnFailureListener(OnFailureListener l);
+
+    public abstract Task<T> addOnFailureListener(
+            java.util.concurrent.Executor e, OnFailureListener l);
+
+    public abstract Task<T> addOnCompleteListener(OnCompleteListener<T> l);
+
+    public abstract Task<T> addOnCompleteListener(
+            java.util.concurrent.Executor e, OnCompleteListener<T> l);
+
+    public abstract boolean isSuccessful();
+
+    public abstract T getResult();
+
+    public abstract Exception getException();
+
+    public abstract boolean isComplete();
+}
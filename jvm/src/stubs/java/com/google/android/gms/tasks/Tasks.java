@@ -0,0 +1,99 @@
+package com.google.android.gms.tasks;
+
+public final class Tasks {
+    public static <T> T await(Task<T> t)
+            throws java.util.concurrent.ExecutionException, InterruptedException {
+        if (t == null) {
+            return null;
+        }
+        if (!t.isSuccessful()) {
+            throw new java.util.concurrent.ExecutionException(t.getException());
+        }
+        return t.getResult();
+    }
+
+    public static <T> T await(Task<T> t, long v, java.util.concurrent.TimeUnit u)
+            throws java.util.concurrent.ExecutionException,
+                    InterruptedException,
+                    java.util.concurrent.TimeoutException {
+        return await(t);
+    }
+
+    public static <T> Task<T> forResult(T r) {
+        return new CompletedTask<>(r, null);
+    }
+
+    public static <T> Task<T> forException(Exception e) {
+        return new CompletedTask<>(null, e);
+    }
+
+    private static final class CompletedTask<T> extends Task<T> {
+        private final T result;
+        private final Exception exception;
+
+        CompletedTask(T result, Exception exception) {
+            this.result = result;
+            this.exception = exception;
+        }
+
+        @Override
+        public Task<T> addOnSuccessListener(OnSuccessListener<? super T> l) {
+            if (exception == null) {
+                l.onSuccess(result);
+            }
+            return this;
+        }
+
+        @Override
+        public Task<T> addOnSuccessListener(
+                java.util.concurrent.Executor e, OnSuccessListener<? super T> l) {
+            return addOnSuccessListener(l);
+        }
+
+        @Override
+        public Task<T> addOnFailureListener(OnFailureListener l) {
+            if (exception != null) {
+                l.onFailure(exception);
+            }
+            return this;
+        }
+
+        @Override
+        public Task<T> addOnFailureListener(
+                java.util.concurrent.Executor e, OnFailureListener l) {
+            return addOnFailureListener(l);
+        }
+
+        @Override
+        public Task<T> addOnCompleteListener(OnCompleteListener<T> l) {
+            l.onComplete(this);
+            return this;
+        }
+
+        @Override
+        public Task<T> addOnCompleteListener(
+                java.util.concurrent.Executor e, OnCompleteListener<T> l) {
+            return addOnCompleteListener(l);
+        }
+
+        @Override
+        public boolean isSuccessful() {
+            return exception == null;
+        }
+
+        @Override
+        public T getResult() {
+            return result;
+        }
+
+        @Override
+        public Exception getException() {
+            return exception;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return true;
+        }
+    }
+}
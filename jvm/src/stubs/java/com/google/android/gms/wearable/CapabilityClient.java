@@ -0,0 +1,29 @@
+package com.google.android.gms.wearable;
+
+import com.google.android.gms.tasks.Task;
+
+public abstract class CapabilityClient {
+    public static final int FILTER_ALL = 0;
+    public static final int FILTER_REACHABLE = 1;
+    public static final int FILTER_LITERAL = 0;
+    public static final int FILTER_PREFIX = 1;
+
+    public interface OnCapabilityChangedListener {
+        void onCapabilityChanged(CapabilityInfo i);
+    }
+
+    public abstract Task<Void> addListener(OnCapabilityChangedListener l, String capability);
+
+    public abstract Task<Void> addListener(
+            OnCapabilityChangedListener l, android.net.Uri uri, int filterType);
+
+    public abstract Task<Boolean> removeListener(OnCapabilityChangedListener l);
+
+    public abstract Task<Boolean> removeListener(OnCapabilityChangedListener l, String capability);
+
+    public abstract Task<CapabilityInfo> getCapability(String name, int filter);
+
+    public abstract Task<java.util.Map<String, CapabilityInfo>> getAllCapabilities(int filter);
+
+    public abstract Task<Void> addLocalCapability(String c);
+}
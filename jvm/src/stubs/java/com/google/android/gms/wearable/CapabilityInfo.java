@@ -0,0 +1,7 @@
+package com.google.android.gms.wearable;
+
+public interface CapabilityInfo {
+    String getName();
+
+    java.util.Set<Node> getNodes();
+}
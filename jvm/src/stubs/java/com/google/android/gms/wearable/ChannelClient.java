@@ -0,0 +1,39 @@
+package com.google.android.gms.wearable;
+
+import com.google.android.gms.tasks.Task;
+
+public abstract class ChannelClient {
+    public interface Channel {
+        String getNodeId();
+
+        String getPath();
+    }
+
+    public abstract static class ChannelCallback {
+        public void onChannelOpened(Channel c) {}
+
+        public void onChannelClosed(Channel c, int reason, int err) {}
+
+        public void onInputClosed(Channel c, int reason, int err) {}
+
+        public void onOutputClosed(Channel c, int reason, int err) {}
+    }
+
+    public abstract Task<Channel> openChannel(String nodeId, String path);
+
+    public abstract Task<Void> close(Channel c);
+
+    public abstract Task<Void> close(Channel c, int err);
+
+    public abstract Task<java.io.OutputStream> getOutputStream(Channel c);
+
+    public abstract Task<java.io.InputStream> getInputStream(Channel c);
+
+    public abstract Task<Void> receiveFile(Channel c, android.net.Uri uri, boolean append);
+
+    public abstract Task<Void> sendFile(Channel c, android.net.Uri uri, long offset, long length);
+
+    public abstract Task<Void> registerChannelCallback(ChannelCallback cb);
+
+    public abstract Task<Boolean> unregisterChannelCallback(ChannelCallback cb);
+}
@@ -0,0 +1,29 @@
+package com.google.android.gms.wearable;
+
+import com.google.android.gms.tasks.Task;
+
+public abstract class DataClient {
+    public static final int FILTER_LITERAL = 0;
+    public static final int FILTER_PREFIX = 1;
+
+    public interface OnDataChangedListener {
+        void onDataChanged(DataEventBuffer b);
+    }
+
+    public abstract Task<DataItem> putDataItem(PutDataRequest r);
+
+    public abstract Task<Integer> deleteDataItems(android.net.Uri uri);
+
+    public abstract Task<Integer> deleteDataItems(android.net.Uri uri, int filter);
+
+    public abstract Task<DataItemBuffer> getDataItems(android.net.Uri uri, int filter);
+
+    public abstract Task<DataItemBuffer> getDataItems();
+
+    public abstract Task<Void> addListener(OnDataChangedListener l);
+
+    public abstract Task<Void> addListener(
+            OnDataChangedListener l, android.net.Uri uri, int filter);
+
+    public abstract Task<Boolean> removeListener(OnDataChangedListener l);
+}
@@ -0,0 +1,10 @@
+package com.google.android.gms.wearable;
+
+public interface DataEvent {
+    int TYPE_CHANGED = 1;
+    int TYPE_DELETED = 2;
+
+    int getType();
+
+    DataItem getDataItem();
+}
@@ -0,0 +1,13 @@
+package com.google.android.gms.wearable;
+
+public class DataEventBuffer implements Iterable<DataEvent> {
+    public java.util.Iterator<DataEvent> iterator() {
+        return null;
+    }
+
+    public int getCount() {
+        return 0;
+    }
+
+    public void release() {}
+}
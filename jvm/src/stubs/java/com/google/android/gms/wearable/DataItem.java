@@ -0,0 +1,9 @@
+package com.google.android.gms.wearable;
+
+public interface DataItem {
+    DataItem freeze();
+
+    android.net.Uri getUri();
+
+    byte[] getData();
+}
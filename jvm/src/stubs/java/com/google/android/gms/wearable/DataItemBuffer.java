@@ -0,0 +1,13 @@
+package com.google.android.gms.wearable;
+
+public class DataItemBuffer implements Iterable<DataItem> {
+    public java.util.Iterator<DataItem> iterator() {
+        return null;
+    }
+
+    public int getCount() {
+        return 0;
+    }
+
+    public void release() {}
+}
@@ -0,0 +1,15 @@
+package com.google.android.gms.wearable;
+
+import com.google.android.gms.tasks.Task;
+
+public abstract class MessageClient {
+    public interface OnMessageReceivedListener {
+        void onMessageReceived(MessageEvent e);
+    }
+
+    public abstract Task<Integer> sendMessage(String nodeId, String path, byte[] data);
+
+    public abstract Task<Void> addListener(OnMessageReceivedListener l);
+
+    public abstract Task<Boolean> removeListener(OnMessageReceivedListener l);
+}
@@ -0,0 +1,9 @@
+package com.google.android.gms.wearable;
+
+public interface Node {
+    String getId();
+
+    String getDisplayName();
+
+    boolean isNearby();
+}
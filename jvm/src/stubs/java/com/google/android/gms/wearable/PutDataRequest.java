@@ -0,0 +1,19 @@
+package com.google.android.gms.wearable;
+
+public class PutDataRequest {
+    public static PutDataRequest create(String path) {
+        return null;
+    }
+
+    public PutDataRequest setData(byte[] d) {
+        return this;
+    }
+
+    public PutDataRequest setUrgent() {
+        return this;
+    }
+
+    public android.net.Uri getUri() {
+        return null;
+    }
+}
@@ -0,0 +1,25 @@
+package com.google.android.gms.wearable;
+
+import android.content.Context;
+
+public class Wearable {
+    public static MessageClient getMessageClient(Context c) {
+        return null;
+    }
+
+    public static NodeClient getNodeClient(Context c) {
+        return null;
+    }
+
+    public static CapabilityClient getCapabilityClient(Context c) {
+        return null;
+    }
+
+    public static DataClient getDataClient(Context c) {
+        return null;
+    }
+
+    public static ChannelClient getChannelClient(Context c) {
+        return null;
+    }
+}
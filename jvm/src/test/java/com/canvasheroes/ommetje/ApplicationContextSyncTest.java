@@ -0,0 +1,238 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A sending and a receiving sync, the test carries the messages between them
+ */
+public class ApplicationContextSyncTest {
+
+    /**
+     * A message on its way, with the callback the sync passed along with it
+     */
+    private static final class Sent {
+        final String nodeId;
+        final MessageObject message;
+        final MessageService.SendCallback callback;
+
+        Sent(String nodeId, MessageObject message, MessageService.SendCallback callback) {
+            this.nodeId = nodeId;
+            this.message = message;
+            this.callback = callback;
+        }
+    }
+
+    private static final class RecordingOutlet implements ApplicationContextSync.Outlet {
+        final List<Sent> sent = new ArrayList<>();
+        Collection<String> nodeIds = Collections.singletonList("watch");
+
+        @NonNull
+        @Override
+        public Collection<String> getNodeIds() {
+            return nodeIds;
+        }
+
+        @NonNull
+        @Override
+        public MessageObject createMessage(@NonNull MessageObject.MessageType type, @Nullable byte[] data) {
+            return new MessageObject(MessageObject.Sender.Platform.wearos, MessageObject.Sender.Direction.handheld,
+                JvmHarness.DEVICE_ID, type, data, new Timestamp(1_600_000_000_000L));
+        }
+
+        @Override
+        public void send(@NonNull String nodeId, @NonNull MessageObject message,
+                         @NonNull MessageService.SendCallback callback) {
+            sent.add(new Sent(nodeId, message, callback));
+        }
+
+        Sent take() {
+            assertEquals(1, sent.size());
+            return sent.remove(0);
+        }
+    }
+
+    /**
+     * Counts the outcomes of updates
+     */
+    private static final class Outcomes implements MessageService.SendCallback {
+        int successes = 0;
+        final List<Exception> failures = new ArrayList<>();
+
+        @Override
+        public void onSuccess() {
+            successes++;
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            failures.add(exception);
+        }
+    }
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final RecordingOutlet senderOutlet = new RecordingOutlet();
+    private final RecordingOutlet receiverOutlet = new RecordingOutlet();
+    private final ApplicationContextSync sender = new ApplicationContextSync(scheduler, senderOutlet);
+    private final ApplicationContextSync receiver = new ApplicationContextSync(scheduler, receiverOutlet);
+
+    private static Map<String, Object> state(Object... keysAndValues) {
+        Map<String, Object> state = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            state.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return state;
+    }
+
+    /**
+     * A state with a large value that stays the same, so a delta is smaller than the snapshot
+     */
+    private static Map<String, Object> large(Object... keysAndValues) {
+        Map<String, Object> state = state(keysAndValues);
+        char[] padding = new char[500];
+        Arrays.fill(padding, 'x');
+        state.put("padding", new String(padding));
+        return state;
+    }
+
+    private void update(Map<String, Object> context, @Nullable MessageService.SendCallback callback)
+        throws JSONException {
+        sender.update(context, PayloadSerializer.toJSONBytes(context), callback);
+        scheduler.advance(ApplicationContextSync.DEFAULT_COALESCE_MILLIS);
+    }
+
+    /**
+     * Deliver the message the sender sent to the receiver, and its acknowledgement back to the sender
+     *
+     * @return the state the receiver has afterwards, null if it did not accept a delta
+     */
+    @Nullable
+    private Map<String, Object> deliver() throws JSONException {
+        Sent sent = senderOutlet.take();
+        sent.callback.onSuccess();
+        MessageObject applied = sent.message.type == MessageObject.MessageType.applicationContextDelta
+            ? receiver.receiveDelta("phone", sent.message)
+            : receiver.receiveSnapshot("phone", sent.message);
+        MessageObject ack = receiverOutlet.take().message;
+        sender.onAcknowledged("watch", ack.replyTo);
+        return applied == null ? null : PayloadSerializer.toHashMap(applied.data);
+    }
+
+    private static Map<String, Object> normalized(Map<String, Object> state) throws JSONException {
+        return PayloadSerializer.toHashMap(PayloadSerializer.toJSONBytes(state));
+    }
+
+    @Test
+    public void aDeltaTurnsOneStateIntoTheOther() {
+        Map<String, Object> from = state("a", 1, "b", state("c", 1, "d", 2), "e", "gone");
+        Map<String, Object> to = state("a", 2, "b", state("c", 1, "d", 3), "f", true);
+
+        Map<String, Object> delta = ApplicationContextSync.diff(from, to);
+        Map<String, Object> applied = state("a", 1, "b", state("c", 1, "d", 2), "e", "gone");
+
+        assertTrue(ApplicationContextSync.apply(applied, delta));
+        assertEquals(to, applied);
+        assertEquals(Collections.emptyMap(), ApplicationContextSync.diff(to, to));
+        // A merge into a key that is not a map does not fit
+        assertFalse(ApplicationContextSync.apply(state("b", 1), delta));
+    }
+
+    @Test
+    public void rapidUpdatesAreSentOnceWithTheNewestState() throws JSONException {
+        Outcomes first = new Outcomes();
+        Outcomes second = new Outcomes();
+        sender.update(state("step", "1"), PayloadSerializer.toJSONBytes(state("step", "1")), first);
+        sender.update(state("step", "2"), PayloadSerializer.toJSONBytes(state("step", "2")), second);
+
+        scheduler.advance(ApplicationContextSync.DEFAULT_COALESCE_MILLIS);
+
+        assertEquals(state("step", "2"), deliver());
+        assertEquals(1, first.successes);
+        assertEquals(1, second.successes);
+    }
+
+    @Test
+    public void deltasAreOnlySentOnceTheNodeAcknowledgedASnapshot() throws JSONException {
+        update(large("count", "1"), null);
+        Sent unacknowledged = senderOutlet.take();
+        unacknowledged.callback.onSuccess();
+        assertEquals(MessageObject.MessageType.applicationContext, unacknowledged.message.type);
+
+        // No acknowledgement, as from an older peer, so the next update is a full snapshot again
+        update(large("count", "2"), null);
+        assertEquals(MessageObject.MessageType.applicationContext, senderOutlet.sent.get(0).message.type);
+        assertEquals(normalized(large("count", "2")), deliver());
+
+        update(large("count", "3", "nested", state("on", true)), null);
+        Sent delta = senderOutlet.sent.get(0);
+        assertEquals(MessageObject.MessageType.applicationContextDelta, delta.message.type);
+        assertTrue(delta.message.data.length < 100);
+        assertEquals(normalized(large("count", "3", "nested", state("on", true))), deliver());
+        assertEquals(1.0, sender.getStats().get("deltas"));
+        assertEquals(2.0, sender.getStats().get("snapshots"));
+    }
+
+    @Test
+    public void aDeltaAgainstAnotherVersionAsksForTheSnapshot() throws JSONException {
+        update(large("count", "1"), null);
+        deliver();
+        update(large("count", "2"), null);
+        Sent delta = senderOutlet.take();
+        delta.callback.onSuccess();
+        delta.message.replyTo--;
+
+        assertNull(receiver.receiveDelta("phone", delta.message));
+        MessageObject ack = receiverOutlet.take().message;
+        assertEquals(0, ack.replyTo);
+
+        sender.onAcknowledged("watch", ack.replyTo);
+        scheduler.advance(ApplicationContextSync.DEFAULT_COALESCE_MILLIS);
+        assertEquals(MessageObject.MessageType.applicationContext, senderOutlet.sent.get(0).message.type);
+        assertEquals(normalized(large("count", "2")), deliver());
+        assertEquals(1.0, sender.getStats().get("resyncs"));
+    }
+
+    @Test
+    public void aFailedSendIsFollowedByASnapshot() throws JSONException {
+        update(large("count", "1"), null);
+        deliver();
+        Outcomes outcomes = new Outcomes();
+        update(large("count", "2"), outcomes);
+        Exception failure = new IllegalStateException("unreachable");
+        senderOutlet.take().callback.onFailure(failure);
+        assertEquals(Arrays.asList(failure), outcomes.failures);
+
+        update(large("count", "3"), null);
+
+        assertEquals(MessageObject.MessageType.applicationContext, senderOutlet.sent.get(0).message.type);
+    }
+
+    @Test
+    public void updatesWithoutNodesFail() throws JSONException {
+        senderOutlet.nodeIds = Collections.emptyList();
+        Outcomes outcomes = new Outcomes();
+
+        update(state("a", "1"), outcomes);
+
+        assertEquals(1, outcomes.failures.size());
+        assertTrue(outcomes.failures.get(0) instanceof MessageService.NotReachableException);
+        assertTrue(senderOutlet.sent.isEmpty());
+    }
+}
@@ -0,0 +1,73 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void reusesArraysOfTheSameLength() {
+        BufferPool pool = new BufferPool();
+        byte[] first = pool.acquire(100);
+        pool.release(first);
+
+        assertSame(first, pool.acquire(100));
+        assertNotSame(first, pool.acquire(100));
+        assertEquals(1, pool.hits.get());
+        assertEquals(2, pool.misses.get());
+    }
+
+    @Test
+    public void neverPoolsLargeArrays() {
+        BufferPool pool = new BufferPool();
+        byte[] large = new byte[BufferPool.MAX_POOLED_SIZE + 1];
+        pool.release(large);
+
+        assertNotSame(large, pool.acquire(large.length));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedLength() {
+        BufferPool pool = new BufferPool();
+        byte[] oldest = new byte[1];
+        pool.release(oldest);
+        for (int length = 2; length <= BufferPool.MAX_LENGTHS + 1; length++) {
+            pool.release(new byte[length]);
+        }
+
+        assertNotSame(oldest, pool.acquire(1));
+    }
+
+    @Test
+    public void encodingIntoAWarmPoolDoesNotAllocate() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemoryEnabled());
+        BufferPool pool = new BufferPool();
+        MessageObject message = JvmHarness.dataMessage(Payloads.json(Payloads.Shape.sensor));
+        // Warm the pool, the scratch buffer of the thread and the JIT
+        encode(message, pool, 20_000);
+        long thread = Thread.currentThread().getId();
+
+        long before = allocations.getThreadAllocatedBytes(thread);
+        encode(message, pool, 10_000);
+        long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+
+        // Less than a byte per message, the frames of fixed size payloads all come from the pool
+        assertTrue(allocated + " bytes allocated for 10000 messages", allocated < 10_000);
+    }
+
+    private static void encode(MessageObject message, BufferPool pool, int count) {
+        for (int i = 0; i < count; i++) {
+            pool.release(MessageCodec.encode(message, pool));
+        }
+    }
+}
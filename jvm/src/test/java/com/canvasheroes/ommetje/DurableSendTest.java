@@ -0,0 +1,157 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.gms.wearable.Node;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DurableSendTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final JvmHarness.ImmediateTransport transport = new JvmHarness.ImmediateTransport();
+    private MessageService service;
+
+    /**
+     * Waits for the outcome of a single send
+     */
+    private static final class Outcome implements MessageService.SendCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile int calls = 0;
+        volatile Exception failure;
+
+        @Override
+        public void onSuccess() {
+            calls++;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            failure = exception;
+            calls++;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("No outcome within 5 seconds", done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private void start(List<Node> nodes) throws IOException {
+        service = JvmHarness.createService(new JvmHarness.FakeNodeSource(nodes, 0), transport);
+        JvmHarness.openStores(service, folder.newFolder("files"), new UserInfoTransfer.Outlet() {
+            @NonNull
+            @Override
+            public Collection<String> getNodeIds() {
+                return Arrays.asList();
+            }
+
+            @Override
+            public void put(@NonNull String path, @NonNull byte[] data, @NonNull MessageService.SendCallback callback) {
+            }
+
+            @Override
+            public void delete(@NonNull String sourceNodeId, @NonNull String path) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            JvmHarness.destroy(service);
+        }
+    }
+
+    private static byte[] data(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Wait until every task the batch executor has so far has run
+     */
+    private void drainBatchExecutor() throws Exception {
+        service.batchExecutorService.submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void messagesAreNotDurableUnlessAskedFor() throws Exception {
+        start(JvmHarness.nodes(0));
+        Outcome outcome = new Outcome();
+
+        service.sendMessageToAll(data("plain"), true, outcome);
+
+        outcome.await();
+        assertTrue(outcome.failure instanceof MessageService.NotReachableException);
+        drainBatchExecutor();
+        assertEquals(0, service.outbox.size());
+    }
+
+    @Test
+    public void aDurableMessageLeavesTheOutboxOnceItWasSent() throws Exception {
+        start(JvmHarness.nodes(1));
+        Outcome outcome = new Outcome();
+
+        service.sendMessageToAll(data("durable"), true, true, outcome);
+
+        outcome.await();
+        assertEquals(null, outcome.failure);
+        assertEquals(1, transport.sent);
+        assertEquals(0, service.outbox.size());
+    }
+
+    @Test
+    public void theOutboxIsNotWrittenOnTheCallingThread() throws Exception {
+        start(JvmHarness.nodes(1));
+        CountDownLatch release = new CountDownLatch(1);
+        service.batchExecutorService.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        service.sendMessageToAll(data("durable"), true, true, null);
+
+        assertEquals(0, service.outbox.size());
+        release.countDown();
+        drainBatchExecutor();
+        assertTrue(service.outbox.size() <= 1);
+    }
+
+    @Test
+    public void theCallbackOfAnUndeliveredMessageExpires() throws Exception {
+        start(JvmHarness.nodes(0));
+        service.outboxCallbackTimeoutMillis = 50;
+        Outcome outcome = new Outcome();
+
+        service.sendMessageToAll(data("durable"), true, true, outcome);
+
+        outcome.await();
+        assertTrue(outcome.failure instanceof MessageService.NotReachableException);
+        assertTrue(outcome.failure.getMessage().contains("outbox"));
+        // The message itself is kept for the next replay
+        assertEquals(1, service.outbox.size());
+        Thread.sleep(100);
+        assertEquals(1, outcome.calls);
+    }
+}
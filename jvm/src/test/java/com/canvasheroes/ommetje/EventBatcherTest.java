@@ -0,0 +1,114 @@
+package com.canvasheroes.ommetje;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frames only come when the test runs them
+ */
+public class EventBatcherTest {
+
+    private final List<Runnable> frames = new ArrayList<>();
+    private final List<Long> delays = new ArrayList<>();
+    private final List<List<String>> emitted = new ArrayList<>();
+    private final EventBatcher batcher = new EventBatcher(this::record, (flush, delayMillis) -> {
+        frames.add(flush);
+        delays.add(delayMillis);
+    });
+
+    private void record(WritableArray events) {
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            batch.add(events.getMap(i).getString("id"));
+        }
+        emitted.add(batch);
+    }
+
+    private static WritableMap event(String id) {
+        WritableMap event = Arguments.createMap();
+        event.putString("id", id);
+        return event;
+    }
+
+    private void runFrames() {
+        List<Runnable> due = new ArrayList<>(frames);
+        frames.clear();
+        for (Runnable frame : due) {
+            frame.run();
+        }
+    }
+
+    @Test
+    public void eventsBeforeAFrameAreEmittedAsOneBatch() {
+        batcher.add(event("a"));
+        batcher.add(event("b"));
+        batcher.add(event("c"));
+
+        assertTrue(emitted.isEmpty());
+        assertEquals(1, frames.size());
+
+        runFrames();
+        assertEquals(Arrays.asList(Arrays.asList("a", "b", "c")), emitted);
+    }
+
+    @Test
+    public void theNextEventWaitsForANewFrame() {
+        batcher.add(event("a"));
+        runFrames();
+        batcher.add(event("b"));
+
+        assertEquals(1, frames.size());
+        runFrames();
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("b")), emitted);
+    }
+
+    @Test
+    public void aFullBatchIsEmittedWithoutWaitingForTheFrame() {
+        batcher.configure(2, 0);
+        batcher.add(event("a"));
+        batcher.add(event("b"));
+
+        assertEquals(Arrays.asList(Arrays.asList("a", "b")), emitted);
+
+        // The frame of the full batch finds nothing left to emit
+        runFrames();
+        assertEquals(1, emitted.size());
+
+        batcher.configure(1, 0);
+        batcher.add(event("c"));
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c")), emitted);
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    public void theDelayIsPassedToTheFrame() {
+        batcher.configure(64, 16);
+        batcher.add(event("a"));
+        batcher.configure(64, -5);
+        runFrames();
+        batcher.add(event("b"));
+
+        assertEquals(Arrays.asList(16L, 0L), delays);
+    }
+
+    @Test
+    public void flushEmitsThePendingEventsOnlyOnce() {
+        batcher.flush();
+        batcher.add(event("a"));
+        batcher.flush();
+        batcher.flush();
+        runFrames();
+
+        assertEquals(Arrays.asList(Arrays.asList("a")), emitted);
+    }
+}
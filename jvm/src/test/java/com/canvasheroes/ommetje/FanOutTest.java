@@ -0,0 +1,106 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends stay in flight until the test reports them
+ */
+public class FanOutTest {
+
+    private final List<String> started = new ArrayList<>();
+    private final List<MessageService.SendCallback> inFlight = new ArrayList<>();
+    private final List<String> outcomes = new ArrayList<>();
+    private final NodeHealth health = new NodeHealth();
+    private final FanOut fanOut = new FanOut((nodeId, path, data, callback) -> {
+        if (nodeId.equals("broken")) {
+            throw new IllegalStateException("No client");
+        }
+        started.add(nodeId);
+        inFlight.add(callback);
+    }, health);
+
+    private MessageService.SendCallback outcome(String name) {
+        return new MessageService.SendCallback() {
+            @Override
+            public void onSuccess() {
+                outcomes.add(name + ":ok");
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                outcomes.add(name + ":" + exception.getMessage());
+            }
+        };
+    }
+
+    private void send(String nodeId) {
+        fanOut.send(nodeId, "/path", new byte[1], outcome(nodeId));
+    }
+
+    @Test
+    public void sendsOverTheCapWaitForASlot() {
+        fanOut.setMaxConcurrentSends(2);
+        for (int i = 0; i < 5; i++) {
+            send("node-" + i);
+        }
+
+        assertEquals(Arrays.asList("node-0", "node-1"), started);
+        assertEquals(2.0, fanOut.getStats().get("inFlight"));
+        assertEquals(3.0, fanOut.getStats().get("pending"));
+
+        inFlight.get(1).onSuccess();
+        assertEquals(Arrays.asList("node-0", "node-1", "node-2"), started);
+
+        fanOut.setMaxConcurrentSends(4);
+        assertEquals(Arrays.asList("node-0", "node-1", "node-2", "node-3", "node-4"), started);
+        assertEquals(0.0, fanOut.getStats().get("pending"));
+    }
+
+    @Test
+    public void outcomesReachTheCallerAndTheHealth() {
+        health.configure(2, 60_000, 60_000);
+        send("node-0");
+        send("node-0");
+        send("node-1");
+
+        inFlight.get(0).onFailure(new IllegalStateException("timeout"));
+        inFlight.get(1).onFailure(new IllegalStateException("timeout"));
+        inFlight.get(2).onSuccess();
+
+        assertEquals(Arrays.asList("node-0:timeout", "node-0:timeout", "node-1:ok"), outcomes);
+        assertEquals("open", health.getStats("node-0").get("state"));
+        assertTrue(health.isClosed("node-1"));
+        assertEquals(0.0, fanOut.getStats().get("inFlight"));
+    }
+
+    @Test
+    public void aTransportThatThrowsFailsTheSendAndFreesItsSlot() {
+        fanOut.setMaxConcurrentSends(1);
+        send("broken");
+        send("node-0");
+
+        assertEquals(Arrays.asList("broken:No client"), outcomes);
+        assertEquals(Arrays.asList("node-0"), started);
+        assertEquals(1.0, fanOut.getStats().get("inFlight"));
+    }
+
+    @Test
+    public void recycledSendsCarryTheirOwnCallback() {
+        fanOut.setMaxConcurrentSends(1);
+        for (int i = 0; i < 3; i++) {
+            send("node-" + i);
+            inFlight.get(i).onSuccess();
+        }
+
+        assertEquals(Arrays.asList("node-0:ok", "node-1:ok", "node-2:ok"), outcomes);
+    }
+}
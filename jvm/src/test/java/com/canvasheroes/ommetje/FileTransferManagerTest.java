@@ -0,0 +1,323 @@
+package com.canvasheroes.ommetje;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.android.gms.wearable.ChannelClient;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A sending and a receiving manager, connected by channels made of pipes
+ */
+public class FileTransferManagerTest {
+
+    private static final int PIPE_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Loopback senderClient = new Loopback("handheld");
+    private final Loopback receiverClient = new Loopback("watch");
+    private final BlockingQueue<String> senderEvents = new LinkedBlockingQueue<>();
+    private final BlockingQueue<String> receiverEvents = new LinkedBlockingQueue<>();
+    private FileTransferManager sender;
+    private FileTransferManager receiver;
+    private File receiveDirectory;
+
+    /**
+     * One side of a channel, the streams of both sides are connected crosswise
+     */
+    private static final class End implements ChannelClient.Channel {
+        final String nodeId;
+        final String path;
+        final PipedInputStream input = new PipedInputStream(PIPE_SIZE);
+        OutputStream output;
+
+        End(String nodeId, String path) {
+            this.nodeId = nodeId;
+            this.path = path;
+        }
+
+        @Override
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+    }
+
+    private final class Loopback extends ChannelClient {
+        final String localNodeId;
+        /**
+         * Output streams of this side fail after this many bytes, once
+         */
+        volatile long failAfter = -1;
+        volatile boolean outputFails = false;
+
+        Loopback(String localNodeId) {
+            this.localNodeId = localNodeId;
+        }
+
+        @Override
+        public Task<Channel> openChannel(String nodeId, String path) {
+            End local = new End(nodeId, path);
+            End remote = new End(localNodeId, path);
+            try {
+                local.output = limit(new PipedOutputStream(remote.input));
+                remote.output = new PipedOutputStream(local.input);
+            } catch (IOException e) {
+                return Tasks.forException(e);
+            }
+            receiver.onChannelOpened(remote);
+            return Tasks.forResult(local);
+        }
+
+        private OutputStream limit(OutputStream output) {
+            long limit = failAfter;
+            failAfter = -1;
+            if (limit < 0) {
+                return output;
+            }
+            return new FilterOutputStream(output) {
+                long written = 0;
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (written + len > limit) {
+                        int allowed = (int) (limit - written);
+                        out.write(b, off, allowed);
+                        written += allowed;
+                        throw new IOException("Connection lost");
+                    }
+                    out.write(b, off, len);
+                    written += len;
+                }
+            };
+        }
+
+        @Override
+        public Task<Void> close(Channel c) {
+            End end = (End) c;
+            try {
+                end.input.close();
+                end.output.close();
+            } catch (IOException e) {
+                return Tasks.forException(e);
+            }
+            return Tasks.forResult(null);
+        }
+
+        @Override
+        public Task<Void> close(Channel c, int err) {
+            return close(c);
+        }
+
+        @Override
+        public Task<OutputStream> getOutputStream(Channel c) {
+            if (outputFails) {
+                return Tasks.forException(new IOException("No output stream"));
+            }
+            return Tasks.forResult(((End) c).output);
+        }
+
+        @Override
+        public Task<InputStream> getInputStream(Channel c) {
+            return Tasks.forResult(((End) c).input);
+        }
+
+        @Override
+        public Task<Void> receiveFile(Channel c, android.net.Uri uri, boolean append) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Task<Void> sendFile(Channel c, android.net.Uri uri, long offset, long length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Task<Void> registerChannelCallback(ChannelCallback cb) {
+            return Tasks.forResult(null);
+        }
+
+        @Override
+        public Task<Boolean> unregisterChannelCallback(ChannelCallback cb) {
+            return Tasks.forResult(true);
+        }
+    }
+
+    private void start() throws IOException {
+        receiveDirectory = folder.newFolder("received");
+        sender = new FileTransferManager(senderClient, folder.newFolder("unused"));
+        receiver = new FileTransferManager(receiverClient, receiveDirectory);
+        sender.setListener((type, transfer) -> senderEvents.add(type));
+        receiver.setListener((type, transfer) -> receiverEvents.add(type));
+    }
+
+    @After
+    public void tearDown() {
+        if (sender != null) {
+            sender.shutdown();
+            receiver.shutdown();
+        }
+    }
+
+    /**
+     * @return the first finished or error event, skipping the others
+     */
+    private static String awaitOutcome(BlockingQueue<String> events) throws InterruptedException {
+        while (true) {
+            String type = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No outcome within 5 seconds", type);
+            if (type.equals(FileTransferManager.EVENT_FINISHED) || type.equals(FileTransferManager.EVENT_ERROR)) {
+                return type;
+            }
+        }
+    }
+
+    private File file(String directory, String name, int size, long seed) throws IOException {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        File dir = new File(folder.getRoot(), directory);
+        assertTrue(dir.isDirectory() || dir.mkdirs());
+        File file = new File(dir, name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private FileTransferManager.FileTransfer received(String id) {
+        for (FileTransferManager.FileTransfer transfer : receiver.getTransfers()) {
+            if (transfer.id.equals(id)) {
+                return transfer;
+            }
+        }
+        throw new AssertionError("Nothing received for " + id);
+    }
+
+    @Test
+    public void aFileArrivesWithItsNestedMetadata() throws Exception {
+        start();
+        File source = file("outbox", "track.gpx", 200_000, 1);
+        Map<String, Object> inner = new LinkedHashMap<>();
+        inner.put("seconds", 42);
+        inner.put("laps", Arrays.asList(1, 2));
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("kind", "route");
+        metadata.put("tags", Arrays.asList("run", Collections.singletonMap("pace", 5)));
+        metadata.put("stats", inner);
+
+        String id = sender.send("watch", source, "file:///track.gpx", metadata);
+
+        assertEquals(FileTransferManager.EVENT_FINISHED, awaitOutcome(senderEvents));
+        assertEquals(FileTransferManager.EVENT_FINISHED, awaitOutcome(receiverEvents));
+        FileTransferManager.FileTransfer transfer = received(id);
+        assertEquals(metadata, transfer.metadata);
+        assertEquals("handheld", transfer.nodeId);
+        File target = new File(new File(receiveDirectory, id), "track.gpx");
+        assertEquals(target.toURI().toString(), transfer.uri);
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(target.toPath()));
+        assertEquals(200_000L, transfer.bytesTransferred);
+    }
+
+    @Test
+    public void anInterruptedTransferResumesFromTheBytesThatArrived() throws Exception {
+        start();
+        File source = file("outbox", "recording.bin", 300_000, 2);
+        senderClient.failAfter = 100_000;
+
+        String id = sender.send("watch", source, "file:///recording.bin", new HashMap<>());
+
+        assertEquals(FileTransferManager.EVENT_ERROR, awaitOutcome(senderEvents));
+        assertEquals(FileTransferManager.EVENT_ERROR, awaitOutcome(receiverEvents));
+        File target = new File(new File(receiveDirectory, id), "recording.bin");
+        long arrived = target.length();
+        assertTrue(arrived > 0 && arrived < 100_000);
+
+        assertTrue(sender.resume(id, source));
+
+        assertEquals(FileTransferManager.EVENT_FINISHED, awaitOutcome(senderEvents));
+        assertEquals(FileTransferManager.EVENT_FINISHED, awaitOutcome(receiverEvents));
+        assertEquals(arrived, received(id).startOffset);
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(target.toPath()));
+        assertFalse(sender.resume(id, source));
+    }
+
+    @Test
+    public void filesWithTheSameNameAreKeptApart() throws Exception {
+        start();
+        File first = file("camera", "photo.jpg", 50_000, 3);
+        File second = file("gallery", "photo.jpg", 70_000, 4);
+
+        String firstId = sender.send("watch", first, "file:///camera/photo.jpg", new HashMap<>());
+        String secondId = sender.send("watch", second, "file:///gallery/photo.jpg", new HashMap<>());
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(FileTransferManager.EVENT_FINISHED, awaitOutcome(senderEvents));
+            assertEquals(FileTransferManager.EVENT_FINISHED, awaitOutcome(receiverEvents));
+        }
+        assertNotEquals(received(firstId).uri, received(secondId).uri);
+        assertArrayEquals(Files.readAllBytes(first.toPath()),
+            Files.readAllBytes(new File(new File(receiveDirectory, firstId), "photo.jpg").toPath()));
+        assertArrayEquals(Files.readAllBytes(second.toPath()),
+            Files.readAllBytes(new File(new File(receiveDirectory, secondId), "photo.jpg").toPath()));
+    }
+
+    @Test
+    public void aReceiveThatFailsBeforeTheReplyIsStillReported() throws Exception {
+        start();
+        receiverClient.outputFails = true;
+        File source = file("outbox", "log.txt", 10_000, 5);
+
+        String id = sender.send("watch", source, "file:///log.txt", new HashMap<>());
+
+        assertEquals(FileTransferManager.EVENT_ERROR, awaitOutcome(receiverEvents));
+        assertEquals(FileTransferManager.EVENT_ERROR, awaitOutcome(senderEvents));
+        FileTransferManager.FileTransfer transfer = received(id);
+        assertFalse(transfer.isActive());
+        assertNotNull(transfer.error);
+    }
+
+    @Test
+    public void metadataIsConvertedRecursively() throws Exception {
+        JSONObject json = new JSONObject("{\"a\":[1,[\"x\",null],{\"b\":true}],\"c\":{\"d\":{\"e\":\"f\"}},\"g\":null}");
+
+        Map<String, Object> map = FileTransferManager.toMap(json);
+
+        assertEquals(Arrays.asList(1, Arrays.asList("x", null), Collections.singletonMap("b", true)), map.get("a"));
+        assertEquals(Collections.singletonMap("d", Collections.singletonMap("e", "f")), map.get("c"));
+        assertTrue(map.containsKey("g"));
+        assertEquals(null, map.get("g"));
+    }
+}
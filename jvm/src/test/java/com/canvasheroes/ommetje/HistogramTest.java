@@ -0,0 +1,94 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    private final Histogram histogram = new Histogram();
+
+    @Test
+    public void anEmptyHistogramIsAllZeros() {
+        Map<String, Object> snapshot = histogram.snapshot();
+
+        assertEquals(0.0, snapshot.get("count"));
+        assertEquals(0.0, snapshot.get("mean"));
+        assertEquals(0.0, snapshot.get("max"));
+        assertEquals(0.0, snapshot.get("p99"));
+    }
+
+    @Test
+    public void smallValuesHaveABucketEach() {
+        for (int value = 0; value < 8; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(3, histogram.getValueAtPercentile(50));
+        assertEquals(6, histogram.getValueAtPercentile(80));
+        assertEquals(7, histogram.getValueAtPercentile(100));
+        assertEquals(3.5, histogram.snapshot().get("mean"));
+    }
+
+    @Test
+    public void percentilesAreAccurateToAnEighthAtAnyMagnitude() {
+        for (long scale : new long[]{1, 1_000, 1_000_000_000L}) {
+            histogram.reset();
+            for (long value = 1; value <= 10_000; value++) {
+                histogram.record(value * scale);
+            }
+            for (double percentile : new double[]{50, 90, 99}) {
+                long exact = (long) (percentile * 100) * scale;
+                long estimate = histogram.getValueAtPercentile(percentile);
+                assertTrue(percentile + " of " + scale + " is " + estimate,
+                    estimate >= exact && estimate <= exact + exact / 8);
+            }
+        }
+    }
+
+    @Test
+    public void estimatesNeverExceedTheMax() {
+        histogram.record(1_000);
+
+        assertEquals(1_000, histogram.getValueAtPercentile(99));
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void negativeValuesAreRecordedAsZero() {
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(100));
+        assertEquals(0.0, histogram.snapshot().get("mean"));
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int offset = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i * 4 + offset);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Map<String, Object> snapshot = histogram.snapshot();
+        assertEquals(40_000.0, snapshot.get("count"));
+        assertEquals(39_999.0, snapshot.get("max"));
+        assertEquals(19_999.5, snapshot.get("mean"));
+    }
+}
@@ -0,0 +1,188 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler on a clock of its own, the test runs the tasks that are due by advancing it.
+ * Tasks run on the thread of the test, in the order they are due and then in the order they were scheduled.
+ */
+final class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        final long sequence;
+        final long periodMillis;
+        long dueMillis;
+
+        Task(Callable<V> callable, long dueMillis, long periodMillis) {
+            super(callable);
+            this.sequence = scheduled++;
+            this.dueMillis = dueMillis;
+            this.periodMillis = periodMillis;
+        }
+
+        @Override
+        public long getDelay(@NonNull TimeUnit unit) {
+            return unit.convert(dueMillis - nowMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(@NonNull Delayed other) {
+            Task<?> task = (Task<?>) other;
+            int byTime = Long.compare(dueMillis, task.dueMillis);
+            return byTime != 0 ? byTime : Long.compare(sequence, task.sequence);
+        }
+
+        @Override
+        public void run() {
+            if (periodMillis == 0) {
+                super.run();
+            } else if (runAndReset()) {
+                synchronized (ManualScheduler.this) {
+                    dueMillis += periodMillis;
+                    tasks.add(this);
+                }
+            }
+        }
+    }
+
+    private final PriorityQueue<Task<?>> tasks = new PriorityQueue<>();
+    private long nowMillis = 0;
+    private long scheduled = 0;
+    private boolean shutdown = false;
+
+    /**
+     * @return the time of the clock of the scheduler in milliseconds
+     */
+    synchronized long now() {
+        return nowMillis;
+    }
+
+    /**
+     * Move the clock forward and run the tasks that are due, including the ones they schedule
+     *
+     * @param millis the time to move the clock by
+     */
+    void advance(long millis) {
+        long until;
+        synchronized (this) {
+            until = nowMillis + millis;
+        }
+        while (true) {
+            Task<?> task;
+            synchronized (this) {
+                task = tasks.peek();
+                if (task == null || task.dueMillis > until) {
+                    nowMillis = until;
+                    return;
+                }
+                tasks.poll();
+                nowMillis = Math.max(nowMillis, task.dueMillis);
+            }
+            if (!task.isCancelled()) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Run the tasks that are due now, without moving the clock
+     */
+    void runPending() {
+        advance(0);
+    }
+
+    /**
+     * @return the number of tasks that were not run or cancelled yet
+     */
+    synchronized int pending() {
+        int count = 0;
+        for (Task<?> task : tasks) {
+            if (!task.isCancelled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private synchronized <V> Task<V> add(Callable<V> callable, long delayMillis, long periodMillis) {
+        if (shutdown) {
+            throw new RejectedExecutionException("The scheduler is shut down");
+        }
+        Task<V> task = new Task<>(callable, nowMillis + Math.max(0, delayMillis), periodMillis);
+        tasks.add(task);
+        return task;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        add(Executors.callable(command), 0, 0);
+    }
+
+    @NonNull
+    @Override
+    public ScheduledFuture<?> schedule(@NonNull Runnable command, long delay, @NonNull TimeUnit unit) {
+        return add(Executors.callable(command), unit.toMillis(delay), 0);
+    }
+
+    @NonNull
+    @Override
+    public <V> ScheduledFuture<V> schedule(@NonNull Callable<V> callable, long delay, @NonNull TimeUnit unit) {
+        return add(callable, unit.toMillis(delay), 0);
+    }
+
+    @NonNull
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(@NonNull Runnable command, long initialDelay, long period,
+                                                  @NonNull TimeUnit unit) {
+        return add(Executors.callable(command), unit.toMillis(initialDelay), Math.max(1, unit.toMillis(period)));
+    }
+
+    @NonNull
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(@NonNull Runnable command, long initialDelay, long delay,
+                                                     @NonNull TimeUnit unit) {
+        return scheduleAtFixedRate(command, initialDelay, delay, unit);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    @NonNull
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> remaining = new ArrayList<>(tasks);
+        tasks.clear();
+        return remaining;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NonNull TimeUnit unit) {
+        return isTerminated();
+    }
+}
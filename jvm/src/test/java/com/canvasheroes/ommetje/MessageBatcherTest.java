@@ -0,0 +1,137 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageBatcherTest {
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final List<String> sent = new ArrayList<>();
+    private final List<MessageService.SendCallback> batchCallbacks = new ArrayList<>();
+    private final MessageBatcher batcher = new MessageBatcher(scheduler, (nodeId, frame, callback) -> {
+        try {
+            StringBuilder batch = new StringBuilder(nodeId).append(':');
+            for (MessageObject message : MessageCodec.decode(frame)) {
+                batch.append(new String(message.data, StandardCharsets.UTF_8));
+            }
+            sent.add(batch.toString());
+        } catch (MessageCodec.MalformedMessageException e) {
+            throw new AssertionError(e);
+        }
+        batchCallbacks.add(callback);
+    });
+
+    private static MessageObject message(String data) {
+        return JvmHarness.dataMessage(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Records the outcome of every message
+     */
+    private static final class Outcomes implements MessageService.SendCallback {
+        int successes = 0;
+        final List<Exception> failures = new ArrayList<>();
+
+        @Override
+        public void onSuccess() {
+            successes++;
+        }
+
+        @Override
+        public void onFailure(@NonNull Exception exception) {
+            failures.add(exception);
+        }
+    }
+
+    @Test
+    public void messagesWithinTheWindowAreSentAsOneFrame() {
+        batcher.add("node-0", message("a"), null);
+        scheduler.advance(10);
+        batcher.add("node-0", message("b"), null);
+        batcher.add("node-0", message("c"), null);
+
+        scheduler.advance(MessageBatcher.DEFAULT_WINDOW_MILLIS - 11);
+        assertTrue(sent.isEmpty());
+
+        // The window starts with the first message of the batch
+        scheduler.advance(1);
+        assertEquals(Arrays.asList("node-0:abc"), sent);
+        assertEquals(3.0, batcher.batchSizes.snapshot().get("max"));
+    }
+
+    @Test
+    public void eachNodeHasABatchOfItsOwn() {
+        batcher.add("node-0", message("a"), null);
+        batcher.add("node-1", message("b"), null);
+        batcher.add("node-0", message("c"), null);
+
+        scheduler.advance(MessageBatcher.DEFAULT_WINDOW_MILLIS);
+
+        assertEquals(2, sent.size());
+        assertTrue(sent.contains("node-0:ac"));
+        assertTrue(sent.contains("node-1:b"));
+    }
+
+    @Test
+    public void aMessageThatExceedsTheBudgetStartsANewBatch() {
+        batcher.configure(1000, 4);
+        batcher.add("node-0", message("ab"), null);
+        batcher.add("node-0", message("cd"), null);
+        assertTrue(sent.isEmpty());
+
+        batcher.add("node-0", message("e"), null);
+
+        // The full batch is sent right away, the new one waits for its window
+        assertEquals(Arrays.asList("node-0:abcd"), sent);
+        scheduler.advance(999);
+        assertEquals(1, sent.size());
+        scheduler.advance(1);
+        assertEquals(Arrays.asList("node-0:abcd", "node-0:e"), sent);
+    }
+
+    @Test
+    public void flushSendsBeforeTheWindowAndCancelsItsTimer() {
+        batcher.add("node-0", message("a"), null);
+        batcher.add("node-1", message("b"), null);
+
+        batcher.flush("node-0");
+        assertEquals(Arrays.asList("node-0:a"), sent);
+
+        batcher.flushAll();
+        assertEquals(Arrays.asList("node-0:a", "node-1:b"), sent);
+
+        scheduler.advance(MessageBatcher.DEFAULT_WINDOW_MILLIS);
+        assertEquals(2, sent.size());
+        assertEquals(0, scheduler.pending());
+    }
+
+    @Test
+    public void theOutcomeOfABatchReachesEveryMessage() {
+        Outcomes first = new Outcomes();
+        Outcomes second = new Outcomes();
+        batcher.add("node-0", message("a"), first);
+        batcher.add("node-0", message("b"), null);
+        batcher.add("node-0", message("c"), second);
+        batcher.flushAll();
+        batcher.add("node-0", message("d"), first);
+        batcher.flushAll();
+
+        batchCallbacks.get(0).onSuccess();
+        IllegalStateException failure = new IllegalStateException("unreachable");
+        batchCallbacks.get(1).onFailure(failure);
+
+        assertEquals(1, first.successes);
+        assertEquals(Arrays.asList(failure), first.failures);
+        assertEquals(1, second.successes);
+        assertTrue(second.failures.isEmpty());
+    }
+}
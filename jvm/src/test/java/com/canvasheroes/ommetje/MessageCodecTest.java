@@ -0,0 +1,260 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageCodecTest {
+
+    private static MessageObject message(String deviceId, MessageObject.MessageType type, String data) {
+        return new MessageObject(MessageObject.Sender.Platform.wearos, MessageObject.Sender.Direction.handheld,
+            deviceId, type, data == null ? null : data.getBytes(StandardCharsets.UTF_8),
+            new Timestamp(1_600_000_000_123L));
+    }
+
+    private static void assertMessageEquals(MessageObject expected, MessageObject actual) {
+        assertEquals(expected.sender.platform, actual.sender.platform);
+        assertEquals(expected.sender.direction, actual.sender.direction);
+        assertEquals(expected.sender.deviceId, actual.sender.deviceId);
+        assertEquals(expected.type, actual.type);
+        assertArrayEquals(expected.data, actual.data);
+        assertEquals(expected.timestamp.getTime(), actual.timestamp.getTime());
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.replyTo, actual.replyTo);
+        assertEquals(expected.seq, actual.seq);
+    }
+
+    @Test
+    public void binaryRoundTripKeepsEveryField() throws Exception {
+        MessageObject message = message("device-a", MessageObject.MessageType.reply, "{\"ok\":true,\"é\":\"😀\"}");
+        message.id = 7;
+        message.replyTo = 300;
+        message.seq = 1L << 40;
+
+        byte[] frame = message.toBinaryBytes();
+
+        assertTrue(MessageCodec.isBinary(frame));
+        List<MessageObject> decoded = MessageCodec.decode(frame);
+        assertEquals(1, decoded.size());
+        assertMessageEquals(message, decoded.get(0));
+        assertTrue(decoded.get(0).acceptsBinary);
+    }
+
+    @Test
+    public void binaryRoundTripOfSeveralMessagesSharesTheDeviceIds() throws Exception {
+        List<MessageObject> messages = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            messages.add(message(i % 2 == 0 ? "device-a" : "device-b", MessageObject.MessageType.data,
+                i == 3 ? null : "payload " + i));
+        }
+
+        byte[] frame = MessageCodec.encode(messages);
+
+        assertEquals(MessageCodec.encodedSize(messages), frame.length);
+        List<MessageObject> decoded = MessageCodec.decode(frame);
+        assertEquals(messages.size(), decoded.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertMessageEquals(messages.get(i), decoded.get(i));
+        }
+        // Each device id is written once
+        String encoded = new String(frame, StandardCharsets.ISO_8859_1);
+        assertEquals(encoded.indexOf("device-a"), encoded.lastIndexOf("device-a"));
+    }
+
+    @Test
+    public void pooledEncodingMatchesTheListEncoding() throws Exception {
+        MessageObject message = message("device-a", MessageObject.MessageType.data, "pooled");
+        BufferPool pool = new BufferPool();
+
+        byte[] frame = MessageCodec.encode(message, pool);
+
+        assertArrayEquals(MessageCodec.encode(Collections.singletonList(message)), frame);
+    }
+
+    @Test
+    public void compressedDataRoundTrips() throws Exception {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            data.append("{\"heartRate\":72,\"steps\":").append(i).append("},");
+        }
+        MessageObject message = message("device-a", MessageObject.MessageType.data, data.toString());
+        PayloadCompressor compressor = new PayloadCompressor();
+        compressor.configure(true, 0);
+        compressor.prepare(message);
+        assertNotNull(message.compressedData);
+
+        byte[] frame = message.toBinaryBytes();
+
+        assertTrue(frame.length < message.data.length);
+        assertMessageEquals(message, MessageCodec.decode(frame).get(0));
+        assertMessageEquals(message, MessageCodec.view(frame).get(0).toMessageObject());
+    }
+
+    @Test
+    public void jsonRoundTripKeepsEveryField() throws Exception {
+        MessageObject message = message("device-a", MessageObject.MessageType.data, "{\"text\":\"hi\"}");
+        message.id = 12;
+
+        byte[] json = MessageCodec.encode(message, MessageCodec.WireFormat.json);
+
+        assertFalse(MessageCodec.isBinary(json));
+        assertMessageEquals(message, new MessageObject(new String(json, StandardCharsets.UTF_8)));
+        assertMessageEquals(message, MessageCodec.decode(json).get(0));
+    }
+
+    @Test
+    public void jsonWithoutDataDecodesToNull() throws Exception {
+        MessageObject message = message("device-a", MessageObject.MessageType.stop, null);
+
+        MessageObject decoded = MessageCodec.decode(MessageCodec.encode(message, MessageCodec.WireFormat.json)).get(0);
+
+        assertNull(decoded.data);
+    }
+
+    @Test
+    public void viewReadsTheHeaderWithoutDecodingTheData() throws Exception {
+        MessageObject message = message("device-b", MessageObject.MessageType.data, "lazy");
+        message.id = 5;
+
+        MessageView view = MessageCodec.view(message.toBinaryBytes()).get(0);
+
+        assertEquals(MessageObject.MessageType.data, view.getType());
+        assertEquals("device-b", view.getDeviceId());
+        assertEquals(5, view.getId());
+        assertTrue(view.hasData());
+        assertEquals(message.timestamp.getTime(), view.getTimestamp());
+        assertMessageEquals(message, view.toMessageObject());
+    }
+
+    @Test
+    public void binaryIsSmallerThanJson() {
+        for (Payloads.Shape shape : Payloads.Shape.values()) {
+            MessageObject message = JvmHarness.dataMessage(Payloads.json(shape));
+            int binary = message.toBinaryBytes().length;
+            int json = message.toJSONBytes().length;
+            assertTrue(shape + ": binary " + binary + " bytes, JSON " + json, binary < json);
+            // The envelope costs a fixed number of bytes, the data is not escaped
+            assertTrue(shape + ": binary envelope " + (binary - message.data.length) + " bytes",
+                binary - message.data.length < 32);
+        }
+    }
+
+    @Test
+    public void rejectsNegativeDeviceCount() {
+        assertMalformed(frame(varInt(-1), varInt(0)));
+    }
+
+    @Test
+    public void rejectsNegativeDeviceIdLength() {
+        assertMalformed(frame(varInt(1), varInt(-1), varInt(0)));
+    }
+
+    @Test
+    public void rejectsDeviceIdLongerThanTheFrame() {
+        assertMalformed(frame(varInt(1), varInt(100), new byte[]{'a'}, varInt(0)));
+    }
+
+    @Test
+    public void rejectsNegativeMessageCount() {
+        assertMalformed(frame(varInt(0), varInt(-1)));
+    }
+
+    @Test
+    public void rejectsNegativeDataLength() {
+        assertMalformed(frame(varInt(1), varInt(1), new byte[]{'d'}, varInt(1),
+            header(MessageCodec.FLAG_DATA), varInt(-1)));
+    }
+
+    @Test
+    public void rejectsNegativeInflatedLength() {
+        byte[] compressed = concat(varInt(-1), new byte[]{3, 0});
+        assertMalformed(frame(varInt(1), varInt(1), new byte[]{'d'}, varInt(1),
+            header(MessageCodec.FLAG_DATA | MessageCodec.FLAG_COMPRESSED), varInt(compressed.length), compressed));
+    }
+
+    @Test
+    public void rejectsInflatedLengthAboveTheLimit() {
+        byte[] compressed = concat(varInt(PayloadCompressor.MAX_INFLATED_BYTES + 1), new byte[]{3, 0});
+        assertMalformed(frame(varInt(1), varInt(1), new byte[]{'d'}, varInt(1),
+            header(MessageCodec.FLAG_DATA | MessageCodec.FLAG_COMPRESSED), varInt(compressed.length), compressed));
+    }
+
+    @Test
+    public void rejectsUnknownFlags() {
+        assertMalformed(frame(varInt(1), varInt(1), new byte[]{'d'}, varInt(1), header(1 << 7)));
+    }
+
+    @Test
+    public void rejectsEveryTruncation() throws Exception {
+        MessageObject message = message("device-a", MessageObject.MessageType.data, "truncated");
+        message.id = 3;
+        byte[] frame = message.toBinaryBytes();
+        for (int length = 2; length < frame.length; length++) {
+            assertMalformed(Arrays.copyOf(frame, length));
+        }
+    }
+
+    private static void assertMalformed(byte[] frame) {
+        try {
+            for (MessageView view : MessageCodec.view(frame)) {
+                view.toMessageObject();
+            }
+            fail("view accepted " + Arrays.toString(frame));
+        } catch (MessageCodec.MalformedMessageException e) {
+            // Expected
+        }
+        try {
+            MessageCodec.decode(frame);
+            fail("decode accepted " + Arrays.toString(frame));
+        } catch (MessageCodec.MalformedMessageException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * The flags, platform, direction, type, device index and timestamp of a data message
+     */
+    private static byte[] header(int flags) {
+        ByteBuffer out = ByteBuffer.allocate(13);
+        out.put((byte) flags);
+        out.put((byte) 0);
+        out.put((byte) 0);
+        out.put((byte) MessageObject.MessageType.data.ordinal());
+        out.put((byte) 0);
+        out.putLong(1_600_000_000_000L);
+        return out.array();
+    }
+
+    private static byte[] frame(byte[]... parts) {
+        return concat(concat(new byte[]{MessageCodec.MAGIC, MessageCodec.VERSION}), concat(parts));
+    }
+
+    private static byte[] varInt(int value) {
+        ByteBuffer out = ByteBuffer.allocate(5);
+        MessageCodec.putVarInt(out, value);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,93 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MessageFilterTest {
+
+    private MessageService service;
+    private final List<String> received = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        service = JvmHarness.createService(
+            new JvmHarness.FakeNodeSource(JvmHarness.nodes(1), 0), new JvmHarness.ImmediateTransport());
+        service.addMessageDataReceiveListener((sourceNodeId, message, data) ->
+            received.add(message.sender.deviceId + ":" + new String(message.data, StandardCharsets.UTF_8)));
+    }
+
+    @After
+    public void tearDown() {
+        JvmHarness.destroy(service);
+    }
+
+    private static MessageObject message(String deviceId, MessageObject.MessageType type, String data) {
+        return new MessageObject(MessageObject.Sender.Platform.wearos, MessageObject.Sender.Direction.wearable,
+            deviceId, type, data.getBytes(StandardCharsets.UTF_8), new Timestamp(1_600_000_000_000L));
+    }
+
+    @Test
+    public void onlyAcceptedMessagesReachTheListeners() {
+        service.setMessageFilter((sourceNodeId, message) -> message.getDeviceId().equals("wanted"));
+
+        service.handleMessage("node-0", MessageCodec.encode(Arrays.asList(
+            message("wanted", MessageObject.MessageType.data, "1"),
+            message("other", MessageObject.MessageType.data, "2"),
+            message("wanted", MessageObject.MessageType.data, "3"))));
+
+        assertEquals(Arrays.asList("wanted:1", "wanted:3"), received);
+    }
+
+    @Test
+    public void rejectedMessagesAreNeverDecoded() {
+        // Compressed data that does not inflate, decoding the message would fail
+        MessageObject corrupt = message("other", MessageObject.MessageType.data, "payload");
+        corrupt.compressedData = new byte[]{1, 2, 3, 4};
+        List<String> decodedFrom = new ArrayList<>();
+        service.setMessageFilter((sourceNodeId, message) -> {
+            decodedFrom.add(message.getDeviceId());
+            return !message.getDeviceId().equals("other");
+        });
+
+        service.handleMessage("node-0", MessageCodec.encode(Arrays.asList(
+            corrupt, message("wanted", MessageObject.MessageType.data, "ok"))));
+
+        assertEquals(Arrays.asList("other", "wanted"), decodedFrom);
+        assertEquals(Arrays.asList("wanted:ok"), received);
+    }
+
+    @Test
+    public void onlyDataMessagesAreFiltered() {
+        List<MessageObject.MessageType> filteredTypes = new ArrayList<>();
+        service.setMessageFilter((sourceNodeId, message) -> {
+            filteredTypes.add(message.getType());
+            return false;
+        });
+
+        service.handleMessage("node-0", MessageCodec.encode(Arrays.asList(
+            message("watch", MessageObject.MessageType.data, "dropped"),
+            message("watch", MessageObject.MessageType.start, ""))));
+
+        assertEquals(Arrays.asList(MessageObject.MessageType.data), filteredTypes);
+    }
+
+    @Test
+    public void everyMessageIsAcceptedWithoutAFilter() {
+        service.setMessageFilter((sourceNodeId, message) -> false);
+        service.setMessageFilter(null);
+
+        service.handleMessage("node-0", MessageCodec.encode(Arrays.asList(
+            message("a", MessageObject.MessageType.data, "1"), message("b", MessageObject.MessageType.data, "2"))));
+
+        assertEquals(Arrays.asList("a:1", "b:2"), received);
+    }
+}
@@ -0,0 +1,148 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A crash is simulated by opening the store again without closing it, the mapped writes survive the process
+ */
+public class MessageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ScheduledExecutorService scheduler;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        directory = folder.newFolder("outbox");
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private static MessageObject message(MessageObject.MessageType type, String data) {
+        return new MessageObject(MessageObject.Sender.Platform.wearos, MessageObject.Sender.Direction.handheld,
+            "device", type, data.getBytes(StandardCharsets.UTF_8), new Timestamp(1_600_000_000_000L));
+    }
+
+    private static List<String> data(MessageStore store) {
+        List<String> data = new ArrayList<>();
+        for (MessageObject message : store.getMessages().values()) {
+            data.add(new String(message.data, StandardCharsets.UTF_8));
+        }
+        return data;
+    }
+
+    @Test
+    public void queuedMessagesSurviveACrashInOrder() {
+        MessageStore store = MessageStore.open(directory, scheduler);
+        MessageObject withId = message(MessageObject.MessageType.data, "one");
+        withId.id = 99;
+        long first = store.add(withId);
+        long second = store.add(message(MessageObject.MessageType.data, "two"));
+        store.add(message(MessageObject.MessageType.data, "three"));
+        assertTrue(store.remove(second));
+
+        MessageStore recovered = MessageStore.open(directory, scheduler);
+
+        assertEquals(Arrays.asList("one", "three"), data(recovered));
+        MessageObject restored = recovered.getMessages().get(first);
+        assertEquals(99, restored.id);
+        assertEquals(MessageObject.MessageType.data, restored.type);
+        assertEquals(1_600_000_000_000L, restored.timestamp.getTime());
+    }
+
+    @Test
+    public void onlyTheNewestApplicationContextIsKept() {
+        MessageStore store = MessageStore.open(directory, scheduler);
+        store.add(message(MessageObject.MessageType.applicationContext, "old"));
+        store.add(message(MessageObject.MessageType.data, "data"));
+        store.add(message(MessageObject.MessageType.applicationContext, "new"));
+
+        MessageStore recovered = MessageStore.open(directory, scheduler);
+
+        assertEquals(Arrays.asList("data", "new"), data(recovered));
+        assertEquals("new", new String(recovered.getApplicationContext().data, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void removingTheApplicationContextClearsIt() {
+        MessageStore store = MessageStore.open(directory, scheduler);
+        long seq = store.add(message(MessageObject.MessageType.applicationContext, "context"));
+
+        store.remove(seq);
+
+        assertNull(store.getApplicationContext());
+        assertNull(MessageStore.open(directory, scheduler).getApplicationContext());
+    }
+
+    @Test
+    public void unreadableRecordsAreDropped() throws IOException {
+        SegmentLog log = new SegmentLog(directory, scheduler);
+        log.append("not a message".getBytes(StandardCharsets.UTF_8));
+        log.append(MessageCodec.encode(Arrays.asList(
+            message(MessageObject.MessageType.data, "a"), message(MessageObject.MessageType.data, "b"))));
+        log.close();
+
+        MessageStore store = MessageStore.open(directory, scheduler);
+
+        assertEquals(0, store.size());
+        store.close();
+        assertEquals(0, new SegmentLog(directory, scheduler).size());
+    }
+
+    @Test
+    public void keepsMessagesInMemoryWhenTheLogCannotBeOpened() throws IOException {
+        File notADirectory = folder.newFile("outbox.file");
+
+        MessageStore store = MessageStore.open(notADirectory, scheduler);
+        long seq = store.add(message(MessageObject.MessageType.data, "memory"));
+
+        assertTrue(seq < 0);
+        assertEquals(Arrays.asList("memory"), data(store));
+        assertTrue(store.remove(seq));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void everyMessageOfALargeBacklogIsRecovered() {
+        MessageStore store = MessageStore.open(directory, scheduler);
+        for (int i = 0; i < 5000; i++) {
+            store.add(message(MessageObject.MessageType.data, "message " + i));
+        }
+        for (Map.Entry<Long, MessageObject> entry : store.getMessages().entrySet()) {
+            if (entry.getKey() % 2 == 0) {
+                store.remove(entry.getKey());
+            }
+        }
+
+        MessageStore recovered = MessageStore.open(directory, scheduler);
+
+        assertEquals(2500, recovered.size());
+        assertEquals("message 0", data(recovered).get(0));
+        assertEquals("message 4998", data(recovered).get(2499));
+    }
+}
@@ -0,0 +1,82 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class MetricsTest {
+
+    private final Metrics metrics = new Metrics();
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> map(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    @Test
+    public void sendsAreCountedPerNode() {
+        long now = System.nanoTime();
+        metrics.recordSend("node-0", 100, now, true);
+        metrics.recordSend("node-0", 50, now, false);
+        metrics.recordSend("node-1", 20, now, true);
+
+        Map<String, Object> stats = metrics.snapshot();
+        assertEquals(2.0, stats.get("messagesSent"));
+        assertEquals(1.0, stats.get("messagesFailed"));
+        assertEquals(120.0, stats.get("bytesSent"));
+        assertEquals(3.0, map(stats.get("sentBytes")).get("count"));
+        assertEquals(2.0, map(stats.get("sendLatencyMs")).get("count"));
+
+        Map<String, Object> nodes = map(stats.get("nodes"));
+        assertEquals(0.5, map(nodes.get("node-0")).get("failureRate"));
+        assertEquals(0.0, map(nodes.get("node-1")).get("failureRate"));
+        assertEquals(1.0, map(nodes.get("node-1")).get("sent"));
+    }
+
+    @Test
+    public void receivesAreCounted() {
+        metrics.recordReceive(10);
+        metrics.recordReceive(30);
+
+        Map<String, Object> stats = metrics.snapshot();
+        assertEquals(2.0, stats.get("messagesReceived"));
+        assertEquals(40.0, stats.get("bytesReceived"));
+        assertEquals(30.0, map(stats.get("receivedBytes")).get("max"));
+    }
+
+    @Test
+    public void theFirstSendAndReceiveAreOnlyTimedAfterTheServiceWasCreated() {
+        metrics.recordReceive(1);
+        Map<String, Object> lifecycle = map(metrics.snapshot().get("lifecycle"));
+        assertNull(lifecycle.get("createMs"));
+        assertNull(lifecycle.get("firstReceiveMs"));
+
+        metrics.recordCreated(System.nanoTime());
+        metrics.recordSend("node-0", 1, System.nanoTime(), false);
+        assertNull(map(metrics.snapshot().get("lifecycle")).get("firstSendMs"));
+
+        metrics.recordSend("node-0", 1, System.nanoTime(), true);
+        metrics.recordReceive(1);
+        lifecycle = map(metrics.snapshot().get("lifecycle"));
+        assertNotNull(lifecycle.get("createMs"));
+        assertNotNull(lifecycle.get("firstSendMs"));
+        assertNotNull(lifecycle.get("firstReceiveMs"));
+    }
+
+    @Test
+    public void sourcesAreIncludedUnderTheirName() {
+        metrics.register("queue", () -> Collections.singletonMap("depth", (Object) 3.0));
+
+        Map<String, Object> stats = metrics.snapshot();
+
+        assertEquals(Collections.singletonMap("depth", 3.0), stats.get("queue"));
+        // Sources are read at every snapshot
+        metrics.register("queue", () -> Collections.singletonMap("depth", (Object) 4.0));
+        assertEquals(4.0, map(metrics.snapshot().get("queue")).get("depth"));
+    }
+}
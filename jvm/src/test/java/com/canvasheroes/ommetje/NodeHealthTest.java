@@ -0,0 +1,110 @@
+package com.canvasheroes.ommetje;
+
+import com.google.android.gms.wearable.Node;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NodeHealthTest {
+
+    private final NodeHealth health = new NodeHealth();
+    private final List<String> changes = new ArrayList<>();
+    private final Node node = JvmHarness.node("node-0", true);
+
+    {
+        health.setListener((nodeId, state) -> changes.add(nodeId + ":" + state));
+    }
+
+    private static List<String> ids(List<Node> nodes) {
+        List<String> ids = new ArrayList<>();
+        for (Node node : nodes) {
+            ids.add(node.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void aNodeOpensAfterTooManyFailuresInARow() {
+        health.configure(3, 60_000, 60_000);
+        health.recordFailure("node-0");
+        health.recordFailure("node-0");
+        health.recordSuccess("node-0", 10);
+        health.recordFailure("node-0");
+        health.recordFailure("node-0");
+        assertTrue(health.isClosed("node-0"));
+
+        health.recordFailure("node-0");
+
+        assertFalse(health.isClosed("node-0"));
+        assertEquals(Collections.singletonList("node-0:open"), changes);
+        assertTrue(health.select(Collections.singletonList(node), false).isEmpty());
+        assertTrue(health.millisUntilProbe(Collections.singletonList(node)) > 59_000);
+        assertEquals(1.0 / 6, (double) health.getStats("node-0").get("successRate"), 1e-9);
+    }
+
+    @Test
+    public void anOpenNodeGetsOneProbeAfterItsBackoff() throws InterruptedException {
+        health.configure(1, 20, 1_000);
+        health.recordFailure("node-0");
+        assertTrue(health.select(Collections.singletonList(node), false).isEmpty());
+
+        Thread.sleep(30);
+
+        assertEquals(1, health.select(Collections.singletonList(node), false).size());
+        assertEquals("halfOpen", health.getStats("node-0").get("state"));
+        // The probe is under way, no other message goes to the node
+        assertTrue(health.select(Collections.singletonList(node), false).isEmpty());
+
+        health.recordSuccess("node-0", 5);
+        assertTrue(health.isClosed("node-0"));
+        assertEquals(Arrays.asList("node-0:open", "node-0:closed"), changes);
+    }
+
+    @Test
+    public void aFailedProbeDoublesTheBackoffUpToTheMaximum() throws InterruptedException {
+        health.configure(1, 20, 30);
+        health.recordFailure("node-0");
+        Thread.sleep(30);
+        assertEquals(1, health.select(Collections.singletonList(node), false).size());
+
+        health.recordFailure("node-0");
+
+        assertEquals("open", health.getStats("node-0").get("state"));
+        double retryIn = (double) health.getStats("node-0").get("retryInMs");
+        assertTrue("retry in " + retryIn, retryIn > 20 && retryIn <= 30);
+        // Opened once, the failed probe keeps it open
+        assertEquals(Collections.singletonList("node-0:open"), changes);
+    }
+
+    @Test
+    public void fasterAndNearbyNodesComeFirst() {
+        Node slow = JvmHarness.node("slow", true);
+        Node fast = JvmHarness.node("fast", false);
+        Node unmeasured = JvmHarness.node("unmeasured", true);
+        health.recordSuccess("slow", 100);
+        health.recordSuccess("fast", 10);
+        List<Node> candidates = Arrays.asList(unmeasured, slow, fast);
+
+        assertEquals(Arrays.asList("fast", "slow", "unmeasured"), ids(health.select(candidates, false)));
+        assertEquals(Arrays.asList("slow", "unmeasured", "fast"), ids(health.select(candidates, true)));
+        assertEquals("slow", health.best(candidates).getId());
+    }
+
+    @Test
+    public void latencyIsAMovingAverage() {
+        health.recordSuccess("node-0", 100);
+        health.recordSuccess("node-0", 200);
+
+        assertEquals(120.0, health.getStats("node-0").get("latencyMs"));
+        assertEquals(1.0, health.getStats("node-0").get("successRate"));
+        assertTrue(health.getStats().containsKey("node-0"));
+    }
+}
@@ -0,0 +1,147 @@
+package com.canvasheroes.ommetje;
+
+import com.google.android.gms.wearable.Node;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Refreshes are queued on an executor the test runs by hand, so it can tell what happens in the background
+ */
+public class NodeRegistryTest {
+
+    private final Queue<Runnable> background = new ArrayDeque<>();
+
+    private void runBackground() {
+        Runnable task;
+        while ((task = background.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Test
+    public void nodesAreQueriedOnceAndThenCached() {
+        List<Node> nodes = JvmHarness.nodes(2);
+        JvmHarness.FakeNodeSource source = new JvmHarness.FakeNodeSource(nodes, 0);
+        NodeRegistry registry = new NodeRegistry(source, background::add);
+
+        assertEquals(new HashSet<>(nodes), registry.awaitNodes());
+        for (int i = 0; i < 100; i++) {
+            registry.getNodes();
+        }
+
+        assertEquals(1, source.queries);
+        assertTrue(background.isEmpty());
+    }
+
+    @Test
+    public void getNodesDoesNotWaitForTheFirstLoad() {
+        JvmHarness.FakeNodeSource source = new JvmHarness.FakeNodeSource(JvmHarness.nodes(1), 0);
+        NodeRegistry registry = new NodeRegistry(source, background::add);
+
+        assertTrue(registry.getNodes().isEmpty());
+        assertFalse(registry.isLoaded());
+        assertEquals(0, source.queries);
+
+        runBackground();
+
+        assertTrue(registry.isLoaded());
+        assertEquals(1, registry.getNodes().size());
+    }
+
+    @Test
+    public void staleNodesAreServedWhileTheyAreRefreshed() {
+        List<Node> before = JvmHarness.nodes(1);
+        JvmHarness.FakeNodeSource source = new JvmHarness.FakeNodeSource(before, 0);
+        NodeRegistry registry = new NodeRegistry(source, background::add);
+        registry.awaitNodes();
+        registry.setTtl(-1);
+        source.nodes = JvmHarness.nodes(3);
+
+        assertEquals(new HashSet<>(before), registry.getNodes());
+        // Only one refresh is started, however often the stale nodes are read
+        registry.getNodes();
+        assertEquals(1, background.size());
+
+        runBackground();
+        assertEquals(3, registry.getNodes().size());
+    }
+
+    @Test
+    public void invalidateNotifiesOnlyChanges() {
+        List<Node> nodes = JvmHarness.nodes(2);
+        JvmHarness.FakeNodeSource source = new JvmHarness.FakeNodeSource(nodes, 0);
+        NodeRegistry registry = new NodeRegistry(source, background::add);
+        List<Set<Node>> changes = new ArrayList<>();
+        registry.setListener(changes::add);
+
+        registry.awaitNodes();
+        registry.invalidate();
+        runBackground();
+        source.nodes = nodes.subList(0, 1);
+        registry.invalidate();
+        runBackground();
+
+        assertEquals(3, source.queries);
+        assertEquals(2, changes.size());
+        assertEquals(new HashSet<>(nodes), changes.get(0));
+        assertEquals(new HashSet<>(nodes.subList(0, 1)), changes.get(1));
+    }
+
+    @Test
+    public void failedRefreshKeepsTheLastNodes() {
+        List<Node> nodes = JvmHarness.nodes(2);
+        boolean[] failing = {false};
+        NodeRegistry registry = new NodeRegistry(() -> {
+            if (failing[0]) {
+                throw new ExecutionException(new IllegalStateException("disconnected"));
+            }
+            return nodes;
+        }, background::add);
+        registry.awaitNodes();
+
+        failing[0] = true;
+        registry.invalidate();
+        runBackground();
+
+        assertEquals(new HashSet<>(nodes), registry.getNodes());
+    }
+
+    @Test
+    public void aChangeDuringARefreshIsNotLost() {
+        List<Node> before = JvmHarness.nodes(1);
+        List<Node> after = JvmHarness.nodes(2);
+        List<Collection<Node>> answers = new ArrayList<>();
+        NodeRegistry[] registry = new NodeRegistry[1];
+        registry[0] = new NodeRegistry(() -> {
+            if (answers.isEmpty()) {
+                // The capability changes after the source answered with the old nodes
+                answers.add(before);
+                registry[0].invalidate();
+                return before;
+            }
+            answers.add(after);
+            return after;
+        }, background::add);
+
+        registry[0].refreshAsync();
+        runBackground();
+
+        assertEquals(2, answers.size());
+        assertEquals(new HashSet<>(after), registry[0].getNodes());
+        // Fresh again, reading the nodes does not start another refresh
+        assertTrue(background.isEmpty());
+    }
+}
@@ -0,0 +1,152 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PathRouterTest {
+
+    private static final byte[] DATA = new byte[]{1};
+
+    private final PathRouter router = new PathRouter();
+
+    @After
+    public void tearDown() {
+        router.shutdown();
+    }
+
+    private static PathRouter.Handler ignore() {
+        return (sourceNodeId, path, data) -> {
+        };
+    }
+
+    private String routeOf(String path) {
+        PathRouter.Route route = router.find(path);
+        return route == null ? null : route.pattern;
+    }
+
+    @Test
+    public void anExactPathWinsOverTheLongestPrefix() {
+        router.registerInline("/*", ignore());
+        router.registerInline("/workout/*", ignore());
+        router.registerInline("/workout/laps/*", ignore());
+        router.registerInline("/workout/laps/1", ignore());
+
+        assertEquals("/workout/laps/1", routeOf("/workout/laps/1"));
+        assertEquals("/workout/laps/*", routeOf("/workout/laps/2"));
+        assertEquals("/workout/laps/*", routeOf("/workout/laps/2/splits"));
+        assertEquals("/workout/*", routeOf("/workout/pace"));
+        assertEquals("/*", routeOf("/settings"));
+    }
+
+    @Test
+    public void aPrefixOnlyMatchesThePathsBelowIt() {
+        router.registerInline("/workout/*", ignore());
+
+        assertNull(routeOf("/workout"));
+        assertNull(routeOf("/workouts/pace"));
+        assertEquals("/workout/*", routeOf("/workout/pace"));
+        assertFalse(router.dispatch("node", "/settings", DATA));
+    }
+
+    @Test
+    public void invalidPatternsAreRejected() {
+        for (String pattern : new String[]{"workout", "/", "/work*", "/*/laps/*", "/workout/*/laps"}) {
+            try {
+                router.registerInline(pattern, ignore());
+                fail(pattern + " was accepted");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void unregisteredAndReplacedRoutesAreNoLongerFound() throws InterruptedException {
+        BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+        router.registerInline("/a", (sourceNodeId, path, data) -> handled.add("first"));
+        router.registerInline("/a", (sourceNodeId, path, data) -> handled.add("second"));
+
+        assertTrue(router.dispatch("node", "/a", DATA));
+        assertEquals("second", handled.poll());
+
+        assertTrue(router.unregister("/a"));
+        assertFalse(router.unregister("/a"));
+        assertFalse(router.dispatch("node", "/a", DATA));
+    }
+
+    @Test
+    public void aBusyLaneDoesNotDelayOtherPaths() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingQueue<String> threads = new LinkedBlockingQueue<>();
+        router.register("/slow", (sourceNodeId, path, data) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, Thread.MIN_PRIORITY, PathRouter.DEFAULT_QUEUE_CAPACITY);
+        router.register("/fast/*", (sourceNodeId, path, data) -> threads.add(Thread.currentThread().getName()),
+            Thread.MAX_PRIORITY, PathRouter.DEFAULT_QUEUE_CAPACITY);
+
+        router.dispatch("node", "/slow", DATA);
+        router.dispatch("node", "/fast/1", DATA);
+
+        assertEquals("PathRoute /fast/*", threads.poll(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void aFullLaneHandsTheMessageToTheReceivingThread() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingQueue<String> threads = new LinkedBlockingQueue<>();
+        router.register("/a", (sourceNodeId, path, data) -> {
+            String thread = Thread.currentThread().getName();
+            threads.add(thread);
+            if (!thread.startsWith("PathRoute")) {
+                return;
+            }
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, Thread.NORM_PRIORITY, 1);
+        router.dispatch("node", "/a", DATA);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        router.dispatch("node", "/a", DATA);
+
+        // The lane is busy with the first message and has the second queued, the third runs here
+        router.dispatch("node", "/a", DATA);
+        release.countDown();
+
+        assertEquals("PathRoute /a", threads.poll());
+        assertEquals(Thread.currentThread().getName(), threads.poll());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> stats = (Map<String, Object>) router.getStats().get("/a");
+        assertEquals(3.0, stats.get("handled"));
+        assertEquals(1.0, stats.get("overflowed"));
+    }
+
+    @Test
+    public void aFailingHandlerDoesNotReachTheReceiver() {
+        router.registerInline("/a", (sourceNodeId, path, data) -> {
+            throw new IllegalStateException("Broken handler");
+        });
+
+        assertTrue(router.dispatch("node", "/a", DATA));
+    }
+}
@@ -0,0 +1,105 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadCompressorTest {
+
+    private static PayloadCompressor enabled() {
+        PayloadCompressor compressor = new PayloadCompressor();
+        compressor.configure(true, PayloadCompressor.DEFAULT_MIN_BYTES);
+        return compressor;
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void compressesRedundantPayloads() throws DataFormatException {
+        PayloadCompressor compressor = enabled();
+        MessageObject message = JvmHarness.dataMessage(Payloads.json(Payloads.Shape.list));
+
+        compressor.prepare(message);
+
+        assertNotNull(message.compressedData);
+        assertTrue(message.compressedData.length < message.data.length / 4);
+        assertArrayEquals(message.data, PayloadCompressor.inflate(message.compressedData, message.data.length));
+    }
+
+    @Test
+    public void sendsSmallPayloadsAsIs() {
+        PayloadCompressor compressor = enabled();
+        MessageObject message = JvmHarness.dataMessage(Payloads.json(Payloads.Shape.command));
+
+        compressor.prepare(message);
+
+        assertNull(message.compressedData);
+    }
+
+    @Test
+    public void sendsEverythingAsIsWhenDisabled() {
+        PayloadCompressor compressor = new PayloadCompressor();
+        MessageObject message = JvmHarness.dataMessage(Payloads.json(Payloads.Shape.list));
+
+        compressor.prepare(message);
+
+        assertNull(message.compressedData);
+    }
+
+    @Test
+    public void backsOffFromIncompressiblePayloads() {
+        PayloadCompressor compressor = enabled();
+
+        for (int i = 0; i < 100; i++) {
+            MessageObject message = JvmHarness.dataMessage(random(1024));
+            compressor.prepare(message);
+            assertNull(message.compressedData);
+        }
+
+        // 1 + 2 + 4 + ... attempts are skipped after each failed one
+        assertTrue(compressor.incompressible.get() < 10);
+        assertEquals(100, compressor.incompressible.get() + compressor.skipped.get());
+    }
+
+    @Test
+    public void compressesAgainAfterTheBackoff() {
+        PayloadCompressor compressor = enabled();
+        compressor.prepare(JvmHarness.dataMessage(random(1024)));
+        compressor.prepare(JvmHarness.dataMessage(random(1024)));
+        compressor.prepare(JvmHarness.dataMessage(random(1024)));
+
+        MessageObject message = JvmHarness.dataMessage(Payloads.json(Payloads.Shape.list));
+        compressor.prepare(message);
+
+        assertNotNull(message.compressedData);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void rejectsTheWrongInflatedLength() throws DataFormatException {
+        MessageObject message = JvmHarness.dataMessage(Payloads.json(Payloads.Shape.list));
+        enabled().prepare(message);
+
+        PayloadCompressor.inflate(message.compressedData, message.data.length + 1);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void rejectsCorruptData() throws DataFormatException {
+        MessageObject message = JvmHarness.dataMessage(Payloads.json(Payloads.Shape.list));
+        enabled().prepare(message);
+        byte[] corrupt = Arrays.copyOf(message.compressedData, message.compressedData.length / 2);
+
+        PayloadCompressor.inflate(corrupt, message.data.length);
+    }
+}
@@ -0,0 +1,68 @@
+package com.canvasheroes.ommetje;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PayloadSerializerTest {
+
+    @Test
+    public void writesTheSameJsonAsBridgeUtil() throws JSONException {
+        for (Payloads.Shape shape : Payloads.Shape.values()) {
+            ReadableMap payload = Payloads.create(shape);
+            byte[] bridgeUtil = BridgeUtil.toJSONObject(payload).toString().getBytes(StandardCharsets.UTF_8);
+
+            byte[] serializer = PayloadSerializer.toJSONBytes(payload);
+
+            assertEquals(shape.name(), PayloadSerializer.toHashMap(bridgeUtil), PayloadSerializer.toHashMap(serializer));
+        }
+    }
+
+    @Test
+    public void readsWhatItWrites() throws JSONException {
+        for (Payloads.Shape shape : Payloads.Shape.values()) {
+            byte[] json = Payloads.json(shape);
+
+            assertArrayEquals(shape.name(), json, PayloadSerializer.toJSONBytes(PayloadSerializer.toWritableMap(json)));
+        }
+    }
+
+    @Test
+    public void pooledBytesMatch() throws JSONException {
+        BufferPool pool = new BufferPool();
+        ReadableMap payload = Payloads.create(Payloads.Shape.list);
+
+        assertArrayEquals(PayloadSerializer.toJSONBytes(payload), PayloadSerializer.toJSONBytes(payload, pool));
+    }
+
+    @Test
+    public void escapesStrings() throws JSONException {
+        String text = "quote \" slash \\ newline \n control \u0001 é 😀";
+        ReadableMap payload = JavaOnlyMap.of("text", text, "list", JavaOnlyArray.of(text));
+
+        JSONObject parsed = new JSONObject(new String(PayloadSerializer.toJSONBytes(payload), StandardCharsets.UTF_8));
+
+        assertEquals(text, parsed.getString("text"));
+        assertEquals(text, parsed.getJSONArray("list").getString(0));
+        assertEquals(text, PayloadSerializer.toWritableMap(PayloadSerializer.toJSONBytes(payload)).getString("text"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsNaN() throws JSONException {
+        PayloadSerializer.toJSONBytes(JavaOnlyMap.of("value", Double.NaN));
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsDataAfterTheObject() throws JSONException {
+        PayloadSerializer.toWritableMap("{\"a\":1} {}".getBytes(StandardCharsets.UTF_8));
+    }
+}
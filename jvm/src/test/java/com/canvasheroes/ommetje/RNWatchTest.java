@@ -0,0 +1,253 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Every bridge method is called as JavaScript would, while the service is not bound yet
+ * and while the Wearable clients block, and has to return right away
+ */
+public class RNWatchTest {
+
+    /**
+     * Far below the time a blocked call would take, far above what a call that returns right away takes
+     */
+    private static final long MAX_CALL_MILLIS = 1_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CountDownLatch wearable = new CountDownLatch(1);
+    private JvmHarness.BindingContext context;
+    private RNWatch module;
+    private MessageService service;
+
+    @Before
+    public void setUp() throws IOException {
+        context = new JvmHarness.BindingContext();
+        module = new RNWatch(context);
+        // Wearable I/O that never completes: the node query waits for the test to end, sends never call back
+        service = JvmHarness.createService(() -> {
+            wearable.await();
+            return JvmHarness.nodes(1);
+        }, (nodeId, path, data, callback) -> {
+        });
+        JvmHarness.openStores(service, folder.newFolder("files"), new UserInfoTransfer.Outlet() {
+            @NonNull
+            @Override
+            public Collection<String> getNodeIds() {
+                try {
+                    wearable.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Arrays.asList("node-0");
+            }
+
+            @Override
+            public void put(@NonNull String path, @NonNull byte[] data, @NonNull MessageService.SendCallback callback) {
+            }
+
+            @Override
+            public void delete(@NonNull String sourceNodeId, @NonNull String path) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        wearable.countDown();
+        module.onCatalystInstanceDestroy();
+        JvmHarness.destroy(service);
+    }
+
+    @Test
+    public void noBridgeCallBlocksWhileTheServiceIsNotBound() throws Exception {
+        callEveryMethod();
+
+        assertEquals(1, context.binds);
+    }
+
+    @Test
+    public void noBridgeCallBlocksOnWearableIo() throws Exception {
+        module.addListener(RNWatch.EVENT_RECEIVE_MESSAGE);
+        context.connect(service);
+
+        callEveryMethod();
+    }
+
+    @Test
+    public void promisesAreSettledOnTheBridgeThread() throws Exception {
+        module.addListener(RNWatch.EVENT_RECEIVE_MESSAGE);
+        context.connect(service);
+        RecordingPromise promise = new RecordingPromise();
+
+        module.getStats(promise);
+
+        assertTrue(promise.settled.await(5, TimeUnit.SECONDS));
+        assertEquals("RNWatchBridge", promise.thread);
+    }
+
+    @Test
+    public void sendMessageDataUsesTheCharsetOfTheEncoding() {
+        assertEquals(StandardCharsets.UTF_8, RNWatch.charsetOf(4));
+        // Encodings above 2^31 arrive from JavaScript as doubles
+        assertEquals(StandardCharsets.UTF_16LE, RNWatch.charsetOf((long) (double) 0x94000100L));
+        assertNull(RNWatch.charsetOf(6));
+
+        List<Object> errors = new ArrayList<>();
+        module.sendMessageData("data", 6, null, args -> errors.add(args[0]));
+        assertEquals(1, errors.size());
+        assertEquals(RNWatch.ERROR_CODE_INVALID_OPTIONS, ((ReadableMap) errors.get(0)).getString("code"));
+    }
+
+    @Test
+    public void sendToPathDoesNotWaitForTheNodesToLoad() {
+        List<Exception> failures = new ArrayList<>();
+        long start = System.nanoTime();
+
+        service.sendToPath(null, "/path", new byte[1], new MessageService.SendCallback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                failures.add(exception);
+            }
+        });
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < MAX_CALL_MILLIS);
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof MessageService.NotReachableException);
+    }
+
+    @Test
+    public void getPlatformIsTheOnlyConstant() {
+        assertEquals("wearos", module.getPlatform());
+    }
+
+    private void callEveryMethod() throws Exception {
+        List<Method> methods = new ArrayList<>();
+        for (Method method : RNWatch.class.getMethods()) {
+            if (method.isAnnotationPresent(ReactMethod.class)) {
+                methods.add(method);
+            }
+        }
+        methods.sort(Comparator.comparing(Method::getName));
+        assertTrue(methods.size() > 40);
+        for (Method method : methods) {
+            Object[] arguments = arguments(method);
+            Thread javaScript = new Thread(() -> {
+                try {
+                    method.invoke(module, arguments);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    // Rejected arguments are fine, only blocking is not
+                }
+            }, "JavaScript " + method.getName());
+            long start = System.nanoTime();
+            javaScript.start();
+            javaScript.join(MAX_CALL_MILLIS);
+            if (javaScript.isAlive()) {
+                fail(method.getName() + " blocked the JavaScript thread\n"
+                    + Arrays.toString(javaScript.getStackTrace()).replace(", ", "\n"));
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(method.getName() + " took " + millis + " ms", millis < MAX_CALL_MILLIS);
+        }
+    }
+
+    private static Object[] arguments(Method method) {
+        Class<?>[] types = method.getParameterTypes();
+        Object[] arguments = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            Class<?> type = types[i];
+            if (type == String.class) {
+                arguments[i] = "key";
+            } else if (type == ReadableMap.class) {
+                arguments[i] = JavaOnlyMap.of("value", 1);
+            } else if (type == ReadableArray.class) {
+                arguments[i] = JavaOnlyArray.of(1.0);
+            } else if (type == Promise.class) {
+                arguments[i] = new RecordingPromise();
+            } else if (type == Callback.class) {
+                arguments[i] = (Callback) args -> {
+                };
+            } else if (type == double.class || type == Double.class || type == Number.class) {
+                arguments[i] = 1.0;
+            } else if (type == int.class || type == Integer.class) {
+                arguments[i] = 1;
+            } else if (type == boolean.class || type == Boolean.class) {
+                arguments[i] = false;
+            } else {
+                throw new IllegalArgumentException(method.getName() + " takes a " + type);
+            }
+        }
+        return arguments;
+    }
+
+    private static final class RecordingPromise implements Promise {
+        final CountDownLatch settled = new CountDownLatch(1);
+        volatile String thread;
+
+        private void settle() {
+            thread = Thread.currentThread().getName();
+            settled.countDown();
+        }
+
+        @Override
+        public void resolve(Object value) {
+            settle();
+        }
+
+        @Override
+        public void reject(String code, String message) {
+            settle();
+        }
+
+        @Override
+        public void reject(String code, Throwable throwable) {
+            settle();
+        }
+
+        @Override
+        public void reject(String code, String message, Throwable throwable) {
+            settle();
+        }
+
+        @Override
+        public void reject(@NonNull Throwable throwable) {
+            settle();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReachabilityMonitorTest {
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final ReachabilityMonitor monitor = new ReachabilityMonitor(scheduler);
+    private final List<String> events = new ArrayList<>();
+    private final List<String> states = new ArrayList<>();
+
+    {
+        monitor.setListener(new ReachabilityMonitor.OnChangedListener() {
+            @Override
+            public void onPairStatusChanged(boolean paired) {
+                events.add("paired:" + paired);
+            }
+
+            @Override
+            public void onInstallStatusChanged(boolean installed) {
+                events.add("installed:" + installed);
+            }
+
+            @Override
+            public void onReachabilityChanged(boolean reachable) {
+                events.add("reachable:" + reachable);
+            }
+        });
+    }
+
+    private void recordState(boolean paired, boolean installed, boolean reachable) {
+        states.add(paired + "," + installed + "," + reachable);
+    }
+
+    @Test
+    public void theFirstStateIsPublishedRightAway() {
+        monitor.getState(this::recordState);
+        assertTrue(states.isEmpty());
+
+        monitor.update(true, true, false);
+
+        assertEquals(Collections.singletonList("true,true,false"), states);
+        assertTrue(monitor.isKnown());
+        assertTrue(events.isEmpty());
+        monitor.getState(this::recordState);
+        assertEquals(2, states.size());
+
+        // The timeout of the first request finds nothing left to answer
+        scheduler.advance(ReachabilityMonitor.STATE_TIMEOUT_MILLIS);
+        assertEquals(2, states.size());
+    }
+
+    @Test
+    public void aStateRequestTimesOutWithoutAState() {
+        monitor.getState(this::recordState);
+
+        scheduler.advance(ReachabilityMonitor.STATE_TIMEOUT_MILLIS - 1);
+        assertTrue(states.isEmpty());
+        scheduler.advance(1);
+
+        assertEquals(Collections.singletonList("false,false,false"), states);
+        assertFalse(monitor.isKnown());
+    }
+
+    @Test
+    public void aChangeIsPublishedOnceItHeldForTheDebounceTime() {
+        monitor.update(true, true, true);
+        monitor.update(true, true, false);
+
+        scheduler.advance(ReachabilityMonitor.DEFAULT_DEBOUNCE_MILLIS - 1);
+        assertTrue(events.isEmpty());
+        assertTrue(monitor.isReachable());
+
+        scheduler.advance(1);
+        assertEquals(Collections.singletonList("reachable:false"), events);
+        assertFalse(monitor.isReachable());
+    }
+
+    @Test
+    public void aBriefDropCausesNoEvents() {
+        monitor.update(true, true, true);
+        monitor.update(false, false, false);
+        scheduler.advance(500);
+        monitor.update(true, true, true);
+
+        scheduler.advance(ReachabilityMonitor.DEFAULT_DEBOUNCE_MILLIS);
+
+        assertTrue(events.isEmpty());
+        assertEquals(0, scheduler.pending());
+    }
+
+    @Test
+    public void losingThePairingLosesEverything() {
+        monitor.setDebounceMillis(0);
+        monitor.update(true, true, true);
+
+        monitor.update(false, true, true);
+        scheduler.runPending();
+
+        assertEquals(Arrays.asList("paired:false", "installed:false", "reachable:false"), events);
+        assertFalse(monitor.isInstalled());
+    }
+
+    @Test
+    public void aWatchWithoutTheAppIsNotReachable() {
+        monitor.update(true, false, true);
+
+        assertTrue(monitor.isPaired());
+        assertFalse(monitor.isInstalled());
+        assertFalse(monitor.isReachable());
+    }
+}
@@ -0,0 +1,277 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A sending and a receiving stream, the test carries the messages between them
+ * and decides which ones are lost, reordered or duplicated
+ */
+public class ReliableStreamTest {
+
+    private static final long EPOCH = 100;
+
+    /**
+     * Keeps what a stream sent, in order
+     */
+    private static final class RecordingOutlet implements ReliableStream.Outlet {
+        final List<MessageObject> sent = new ArrayList<>();
+
+        @NonNull
+        @Override
+        public MessageObject createMessage(@NonNull MessageObject.MessageType type, @Nullable byte[] data) {
+            return message(type, data);
+        }
+
+        @Override
+        public void send(@NonNull String nodeId, @NonNull MessageObject message,
+                         @NonNull MessageService.SendCallback callback) {
+            sent.add(message);
+        }
+
+        List<MessageObject> take() {
+            List<MessageObject> taken = new ArrayList<>(sent);
+            sent.clear();
+            return taken;
+        }
+    }
+
+    /**
+     * Records the outcome of every message by its data
+     */
+    private final List<String> outcomes = new ArrayList<>();
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final RecordingOutlet senderOutlet = new RecordingOutlet();
+    private final RecordingOutlet receiverOutlet = new RecordingOutlet();
+    private final ReliableStream sender = new ReliableStream(scheduler, senderOutlet, EPOCH);
+    private final ReliableStream receiver = new ReliableStream(scheduler, receiverOutlet);
+
+    private static MessageObject message(MessageObject.MessageType type, @Nullable byte[] data) {
+        return new MessageObject(MessageObject.Sender.Platform.wearos, MessageObject.Sender.Direction.handheld,
+            JvmHarness.DEVICE_ID, type, data, new Timestamp(1_600_000_000_000L));
+    }
+
+    private void send(String name) {
+        sender.send("watch", message(MessageObject.MessageType.data, name.getBytes(StandardCharsets.UTF_8)),
+            new MessageService.SendCallback() {
+                @Override
+                public void onSuccess() {
+                    outcomes.add(name + ":ok");
+                }
+
+                @Override
+                public void onFailure(@NonNull Exception exception) {
+                    outcomes.add(name + ":" + exception.getClass().getSimpleName());
+                }
+            });
+    }
+
+    private static String name(MessageObject message) {
+        return new String(message.data, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> names(List<MessageObject> messages) {
+        List<String> names = new ArrayList<>();
+        for (MessageObject message : messages) {
+            names.add(name(message));
+        }
+        return names;
+    }
+
+    private List<String> receive(MessageObject message) {
+        return names(receiver.receive("phone", message));
+    }
+
+    private static long counter(long seq) {
+        return seq & 0xFFFFFFFFL;
+    }
+
+    private static byte[] bitmap(long received) {
+        return ByteBuffer.allocate(8).putLong(received).array();
+    }
+
+    /**
+     * Pass the acknowledgements the receiver sent to the sender
+     */
+    private void acknowledge() {
+        for (MessageObject ack : receiverOutlet.take()) {
+            assertEquals(MessageObject.MessageType.acknowledgement, ack.type);
+            sender.onAcknowledged("watch", ack.seq, ack.data);
+        }
+    }
+
+    @Test
+    public void inOrderMessagesAreDeliveredAndAcknowledgedTogether() {
+        send("a");
+        send("b");
+        send("c");
+        List<MessageObject> sent = senderOutlet.take();
+        assertEquals(Arrays.asList(1L, 2L, 3L),
+            Arrays.asList(counter(sent.get(0).seq), counter(sent.get(1).seq), counter(sent.get(2).seq)));
+        assertEquals(EPOCH, sent.get(0).seq >>> 32);
+
+        for (MessageObject message : sent) {
+            assertEquals(Collections.singletonList(name(message)), receive(message));
+        }
+        assertTrue(receiverOutlet.sent.isEmpty());
+        scheduler.advance(ReliableStream.ACK_DELAY_MILLIS);
+
+        assertEquals(1, receiverOutlet.sent.size());
+        assertEquals(4, counter(receiverOutlet.sent.get(0).seq));
+        acknowledge();
+        assertEquals(Arrays.asList("a:ok", "b:ok", "c:ok"), outcomes);
+        assertEquals(0.0, sender.getStats().get("inFlight"));
+        assertEquals(0, scheduler.pending());
+    }
+
+    @Test
+    public void earlyMessagesWaitForTheGap() {
+        send("a");
+        send("b");
+        send("c");
+        List<MessageObject> sent = senderOutlet.take();
+
+        assertEquals(Collections.emptyList(), receive(sent.get(2)));
+        assertEquals(Collections.emptyList(), receive(sent.get(1)));
+        // Out of order messages are acknowledged right away, with the bitmap of what arrived
+        MessageObject ack = receiverOutlet.sent.get(1);
+        assertEquals(1, counter(ack.seq));
+        assertEquals(0b110L, ByteBuffer.wrap(ack.data).getLong());
+
+        assertEquals(Arrays.asList("a", "b", "c"), receive(sent.get(0)));
+        assertEquals(2.0, receiver.getStats().get("reordered"));
+        assertEquals(3.0, receiver.getStats().get("delivered"));
+    }
+
+    @Test
+    public void duplicatesAreDroppedAndAcknowledgedAgain() {
+        send("a");
+        MessageObject a = senderOutlet.take().get(0);
+        assertEquals(Collections.singletonList("a"), receive(a));
+        scheduler.advance(ReliableStream.ACK_DELAY_MILLIS);
+        receiverOutlet.take();
+
+        assertEquals(Collections.emptyList(), receive(a));
+
+        assertEquals(1.0, receiver.getStats().get("duplicates"));
+        assertEquals(1, receiverOutlet.sent.size());
+        assertEquals(2, counter(receiverOutlet.sent.get(0).seq));
+    }
+
+    @Test
+    public void theBitmapAcknowledgesLaterMessagesAndRetransmitsTheGapOnce() {
+        send("a");
+        send("b");
+        send("c");
+        senderOutlet.take();
+
+        // The receiver misses 1 and has 2 and 3
+        sender.onAcknowledged("watch", (EPOCH << 32) | 1, bitmap(0b110L));
+
+        assertEquals(Arrays.asList("b:ok", "c:ok"), outcomes);
+        assertEquals(Collections.singletonList("a"), names(senderOutlet.take()));
+        sender.onAcknowledged("watch", (EPOCH << 32) | 1, bitmap(0b110L));
+        assertTrue(senderOutlet.sent.isEmpty());
+        assertEquals(1.0, sender.getStats().get("retransmits"));
+
+        sender.onAcknowledged("watch", (EPOCH << 32) | 4, bitmap(0));
+        assertEquals(Arrays.asList("b:ok", "c:ok", "a:ok"), outcomes);
+    }
+
+    @Test
+    public void theWindowHoldsBackLaterMessages() {
+        sender.configure(2, ReliableStream.DEFAULT_RETRANSMIT_MILLIS, ReliableStream.DEFAULT_MAX_RETRANSMITS);
+        send("a");
+        send("b");
+        send("c");
+
+        assertEquals(Arrays.asList("a", "b"), names(senderOutlet.take()));
+        assertEquals(1.0, sender.getStats().get("waiting"));
+
+        sender.onAcknowledged("watch", (EPOCH << 32) | 2, bitmap(0));
+        assertEquals(Collections.singletonList("c"), names(senderOutlet.take()));
+    }
+
+    @Test
+    public void acknowledgementsOfAnotherEpochAreIgnored() {
+        send("a");
+        senderOutlet.take();
+
+        sender.onAcknowledged("watch", ((EPOCH + 1) << 32) | 2, bitmap(0));
+
+        assertTrue(outcomes.isEmpty());
+        assertEquals(1.0, sender.getStats().get("inFlight"));
+    }
+
+    @Test
+    public void theStreamBreaksAfterTooManyRetransmitsAndStartsANewEpoch() throws InterruptedException {
+        sender.configure(32, 10, 1);
+        send("a");
+        send("b");
+        senderOutlet.take();
+
+        Thread.sleep(15);
+        scheduler.advance(5);
+        assertEquals(Arrays.asList("a", "b"), names(senderOutlet.take()));
+
+        Thread.sleep(25);
+        scheduler.advance(5);
+        assertEquals(Arrays.asList("a:StreamBrokenException", "b:StreamBrokenException"), outcomes);
+        assertEquals(1.0, sender.getStats().get("broken"));
+        assertEquals(0, scheduler.pending());
+
+        send("c");
+        MessageObject c = senderOutlet.take().get(0);
+        assertEquals(EPOCH + 1, c.seq >>> 32);
+        assertEquals(1, counter(c.seq));
+    }
+
+    @Test
+    public void theReceiverStartsOverOnAnyNewEpoch() {
+        MessageObject old1 = message(MessageObject.MessageType.data, "old 1".getBytes(StandardCharsets.UTF_8));
+        old1.seq = (EPOCH << 32) | 1;
+        MessageObject old2 = message(MessageObject.MessageType.data, "old 2".getBytes(StandardCharsets.UTF_8));
+        old2.seq = (EPOCH << 32) | 2;
+        assertEquals(Collections.singletonList("old 1"), receive(old1));
+
+        // A restarted sender picked a lower epoch
+        MessageObject restarted = message(MessageObject.MessageType.data, "new 1".getBytes(StandardCharsets.UTF_8));
+        restarted.seq = (7L << 32) | 1;
+        assertEquals(Collections.singletonList("new 1"), receive(restarted));
+
+        // A late retransmit of the stream that was left does not start it over again
+        assertEquals(Collections.emptyList(), receive(old2));
+        MessageObject next = message(MessageObject.MessageType.data, "new 2".getBytes(StandardCharsets.UTF_8));
+        next.seq = (7L << 32) | 2;
+        assertEquals(Collections.singletonList("new 2"), receive(next));
+    }
+
+    @Test
+    public void epochsAreRandomAndFitIn31Bits() {
+        List<Long> epochs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            RecordingOutlet outlet = new RecordingOutlet();
+            ReliableStream stream = new ReliableStream(scheduler, outlet);
+            stream.send("watch", message(MessageObject.MessageType.data, new byte[1]), null);
+            long epoch = outlet.sent.get(0).seq >>> 32;
+            assertTrue(epoch <= 0x7FFFFFFFL);
+            epochs.add(epoch);
+        }
+        scheduler.shutdownNow();
+
+        assertTrue(epochs.toString(), epochs.stream().distinct().count() > 1);
+    }
+}
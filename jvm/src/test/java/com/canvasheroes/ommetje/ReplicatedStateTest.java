@@ -0,0 +1,165 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The throttle is measured on the wall clock, the flushes run when the test advances the scheduler
+ */
+public class ReplicatedStateTest {
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final RecordingOutlet outlet = new RecordingOutlet();
+    private final ReplicatedState state = new ReplicatedState(scheduler, outlet);
+
+    private static final class RecordingOutlet implements ReplicatedState.Outlet {
+        final List<String> puts = new ArrayList<>();
+        final List<String> deletes = new ArrayList<>();
+        final List<MessageService.SendCallback> callbacks = new ArrayList<>();
+
+        @Override
+        public void put(@NonNull String path, @NonNull byte[] data, @NonNull MessageService.SendCallback callback) {
+            puts.add(path + "=" + new String(data, StandardCharsets.UTF_8));
+            callbacks.add(callback);
+        }
+
+        @Override
+        public void delete(@NonNull String path) {
+            deletes.add(path);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map.Entry<String, byte[]> item(String path, String value) {
+        return new AbstractMap.SimpleEntry<>(path, value == null ? null : bytes(value));
+    }
+
+    @Test
+    public void writesWithinTheThrottleIntervalArePutOnce() {
+        state.configure(ReplicatedState.DEFAULT_PREFIX, 60_000);
+        state.set("heartRate", bytes("80"));
+        scheduler.runPending();
+        assertEquals(Collections.singletonList("/ommetje_state/heartRate=80"), outlet.puts);
+
+        state.set("heartRate", bytes("81"));
+        state.set("heartRate", bytes("82"));
+        state.set("steps", bytes("10"));
+        scheduler.runPending();
+        assertEquals(1, outlet.puts.size());
+
+        scheduler.advance(60_000);
+
+        assertEquals(Arrays.asList("/ommetje_state/heartRate=80", "/ommetje_state/heartRate=82",
+            "/ommetje_state/steps=10"), outlet.puts);
+        Map<String, Object> stats = state.getStats();
+        assertEquals(4.0, stats.get("writes"));
+        assertEquals(3.0, stats.get("puts"));
+        assertEquals(1.0, stats.get("coalesced"));
+    }
+
+    @Test
+    public void readsAreAnsweredFromTheCache() {
+        state.set("mode", bytes("run"));
+
+        assertEquals("run", new String(state.get("mode"), StandardCharsets.UTF_8));
+        assertEquals(1, state.getAll().size());
+
+        state.set("mode", null);
+
+        assertNull(state.get("mode"));
+        scheduler.runPending();
+        assertEquals(Collections.singletonList("/ommetje_state/mode"), outlet.deletes);
+        assertTrue(outlet.puts.isEmpty());
+    }
+
+    @Test
+    public void keysAreEncodedInThePath() {
+        state.set("a/b c", bytes("1"));
+        scheduler.runPending();
+
+        assertEquals(Collections.singletonList("/ommetje_state/a%2Fb+c=1"), outlet.puts);
+
+        state.receive(Collections.singletonList(item("/ommetje_state/x%2Fy", "2")));
+        assertEquals("2", new String(state.get("x/y"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void receivedChangesAreReportedAsOneBatch() {
+        List<Map<String, byte[]>> changes = new ArrayList<>();
+        state.setListener(changes::add);
+        state.set("removed", bytes("old"));
+
+        state.receive(Arrays.asList(item("/ommetje_state/mode", "run"), item("/ommetje_state/removed", null)));
+
+        assertEquals(1, changes.size());
+        assertEquals(Arrays.asList("mode", "removed"), new ArrayList<>(changes.get(0).keySet()));
+        assertNull(changes.get(0).get("removed"));
+        assertNull(state.get("removed"));
+        assertEquals("run", new String(state.get("mode"), StandardCharsets.UTF_8));
+        assertEquals(2.0, state.getStats().get("received"));
+    }
+
+    @Test
+    public void restoreDoesNotReplaceNewerWrites() {
+        List<Map<String, byte[]>> changes = new ArrayList<>();
+        state.setListener(changes::add);
+        state.set("mode", bytes("walk"));
+
+        state.restore(Arrays.asList(item("/ommetje_state/mode", "run"), item("/ommetje_state/goal", "5k")));
+
+        assertEquals("walk", new String(state.get("mode"), StandardCharsets.UTF_8));
+        assertEquals("5k", new String(state.get("goal"), StandardCharsets.UTF_8));
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void anotherPrefixStartsWithAnEmptyCache() {
+        state.set("mode", bytes("run"));
+        scheduler.runPending();
+
+        state.configure("workout/", 0);
+
+        assertEquals("/workout", state.getPrefix());
+        assertNull(state.get("mode"));
+        assertTrue(state.accepts("/workout/mode"));
+        assertFalse(state.accepts("/workout/"));
+        assertFalse(state.accepts("/ommetje_state/mode"));
+        state.set("mode", bytes("walk"));
+        scheduler.runPending();
+        assertEquals("/workout/mode=walk", outlet.puts.get(1));
+    }
+
+    @Test
+    public void failedPutsAreCounted() {
+        state.set("mode", bytes("run"));
+        scheduler.runPending();
+
+        outlet.callbacks.get(0).onFailure(new IOException("Not connected"));
+
+        assertEquals(1.0, state.getStats().get("failures"));
+    }
+}
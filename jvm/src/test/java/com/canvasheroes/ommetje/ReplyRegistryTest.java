@@ -0,0 +1,138 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReplyRegistryTest {
+
+    private final TimerWheel wheel = new TimerWheel(5, 64);
+    private final ReplyRegistry registry = new ReplyRegistry(wheel);
+
+    @Before
+    public void setUp() {
+        wheel.start();
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    /**
+     * Records what the registry reported for a message
+     */
+    private static final class Outcome implements ReplyRegistry.ReplyCallback {
+        final List<Object> calls = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch called = new CountDownLatch(1);
+
+        @Override
+        public void onReply(@NonNull MessageObject reply) {
+            calls.add(reply);
+            called.countDown();
+        }
+
+        @Override
+        public void onError(@NonNull Exception exception) {
+            calls.add(exception);
+            called.countDown();
+        }
+    }
+
+    private static MessageObject reply(long replyTo) {
+        MessageObject reply = new MessageObject(MessageObject.Sender.Platform.wearos,
+            MessageObject.Sender.Direction.wearable, "watch", MessageObject.MessageType.reply, new byte[0],
+            new Timestamp(1_600_000_000_000L));
+        reply.replyTo = replyTo;
+        return reply;
+    }
+
+    @Test
+    public void idsAreUniqueAndNeverZero() {
+        long first = registry.nextId();
+        long second = registry.nextId();
+
+        assertNotEquals(0, first);
+        assertNotEquals(first, second);
+    }
+
+    @Test
+    public void aReplyResolvesItsMessageOnce() throws InterruptedException {
+        Outcome outcome = new Outcome();
+        long id = registry.nextId();
+        registry.register(id, outcome, 50);
+        MessageObject reply = reply(id);
+
+        assertTrue(registry.resolve(reply));
+        assertFalse(registry.resolve(reply));
+
+        // The timeout was cancelled with the reply
+        Thread.sleep(150);
+        assertEquals(Collections.singletonList(reply), outcome.calls);
+        assertEquals(1.0, registry.replyLatencies.snapshot().get("count"));
+    }
+
+    @Test
+    public void aMessageWithoutReplyTimesOut() throws InterruptedException {
+        Outcome outcome = new Outcome();
+        long id = registry.nextId();
+        registry.register(id, outcome, 30);
+
+        assertTrue(outcome.called.await(1, TimeUnit.SECONDS));
+        assertTrue(outcome.calls.get(0) instanceof ReplyRegistry.ReplyTimeoutException);
+
+        // A late reply belongs to no message
+        assertFalse(registry.resolve(reply(id)));
+        assertEquals(1, outcome.calls.size());
+        assertEquals(1.0, registry.getStats().get("timeouts"));
+        assertEquals(0.0, registry.getStats().get("pending"));
+    }
+
+    @Test
+    public void repliesToOtherMessagesAreIgnored() {
+        Outcome outcome = new Outcome();
+        long id = registry.nextId();
+        registry.register(id, outcome, 10_000);
+
+        assertFalse(registry.resolve(reply(id + 1)));
+
+        assertTrue(outcome.calls.isEmpty());
+        assertEquals(1.0, registry.getStats().get("pending"));
+    }
+
+    @Test
+    public void failAndFailAllReportTheException() throws InterruptedException {
+        Outcome first = new Outcome();
+        Outcome second = new Outcome();
+        Outcome third = new Outcome();
+        long firstId = registry.nextId();
+        registry.register(firstId, first, 50);
+        registry.register(registry.nextId(), second, 50);
+        registry.register(registry.nextId(), third, 50);
+        IllegalStateException sendFailed = new IllegalStateException("send failed");
+        IllegalStateException stopped = new IllegalStateException("stopped");
+
+        registry.fail(firstId, sendFailed);
+        registry.failAll(stopped);
+
+        Thread.sleep(150);
+        assertEquals(Collections.singletonList(sendFailed), first.calls);
+        assertEquals(Collections.singletonList(stopped), second.calls);
+        assertEquals(Collections.singletonList(stopped), third.calls);
+        assertEquals(0.0, registry.getStats().get("timeouts"));
+    }
+}
@@ -0,0 +1,241 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A crash is simulated by opening the log again without closing it, the mapped writes survive the process
+ */
+public class SegmentLogTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ScheduledExecutorService scheduler;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        directory = folder.newFolder("log");
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private SegmentLog open() throws IOException {
+        return new SegmentLog(directory, scheduler, SEGMENT_SIZE, 10);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> payloads(SegmentLog log) {
+        List<String> payloads = new ArrayList<>();
+        for (byte[] payload : log.getRecords().values()) {
+            payloads.add(new String(payload, StandardCharsets.UTF_8));
+        }
+        return payloads;
+    }
+
+    @Test
+    public void recoversAppendsAndDeletesAfterACrash() throws IOException {
+        SegmentLog log = open();
+        long first = log.append(bytes("first"));
+        long second = log.append(bytes("second"));
+        log.append(bytes("third"));
+        log.delete(second);
+
+        SegmentLog recovered = open();
+
+        assertEquals(Arrays.asList("first", "third"), payloads(recovered));
+        assertEquals(first, (long) recovered.getRecords().firstKey());
+        // Sequence numbers are not reused, not even those of deleted records
+        assertEquals(4, recovered.append(bytes("fourth")));
+    }
+
+    @Test
+    public void recoversAfterClose() throws IOException {
+        SegmentLog log = open();
+        log.append(bytes("closed"));
+        log.close();
+
+        assertEquals(Arrays.asList("closed"), payloads(open()));
+    }
+
+    @Test
+    public void tornRecordEndsRecoveryAndIsOverwritten() throws IOException {
+        SegmentLog log = open();
+        log.append(bytes("kept"));
+        log.append(bytes("torn"));
+        log.close();
+        flipLastWrittenByte();
+
+        SegmentLog recovered = open();
+        assertEquals(Arrays.asList("kept"), payloads(recovered));
+        recovered.append(bytes("after"));
+        recovered.close();
+
+        assertEquals(Arrays.asList("kept", "after"), payloads(open()));
+    }
+
+    @Test
+    public void recordCutOffInItsHeaderIsDropped() throws IOException {
+        SegmentLog log = open();
+        log.append(bytes("kept"));
+        log.close();
+        // An append record whose length points past the end of the segment
+        File segment = lastSegment();
+        int end = lastWrittenByte(segment) + 1;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(end);
+            file.write(1);
+            file.writeInt(Integer.MAX_VALUE);
+        }
+
+        SegmentLog recovered = open();
+        assertEquals(Arrays.asList("kept"), payloads(recovered));
+        recovered.append(bytes("after"));
+
+        assertEquals(Arrays.asList("kept", "after"), payloads(open()));
+    }
+
+    @Test
+    public void segmentsOfDeletedRecordsAreRemoved() throws IOException {
+        SegmentLog log = open();
+        List<Long> seqs = new ArrayList<>();
+        byte[] payload = new byte[500];
+        for (int i = 0; i < 40; i++) {
+            seqs.add(log.append(payload));
+        }
+        assertTrue(segmentFiles().length > 1);
+
+        for (long seq : seqs) {
+            assertTrue(log.delete(seq));
+        }
+
+        assertEquals(1, segmentFiles().length);
+        assertEquals(0, open().size());
+    }
+
+    @Test
+    public void liveRecordsOfTheOldestSegmentAreCopiedForward() throws IOException {
+        SegmentLog log = open();
+        long pinned = log.append(bytes("pinned"));
+        byte[] payload = new byte[500];
+        for (int i = 0; i < 200; i++) {
+            log.delete(log.append(payload));
+        }
+
+        assertTrue(segmentFiles().length <= 5);
+        SortedMap<Long, byte[]> records = open().getRecords();
+        assertEquals(1, records.size());
+        assertArrayEquals(bytes("pinned"), records.get(pinned));
+    }
+
+    @Test
+    public void backlogLargerThanTheSegmentsIsCompactedInBoundedSteps() throws IOException {
+        SegmentLog log = open();
+        List<Long> seqs = new ArrayList<>();
+        byte[] payload = new byte[500];
+        for (int i = 0; i < 100; i++) {
+            seqs.add(log.append(payload));
+        }
+
+        // Each delete copies at most one mostly live segment, instead of copying live records forever
+        for (long seq : seqs.subList(0, 10)) {
+            assertTrue(log.delete(seq));
+        }
+
+        SegmentLog recovered = open();
+        assertEquals(90, recovered.size());
+        assertEquals(seqs.get(10), recovered.getRecords().firstKey());
+        for (long seq : seqs.subList(10, 100)) {
+            assertTrue(recovered.delete(seq));
+        }
+        assertEquals(1, segmentFiles().length);
+    }
+
+    @Test
+    public void recordsLargerThanASegmentGetASegmentOfTheirOwn() throws IOException {
+        SegmentLog log = open();
+        byte[] large = new byte[SEGMENT_SIZE * 3];
+        large[large.length - 1] = 7;
+        long seq = log.append(large);
+
+        assertArrayEquals(large, open().getRecords().get(seq));
+    }
+
+    @Test
+    public void deletingAnUnknownRecordDoesNothing() throws IOException {
+        SegmentLog log = open();
+        long seq = log.append(bytes("once"));
+
+        assertTrue(log.delete(seq));
+        assertFalse(log.delete(seq));
+        assertFalse(log.delete(1234));
+    }
+
+    @Test(expected = IOException.class)
+    public void closedLogRejectsWrites() throws IOException {
+        SegmentLog log = open();
+        log.close();
+        log.append(bytes("late"));
+    }
+
+    private File[] segmentFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        Arrays.sort(files);
+        return files;
+    }
+
+    private File lastSegment() {
+        File[] files = segmentFiles();
+        return files[files.length - 1];
+    }
+
+    private static int lastWrittenByte(File segment) throws IOException {
+        byte[] content = Files.readAllBytes(segment.toPath());
+        int end = content.length - 1;
+        while (content[end] == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private void flipLastWrittenByte() throws IOException {
+        File segment = lastSegment();
+        int end = lastWrittenByte(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(end);
+            int value = file.read();
+            file.seek(end);
+            file.write(value ^ 1);
+        }
+    }
+}
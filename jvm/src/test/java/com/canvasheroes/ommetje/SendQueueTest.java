@@ -0,0 +1,162 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The worker is held on a first message, so the test decides what is queued when the queue overflows
+ */
+public class SendQueueTest {
+
+    private final CountDownLatch taken = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> discarded = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+    private SendQueue queue;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        queue = new SendQueue(entry -> {
+            String name = name(entry);
+            if (name.equals("blocker")) {
+                taken.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            delivered.add(name);
+        }, entry -> discarded.add(name(entry)));
+        queue.offer(entry("blocker", MessageObject.MessageType.data));
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        queue.close();
+    }
+
+    private static String name(SendQueue.Entry entry) {
+        return new String(entry.message.data, StandardCharsets.UTF_8);
+    }
+
+    private SendQueue.Entry entry(String name, MessageObject.MessageType type) {
+        MessageObject message = new MessageObject(MessageObject.Sender.Platform.wearos,
+            MessageObject.Sender.Direction.handheld, JvmHarness.DEVICE_ID, type,
+            name.getBytes(StandardCharsets.UTF_8), new Timestamp(1_600_000_000_000L));
+        return new SendQueue.Entry(message, false, new MessageService.SendCallback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFailure(@NonNull Exception exception) {
+                failed.add(name + ":" + exception.getClass().getSimpleName());
+            }
+        });
+    }
+
+    /**
+     * Let the worker go and wait until it delivered the given number of messages
+     */
+    private void drain(int count) throws InterruptedException {
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (delivered.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, delivered.size());
+    }
+
+    @Test
+    public void controlMessagesAreTakenFirst() throws InterruptedException {
+        queue.offer(entry("data 1", MessageObject.MessageType.data));
+        queue.offer(entry("reply", MessageObject.MessageType.reply));
+        queue.offer(entry("data 2", MessageObject.MessageType.data));
+        queue.offer(entry("ack", MessageObject.MessageType.acknowledgement));
+
+        drain(4);
+
+        assertEquals(Arrays.asList("reply", "ack", "data 1", "data 2"), delivered);
+    }
+
+    @Test
+    public void dropOldestGivesUpTheOldestDataMessage() throws InterruptedException {
+        queue.configure(2, SendQueue.OverflowPolicy.dropOldest);
+        queue.offer(entry("data 1", MessageObject.MessageType.data));
+        queue.offer(entry("reply", MessageObject.MessageType.reply));
+
+        assertTrue(queue.offer(entry("data 2", MessageObject.MessageType.data)));
+
+        assertEquals(Arrays.asList("data 1:QueueFullException"), failed);
+        assertEquals(Arrays.asList("data 1"), discarded);
+        drain(2);
+        assertEquals(Arrays.asList("reply", "data 2"), delivered);
+    }
+
+    @Test
+    public void dropOldestNeverGivesUpAControlMessageForData() throws InterruptedException {
+        queue.configure(2, SendQueue.OverflowPolicy.dropOldest);
+        queue.offer(entry("ack", MessageObject.MessageType.acknowledgement));
+        queue.offer(entry("reply", MessageObject.MessageType.reply));
+
+        assertFalse(queue.offer(entry("data", MessageObject.MessageType.data)));
+        assertEquals(Arrays.asList("data:QueueFullException"), failed);
+
+        // A control message still makes room among its peers
+        assertTrue(queue.offer(entry("stop", MessageObject.MessageType.stop)));
+        assertEquals(Arrays.asList("data", "ack"), discarded);
+        drain(2);
+        assertEquals(Arrays.asList("reply", "stop"), delivered);
+        assertEquals(2.0, queue.getStats().get("dropped"));
+    }
+
+    @Test
+    public void dropNewestAndRejectFailTheOfferedMessage() {
+        queue.configure(1, SendQueue.OverflowPolicy.dropNewest);
+        queue.offer(entry("queued", MessageObject.MessageType.data));
+
+        assertFalse(queue.offer(entry("newest", MessageObject.MessageType.data)));
+        queue.configure(1, SendQueue.OverflowPolicy.reject);
+        assertFalse(queue.offer(entry("rejected", MessageObject.MessageType.reply)));
+
+        assertEquals(Arrays.asList("newest:QueueFullException", "rejected:QueueFullException"), failed);
+        assertEquals(Arrays.asList("newest", "rejected"), discarded);
+        assertEquals(1, queue.getDepth());
+    }
+
+    @Test
+    public void shrinkingAndClosingDiscardTheQueuedMessages() {
+        queue.offer(entry("data 1", MessageObject.MessageType.data));
+        queue.offer(entry("data 2", MessageObject.MessageType.data));
+        queue.offer(entry("reply", MessageObject.MessageType.reply));
+
+        queue.configure(2, SendQueue.OverflowPolicy.dropOldest);
+        queue.close();
+
+        assertEquals(Arrays.asList("data 1", "reply", "data 2"), discarded);
+        assertEquals(Arrays.asList("data 1:QueueFullException", "reply:IllegalStateException",
+            "data 2:IllegalStateException"), failed);
+        assertFalse(queue.offer(entry("late", MessageObject.MessageType.data)));
+    }
+}
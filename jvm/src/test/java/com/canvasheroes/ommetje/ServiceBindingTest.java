@@ -0,0 +1,184 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The system is played by a BindingContext, the test connects and disconnects the service
+ */
+public class ServiceBindingTest {
+
+    private static final long BIND_TIMEOUT_MILLIS = 200;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final JvmHarness.BindingContext context = new JvmHarness.BindingContext();
+    private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    private final List<ServiceBinding.Reason> failures = Collections.synchronizedList(new ArrayList<>());
+    private MessageService service;
+    private ServiceBinding binding;
+
+    @Before
+    public void setUp() {
+        service = JvmHarness.createService(
+            new JvmHarness.FakeNodeSource(JvmHarness.nodes(1), 0), new JvmHarness.ImmediateTransport());
+        binding = new ServiceBinding(context, executor, new ServiceBinding.Listener() {
+            @Override
+            public void onConnected(@NonNull MessageService service) {
+                events.add("connected");
+            }
+
+            @Override
+            public void onDisconnected(@NonNull MessageService service) {
+                events.add("disconnected");
+            }
+        }, 4, BIND_TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        binding.release();
+        executor.shutdownNow();
+        JvmHarness.destroy(service);
+    }
+
+    private void call(String name) {
+        binding.run(service -> events.add(name), (reason, exception) -> failures.add(reason));
+    }
+
+    /**
+     * Wait until the calls that were handed to the executor ran
+     */
+    private void drain() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(latch::countDown);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void nothingIsBoundUntilTheFirstCall() {
+        new RNWatch(context);
+
+        assertEquals(0, context.starts);
+        assertEquals(0, context.binds);
+    }
+
+    @Test
+    public void callsBeforeTheConnectionAreReplayedInOrder() throws InterruptedException {
+        call("first");
+        call("second");
+        assertEquals(1, context.binds);
+        assertEquals(1, context.starts);
+
+        context.connect(service);
+        call("third");
+        drain();
+
+        assertEquals(Collections.emptyList(), failures);
+        assertEquals(Arrays.asList("connected", "first", "second", "third"), events);
+        assertEquals(2.0, binding.getStats().get("replayed"));
+    }
+
+    @Test
+    public void callsBeyondTheBufferOverflow() {
+        for (int i = 0; i < 6; i++) {
+            call("call " + i);
+        }
+
+        assertEquals(Arrays.asList(ServiceBinding.Reason.overflow, ServiceBinding.Reason.overflow), failures);
+    }
+
+    @Test
+    public void callsFailWhenTheServiceIsNotConnectedInTime() throws InterruptedException {
+        call("late");
+
+        Thread.sleep(BIND_TIMEOUT_MILLIS * 3);
+        drain();
+
+        assertEquals(Arrays.asList(ServiceBinding.Reason.unavailable), failures);
+        // The binding that did not connect is renewed
+        assertTrue(context.binds >= 2);
+        assertTrue(context.unbinds >= 1);
+    }
+
+    @Test
+    public void getBindsButDoesNotWait() {
+        assertNull(binding.get());
+        assertEquals(1, context.binds);
+
+        context.connect(service);
+
+        assertSame(service, binding.get());
+        assertEquals(1, context.binds);
+    }
+
+    @Test
+    public void callsWhileTheServiceIsLostWaitForItToReconnect() throws InterruptedException {
+        call("before");
+        context.connect(service);
+        drain();
+        context.disconnect();
+        call("while lost");
+
+        context.connect(service);
+        drain();
+
+        assertEquals(Arrays.asList("connected", "before", "disconnected", "connected", "while lost"), events);
+        assertEquals(1, context.binds);
+        assertEquals(1.0, binding.getStats().get("disconnects"));
+    }
+
+    @Test
+    public void aServiceThatDoesNotReconnectIsBoundAgain() throws InterruptedException {
+        binding.bind();
+        context.connect(service);
+        context.disconnect();
+
+        Thread.sleep(BIND_TIMEOUT_MILLIS * 3);
+        drain();
+
+        assertTrue(context.binds >= 2);
+        assertTrue(context.unbinds >= 1);
+        assertTrue((Double) binding.getStats().get("rebinds") >= 1);
+    }
+
+    @Test
+    public void aDeadBindingIsRenewedRightAway() {
+        binding.bind();
+        context.connect(service);
+
+        context.connection.onBindingDied(null);
+
+        assertEquals(2, context.binds);
+        assertEquals(1, context.unbinds);
+        assertEquals(Arrays.asList("connected", "disconnected"), events);
+    }
+
+    @Test
+    public void releaseFailsTheWaitingCalls() {
+        call("never");
+
+        binding.release();
+        call("after");
+
+        assertEquals(Arrays.asList(ServiceBinding.Reason.unavailable, ServiceBinding.Reason.unavailable),
+            failures);
+        assertEquals(1, context.unbinds);
+    }
+}
@@ -0,0 +1,184 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TelemetryCodecTest {
+
+    private static final byte[] CHANNEL = "heart-rate".getBytes(StandardCharsets.UTF_8);
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private static byte[] encode(TelemetryCodec.ValueType type, int dimensions, long[] timestamps, double[] values) {
+        ByteBuffer out = ByteBuffer.allocate(TelemetryCodec.maxSize(CHANNEL, dimensions, timestamps.length));
+        TelemetryCodec.encode(CHANNEL, type, dimensions, timestamps.length, timestamps, values, out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static void assertMalformed(byte[] frame) {
+        try {
+            TelemetryCodec.decode(frame);
+            fail("decode accepted " + Arrays.toString(frame));
+        } catch (MessageCodec.MalformedMessageException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void floatRoundTripKeepsEveryBit() throws Exception {
+        long[] timestamps = {1_600_000_000_000L, 1_600_000_000_020L, 1_600_000_000_041L, 1_599_999_999_990L};
+        double[] values = {0.1, -9.81, 3.0, 0.1, -9.8, Double.NaN, -0.0, Double.MAX_VALUE, 3.0,
+            Double.MIN_VALUE, Double.NEGATIVE_INFINITY, 1e-300};
+
+        TelemetryCodec.Frame frame = TelemetryCodec.decode(
+            encode(TelemetryCodec.ValueType.floating, 3, timestamps, values));
+
+        assertEquals("heart-rate", frame.channel);
+        assertEquals(TelemetryCodec.ValueType.floating, frame.type);
+        assertEquals(3, frame.dimensions);
+        assertEquals(4, frame.count);
+        assertArrayEquals(timestamps, frame.timestamps);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(frame.values[i]));
+        }
+    }
+
+    @Test
+    public void integerValuesAreRounded() throws Exception {
+        long[] timestamps = {0, 1000, 2000};
+        double[] values = {72.4, 72.5, -3.5};
+
+        TelemetryCodec.Frame frame = TelemetryCodec.decode(
+            encode(TelemetryCodec.ValueType.integer, 1, timestamps, values));
+
+        assertArrayEquals(new double[]{72, 73, -3}, frame.values, 0);
+    }
+
+    @Test
+    public void regularSamplesTakeAboutAByteEach() {
+        int count = 1000;
+        long[] timestamps = new long[count];
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = 1_600_000_000_000L + i * 1000L;
+            values[i] = 60 + i % 3;
+        }
+
+        byte[] frame = encode(TelemetryCodec.ValueType.integer, 1, timestamps, values);
+
+        // A timestamp and a value per sample of a byte each, the first ones take a few more
+        assertTrue(frame.length + " bytes", frame.length < 2 * count + 32);
+    }
+
+    @Test
+    public void anEmptyFrameHasNoSamples() throws Exception {
+        TelemetryCodec.Frame frame = TelemetryCodec.decode(
+            encode(TelemetryCodec.ValueType.floating, 2, new long[0], new double[0]));
+
+        assertEquals(0, frame.count);
+        assertEquals(0, frame.values.length);
+    }
+
+    @Test
+    public void rejectsMalformedFrames() {
+        byte[] frame = encode(TelemetryCodec.ValueType.floating, 3, new long[]{1, 2}, new double[]{1, 2, 3, 4, 5, 6});
+
+        assertMalformed(new byte[0]);
+        assertMalformed(Arrays.copyOf(frame, frame.length - 1));
+
+        byte[] wrongMagic = frame.clone();
+        wrongMagic[0] = 0;
+        assertMalformed(wrongMagic);
+
+        byte[] unknownType = frame.clone();
+        unknownType[2 + 1 + CHANNEL.length] = 9;
+        assertMalformed(unknownType);
+    }
+
+    @Test
+    public void rejectsDimensionsThatWouldOverflowTheArrays() {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        out.put(TelemetryCodec.MAGIC);
+        out.put(TelemetryCodec.VERSION);
+        MessageCodec.putVarInt(out, CHANNEL.length);
+        out.put(CHANNEL);
+        out.put((byte) TelemetryCodec.ValueType.floating.ordinal());
+        MessageCodec.putVarInt(out, Integer.MAX_VALUE);
+        MessageCodec.putVarInt(out, 2);
+        out.put(new byte[8]);
+
+        assertMalformed(Arrays.copyOf(out.array(), out.position()));
+    }
+
+    @Test
+    public void streamRejectsInvalidChannelsAndSamples() {
+        TelemetryStream stream = new TelemetryStream(scheduler, (frame, callback) -> callback.onSuccess());
+
+        for (int dimensions : new int[]{0, TelemetryCodec.MAX_DIMENSIONS + 1}) {
+            try {
+                stream.open("accelerometer", TelemetryCodec.ValueType.floating, dimensions, 10, 1000);
+                fail("opened a channel of " + dimensions + " dimensions");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        assertFalse(stream.append("accelerometer", 0, 1, 2, 3));
+
+        stream.open("accelerometer", TelemetryCodec.ValueType.floating, 3, 10, 1000);
+        try {
+            stream.append("accelerometer", 0, 1, 2);
+            fail("appended 2 values to a channel of 3 dimensions");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            stream.append("accelerometer", new long[]{0, 1}, new double[]{1, 2, 3});
+            fail("appended 3 values for 2 samples of 3 dimensions");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertTrue(stream.append("accelerometer", 0, 1, 2, 3));
+    }
+
+    @Test
+    public void streamSendsAFrameEveryMaxSamples() throws Exception {
+        List<byte[]> sent = new ArrayList<>();
+        TelemetryStream stream = new TelemetryStream(scheduler, (frame, callback) -> {
+            sent.add(frame);
+            callback.onSuccess();
+        });
+        stream.open("heart-rate", TelemetryCodec.ValueType.integer, 1, 4, 60_000);
+
+        for (int i = 0; i < 10; i++) {
+            stream.append("heart-rate", i * 1000L, 60 + i);
+        }
+
+        assertEquals(2, sent.size());
+        TelemetryCodec.Frame second = TelemetryCodec.decode(sent.get(1));
+        assertArrayEquals(new long[]{4000, 5000, 6000, 7000}, second.timestamps);
+        assertArrayEquals(new double[]{64, 65, 66, 67}, second.values, 0);
+
+        stream.close("heart-rate");
+        assertEquals(3, sent.size());
+        assertEquals(2, TelemetryCodec.decode(sent.get(2)).count);
+    }
+}
@@ -0,0 +1,111 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the wheel on its own thread with short ticks, the assertions leave a margin of several ticks
+ */
+public class TimerWheelTest {
+
+    private static final long TICK_MILLIS = 5;
+
+    private final TimerWheel wheel = new TimerWheel(TICK_MILLIS, 8);
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    private static long millisSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void timeoutsRunAfterTheirDelay() throws InterruptedException {
+        wheel.start();
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        wheel.schedule(fired::countDown, 50);
+
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+        long elapsed = millisSince(start);
+        assertTrue(elapsed + "ms", elapsed >= 50 - TICK_MILLIS);
+    }
+
+    @Test
+    public void ticksAreCountedFromStartNotFromCreation() throws InterruptedException {
+        // The service creates the wheel long before onCreate starts it
+        Thread.sleep(300);
+        wheel.start();
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        wheel.schedule(fired::countDown, 50);
+
+        // Counted from creation it would fire 300ms late
+        assertTrue(fired.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(millisSince(start) >= 50 - TICK_MILLIS);
+    }
+
+    @Test
+    public void delaysLongerThanTheWheelTakeSeveralRounds() throws InterruptedException {
+        wheel.start();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch fired = new CountDownLatch(3);
+
+        // 8 buckets of 5ms, so the delays wrap around the wheel
+        wheel.schedule(() -> {
+            order.add("long");
+            fired.countDown();
+        }, 130);
+        wheel.schedule(() -> {
+            order.add("short");
+            fired.countDown();
+        }, 10);
+        wheel.schedule(() -> {
+            order.add("same bucket");
+            fired.countDown();
+        }, 50);
+
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("short", "same bucket"), order);
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("short", "same bucket", "long"), order);
+    }
+
+    @Test
+    public void cancelledTimeoutsDoNotRun() throws InterruptedException {
+        wheel.start();
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout cancelled = wheel.schedule(fired::countDown, 20);
+        cancelled.cancel();
+
+        assertTrue(cancelled.isCancelled());
+        assertFalse(fired.await(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void aFailingTaskDoesNotStopTheWheel() throws InterruptedException {
+        wheel.start();
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("failed");
+        }, 10);
+        wheel.schedule(fired::countDown, 30);
+
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,142 @@
+package com.canvasheroes.ommetje;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A crash is simulated by opening the queue again without closing it
+ */
+public class UserInfoQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private UserInfoQueue open(File directory) {
+        return UserInfoQueue.open(directory, scheduler);
+    }
+
+    private static MessageObject message(String text) {
+        return new MessageObject(MessageObject.Sender.Platform.wearos, MessageObject.Sender.Direction.handheld,
+            JvmHarness.DEVICE_ID, MessageObject.MessageType.data, text.getBytes(StandardCharsets.UTF_8),
+            new Timestamp(1_600_000_000_000L));
+    }
+
+    private static List<String> texts(List<UserInfoQueue.Entry> entries) {
+        List<String> texts = new ArrayList<>();
+        for (UserInfoQueue.Entry entry : entries) {
+            texts.add(new String(entry.message.data, StandardCharsets.UTF_8));
+        }
+        return texts;
+    }
+
+    @Test
+    public void userInfoSurvivesACrashInOrder() throws IOException {
+        File directory = folder.newFolder("queue");
+        UserInfoQueue queue = open(directory);
+        queue.add(message("a"), null);
+        long b = queue.add(message("b"), null);
+        queue.add(message("c"), "key");
+        queue.remove(Collections.singletonList(b));
+
+        UserInfoQueue recovered = open(directory);
+
+        assertEquals(Arrays.asList("a", "c"), texts(recovered.getEntries()));
+        assertEquals("key", recovered.getEntries().get(1).key);
+        assertEquals(2, recovered.size());
+    }
+
+    @Test
+    public void userInfoWithTheSameKeyReplacesTheQueuedOne() throws IOException {
+        File directory = folder.newFolder("queue");
+        UserInfoQueue queue = open(directory);
+        queue.add(message("location 1"), "location");
+        queue.add(message("note"), null);
+        queue.add(message("location 2"), "location");
+
+        assertEquals(Arrays.asList("note", "location 2"), texts(queue.getEntries()));
+        assertEquals(1, queue.getCoalesced());
+        assertEquals(Arrays.asList("note", "location 2"), texts(open(directory).getEntries()));
+    }
+
+    @Test
+    public void takenUserInfoIsNotReplacedUntilItIsGivenBack() throws IOException {
+        UserInfoQueue queue = open(folder.newFolder("queue"));
+        queue.add(message("location 1"), "location");
+
+        assertEquals(Collections.singletonList("location 1"), texts(queue.take(1024)));
+        queue.add(message("location 2"), "location");
+        assertEquals(Arrays.asList("location 1", "location 2"), texts(queue.getEntries()));
+        assertEquals(0, queue.getCoalesced());
+
+        queue.untake();
+
+        assertEquals(Collections.singletonList("location 2"), texts(queue.getEntries()));
+        assertEquals(1, queue.getCoalesced());
+    }
+
+    @Test
+    public void takeIsLimitedByTheSizeOfTheData() throws IOException {
+        UserInfoQueue queue = open(folder.newFolder("queue"));
+        queue.add(message("aaaa"), null);
+        queue.add(message("bbbb"), null);
+        queue.add(message("cccc"), null);
+
+        // At least one is taken, also when it is larger than the limit
+        assertEquals(Collections.singletonList("aaaa"), texts(queue.take(2)));
+        assertTrue(queue.take(1024).isEmpty());
+        queue.untake();
+        assertEquals(Arrays.asList("aaaa", "bbbb"), texts(queue.take(8)));
+
+        assertEquals(2, queue.removeTaken());
+
+        assertEquals(Collections.singletonList("cccc"), texts(queue.getEntries()));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void drainRemovesFromTheHeadAndSkipsRemovedUserInfo() throws IOException {
+        File directory = folder.newFolder("queue");
+        UserInfoQueue queue = open(directory);
+        long a = queue.add(message("a"), null);
+        queue.add(message("b"), null);
+        queue.add(message("c"), null);
+        queue.add(message("d"), null);
+        queue.remove(Collections.singletonList(a));
+
+        assertEquals(Arrays.asList("b", "c"), texts(queue.drain(2)));
+
+        assertEquals(Collections.singletonList("d"), texts(open(directory).getEntries()));
+    }
+
+    @Test
+    public void addAllKeepsTheOrderOfTheReceivedUserInfo() throws IOException {
+        File directory = folder.newFolder("queue");
+        UserInfoQueue queue = open(directory);
+
+        queue.addAll(Arrays.asList(message("1"), message("2"), message("3")));
+        queue.close();
+
+        assertEquals(Arrays.asList("1", "2", "3"), texts(open(directory).getEntries()));
+    }
+}
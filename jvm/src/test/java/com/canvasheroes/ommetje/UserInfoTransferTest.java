@@ -0,0 +1,242 @@
+package com.canvasheroes.ommetje;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The outlet keeps the puts, the test decides when and how they complete
+ */
+public class UserInfoTransferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final RecordingOutlet outlet = new RecordingOutlet();
+    private UserInfoQueue outgoing;
+    private UserInfoQueue incoming;
+    private UserInfoTransfer transfer;
+
+    private static final class Put {
+        final String path;
+        final byte[] data;
+        final MessageService.SendCallback callback;
+
+        Put(String path, byte[] data, MessageService.SendCallback callback) {
+            this.path = path;
+            this.data = data;
+            this.callback = callback;
+        }
+    }
+
+    private static final class RecordingOutlet implements UserInfoTransfer.Outlet {
+        final List<String> nodeIds = new ArrayList<>(Arrays.asList("watch"));
+        final List<Put> puts = new ArrayList<>();
+        final List<String> deleted = new ArrayList<>();
+
+        @NonNull
+        @Override
+        public Collection<String> getNodeIds() {
+            return nodeIds;
+        }
+
+        @Override
+        public void put(@NonNull String path, @NonNull byte[] data, @NonNull MessageService.SendCallback callback) {
+            puts.add(new Put(path, data, callback));
+        }
+
+        @Override
+        public void delete(@NonNull String sourceNodeId, @NonNull String path) {
+            deleted.add(sourceNodeId + path);
+        }
+
+        List<Put> take() {
+            List<Put> taken = new ArrayList<>(puts);
+            puts.clear();
+            return taken;
+        }
+    }
+
+    private void start() throws IOException {
+        outgoing = UserInfoQueue.open(folder.newFolder("outgoing"), scheduler);
+        incoming = UserInfoQueue.open(folder.newFolder("incoming"), scheduler);
+        transfer = new UserInfoTransfer(scheduler, outlet, outgoing, incoming);
+        transfer.setLocalNodeId("phone");
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private static MessageObject message(String text) {
+        return new MessageObject(MessageObject.Sender.Platform.wearos, MessageObject.Sender.Direction.handheld,
+            JvmHarness.DEVICE_ID, MessageObject.MessageType.data, text.getBytes(StandardCharsets.UTF_8),
+            new Timestamp(1_600_000_000_000L));
+    }
+
+    private static List<String> texts(byte[] frame) throws MessageCodec.MalformedMessageException {
+        List<String> texts = new ArrayList<>();
+        for (MessageObject message : MessageCodec.decode(frame)) {
+            texts.add(new String(message.data, StandardCharsets.UTF_8));
+        }
+        return texts;
+    }
+
+    private static List<String> texts(List<UserInfoQueue.Entry> entries) {
+        List<String> texts = new ArrayList<>();
+        for (UserInfoQueue.Entry entry : entries) {
+            texts.add(new String(entry.message.data, StandardCharsets.UTF_8));
+        }
+        return texts;
+    }
+
+    @Test
+    public void queuedUserInfoIsPutAsOneDataItemPerNode() throws Exception {
+        start();
+        outlet.nodeIds.add("tablet");
+        transfer.transfer(message("a"), null);
+        transfer.transfer(message("b"), null);
+
+        assertTrue(outlet.puts.isEmpty());
+        scheduler.advance(UserInfoTransfer.DEFAULT_FLUSH_DELAY_MILLIS);
+
+        List<Put> puts = outlet.take();
+        assertEquals(2, puts.size());
+        for (Put put : puts) {
+            assertEquals(Arrays.asList("a", "b"), texts(put.data));
+        }
+        assertTrue(puts.get(0).path.startsWith(UserInfoTransfer.PATH + "/"));
+        assertEquals(2.0, transfer.getStats().get("inFlight"));
+
+        puts.get(0).callback.onSuccess();
+        assertEquals(2, outgoing.size());
+        puts.get(1).callback.onSuccess();
+
+        assertEquals(0, outgoing.size());
+        assertEquals(2.0, transfer.getStats().get("transferred"));
+        assertEquals(1.0, transfer.getStats().get("batches"));
+    }
+
+    @Test
+    public void userInfoWithTheSameKeyIsPutOnlyOnce() throws Exception {
+        start();
+        transfer.transfer(message("location 1"), "location");
+        transfer.transfer(message("location 2"), "location");
+
+        scheduler.advance(UserInfoTransfer.DEFAULT_FLUSH_DELAY_MILLIS);
+
+        assertEquals(Collections.singletonList("location 2"), texts(outlet.take().get(0).data));
+        assertEquals(1.0, transfer.getStats().get("coalesced"));
+    }
+
+    @Test
+    public void userInfoWaitsForANodeAndIsPutWhenOneConnects() throws Exception {
+        start();
+        outlet.nodeIds.clear();
+        transfer.transfer(message("a"), null);
+        scheduler.advance(UserInfoTransfer.DEFAULT_FLUSH_DELAY_MILLIS);
+
+        assertTrue(outlet.puts.isEmpty());
+        assertEquals(1, outgoing.size());
+
+        outlet.nodeIds.add("watch");
+        transfer.resend();
+        scheduler.runPending();
+
+        Put put = outlet.take().get(0);
+        assertTrue(put.path.startsWith(UserInfoTransfer.PATH + "/watch/"));
+        assertEquals(Collections.singletonList("a"), texts(put.data));
+    }
+
+    @Test
+    public void aFailedPutIsRetriedOnlyForTheNodeThatFailed() throws Exception {
+        start();
+        outlet.nodeIds.add("tablet");
+        transfer.transfer(message("a"), null);
+        scheduler.advance(UserInfoTransfer.DEFAULT_FLUSH_DELAY_MILLIS);
+        List<Put> puts = outlet.take();
+        Put failed = puts.get(0);
+
+        failed.callback.onFailure(new IOException("Not connected"));
+        puts.get(1).callback.onSuccess();
+        assertEquals(1, outgoing.size());
+        assertEquals(1.0, transfer.getStats().get("retries"));
+
+        scheduler.advance(UserInfoTransfer.RETRY_DELAY_MILLIS);
+
+        Put retried = outlet.take().get(0);
+        assertEquals(failed.path, retried.path);
+        assertTrue(outlet.puts.isEmpty());
+        retried.callback.onSuccess();
+        assertEquals(0, outgoing.size());
+    }
+
+    @Test
+    public void batchesAreLimitedInSizeAndPutOneAfterTheOther() throws Exception {
+        start();
+        transfer.configure(0, 4);
+        transfer.transfer(message("aaaa"), null);
+        transfer.transfer(message("bbbb"), null);
+        scheduler.runPending();
+
+        Put first = outlet.take().get(0);
+        assertEquals(Collections.singletonList("aaaa"), texts(first.data));
+        assertTrue(outlet.puts.isEmpty());
+
+        first.callback.onSuccess();
+        scheduler.runPending();
+
+        Put second = outlet.take().get(0);
+        assertEquals(Collections.singletonList("bbbb"), texts(second.data));
+        assertNotEquals(first.path, second.path);
+    }
+
+    @Test
+    public void receivedUserInfoIsQueuedOnceAndTheDataItemDeleted() throws Exception {
+        start();
+        List<Integer> counts = new ArrayList<>();
+        transfer.setListener(counts::add);
+        String path = UserInfoTransfer.PATH + "/phone/batch-1";
+        byte[] frame = MessageCodec.encode(Arrays.asList(message("1"), message("2")));
+
+        assertTrue(transfer.accepts(path));
+        assertFalse(transfer.accepts(UserInfoTransfer.PATH + "/tablet/batch-1"));
+        transfer.receive("watch", path, frame);
+        transfer.receive("watch", path, frame);
+
+        assertEquals(Arrays.asList("1", "2"), texts(incoming.getEntries()));
+        assertEquals(Collections.singletonList(2), counts);
+        assertEquals(Arrays.asList("watch" + path, "watch" + path), outlet.deleted);
+        assertEquals(1.0, transfer.getStats().get("duplicates"));
+    }
+
+    @Test
+    public void unreadableUserInfoIsDroppedAndDeleted() throws Exception {
+        start();
+        String path = UserInfoTransfer.PATH + "/phone/batch-1";
+
+        transfer.receive("watch", path, new byte[]{MessageCodec.MAGIC, 1, 2});
+
+        assertEquals(0, incoming.size());
+        assertEquals(Collections.singletonList("watch" + path), outlet.deleted);
+    }
+}
@@ -1,7 +1,23 @@
 export * from './messages';
+export * from './batching';
+export * from './compression';
+export * from './reliable-stream';
+export * from './replicated-state';
+export * from './paths';
+export * from './telemetry';
+export * from './message-events';
+export * from './send-queue';
+export * from './replies';
+export * from './stats';
 export * from './message-data';
+export * from './nodes';
 export * from './reachability';
-export {startFileTransfer, getFileTransfers} from './files';
+export {
+  startFileTransfer,
+  getFileTransfers,
+  resumeFileTransfer,
+  setMaxConcurrentFileTransfers,
+} from './files';
 export type {FileTransfer} from './files';
 export * from './user-info';
 export * from './application-context';
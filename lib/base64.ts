@@ -49,3 +49,20 @@ export function atob(input: string = '') {
 
   return output;
 }
+
+/**
+ * Decode base64 to bytes, without building an intermediate string
+ */
+export function toBytes(input: string = ''): Uint8Array {
+  const str = input.replace(/[=]+$/, '');
+  const bytes = new Uint8Array((str.length * 3) >> 2);
+  for (let bits = 0, bitCount = 0, i = 0, j = 0; i < str.length; i++) {
+    bits = (bits << 6) | chars.indexOf(str.charAt(i));
+    bitCount += 6;
+    if (bitCount >= 8) {
+      bitCount -= 8;
+      bytes[j++] = (bits >> bitCount) & 0xff;
+    }
+  }
+  return bytes;
+}
@@ -0,0 +1,34 @@
+import {Platform} from 'react-native';
+import {
+  _rejectUnsupported,
+  MessageBatchingOptions,
+  MessageBatchStats,
+  NativeModule,
+} from './native-module';
+
+export type {MessageBatchingOptions, MessageBatchStats} from './native-module';
+
+/**
+ * Coalesce messages sent within the window into a single transfer per watch
+ */
+export function configureMessageBatching(options: MessageBatchingOptions) {
+  if (Platform.OS === 'android') {
+    NativeModule.configureMessageBatching(options);
+  }
+}
+
+/**
+ * Send all batched messages immediately
+ */
+export function flushMessages() {
+  if (Platform.OS === 'android') {
+    NativeModule.flushMessages();
+  }
+}
+
+export function getMessageBatchStats(): Promise<MessageBatchStats> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('getMessageBatchStats');
+  }
+  return NativeModule.getMessageBatchStats();
+}
@@ -0,0 +1,13 @@
+import {Platform} from 'react-native';
+import {CompressionOptions, NativeModule} from './native-module';
+
+export type {CompressionOptions, CompressionStats} from './native-module';
+
+/**
+ * Compress messages to the watch, only watches that support it receive compressed messages
+ */
+export function configureCompression(options: CompressionOptions) {
+  if (Platform.OS === 'android') {
+    NativeModule.configureCompression(options);
+  }
+}
@@ -1 +1,8 @@
 export const ERROR_CODE_SESSION_UNREACHABLE = 'EWCERRORDOMAIN7007';
+export const ERROR_CODE_SEND_QUEUE_FULL = 'ESENDQUEUEFULL';
+export const ERROR_CODE_SEND_FAILED = 'ESENDFAILED';
+export const ERROR_CODE_REPLY_TIMEOUT = 'EREPLYTIMEOUT';
+export const ERROR_CODE_SERVICE_UNAVAILABLE = 'ESERVICEUNAVAILABLE';
+export const ERROR_CODE_INVALID_TELEMETRY = 'EINVALIDTELEMETRY';
+export const ERROR_CODE_INVALID_OPTIONS = 'EINVALIDOPTIONS';
+export const ERROR_CODE_UNSUPPORTED = 'EUNSUPPORTED';
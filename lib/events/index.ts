@@ -82,6 +82,18 @@ function addListener(event: WatchEvent, cb: any): UnsubscribeFn {
   return listen(event, cb, _addListener);
 }
 
+// Some events are backed by more than one native event, e.g. batched messages on Android,
+// so the callback is guarded as well as the native subscriptions
+function oneShot(cb: (...args: any[]) => void) {
+  let called = false;
+  return (...args: any[]) => {
+    if (!called) {
+      called = true;
+      cb(...args);
+    }
+  };
+}
+
 function once(
   event: 'reachability',
   cb: WatchEventCallbacks['reachability'],
@@ -152,18 +164,18 @@ function once(
 
 function once(event: WatchEvent, cb?: any): UnsubscribeFn | Promise<any> {
   if (cb) {
-    return listen(event, cb, _once);
+    return listen(event, oneShot(cb), _once);
   } else {
     return new Promise((resolve) => {
       listen(
         event,
-        (...args: any[]) => {
+        oneShot((...args: any[]) => {
           if (args.length === 1) {
             resolve(args[0]);
           } else {
             resolve(args); // Only happens in the case of message
           }
-        },
+        }),
         _once,
       );
     });
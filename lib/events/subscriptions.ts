@@ -2,6 +2,7 @@
  * Hook up user-facing events to the native events, presenting a cleaner interface than
  * the raw events we receive from the native side
  */
+import {Platform} from 'react-native';
 import {WatchEventCallbacks} from './definitions';
 import {
   _addListener,
@@ -11,7 +12,7 @@ import {
   WatchPayload,
 } from '../native-module';
 import {_transformFilePayload} from '../files';
-import {_getMissedUserInfo} from '../user-info';
+import {_drainUserInfo, _getMissedUserInfo} from '../user-info';
 
 export type AddListenerFn = typeof _addListener;
 
@@ -37,10 +38,7 @@ export function _subscribeNativeMessageEvent<
   cb: WatchEventCallbacks<MessageFromWatch, MessageToWatch>['message'],
   addListener: AddListenerFn = _addListener,
 ) {
-  return addListener<
-    WatchEvent.EVENT_RECEIVE_MESSAGE,
-    MessageFromWatch & {id?: string}
-  >(WatchEvent.EVENT_RECEIVE_MESSAGE, (payload) => {
+  const onMessage = (payload: MessageFromWatch & {id?: string}) => {
     const messageId = payload.id;
 
     const replyHandler = messageId
@@ -49,7 +47,25 @@ export function _subscribeNativeMessageEvent<
       : null;
 
     cb(payload || null, replyHandler);
+  };
+
+  const unsubscribeMessage = addListener<
+    WatchEvent.EVENT_RECEIVE_MESSAGE,
+    MessageFromWatch & {id?: string}
+  >(WatchEvent.EVENT_RECEIVE_MESSAGE, onMessage);
+
+  // Android emits received messages in batches, unroll them so subscribers see individual messages
+  const unsubscribeBatch = addListener<
+    WatchEvent.EVENT_RECEIVE_MESSAGE_BATCH,
+    Array<MessageFromWatch & {id?: string}>
+  >(WatchEvent.EVENT_RECEIVE_MESSAGE_BATCH, (payloads) => {
+    payloads.forEach(onMessage);
   });
+
+  return () => {
+    unsubscribeMessage();
+    unsubscribeBatch();
+  };
 }
 
 type UserInfoId = string | Date | number | {id: string};
@@ -77,6 +93,10 @@ export function _subscribeNativeUserInfoEvent<
   cb: WatchEventCallbacks<UserInfo>['user-info'],
   addListener: AddListenerFn = _addListener,
 ) {
+  if (Platform.OS === 'android') {
+    return _subscribeNativeUserInfoQueue(cb, addListener);
+  }
+
   let initialized = false;
   const xtra: UserInfo[] = [];
 
@@ -101,6 +121,54 @@ export function _subscribeNativeUserInfoEvent<
   });
 }
 
+/**
+ * Android queues received user info natively and only signals that there is some,
+ * the queue is drained in one call per signal instead of a dequeue call per user info
+ */
+function _subscribeNativeUserInfoQueue<
+  UserInfo extends WatchPayload = WatchPayload
+>(
+  cb: WatchEventCallbacks<UserInfo>['user-info'],
+  addListener: AddListenerFn = _addListener,
+) {
+  let draining = false;
+  let again = false;
+  let subscribed = true;
+
+  const drain = async () => {
+    if (draining) {
+      again = true;
+      return;
+    }
+    draining = true;
+    try {
+      do {
+        again = false;
+        const info = await _drainUserInfo<UserInfo>();
+        if (info.length && subscribed) {
+          cb(info);
+        }
+      } while (again && subscribed);
+    } finally {
+      draining = false;
+    }
+  };
+
+  drain();
+
+  const unsubscribe = addListener<
+    WatchEvent.EVENT_USER_INFO_QUEUED,
+    {count: number}
+  >(WatchEvent.EVENT_USER_INFO_QUEUED, () => {
+    drain();
+  });
+
+  return () => {
+    subscribed = false;
+    unsubscribe();
+  };
+}
+
 export function _subscribeNativeApplicationContextEvent(
   cb: WatchEventCallbacks['application-context'],
   addListener: AddListenerFn = _addListener,
@@ -1,4 +1,10 @@
-import {NativeFileTransfer, NativeModule, WatchPayload} from './native-module';
+import {Platform} from 'react-native';
+import {
+  _rejectUnsupported,
+  NativeFileTransfer,
+  NativeModule,
+  WatchPayload,
+} from './native-module';
 
 export interface FileTransfer {
   bytesTotal: number;
@@ -47,3 +53,26 @@ export async function getFileTransfers(): Promise<{
 
   return adapted;
 }
+
+/**
+ * Resume a failed transfer from the bytes the watch already received
+ *
+ * Android only
+ */
+export function resumeFileTransfer(id: string): Promise<boolean> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('resumeFileTransfer');
+  }
+  return NativeModule.resumeFileTransfer(id);
+}
+
+/**
+ * Set how many file transfers run in parallel, the others wait for their turn
+ *
+ * Android only
+ */
+export function setMaxConcurrentFileTransfers(maxConcurrentTransfers: number) {
+  if (Platform.OS === 'android') {
+    NativeModule.setMaxConcurrentFileTransfers(maxConcurrentTransfers);
+  }
+}
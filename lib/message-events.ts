@@ -0,0 +1,14 @@
+import {Platform} from 'react-native';
+import {MessageEventOptions, NativeModule} from './native-module';
+
+export type {MessageEventOptions} from './native-module';
+
+/**
+ * Configure how received messages are collected into events,
+ * messages received within a frame are emitted together up to maxBatchSize
+ */
+export function configureMessageEvents(options: MessageEventOptions) {
+  if (Platform.OS === 'android') {
+    NativeModule.configureMessageEvents(options);
+  }
+}
@@ -1,4 +1,7 @@
-import {NativeModule, WatchPayload} from './native-module';
+import {Platform} from 'react-native';
+import {NativeModule, SendMessageOptions, WatchPayload} from './native-module';
+
+export type {SendMessageOptions} from './native-module';
 
 type SendMessageReplyCallback<
   MessageFromWatch extends WatchPayload = WatchPayload
@@ -15,18 +18,37 @@ export function sendMessage<
   message: MessageToWatch,
   replyCb?: SendMessageReplyCallback<MessageFromWatch>,
   errCb?: SendMessageErrorCallback,
+  options?: SendMessageOptions,
 ) {
-  NativeModule.sendMessage<MessageToWatch, MessageFromWatch>(
-    message,
+  // On Android a message without a reply callback does not wait for a reply
+  const reply =
     replyCb ||
-      ((reply: MessageFromWatch) => {
-        console.warn('Unhandled watch reply', reply);
-      }),
+    (Platform.OS === 'android'
+      ? null
+      : (r: MessageFromWatch) => {
+          console.warn('Unhandled watch reply', r);
+        });
+  const error =
     errCb ||
-      ((err) => {
-        console.warn('Unhandled sendMessage error', err);
-      }),
-  );
+    ((err: Error) => {
+      console.warn('Unhandled sendMessage error', err);
+    });
+
+  // Options are only supported on Android
+  if (options && Platform.OS === 'android') {
+    NativeModule.sendMessageWithOptions<MessageToWatch, MessageFromWatch>(
+      message,
+      options,
+      reply,
+      error,
+    );
+  } else {
+    NativeModule.sendMessage<MessageToWatch, MessageFromWatch>(
+      message,
+      reply,
+      error,
+    );
+  }
 }
 
 export type WatchMessageListener<
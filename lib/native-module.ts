@@ -2,7 +2,9 @@ import {
   EventSubscriptionVendor,
   NativeEventEmitter,
   NativeModules,
+  Platform,
 } from 'react-native';
+import {ERROR_CODE_UNSUPPORTED} from './errors';
 
 export type WatchPayload = Record<string, unknown>;
 
@@ -12,6 +14,93 @@ export type QueuedUserInfo<UserInfo extends WatchPayload = WatchPayload> = {
   userInfo: UserInfo;
 };
 
+export interface PathListenerOptions {
+  /**
+   * The thread priority of the listener, between 1 and 10
+   */
+  priority?: number;
+}
+
+export interface PathStats {
+  handled: number;
+  overflowed: number;
+  queued: number;
+}
+
+export type TelemetryValueType = 'integer' | 'float';
+
+export interface TelemetryChannelOptions {
+  /**
+   * The number of values per sample, 3 for the axes of an accelerometer
+   */
+  dimensions?: number;
+  /**
+   * The maximum time a sample waits before it is sent
+   */
+  flushIntervalMs?: number;
+  /**
+   * The number of samples after which a frame is sent
+   */
+  maxSamples?: number;
+  type?: TelemetryValueType;
+}
+
+/**
+ * A received telemetry frame as emitted by the native module,
+ * the timestamps and values are the base64 of little endian float64 arrays
+ */
+export interface NativeTelemetryFrame {
+  channel: string;
+  count: number;
+  dimensions: number;
+  sourceNodeId: string;
+  timestamps: string;
+  type: TelemetryValueType;
+  values: string;
+}
+
+export interface TelemetryStats {
+  bytes: number;
+  bytesPerSample: number;
+  channels: number;
+  failures: number;
+  frames: number;
+  malformed: number;
+  received: number;
+  samples: number;
+}
+
+export interface ReplicatedStateOptions {
+  prefix?: string;
+  throttleMs?: number;
+}
+
+export interface ReplicatedStateStats {
+  coalesced: number;
+  failures: number;
+  keys: number;
+  puts: number;
+  received: number;
+  writes: number;
+}
+
+export interface UserInfoTransferOptions {
+  flushDelayMs?: number;
+  maxBatchBytes?: number;
+}
+
+export interface UserInfoStats {
+  batches: number;
+  coalesced: number;
+  duplicates: number;
+  inFlight: number;
+  pending: number;
+  queued: number;
+  received: number;
+  retries: number;
+  transferred: number;
+}
+
 export interface UserInfoQueue<UserInfo extends WatchPayload = WatchPayload> {
   [timestamp: string]: UserInfo;
 }
@@ -41,33 +130,379 @@ export interface NativeFileTransferEvent extends NativeFileTransfer {
   type: FileTransferEventType;
 }
 
+export interface MessageBatchingOptions {
+  enabled: boolean;
+  maxBytes?: number;
+  windowMs?: number;
+}
+
+export interface ApplicationContextStats {
+  deltas: number;
+  resyncs: number;
+  snapshots: number;
+}
+
+export interface BufferPoolStats {
+  hits: number;
+  misses: number;
+  pooledBytes: number;
+}
+
+export interface CompressionOptions {
+  enabled: boolean;
+  minBytes?: number;
+}
+
+export interface CompressionStats {
+  bytesSaved: number;
+  compressed: number;
+  incompressible: number;
+  ratio: number;
+  skipped: number;
+}
+
+export interface FanOutOptions {
+  baseBackoffMs?: number;
+  failureThreshold?: number;
+  maxBackoffMs?: number;
+  maxConcurrentSends?: number;
+}
+
+export type NodeCircuitState = 'closed' | 'open' | 'halfOpen';
+
+export interface NodeHealthStats {
+  consecutiveFailures: number;
+  latencyMs: number | null;
+  retryInMs: number;
+  state: NodeCircuitState;
+  successRate: number;
+}
+
+export interface NodeHealth extends NodeHealthStats {
+  id: string;
+  name: string;
+  nearby: boolean;
+}
+
+export interface ReachabilityOptions {
+  capability?: string;
+  debounceMs?: number;
+}
+
+export interface ReachabilityState {
+  paired: boolean;
+  installed: boolean;
+  reachability: boolean;
+}
+
+export interface ReliableStreamOptions {
+  maxRetransmits?: number;
+  retransmitMs?: number;
+  windowSize?: number;
+}
+
+export interface ReliableStreamStats {
+  broken: number;
+  delivered: number;
+  duplicates: number;
+  inFlight: number;
+  reordered: number;
+  retransmits: number;
+  waiting: number;
+}
+
+export interface MessageEventOptions {
+  maxBatchSize?: number;
+  maxDelayMs?: number;
+}
+
+export interface HistogramSnapshot {
+  count: number;
+  max: number;
+  mean: number;
+  p50: number;
+  p90: number;
+  p99: number;
+}
+
+export interface MessageBatchStats {
+  batchLatencyMs: HistogramSnapshot;
+  batchSize: HistogramSnapshot;
+}
+
+export type SendQueueOverflowPolicy = 'dropOldest' | 'dropNewest' | 'reject';
+
+export interface SendQueueOptions {
+  capacity?: number;
+  overflowPolicy?: SendQueueOverflowPolicy;
+}
+
+export interface SendQueueStats {
+  depth: number;
+  dropped: number;
+  queueTimeMs: HistogramSnapshot;
+}
+
+export interface ReplyStats {
+  pending: number;
+  replyLatencyMs: HistogramSnapshot;
+  timeouts: number;
+}
+
+export interface NodeStats {
+  failed: number;
+  failureRate: number;
+  sent: number;
+}
+
+export interface BindingStats {
+  bindMs: number | null;
+  binds: number;
+  bound: boolean;
+  disconnects: number;
+  expired: number;
+  overflowed: number;
+  pending: number;
+  rebinds: number;
+  replayed: number;
+}
+
+export interface LifecycleStats {
+  createMs: number | null;
+  firstReceiveMs: number | null;
+  firstSendMs: number | null;
+}
+
+export interface MessagingStats {
+  applicationContext: ApplicationContextStats;
+  batching: MessageBatchStats;
+  binding: BindingStats;
+  bufferPool: BufferPoolStats;
+  bytesReceived: number;
+  bytesSent: number;
+  compression: CompressionStats;
+  fanOut: {inFlight: number; pending: number};
+  filter: {filtered: number};
+  lifecycle: LifecycleStats;
+  messagesFailed: number;
+  messagesReceived: number;
+  messagesSent: number;
+  nodeHealth: {[nodeId: string]: NodeHealthStats};
+  nodes: {[nodeId: string]: NodeStats};
+  outbox: {depth: number};
+  paths: {[pattern: string]: PathStats};
+  receivedBytes: HistogramSnapshot;
+  reliable: ReliableStreamStats;
+  replicatedState: ReplicatedStateStats;
+  replies: ReplyStats;
+  sendLatencyMs: HistogramSnapshot;
+  sendQueue: SendQueueStats;
+  sentBytes: HistogramSnapshot;
+  telemetry: TelemetryStats;
+  userInfo: UserInfoStats;
+}
+
+export interface SendMessageOptions {
+  /**
+   * Android only, write a message to all connected nodes to the outbox first,
+   * so it is delivered once a watch is reachable, also after the app was restarted.
+   * The error callback is called when it is still in the outbox after a minute, the message stays there.
+   * Defaults to false
+   */
+  durable?: boolean;
+  /**
+   * Android only, send to this node only instead of all connected nodes
+   */
+  nodeId?: string;
+  /**
+   * Android only, deliver exactly once and in order with the other reliable messages,
+   * the watch app must support the reliable stream
+   */
+  reliable?: boolean;
+  urgent?: boolean;
+}
+
 export interface IRNWatchNativeModule extends EventSubscriptionVendor {
+  /**
+   * Android only, binds the native service so it can emit the event
+   */
+  addListener: (eventName: string) => void;
+
+  /**
+   * Android only
+   */
+  addPathListener: (pattern: string, priority: number) => void;
+
+  /**
+   * Android only, the values are interleaved by sample with one value per dimension of the channel
+   */
+  appendTelemetry: (
+    channel: string,
+    timestamps: number[],
+    values: number[],
+  ) => Promise<void>;
+
+  /**
+   * Android only
+   */
+  closeTelemetryChannel: (channel: string) => void;
+
+  /**
+   * Android only
+   */
+  configureCompression: (options: CompressionOptions) => void;
+
+  /**
+   * Android only
+   */
+  configureFanOut: (options: FanOutOptions) => void;
+
+  /**
+   * Android only
+   */
+  configureMessageBatching: (options: MessageBatchingOptions) => void;
+
+  /**
+   * Android only
+   */
+  configureMessageEvents: (options: MessageEventOptions) => void;
+
+  /**
+   * Android only
+   */
+  configureReachability: (options: ReachabilityOptions) => void;
+
+  /**
+   * Android only
+   */
+  configureReliableStream: (options: ReliableStreamOptions) => void;
+
+  /**
+   * Android only
+   */
+  configureReplicatedState: (options: ReplicatedStateOptions) => void;
+
+  /**
+   * Android only, rejects with ERROR_CODE_INVALID_OPTIONS for an unknown overflow policy
+   */
+  configureSendQueue: (options: SendQueueOptions) => Promise<void>;
+
+  /**
+   * Android only
+   */
+  configureUserInfo: (options: UserInfoTransferOptions) => void;
+
   dequeueUserInfo: (ids: string[]) => void;
+
+  /**
+   * Android only, removes the user info it resolves with from the queue
+   */
+  drainUserInfo: <UserInfo extends WatchPayload>(
+    max: number,
+  ) => Promise<QueuedUserInfo<UserInfo>[]>;
+
+  /**
+   * Android only
+   */
+  flushMessages: () => void;
+
+  /**
+   * Android only
+   */
+  flushTelemetry: () => void;
+
+  /**
+   * Android only, synchronous
+   */
+  getAllReplicatedState: () => {[key: string]: WatchPayload};
+
   getApplicationContext: <
     Context extends WatchPayload
   >() => Promise<Context | null>;
+  /**
+   * Android only, synchronous
+   */
+  getCachedReachability: () => ReachabilityState | null;
+
   getFileTransfers: () => Promise<{[id: string]: NativeFileTransfer}>;
   getIsPaired: () => Promise<boolean>;
 
   getIsWatchAppInstalled: () => Promise<boolean>;
 
+  /**
+   * Android only
+   */
+  getMessageBatchStats: () => Promise<MessageBatchStats>;
+
+  /**
+   * Android only
+   */
+  getNodeHealth: () => Promise<NodeHealth[]>;
+
   getQueuedUserInfo: <UserInfo extends WatchPayload>() => Promise<
     UserInfoQueue<UserInfo>
   >;
 
   getReachability: () => Promise<boolean>;
 
+  /**
+   * Android only, synchronous
+   */
+  getReplicatedState: <Value extends WatchPayload>(key: string) => Value | null;
+
+  /**
+   * Android only
+   */
+  getReplyStats: () => Promise<ReplyStats>;
+
+  /**
+   * Android only
+   */
+  getSendQueueStats: () => Promise<SendQueueStats>;
+
+  /**
+   * Android only
+   */
+  getStats: () => Promise<MessagingStats>;
+
+  /**
+   * Android only
+   */
+  openTelemetryChannel: (
+    channel: string,
+    options: TelemetryChannelOptions,
+  ) => Promise<void>;
+
+  /**
+   * Android only
+   */
+  removeListeners: (count: number) => void;
+
+  /**
+   * Android only
+   */
+  removePathListener: (pattern: string) => void;
+
   replyToMessageWithId: (messageId: string, message: WatchPayload) => void;
 
+  /**
+   * Android only
+   */
+  resumeFileTransfer: (id: string) => Promise<boolean>;
+
   sendMessage: <
     Payload extends WatchPayload,
     ResponsePayload extends WatchPayload
   >(
     message: Payload,
-    cb: (reply: ResponsePayload) => void,
+    cb: ((reply: ResponsePayload) => void) | null,
     errCb: (err: Error) => void,
   ) => void;
 
+  /**
+   * Sends the string as the raw data of a message in the given encoding,
+   * the reply data is passed to the reply callback base64 encoded
+   */
   sendMessageData: (
     str: string,
     encoding: number,
@@ -75,6 +510,59 @@ export interface IRNWatchNativeModule extends EventSubscriptionVendor {
     errorCallback: (err: Error) => void,
   ) => void;
 
+  /**
+   * Android only
+   */
+  sendMessageWithOptions: <
+    Payload extends WatchPayload,
+    ResponsePayload extends WatchPayload
+  >(
+    message: Payload,
+    options: SendMessageOptions,
+    cb: ((reply: ResponsePayload) => void) | null,
+    errCb: (err: Error) => void,
+  ) => void;
+
+  /**
+   * Android only, to all connected nodes when nodeId is null
+   */
+  sendToPath: (
+    path: string,
+    payload: WatchPayload,
+    nodeId: string | null,
+  ) => Promise<void>;
+
+  /**
+   * Android only
+   */
+  setMaxConcurrentFileTransfers: (maxConcurrentTransfers: number) => void;
+
+  /**
+   * Android only
+   */
+  setReplicatedState: <Value extends WatchPayload>(
+    key: string,
+    value: Value | null,
+  ) => void;
+
+  /**
+   * Android only
+   */
+  setReplyTimeout: (timeoutMs: number) => void;
+
+  /**
+   * Android only
+   */
+  setStatsInterval: (intervalMs: number) => void;
+
+  /**
+   * Android only
+   */
+  transferCoalescedUserInfo: <UserInfo extends WatchPayload>(
+    key: string,
+    userInfo: UserInfo,
+  ) => void;
+
   transferCurrentComplicationUserInfo: (userInfo: WatchPayload) => void;
 
   transferFile: (url: string, metaData: WatchPayload | null) => Promise<string>;
@@ -102,7 +590,13 @@ export enum WatchEvent {
   EVENT_FILE_TRANSFER = 'WatchFileTransfer',
   EVENT_INSTALL_STATUS_CHANGED = 'WatchInstallStatusChanged',
   EVENT_PAIR_STATUS_CHANGED = 'WatchPairStatusChanged',
+  EVENT_PATH_MESSAGE = 'WatchPathMessage',
   EVENT_RECEIVE_MESSAGE = 'WatchReceiveMessage',
+  EVENT_RECEIVE_MESSAGE_BATCH = 'WatchReceiveMessageBatch',
+  EVENT_REPLICATED_STATE_CHANGED = 'WatchReplicatedStateChanged',
+  EVENT_STATS = 'WatchStats',
+  EVENT_TELEMETRY = 'WatchTelemetry',
+  EVENT_USER_INFO_QUEUED = 'WatchUserInfoQueued',
   EVENT_WATCH_REACHABILITY_CHANGED = 'WatchReachabilityChanged',
   EVENT_WATCH_STATE_CHANGED = 'WatchStateChanged',
   EVENT_WATCH_USER_INFO_RECEIVED = 'WatchUserInfoReceived',
@@ -110,7 +604,20 @@ export enum WatchEvent {
 
 export interface EventPayloads {
   [WatchEvent.EVENT_FILE_TRANSFER]: NativeFileTransferEvent;
+  [WatchEvent.EVENT_PATH_MESSAGE]: {
+    data: WatchPayload;
+    path: string;
+    pattern: string;
+    sourceNodeId: string;
+  };
   [WatchEvent.EVENT_RECEIVE_MESSAGE]: WatchPayload & {id?: string};
+  [WatchEvent.EVENT_RECEIVE_MESSAGE_BATCH]: Array<WatchPayload & {id?: string}>;
+  [WatchEvent.EVENT_REPLICATED_STATE_CHANGED]: {
+    [key: string]: WatchPayload | null;
+  };
+  [WatchEvent.EVENT_STATS]: MessagingStats;
+  [WatchEvent.EVENT_TELEMETRY]: NativeTelemetryFrame;
+  [WatchEvent.EVENT_USER_INFO_QUEUED]: {count: number};
   [WatchEvent.EVENT_WATCH_STATE_CHANGED]: {
     state:
       | 'WCSessionActivationStateNotActivated'
@@ -139,6 +646,7 @@ export function _addListener<E extends WatchEvent, Payload = EventPayloads[E]>(
     throw new Error('Must pass event');
   }
 
+  _bindNativeEvents(event);
   const sub = nativeWatchEventEmitter.addListener(event, cb);
   return () => sub.remove();
 }
@@ -152,6 +660,7 @@ export function _once<E extends WatchEvent, Payload = EventPayloads[E]>(
     throw new Error('Must pass event');
   }
 
+  _bindNativeEvents(event);
   // TODO: Investigate NativeEventEmitter.once issues...
   // ... can randomly throw an error: "Invariant Violation: Not in an emitting cycle; there is no current subscription"
   const sub = nativeWatchEventEmitter.addListener(event, (payload) => {
@@ -162,3 +671,23 @@ export function _once<E extends WatchEvent, Payload = EventPayloads[E]>(
   return () => sub.remove();
 }
 
+/**
+ * Rejects the call of an Android only function on another platform
+ */
+export function _rejectUnsupported<T>(name: string): Promise<T> {
+  const error: Error & {code?: string} = new Error(
+    `${name} is only supported on Android`,
+  );
+  error.code = ERROR_CODE_UNSUPPORTED;
+  return Promise.reject(error);
+}
+
+/**
+ * The Android service is bound on first use, so subscribing to an event has to tell it events are wanted.
+ * NativeEventEmitter only does so itself on iOS.
+ */
+function _bindNativeEvents(event: WatchEvent) {
+  if (Platform.OS === 'android') {
+    NativeModule.addListener(event);
+  }
+}
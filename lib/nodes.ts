@@ -0,0 +1,34 @@
+import {Platform} from 'react-native';
+import {
+  _rejectUnsupported,
+  FanOutOptions,
+  NativeModule,
+  NodeHealth,
+} from './native-module';
+
+export type {
+  FanOutOptions,
+  NodeCircuitState,
+  NodeHealth,
+  NodeHealthStats,
+} from './native-module';
+
+/**
+ * Get the connected watches and how well they receive messages,
+ * pass the id of a watch as the nodeId option of sendMessage to send to it only
+ */
+export function getNodeHealth(): Promise<NodeHealth[]> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('getNodeHealth');
+  }
+  return NativeModule.getNodeHealth();
+}
+
+/**
+ * Configure how messages are sent to several watches and when failing watches are skipped
+ */
+export function configureFanOut(options: FanOutOptions) {
+  if (Platform.OS === 'android') {
+    NativeModule.configureFanOut(options);
+  }
+}
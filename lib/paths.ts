@@ -0,0 +1,76 @@
+import {Platform} from 'react-native';
+import {
+  _addListener,
+  _rejectUnsupported,
+  NativeModule,
+  PathListenerOptions,
+  WatchEvent,
+  WatchPayload,
+} from './native-module';
+
+export type {PathListenerOptions, PathStats} from './native-module';
+
+const DEFAULT_PRIORITY = 5;
+
+// Number of listeners by pattern, the native handler is removed with the last one
+const listenerCounts: {[pattern: string]: number} = {};
+
+/**
+ * Called with the messages the watch sends on a path of their own, instead of the messages of this library.
+ * The pattern is an exact path, or a prefix ending in "/*" that matches every path below it.
+ * Every pattern is handled on a native thread of its own, so busy paths do not delay each other.
+ */
+export function addPathListener<Payload extends WatchPayload = WatchPayload>(
+  pattern: string,
+  cb: (payload: Payload, path: string, sourceNodeId: string) => void,
+  options: PathListenerOptions = {},
+) {
+  if (Platform.OS !== 'android') {
+    return () => {};
+  }
+  if (!listenerCounts[pattern]) {
+    NativeModule.addPathListener(
+      pattern,
+      options.priority === undefined ? DEFAULT_PRIORITY : options.priority,
+    );
+  }
+  listenerCounts[pattern] = (listenerCounts[pattern] || 0) + 1;
+
+  // The native side routed the message to the most specific pattern already
+  const unsubscribe = _addListener(
+    WatchEvent.EVENT_PATH_MESSAGE,
+    (event) => {
+      if (event.pattern === pattern) {
+        cb(event.data as Payload, event.path, event.sourceNodeId);
+      }
+    },
+  );
+
+  let subscribed = true;
+  return () => {
+    if (!subscribed) {
+      return;
+    }
+    subscribed = false;
+    unsubscribe();
+    listenerCounts[pattern] -= 1;
+    if (!listenerCounts[pattern]) {
+      delete listenerCounts[pattern];
+      NativeModule.removePathListener(pattern);
+    }
+  };
+}
+
+/**
+ * Send a payload on a path of its own, to one node or to all connected nodes
+ */
+export function sendToPath<Payload extends WatchPayload = WatchPayload>(
+  path: string,
+  payload: Payload,
+  nodeId: string | null = null,
+): Promise<void> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('sendToPath');
+  }
+  return NativeModule.sendToPath(path, payload, nodeId);
+}
@@ -1,5 +1,34 @@
-import {NativeModule} from './native-module';
+import {Platform} from 'react-native';
+import {
+  NativeModule,
+  ReachabilityOptions,
+  ReachabilityState,
+} from './native-module';
+
+export type {ReachabilityOptions, ReachabilityState} from './native-module';
 
 export function getReachability(): Promise<boolean> {
   return NativeModule.getReachability();
 }
+
+/**
+ * Configure how the paired, installed and reachability state is determined.
+ * Without a capability every connected watch is assumed to have the app installed.
+ * Only has an effect on Android.
+ */
+export function configureReachability(options: ReachabilityOptions) {
+  if (Platform.OS === 'android') {
+    NativeModule.configureReachability(options);
+  }
+}
+
+/**
+ * Read the last known paired, installed and reachability state without waiting.
+ * Returns null until the state is known, and always on iOS.
+ */
+export function getCachedReachability(): ReachabilityState | null {
+  if (Platform.OS === 'android') {
+    return NativeModule.getCachedReachability();
+  }
+  return null;
+}
@@ -0,0 +1,14 @@
+import {Platform} from 'react-native';
+import {NativeModule, ReliableStreamOptions} from './native-module';
+
+export type {ReliableStreamOptions, ReliableStreamStats} from './native-module';
+
+/**
+ * Configure the stream of messages sent with the reliable option,
+ * they are retransmitted until the watch acknowledges them and are received in order
+ */
+export function configureReliableStream(options: ReliableStreamOptions) {
+  if (Platform.OS === 'android') {
+    NativeModule.configureReliableStream(options);
+  }
+}
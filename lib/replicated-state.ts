@@ -0,0 +1,66 @@
+import {Platform} from 'react-native';
+import {
+  _addListener,
+  NativeModule,
+  ReplicatedStateOptions,
+  WatchEvent,
+  WatchPayload,
+} from './native-module';
+
+export type {ReplicatedStateOptions, ReplicatedStateStats} from './native-module';
+
+/**
+ * Configure where the replicated state is stored and how often it is written
+ */
+export function configureReplicatedState(options: ReplicatedStateOptions) {
+  if (Platform.OS === 'android') {
+    NativeModule.configureReplicatedState(options);
+  }
+}
+
+/**
+ * Write a key of the replicated state, null removes it.
+ * Only the newest value written within the throttle interval is sent to the watch.
+ */
+export function setReplicatedState<Value extends WatchPayload = WatchPayload>(
+  key: string,
+  value: Value | null,
+) {
+  if (Platform.OS === 'android') {
+    NativeModule.setReplicatedState(key, value);
+  }
+}
+
+/**
+ * Read a key of the replicated state from the native cache, synchronously
+ */
+export function getReplicatedState<Value extends WatchPayload = WatchPayload>(
+  key: string,
+): Value | null {
+  if (Platform.OS !== 'android') {
+    return null;
+  }
+  return NativeModule.getReplicatedState<Value>(key);
+}
+
+/**
+ * Read all keys of the replicated state from the native cache, synchronously
+ */
+export function getAllReplicatedState(): {[key: string]: WatchPayload} {
+  if (Platform.OS !== 'android') {
+    return {};
+  }
+  return NativeModule.getAllReplicatedState();
+}
+
+/**
+ * Called with the keys the watch changed, null for removed keys
+ */
+export function addReplicatedStateListener(
+  cb: (changes: {[key: string]: WatchPayload | null}) => void,
+) {
+  if (Platform.OS !== 'android') {
+    return () => {};
+  }
+  return _addListener(WatchEvent.EVENT_REPLICATED_STATE_CHANGED, cb);
+}
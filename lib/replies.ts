@@ -0,0 +1,20 @@
+import {Platform} from 'react-native';
+import {_rejectUnsupported, NativeModule, ReplyStats} from './native-module';
+
+export type {ReplyStats} from './native-module';
+
+/**
+ * Set how long sendMessage waits for a reply before calling the error callback
+ */
+export function setReplyTimeout(timeoutMs: number) {
+  if (Platform.OS === 'android') {
+    NativeModule.setReplyTimeout(timeoutMs);
+  }
+}
+
+export function getReplyStats(): Promise<ReplyStats> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('getReplyStats');
+  }
+  return NativeModule.getReplyStats();
+}
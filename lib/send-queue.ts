@@ -0,0 +1,31 @@
+import {Platform} from 'react-native';
+import {
+  _rejectUnsupported,
+  NativeModule,
+  SendQueueOptions,
+  SendQueueStats,
+} from './native-module';
+
+export type {
+  SendQueueOptions,
+  SendQueueOverflowPolicy,
+  SendQueueStats,
+} from './native-module';
+
+/**
+ * Bound the number of messages waiting to be sent, and choose what happens when it is reached.
+ * Rejects with ERROR_CODE_INVALID_OPTIONS when the overflow policy is unknown.
+ */
+export function configureSendQueue(options: SendQueueOptions): Promise<void> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('configureSendQueue');
+  }
+  return NativeModule.configureSendQueue(options);
+}
+
+export function getSendQueueStats(): Promise<SendQueueStats> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('getSendQueueStats');
+  }
+  return NativeModule.getSendQueueStats();
+}
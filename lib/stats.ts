@@ -0,0 +1,36 @@
+import {Platform} from 'react-native';
+import {
+  _addListener,
+  _rejectUnsupported,
+  MessagingStats,
+  NativeModule,
+  WatchEvent,
+} from './native-module';
+
+export type {BufferPoolStats, MessagingStats, NodeStats} from './native-module';
+
+/**
+ * Get the counters and latencies of the messaging pipeline
+ */
+export function getStats(): Promise<MessagingStats> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('getStats');
+  }
+  return NativeModule.getStats();
+}
+
+/**
+ * Report the statistics to the stats listeners every interval, 0 stops reporting
+ */
+export function setStatsInterval(intervalMs: number) {
+  if (Platform.OS === 'android') {
+    NativeModule.setStatsInterval(intervalMs);
+  }
+}
+
+export function addStatsListener(cb: (stats: MessagingStats) => void) {
+  if (Platform.OS !== 'android') {
+    return () => {};
+  }
+  return _addListener(WatchEvent.EVENT_STATS, cb);
+}
@@ -0,0 +1,119 @@
+import {Platform} from 'react-native';
+import {
+  _addListener,
+  _rejectUnsupported,
+  NativeModule,
+  TelemetryChannelOptions,
+  TelemetryValueType,
+  WatchEvent,
+} from './native-module';
+import {toBytes} from './base64';
+
+export type {
+  TelemetryChannelOptions,
+  TelemetryStats,
+  TelemetryValueType,
+} from './native-module';
+
+export interface TelemetryFrame {
+  channel: string;
+  count: number;
+  dimensions: number;
+  sourceNodeId: string;
+  timestamps: Float64Array;
+  type: TelemetryValueType;
+  /**
+   * Value d of sample i is at i * dimensions + d
+   */
+  values: Float64Array;
+}
+
+/**
+ * Open a channel of numeric samples, such as a heart rate or acceleration.
+ * Samples are collected natively and sent as one compact frame per maxSamples or flushIntervalMs.
+ * Rejects with ERROR_CODE_INVALID_TELEMETRY when dimensions is out of range.
+ */
+export function openTelemetryChannel(
+  channel: string,
+  options: TelemetryChannelOptions = {},
+): Promise<void> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('openTelemetryChannel');
+  }
+  return NativeModule.openTelemetryChannel(channel, options);
+}
+
+/**
+ * Send the remaining samples of a channel and close it
+ */
+export function closeTelemetryChannel(channel: string) {
+  if (Platform.OS === 'android') {
+    NativeModule.closeTelemetryChannel(channel);
+  }
+}
+
+/**
+ * Add a sample to an open channel, with one value per dimension.
+ * Rejects with ERROR_CODE_INVALID_TELEMETRY when the channel is not open or the number of values is wrong.
+ */
+export function appendTelemetry(
+  channel: string,
+  timestamp: number,
+  values: number | number[],
+): Promise<void> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('appendTelemetry');
+  }
+  return NativeModule.appendTelemetry(
+    channel,
+    [timestamp],
+    typeof values === 'number' ? [values] : values,
+  );
+}
+
+/**
+ * Add several samples to an open channel in one call, the values are interleaved by sample.
+ * Rejects with ERROR_CODE_INVALID_TELEMETRY when the channel is not open
+ * or values does not hold one value per dimension for every timestamp.
+ */
+export function appendTelemetrySamples(
+  channel: string,
+  timestamps: number[],
+  values: number[],
+): Promise<void> {
+  if (Platform.OS !== 'android') {
+    return _rejectUnsupported('appendTelemetrySamples');
+  }
+  return NativeModule.appendTelemetry(channel, timestamps, values);
+}
+
+/**
+ * Send the samples of all channels right away
+ */
+export function flushTelemetry() {
+  if (Platform.OS === 'android') {
+    NativeModule.flushTelemetry();
+  }
+}
+
+/**
+ * Called with every frame received from the watch, of one channel or of all channels
+ */
+export function addTelemetryListener(
+  cb: (frame: TelemetryFrame) => void,
+  channel?: string,
+) {
+  if (Platform.OS !== 'android') {
+    return () => {};
+  }
+  return _addListener(WatchEvent.EVENT_TELEMETRY, (frame) => {
+    if (channel !== undefined && frame.channel !== channel) {
+      return;
+    }
+    cb({
+      ...frame,
+      timestamps: new Float64Array(toBytes(frame.timestamps).buffer),
+      values: new Float64Array(toBytes(frame.values).buffer),
+    });
+  });
+}
@@ -1,11 +1,22 @@
+import {Platform} from 'react-native';
 import {
   NativeModule,
   QueuedUserInfo,
   UserInfoQueue,
+  UserInfoTransferOptions,
   WatchPayload,
 } from './native-module';
 import sortBy from 'lodash.sortby';
 
+export type {UserInfoStats, UserInfoTransferOptions} from './native-module';
+
+export interface TransferUserInfoOptions {
+  /**
+   * Android only, queued user info with the same key that was not transferred yet is dropped
+   */
+  coalesceKey?: string;
+}
+
 export function transferCurrentComplicationUserInfo<
   UserInfo extends WatchPayload = WatchPayload
 >(info: UserInfo) {
@@ -14,8 +25,22 @@ export function transferCurrentComplicationUserInfo<
 
 export function transferUserInfo<UserInfo extends WatchPayload = WatchPayload>(
   info: UserInfo,
+  options: TransferUserInfoOptions = {},
 ) {
-  NativeModule.transferUserInfo(info);
+  if (Platform.OS === 'android' && options.coalesceKey !== undefined) {
+    NativeModule.transferCoalescedUserInfo(options.coalesceKey, info);
+  } else {
+    NativeModule.transferUserInfo(info);
+  }
+}
+
+/**
+ * Android only, configure how transferred user info is batched
+ */
+export function configureUserInfo(options: UserInfoTransferOptions) {
+  if (Platform.OS === 'android') {
+    NativeModule.configureUserInfo(options);
+  }
 }
 
 function processUserInfoQueue<UserInfo extends WatchPayload = WatchPayload>(
@@ -43,3 +68,14 @@ export async function _getMissedUserInfo<
 
   return items.map((q) => q.userInfo);
 }
+
+/**
+ * @private
+ * Android only, removes the received user info from the native queue in one call
+ */
+export async function _drainUserInfo<
+  UserInfo extends WatchPayload = WatchPayload
+>(max: number = 256): Promise<UserInfo[]> {
+  const items = await NativeModule.drainUserInfo<UserInfo>(max);
+  return items.map((q) => q.userInfo);
+}